@@ -0,0 +1,59 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+/**
+ * A concurrency limit adjusted by additive increase, multiplicative decrease. Each completed
+ * request is a sample: the limit shrinks by a fraction when the request failed or its latency was
+ * well above the lowest recently observed, which signals that requests are queueing at the server.
+ * Otherwise the limit grows by one, but only while requests are actually using at least half of
+ * it, so that a quiet period does not inflate it.
+ */
+final class AdaptiveLimit {
+  /** Latency above this multiple of the baseline signals congestion. */
+  private static final double TOLERANCE = 2.0;
+  /** Fraction of the limit kept after congestion. */
+  private static final double BACKOFF = 0.9;
+  /** The baseline is re-learned after this many samples so that it can rise as well as fall. */
+  private static final int BASELINE_SAMPLES = 500;
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  private double limit;
+  private long baselineNanos = Long.MAX_VALUE;
+  private long nextBaselineNanos = Long.MAX_VALUE;
+  private int samples;
+
+  AdaptiveLimit(int initialLimit, int minLimit, int maxLimit) {
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  synchronized int get() {
+    return (int) limit;
+  }
+
+  /**
+   * @param rttNanos time the request took.
+   * @param failed whether the request failed in a way which suggests the server is overloaded.
+   * @param inFlight number of requests in flight, including this one, when it was sent.
+   */
+  synchronized void onSample(long rttNanos, boolean failed, int inFlight) {
+    if (!failed) {
+      baselineNanos = Math.min(baselineNanos, rttNanos);
+      nextBaselineNanos = Math.min(nextBaselineNanos, rttNanos);
+      if (++samples == BASELINE_SAMPLES) {
+        baselineNanos = nextBaselineNanos;
+        nextBaselineNanos = Long.MAX_VALUE;
+        samples = 0;
+      }
+    }
+
+    if (failed || rttNanos > baselineNanos * TOLERANCE) {
+      limit = Math.max(minLimit, limit * BACKOFF);
+    } else if (inFlight * 2 >= limit) {
+      limit = Math.min(maxLimit, limit + 1);
+    }
+  }
+}
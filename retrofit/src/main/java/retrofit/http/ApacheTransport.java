@@ -0,0 +1,115 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import javax.inject.Provider;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+
+/** Sends requests with an Apache {@link HttpClient}. */
+public final class ApacheTransport implements Transport {
+  private final Provider<HttpClient> clientProvider;
+
+  public ApacheTransport(final HttpClient client) {
+    this(new Provider<HttpClient>() {
+      @Override public HttpClient get() {
+        return client;
+      }
+    });
+    if (client == null) throw new NullPointerException("client");
+  }
+
+  public ApacheTransport(Provider<HttpClient> clientProvider) {
+    if (clientProvider == null) throw new NullPointerException("clientProvider");
+    this.clientProvider = clientProvider;
+  }
+
+  @Override public Exchange newExchange(final Request request) {
+    final HttpUriRequest apacheRequest = createRequest(request);
+    return new Exchange() {
+      @Override public Request request() {
+        return request;
+      }
+
+      @Override public Response execute() throws IOException {
+        return parseResponse(clientProvider.get().execute(apacheRequest));
+      }
+
+      @Override public void cancel() {
+        apacheRequest.abort();
+      }
+    };
+  }
+
+  static HttpUriRequest createRequest(Request request) {
+    HttpRequestBase apacheRequest;
+    if (request.getBody() != null) {
+      EntityRequest entityRequest = new EntityRequest(request.getMethod());
+      entityRequest.setEntity(new TypedBytesEntity(request.getBody()));
+      apacheRequest = entityRequest;
+    } else {
+      apacheRequest = new BodilessRequest(request.getMethod());
+    }
+    apacheRequest.setURI(URI.create(request.getUrl()));
+    for (Header header : request.getHeaders()) {
+      apacheRequest.addHeader(header.getName(), header.getValue());
+    }
+    HttpParams params = apacheRequest.getParams();
+    if (request.getConnectTimeout() != Request.DEFAULT_TIMEOUT) {
+      HttpConnectionParams.setConnectionTimeout(params, request.getConnectTimeout());
+    }
+    if (request.getReadTimeout() != Request.DEFAULT_TIMEOUT) {
+      HttpConnectionParams.setSoTimeout(params, request.getReadTimeout());
+    }
+    return apacheRequest;
+  }
+
+  static Response parseResponse(HttpResponse response) throws IOException {
+    StatusLine statusLine = response.getStatusLine();
+    org.apache.http.Header[] apacheHeaders = response.getAllHeaders();
+    List<Header> headers = new ArrayList<Header>(apacheHeaders != null ? apacheHeaders.length : 0);
+    if (apacheHeaders != null) {
+      for (org.apache.http.Header header : apacheHeaders) {
+        headers.add(new Header(header.getName(), header.getValue()));
+      }
+    }
+    HttpEntity entity = response.getEntity();
+    byte[] body = entity != null ? EntityUtils.toByteArray(entity) : null;
+    return new Response(statusLine.getStatusCode(), statusLine.getReasonPhrase(), headers, body);
+  }
+
+  private static final class EntityRequest extends HttpEntityEnclosingRequestBase {
+    private final String method;
+
+    EntityRequest(String method) {
+      this.method = method;
+    }
+
+    @Override public String getMethod() {
+      return method;
+    }
+  }
+
+  private static final class BodilessRequest extends HttpRequestBase {
+    private final String method;
+
+    BodilessRequest(String method) {
+      this.method = method;
+    }
+
+    @Override public String getMethod() {
+      return method;
+    }
+  }
+}
@@ -0,0 +1,37 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.List;
+
+/**
+ * A scope in which asynchronous calls made on the current thread are collected rather than
+ * executed. Calling {@link #send()} sends all of the collected calls to the server in a single
+ * {@code multipart/mixed} request. Obtain a batch with {@link RestAdapter#beginBatch()}:
+ * <pre>
+ *   Batch batch = restAdapter.beginBatch();
+ *   api.user("jake", userCallback);
+ *   api.repos("jake", reposCallback);
+ *   batch.send();
+ * </pre>
+ */
+public final class Batch {
+  private final RequestBatcher<?> batcher;
+  private final List<?> calls;
+  private boolean sent;
+
+  Batch(RequestBatcher<?> batcher, List<?> calls) {
+    this.batcher = batcher;
+    this.calls = calls;
+  }
+
+  List<?> calls() {
+    return calls;
+  }
+
+  /** End the scope and send all collected calls. */
+  public void send() {
+    if (sent) throw new IllegalStateException("Batch already sent.");
+    sent = true;
+    batcher.end(this);
+  }
+}
@@ -0,0 +1,224 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.http.protocol.HTTP;
+import retrofit.io.TypedBytes;
+
+import static java.util.regex.Pattern.CASE_INSENSITIVE;
+
+/**
+ * Encodes several HTTP requests into a single {@code multipart/mixed} body and decodes the
+ * corresponding {@code multipart/mixed} response. Each part has a content type of
+ * {@code application/http} and holds a complete HTTP/1.1 message. Response parts are matched to
+ * requests by their {@code Content-ID} header ({@code <response-N>} answers {@code <N>}), falling
+ * back to the order of the parts.
+ */
+final class BatchEnvelope {
+  static final String MIME_TYPE = "multipart/mixed";
+  private static final String PART_MIME_TYPE = "application/http";
+  private static final String CRLF = "\r\n";
+  // Used to convert between bytes and characters without altering any byte values.
+  private static final String LATIN_1 = "ISO-8859-1";
+  private static final Pattern BOUNDARY =
+      Pattern.compile("\\Wboundary=(\"([^\"]*)\"|([^\\s;]+))", CASE_INSENSITIVE);
+  private static final Pattern CONTENT_ID = Pattern.compile("<(?:response-)?([^>]*)>");
+
+  private BatchEnvelope() {
+  }
+
+  /** A unique multipart boundary. */
+  static String newBoundary() {
+    return "batch_" + UUID.randomUUID().toString();
+  }
+
+  /** Encode {@code requests} as parts of a {@code multipart/mixed} body. */
+  static byte[] encode(List<Request> requests, String boundary) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int i = 0; i < requests.size(); i++) {
+      Request request = requests.get(i);
+      URI uri = URI.create(request.getUrl());
+
+      StringBuilder head = new StringBuilder();
+      head.append("--").append(boundary).append(CRLF);
+      head.append(HTTP.CONTENT_TYPE).append(": ").append(PART_MIME_TYPE).append(CRLF);
+      head.append("Content-ID: <").append(i).append('>').append(CRLF);
+      head.append(CRLF);
+      head.append(request.getMethod()).append(' ').append(uri.getRawPath());
+      if (uri.getRawQuery() != null) {
+        head.append('?').append(uri.getRawQuery());
+      }
+      head.append(" HTTP/1.1").append(CRLF);
+      head.append(HTTP.TARGET_HOST).append(": ").append(uri.getHost()).append(CRLF);
+      for (Header header : request.getHeaders()) {
+        head.append(header.getName()).append(": ").append(header.getValue()).append(CRLF);
+      }
+
+      TypedBytes entity = request.getBody();
+      byte[] body = null;
+      if (entity != null) {
+        ByteArrayOutputStream bodyOut = new ByteArrayOutputStream();
+        entity.writeTo(bodyOut);
+        body = bodyOut.toByteArray();
+        if (request.getHeader(HTTP.CONTENT_TYPE) == null) {
+          head.append(HTTP.CONTENT_TYPE).append(": ").append(entity.mimeType().mimeName())
+              .append(CRLF);
+        }
+        head.append(HTTP.CONTENT_LEN).append(": ").append(body.length).append(CRLF);
+      }
+      head.append(CRLF);
+
+      out.write(head.toString().getBytes(LATIN_1));
+      if (body != null) {
+        out.write(body);
+      }
+      out.write(CRLF.getBytes(LATIN_1));
+    }
+    out.write(("--" + boundary + "--" + CRLF).getBytes(LATIN_1));
+    return out.toByteArray();
+  }
+
+  /** The boundary parameter of a {@code multipart/mixed} content type, or null. */
+  static String parseBoundary(String contentType) {
+    if (contentType == null || !contentType.toLowerCase().startsWith(MIME_TYPE)) {
+      return null;
+    }
+    Matcher match = BOUNDARY.matcher(contentType);
+    if (!match.find()) {
+      return null;
+    }
+    return match.group(2) != null ? match.group(2) : match.group(3);
+  }
+
+  /**
+   * Decode the parts of a {@code multipart/mixed} response into {@code count} responses ordered to
+   * match the encoded requests.
+   *
+   * @throws IOException if the body is malformed or a response is missing.
+   */
+  static Part[] decode(byte[] body, String boundary, int count) throws IOException {
+    String content = new String(body, LATIN_1);
+    String delimiter = "--" + boundary;
+
+    List<Part> unidentified = new ArrayList<Part>();
+    Part[] parts = new Part[count];
+    int index = content.indexOf(delimiter);
+    while (index != -1) {
+      int start = index + delimiter.length();
+      if (content.startsWith("--", start)) {
+        break; // Closing delimiter.
+      }
+      int end = content.indexOf(CRLF + delimiter, start);
+      if (end == -1) {
+        throw new IOException("Unterminated batch part.");
+      }
+      String part = content.substring(skipLineBreak(content, start), end);
+      index = end + CRLF.length();
+
+      int headersEnd = part.indexOf(CRLF + CRLF);
+      if (headersEnd == -1) {
+        throw new IOException("Malformed batch part.");
+      }
+      String contentId = headerValue(part.substring(0, headersEnd), "Content-ID");
+      Part response = parseResponse(part.substring(headersEnd + 2 * CRLF.length()));
+
+      Integer position = null;
+      if (contentId != null) {
+        Matcher match = CONTENT_ID.matcher(contentId);
+        if (match.matches()) {
+          try {
+            position = Integer.valueOf(match.group(1));
+          } catch (NumberFormatException ignored) {
+          }
+        }
+      }
+      if (position != null && position >= 0 && position < count && parts[position] == null) {
+        parts[position] = response;
+      } else {
+        unidentified.add(response);
+      }
+    }
+
+    // Fill any gaps with parts which could not be matched by Content-ID, in order.
+    int next = 0;
+    for (int i = 0; i < count; i++) {
+      if (parts[i] == null) {
+        if (next == unidentified.size()) {
+          throw new IOException("Batch response missing part " + i + ".");
+        }
+        parts[i] = unidentified.get(next++);
+      }
+    }
+    return parts;
+  }
+
+  private static Part parseResponse(String message) throws IOException {
+    int statusEnd = message.indexOf(CRLF);
+    int headersEnd = message.indexOf(CRLF + CRLF);
+    if (statusEnd == -1 || headersEnd == -1) {
+      throw new IOException("Malformed batch response.");
+    }
+    // "HTTP/1.1 200 OK"
+    String[] statusLine = message.substring(0, statusEnd).split(" ", 3);
+    if (statusLine.length < 2) {
+      throw new IOException("Malformed batch status line.");
+    }
+    int statusCode;
+    try {
+      statusCode = Integer.parseInt(statusLine[1]);
+    } catch (NumberFormatException e) {
+      throw new IOException("Malformed batch status line.");
+    }
+
+    List<Header> headers = new ArrayList<Header>();
+    if (headersEnd > statusEnd) {
+      for (String line : message.substring(statusEnd + CRLF.length(), headersEnd).split(CRLF)) {
+        int colon = line.indexOf(':');
+        if (colon != -1) {
+          String name = line.substring(0, colon).trim();
+          headers.add(new Header(name, line.substring(colon + 1).trim()));
+        }
+      }
+    }
+    byte[] body = message.substring(headersEnd + 2 * CRLF.length()).getBytes(LATIN_1);
+    return new Part(statusCode, headers.toArray(new Header[headers.size()]), body);
+  }
+
+  private static String headerValue(String headers, String name) {
+    for (String line : headers.split(CRLF)) {
+      int colon = line.indexOf(':');
+      if (colon != -1 && line.substring(0, colon).trim().equalsIgnoreCase(name)) {
+        return line.substring(colon + 1).trim();
+      }
+    }
+    return null;
+  }
+
+  private static int skipLineBreak(String content, int index) {
+    return content.startsWith(CRLF, index) ? index + CRLF.length() : index;
+  }
+
+  static String contentType(String boundary) {
+    return MIME_TYPE + "; boundary=" + boundary;
+  }
+
+  /** A single response decoded from a batch. */
+  static final class Part {
+    final int statusCode;
+    final Header[] headers;
+    final byte[] body;
+
+    Part(int statusCode, Header[] headers, byte[] body) {
+      this.statusCode = statusCode;
+      this.headers = headers;
+      this.body = body;
+    }
+  }
+}
@@ -0,0 +1,46 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Merge calls to a single-item method into requests to a bulk method of the same interface. The
+ * single-item method must take exactly one {@link javax.inject.Named @Named} argument, its key.
+ * The bulk method must be synchronous and take exactly one {@code @Named} argument, which receives
+ * the keys of the merged calls joined by {@link #separator()}. For example:
+ * <pre>
+ *   &#64;GET("users/{id}") &#64;Bulk(method = "users", key = "id")
+ *   void user(@Named("id") String id, Callback&lt;User> callback);
+ *
+ *   &#64;GET("users")
+ *   List&lt;User> users(@Named("ids") String ids);
+ * </pre>
+ * Calls which arrive within {@link #window()} milliseconds of each other, up to
+ * {@link #maxSize()}, are merged. Each caller then receives the element of the bulk response whose
+ * key matches its own, or {@code null} if the response has no such element.
+ */
+@Target({ METHOD })
+@Retention(RUNTIME)
+public @interface Bulk {
+  /** Name of the bulk method. */
+  String method();
+
+  /**
+   * Name of the field holding the key of each element when the bulk method returns a collection or
+   * an array. Unused when the bulk method returns a {@link java.util.Map} keyed by key.
+   */
+  String key() default "";
+
+  /** Separator used to join keys into the bulk method's argument. */
+  String separator() default ",";
+
+  /** Milliseconds to wait for further calls after the first call of a bulk request. */
+  long window() default 10;
+
+  /** Maximum number of keys in a single bulk request. */
+  int maxSize() default 100;
+}
@@ -0,0 +1,115 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** A call to a {@link Bulk} method waiting to be merged into a bulk request. */
+final class BulkLoad {
+  final String key;
+  final RealCall call;
+  /** Null for synchronous calls. */
+  final Callback<?> callback;
+
+  private final CountDownLatch latch = new CountDownLatch(1);
+  // Published to the waiting thread by the latch.
+  private Object result;
+  private RetrofitError error;
+
+  BulkLoad(String key, RealCall call, Callback<?> callback) {
+    this.key = key;
+    this.call = call;
+    this.callback = callback;
+  }
+
+  /** Complete a synchronous load. */
+  void complete(Object result, RetrofitError error) {
+    this.result = result;
+    this.error = error;
+    latch.countDown();
+  }
+
+  /** Wait for a synchronous load to complete and return its result. */
+  Object await(String url) {
+    try {
+      if (call.hasDeadline()) {
+        if (!latch.await(call.remainingMillis(), TimeUnit.MILLISECONDS)) {
+          throw RetrofitError.deadlineExceededError(url);
+        }
+      } else {
+        latch.await();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw RetrofitError.unexpectedError(url, e);
+    }
+    if (call.isCanceled()) {
+      throw RetrofitError.canceledError(url);
+    }
+    if (error != null) {
+      throw error;
+    }
+    return result;
+  }
+
+  /**
+   * Index the elements of a bulk response by key. A map is indexed by its own keys while the
+   * elements of a collection or array are indexed by their {@code keyField}. Keys are compared by
+   * their string values.
+   */
+  static Map<String, Object> index(Object response, String keyField) throws NoSuchFieldException,
+      IllegalAccessException {
+    Map<String, Object> index = new HashMap<String, Object>();
+    if (response == null) {
+      return index;
+    }
+    if (response instanceof Map) {
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) response).entrySet()) {
+        index.put(String.valueOf(entry.getKey()), entry.getValue());
+      }
+      return index;
+    }
+
+    Object[] elements;
+    if (response instanceof Collection) {
+      elements = ((Collection<?>) response).toArray();
+    } else if (response.getClass().isArray()) {
+      elements = new Object[Array.getLength(response)];
+      for (int i = 0; i < elements.length; i++) {
+        elements[i] = Array.get(response, i);
+      }
+    } else {
+      throw new IllegalArgumentException(
+          "Bulk response must be a Map, Collection, or array: " + response.getClass());
+    }
+
+    Class<?> fieldClass = null;
+    Field field = null;
+    for (Object element : elements) {
+      if (element == null) continue;
+      if (element.getClass() != fieldClass) {
+        fieldClass = element.getClass();
+        field = findField(fieldClass, keyField);
+      }
+      index.put(String.valueOf(field.get(element)), element);
+    }
+    return index;
+  }
+
+  private static Field findField(Class<?> type, String name) throws NoSuchFieldException {
+    for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+      try {
+        Field field = c.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+      } catch (NoSuchFieldException ignored) {
+      }
+    }
+    throw new NoSuchFieldException(name + " on " + type);
+  }
+}
@@ -0,0 +1,24 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+/** Sizes and latencies of the requests made for {@link Bulk} methods. */
+public final class BulkStats {
+  private final Histogram sizes = new Histogram(1, 2, 4, 8, 16, 32, 64, 128, 256);
+  private final Histogram latencies =
+      new Histogram(5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000);
+
+  void record(int size, long latencyMillis) {
+    sizes.record(size);
+    latencies.record(latencyMillis);
+  }
+
+  /** Number of distinct keys in each bulk request. */
+  public Histogram getSizes() {
+    return sizes;
+  }
+
+  /** Time in milliseconds taken by each bulk request. */
+  public Histogram getLatencies() {
+    return latencies;
+  }
+}
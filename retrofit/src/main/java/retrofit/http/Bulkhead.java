@@ -0,0 +1,24 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.TYPE;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Run asynchronous calls to an interface's methods, or to a single method, in the named bulkhead
+ * rather than the adapter's shared pool. Each bulkhead has its own concurrency limit and queue, so
+ * a slow API cannot occupy every thread of the HTTP executor. A method's annotation takes
+ * precedence over its interface's.
+ *
+ * @see RestAdapter.Builder#addBulkhead(String, int, int)
+ */
+@Target({ TYPE, METHOD })
+@Retention(RUNTIME)
+public @interface Bulkhead {
+  /** Name of a bulkhead added to the {@link RestAdapter.Builder}. */
+  String value();
+}
@@ -0,0 +1,59 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+/** Live saturation of a {@link Bulkhead}. */
+public final class BulkheadStats {
+  private final String name;
+  private final int maxQueued;
+  private final PriorityScheduler scheduler;
+
+  BulkheadStats(String name, int maxQueued, PriorityScheduler scheduler) {
+    this.name = name;
+    this.maxQueued = maxQueued;
+    this.scheduler = scheduler;
+  }
+
+  PriorityScheduler scheduler() {
+    return scheduler;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /** Number of calls which may run at once. */
+  public int getMaxConcurrency() {
+    return scheduler.maxConcurrency();
+  }
+
+  /** Number of calls which may wait to run before further calls are rejected. */
+  public int getMaxQueued() {
+    return maxQueued;
+  }
+
+  /** Number of calls currently running. */
+  public int getActiveCount() {
+    return scheduler.activeCount();
+  }
+
+  /** Number of calls currently waiting to run. */
+  public int getQueuedCount() {
+    return scheduler.queuedCount();
+  }
+
+  /** Number of calls rejected because the queue was full. */
+  public long getRejectedCount() {
+    return scheduler.rejectedCount();
+  }
+
+  /** Time calls spent waiting to run. */
+  public QueueStats getQueueStats() {
+    return scheduler.stats();
+  }
+
+  @Override public String toString() {
+    return "Bulkhead{" + name + ", active=" + getActiveCount() + "/" + getMaxConcurrency()
+        + ", queued=" + getQueuedCount() + "/" + maxQueued + ", rejected=" + getRejectedCount()
+        + "}";
+  }
+}
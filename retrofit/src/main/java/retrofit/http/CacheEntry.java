@@ -0,0 +1,272 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A response held by a {@link ResponseCache}, with the values of the request headers it varies by
+ * and the time it was received. Freshness is computed from these as RFC 2616 section 13.2
+ * describes for a private cache.
+ */
+final class CacheEntry {
+  /** Statuses which may be cached when the response gives an explicit lifetime. */
+  private static final int[] CACHEABLE_STATUSES = { 200, 203, 204, 300, 301, 404, 405, 410, 414 };
+
+  private final String url;
+  private final Response response;
+  private final List<Header> varyHeaders;
+  private final long receivedMillis;
+  private final long freshnessMillis;
+  private final long initialAgeMillis;
+  private final long weight;
+
+  /**
+   * @param varyHeaders the request headers named by the response's {@code Vary} header, with the
+   * values sent. A header which was not sent has a null value.
+   */
+  CacheEntry(String url, Response response, List<Header> varyHeaders, long receivedMillis) {
+    this.url = url;
+    this.response = response;
+    this.varyHeaders = Collections.unmodifiableList(new ArrayList<Header>(varyHeaders));
+    this.receivedMillis = receivedMillis;
+
+    String cacheControl = cacheControl(response.getHeaders());
+    long dateMillis = parseDate(response.getHeader("Date"));
+    long servedMillis = dateMillis != -1 ? dateMillis : receivedMillis;
+    long maxAge = directiveSeconds(cacheControl, "max-age");
+    if (maxAge != -1) {
+      freshnessMillis = TimeUnit.SECONDS.toMillis(maxAge);
+    } else if (response.getHeader("Expires") != null) {
+      long expiresMillis = parseDate(response.getHeader("Expires"));
+      freshnessMillis = expiresMillis != -1 ? Math.max(expiresMillis - servedMillis, 0) : 0;
+    } else {
+      freshnessMillis = 0;
+    }
+    long ageSeconds = parseSeconds(response.getHeader("Age"));
+    initialAgeMillis = Math.max(Math.max(receivedMillis - servedMillis, 0),
+        ageSeconds != -1 ? TimeUnit.SECONDS.toMillis(ageSeconds) : 0);
+    weight = computeWeight();
+  }
+
+  /**
+   * An entry for {@code response}, or null if the response to {@code request} may not be stored.
+   * Only responses to {@code GET} with an explicit lifetime are stored.
+   */
+  static CacheEntry create(Request request, Response response, long nowMillis) {
+    if (!"GET".equals(request.getMethod())
+        || hasDirective(cacheControl(request.getHeaders()), "no-store")
+        || !isCacheableStatus(response.getStatus())) {
+      return null;
+    }
+    String cacheControl = cacheControl(response.getHeaders());
+    if (hasDirective(cacheControl, "no-store") || hasDirective(cacheControl, "no-cache")) {
+      return null;
+    }
+    List<Header> varyHeaders = new ArrayList<Header>();
+    for (String name : varyFields(response)) {
+      if ("*".equals(name)) {
+        return null; // Varies by something other than the request headers.
+      }
+      varyHeaders.add(new Header(name, request.getHeader(name)));
+    }
+    CacheEntry entry = new CacheEntry(request.getUrl(), response, varyHeaders, nowMillis);
+    return entry.freshnessMillis > 0 ? entry : null;
+  }
+
+  /** The key responses to {@code GET} requests for {@code url} are cached under. */
+  static String key(String url) {
+    return "GET " + url;
+  }
+
+  /** True if {@code request} allows a cached response to be used in place of the server's. */
+  static boolean acceptsCached(Request request) {
+    String cacheControl = cacheControl(request.getHeaders());
+    return "GET".equals(request.getMethod())
+        && !hasDirective(cacheControl, "no-cache")
+        && !hasDirective(cacheControl, "no-store")
+        && directiveSeconds(cacheControl, "max-age") != 0
+        && !"no-cache".equalsIgnoreCase(request.getHeader("Pragma"));
+  }
+
+  /**
+   * True if a successful response to {@code request} means responses cached for its URL are out of
+   * date.
+   */
+  static boolean invalidates(Request request, Response response) {
+    String method = request.getMethod();
+    return !"GET".equals(method) && !"HEAD".equals(method) && response.getStatus() < 400;
+  }
+
+  String key() {
+    return key(url);
+  }
+
+  String getUrl() {
+    return url;
+  }
+
+  Response getResponse() {
+    return response;
+  }
+
+  List<Header> getVaryHeaders() {
+    return varyHeaders;
+  }
+
+  long getReceivedMillis() {
+    return receivedMillis;
+  }
+
+  /** True if this entry may still be served at {@code nowMillis} without revalidation. */
+  boolean isFresh(long nowMillis) {
+    long ageMillis = initialAgeMillis + Math.max(nowMillis - receivedMillis, 0);
+    return ageMillis < freshnessMillis;
+  }
+
+  /** True if {@code request} sends the same values of the headers this response varies by. */
+  boolean matches(Request request) {
+    if (!url.equals(request.getUrl())) {
+      return false;
+    }
+    for (Header header : varyHeaders) {
+      String value = request.getHeader(header.getName());
+      if (value == null ? header.getValue() != null : !value.equals(header.getValue())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Approximate bytes held by this entry. */
+  long weight() {
+    return weight;
+  }
+
+  private long computeWeight() {
+    long weight = url.length();
+    byte[] body = response.getBody();
+    if (body != null) {
+      weight += body.length;
+    }
+    for (Header header : response.getHeaders()) {
+      weight += length(header.getName()) + length(header.getValue());
+    }
+    for (Header header : varyHeaders) {
+      weight += length(header.getName()) + length(header.getValue());
+    }
+    return weight;
+  }
+
+  private static int length(String value) {
+    return value != null ? value.length() : 0;
+  }
+
+  private static boolean isCacheableStatus(int status) {
+    for (int cacheable : CACHEABLE_STATUSES) {
+      if (status == cacheable) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** The field names of every {@code Vary} header of {@code response}. */
+  private static List<String> varyFields(Response response) {
+    List<String> fields = new ArrayList<String>();
+    for (Header header : response.getHeaders()) {
+      if ("Vary".equalsIgnoreCase(header.getName()) && header.getValue() != null) {
+        for (String field : header.getValue().split(",")) {
+          field = field.trim();
+          if (field.length() > 0) {
+            fields.add(field);
+          }
+        }
+      }
+    }
+    return fields;
+  }
+
+  /** The directives of every {@code Cache-Control} header in {@code headers}, comma separated. */
+  private static String cacheControl(List<Header> headers) {
+    StringBuilder result = new StringBuilder();
+    for (Header header : headers) {
+      if ("Cache-Control".equalsIgnoreCase(header.getName()) && header.getValue() != null) {
+        if (result.length() > 0) {
+          result.append(',');
+        }
+        result.append(header.getValue());
+      }
+    }
+    return result.toString();
+  }
+
+  static boolean hasDirective(String cacheControl, String name) {
+    return directive(cacheControl, name) != null;
+  }
+
+  /** The value of the directive {@code name} in seconds, or -1 if it is absent or malformed. */
+  static long directiveSeconds(String cacheControl, String name) {
+    return parseSeconds(directive(cacheControl, name));
+  }
+
+  /**
+   * The value of the directive {@code name}, the empty string if it has none, or null if it is
+   * absent.
+   */
+  private static String directive(String cacheControl, String name) {
+    for (String directive : cacheControl.split(",")) {
+      directive = directive.trim();
+      int equals = directive.indexOf('=');
+      String directiveName = equals != -1 ? directive.substring(0, equals).trim() : directive;
+      if (name.equalsIgnoreCase(directiveName)) {
+        if (equals == -1) {
+          return "";
+        }
+        String value = directive.substring(equals + 1).trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+          value = value.substring(1, value.length() - 1);
+        }
+        return value;
+      }
+    }
+    return null;
+  }
+
+  private static long parseSeconds(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      long seconds = Long.parseLong(value.trim());
+      return seconds >= 0 ? seconds : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /** Parses an RFC 1123 date, returning -1 if {@code value} is null or malformed. */
+  static long parseDate(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return httpDateFormat().parse(value.trim()).getTime();
+    } catch (ParseException e) {
+      return -1;
+    }
+  }
+
+  private static SimpleDateFormat httpDateFormat() {
+    // Formats aren't thread-safe, so each use gets its own.
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format;
+  }
+}
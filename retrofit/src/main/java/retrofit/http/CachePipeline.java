@@ -0,0 +1,183 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.logging.Logger;
+
+import static retrofit.http.RestAdapter.CONTENT_TYPE;
+import static retrofit.http.RestAdapter.UTF_8;
+
+/**
+ * The caches a {@link RestAdapter} consults around each request, and the conversion of responses
+ * to results. A {@link ResponseCache} may answer a call before it is sent, a
+ * {@link ConditionalCache} revalidates remembered results with the server, and a
+ * {@link ConversionCache} reuses the result of converting an identical body. Each is optional.
+ */
+final class CachePipeline {
+  /** Returned by {@link #cachedResult} when a call must go to the server. */
+  static final Object NOT_CACHED = new Object();
+
+  private static final Logger LOGGER = Logger.getLogger(RestAdapter.class.getName());
+
+  private final Server server;
+  private final Converter converter;
+  private final Headers requestHeaders;
+  private final ResponseCache responseCache;
+  private final ConditionalCache conditionalCache;
+  private final ConversionCache conversionCache;
+
+  CachePipeline(Server server, Converter converter, Headers requestHeaders,
+      ResponseCache responseCache, ConditionalCache conditionalCache,
+      ConversionCache conversionCache) {
+    this.server = server;
+    this.converter = converter;
+    this.requestHeaders = requestHeaders;
+    this.responseCache = responseCache;
+    this.conditionalCache = conditionalCache;
+    this.conversionCache = conversionCache;
+  }
+
+  /**
+   * The converted response cached for a call to {@code methodDetails}, or {@link #NOT_CACHED}.
+   * This is checked before the call waits for rate limits or a slot on the HTTP executor, since a
+   * hit needs neither.
+   *
+   * @throws RetrofitError if the cached response is an error.
+   */
+  Object cachedResult(MethodDetails methodDetails, Object[] args) {
+    if (responseCache == null || methodDetails.httpMethod != HttpMethodType.GET) {
+      return NOT_CACHED;
+    }
+    String url = server.apiUrl();
+    try {
+      Request request = new HttpRequestBuilder(converter) //
+          .setMethod(methodDetails)
+          .setArgs(args)
+          .setApiUrl(url)
+          .setHeaders(requestHeaders)
+          .build();
+      url = request.getUrl();
+      Response cached = responseCache.get(request);
+      if (cached == null) {
+        return NOT_CACHED;
+      }
+      LOGGER.fine("Cache hit for " + url);
+      return handleResponse(methodDetails, url, cached.getStatus(),
+          RestAdapter.convertHeaders(cached.getHeaders()), cached.getBody());
+    } catch (RetrofitError e) {
+      throw e;
+    } catch (Throwable t) {
+      throw RetrofitError.unexpectedError(url, t);
+    }
+  }
+
+  /** Make {@code request} conditional on the result remembered for it, if any. */
+  Request addValidators(MethodDetails methodDetails, Request request) {
+    if (conditionalCache == null || methodDetails.httpMethod != HttpMethodType.GET) {
+      return request;
+    }
+    return conditionalCache.addValidators(request, methodDetails.type);
+  }
+
+  /**
+   * Cache the response to {@code request} and convert it. A {@code 304 Not Modified} is answered
+   * with the result remembered for the request's validators. Like a conversion cache hit, that
+   * result is copied for each call if the {@link ConversionCache} has a copier.
+   *
+   * @param endpointUrl the url of the server or endpoint which {@code request} was sent to.
+   * @throws RetrofitError if the status code was not 2XX or conversion failed.
+   * @throws IOException if the response was not encoded with UTF-8.
+   */
+  Object handle(MethodDetails methodDetails, Request request, String endpointUrl,
+      Response response, Header[] headers) throws IOException {
+    int statusCode = response.getStatus();
+    if (responseCache != null && statusCode != ConditionalCache.NOT_MODIFIED) {
+      // A 304 has no body to store, and offering it would evict the stored response.
+      responseCache.put(cacheRequest(request, endpointUrl), response);
+    }
+    if (statusCode == ConditionalCache.NOT_MODIFIED && conditionalCache != null) {
+      Object previous = conditionalCache.notModified(request, methodDetails.type);
+      if (previous != null) {
+        LOGGER.fine("Not modified: " + request.getUrl());
+        return copy(methodDetails, previous);
+      }
+    }
+    Object result =
+        handleResponse(methodDetails, request.getUrl(), statusCode, headers, response.getBody());
+    if (conditionalCache != null && methodDetails.httpMethod == HttpMethodType.GET) {
+      conditionalCache.put(request, methodDetails.type, response, copy(methodDetails, result));
+    }
+    return result;
+  }
+
+  /**
+   * Convert a response body to the method's type.
+   *
+   * @throws RetrofitError if the status code was not 2XX or conversion failed.
+   * @throws IOException if the response was not encoded with UTF-8.
+   */
+  Object handleResponse(MethodDetails methodDetails, String url, int statusCode,
+      Header[] headers, byte[] body) throws IOException {
+    if (headers != null) {
+      for (Header header : headers) {
+        if (CONTENT_TYPE.equalsIgnoreCase(header.getName()) //
+            && !UTF_8.equalsIgnoreCase(Utils.parseCharset(header.getValue()))) {
+          throw new IOException("Only UTF-8 charset supported.");
+        }
+      }
+    }
+
+    Type type = methodDetails.type;
+    if (statusCode >= 200 && statusCode < 300) { // 2XX == successful request
+      try {
+        return convert(methodDetails, url, body);
+      } catch (ConversionException e) {
+        throw RetrofitError.conversionError(url, converter, statusCode, headers, body, type, e);
+      }
+    }
+    throw RetrofitError.httpError(url, converter, statusCode, headers, body, type);
+  }
+
+  /** Number of {@code 304 Not Modified} responses answered with a remembered result. */
+  long notModifiedCount() {
+    return conditionalCache != null ? conditionalCache.notModifiedCount() : 0;
+  }
+
+  /**
+   * The request under which the response to {@code request} is cached. Every endpoint of a
+   * {@link LoadBalancedServer} serves the same resources, so their responses are cached under the
+   * server's url.
+   */
+  private Request cacheRequest(Request request, String endpointUrl) {
+    if (endpointUrl.equals(server.apiUrl())) {
+      return request;
+    }
+    return request.withUrl(server.apiUrl() + request.getUrl().substring(endpointUrl.length()));
+  }
+
+  /** A copy of {@code result} that its caller may mutate, if results are copied at all. */
+  private Object copy(MethodDetails methodDetails, Object result) {
+    if (conversionCache == null || result == null) {
+      return result;
+    }
+    return conversionCache.copy(result, methodDetails.type);
+  }
+
+  /** Convert a successful response body, reusing an earlier result for the same body if cached. */
+  private Object convert(MethodDetails methodDetails, String url, byte[] body)
+      throws ConversionException {
+    if (conversionCache == null || methodDetails.httpMethod != HttpMethodType.GET) {
+      return converter.to(body, methodDetails.type);
+    }
+    Object cached = conversionCache.get(url, methodDetails.type, body);
+    if (cached != null) {
+      return cached;
+    }
+    long start = System.nanoTime();
+    Object result = converter.to(body, methodDetails.type);
+    conversionCache.put(methodDetails.method, url, methodDetails.type, body, result,
+        System.nanoTime() - start);
+    return result;
+  }
+}
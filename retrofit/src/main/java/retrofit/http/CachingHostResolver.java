@@ -0,0 +1,172 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static retrofit.http.RestAdapter.THREAD_PREFIX;
+
+/**
+ * Caches the addresses of another {@link HostResolver} so that opening a connection rarely waits
+ * on it.
+ * <p/>
+ * Addresses are cached for {@code ttl}. Once three quarters of that has passed, the next lookup
+ * still returns the cached addresses but also refreshes them in the background. Hosts which could
+ * not be resolved are remembered for {@code negativeTtl} so that each connection attempt doesn't
+ * wait for the same failure.
+ * <p/>
+ * When a connection to one of a host's addresses fails, later lookups return that address last
+ * until the entry is refreshed.
+ */
+public final class CachingHostResolver implements HostResolver {
+  private static final Logger LOGGER = Logger.getLogger(CachingHostResolver.class.getName());
+  private static final Executor REFRESHER = Executors.newCachedThreadPool(new ThreadFactory() {
+    @Override public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, THREAD_PREFIX + "DnsRefresh");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final HostResolver delegate;
+  private final Executor refreshExecutor;
+  private final long ttlNanos;
+  private final long negativeTtlNanos;
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+  /**
+   * @param ttl how long addresses are cached.
+   * @param negativeTtl how long a failure to resolve a host is cached. May be zero.
+   */
+  public CachingHostResolver(HostResolver delegate, long ttl, long negativeTtl, TimeUnit unit) {
+    this(delegate, REFRESHER, ttl, negativeTtl, unit);
+  }
+
+  /** @param refreshExecutor executor on which cached addresses are refreshed before they expire. */
+  public CachingHostResolver(HostResolver delegate, Executor refreshExecutor, long ttl,
+      long negativeTtl, TimeUnit unit) {
+    if (delegate == null) throw new NullPointerException("delegate");
+    if (refreshExecutor == null) throw new NullPointerException("refreshExecutor");
+    if (unit == null) throw new NullPointerException("unit");
+    if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0");
+    if (negativeTtl < 0) throw new IllegalArgumentException("negativeTtl < 0");
+    this.delegate = delegate;
+    this.refreshExecutor = refreshExecutor;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.negativeTtlNanos = unit.toNanos(negativeTtl);
+  }
+
+  @Override public InetAddress[] resolve(String host) throws UnknownHostException {
+    if (host == null) throw new NullPointerException("host");
+    Entry entry = entries.get(host);
+    long now = System.nanoTime();
+    if (entry == null || now - entry.expiresNanos >= 0) {
+      entry = lookup(host);
+    } else if (entry.addresses != null && now - entry.refreshNanos >= 0
+        && entry.refreshing.compareAndSet(false, true)) {
+      refresh(host, entry);
+    }
+    if (entry.addresses == null) {
+      throw new UnknownHostException(entry.failure);
+    }
+    return entry.rotated();
+  }
+
+  /**
+   * Move {@code address} to the back of the addresses returned for {@code host} after a connection
+   * to it failed.
+   */
+  void connectFailed(String host, InetAddress address) {
+    Entry entry = entries.get(host);
+    if (entry == null || entry.addresses == null) {
+      return;
+    }
+    int length = entry.addresses.length;
+    int first = entry.offset.get();
+    if (entry.addresses[first].equals(address)) {
+      // Only rotate if no other failed connection rotated first.
+      entry.offset.compareAndSet(first, (first + 1) % length);
+    }
+  }
+
+  /** Forget every cached address and failure. */
+  public void clear() {
+    entries.clear();
+  }
+
+  private Entry lookup(String host) {
+    Entry entry;
+    try {
+      InetAddress[] addresses = delegate.resolve(host);
+      if (addresses == null || addresses.length == 0) {
+        throw new UnknownHostException(host);
+      }
+      entry = resolved(addresses);
+    } catch (UnknownHostException e) {
+      String failure = e.getMessage() != null ? e.getMessage() : host;
+      long now = System.nanoTime();
+      entry = new Entry(null, failure, now + negativeTtlNanos, now + negativeTtlNanos);
+    }
+    entries.put(host, entry);
+    return entry;
+  }
+
+  private Entry resolved(InetAddress[] addresses) {
+    long now = System.nanoTime();
+    return new Entry(addresses.clone(), null, now + ttlNanos, now + ttlNanos * 3 / 4);
+  }
+
+  private void refresh(final String host, final Entry stale) {
+    refreshExecutor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          InetAddress[] addresses = delegate.resolve(host);
+          if (addresses != null && addresses.length > 0) {
+            entries.replace(host, stale, resolved(addresses));
+            return;
+          }
+        } catch (UnknownHostException e) {
+          LOGGER.log(Level.FINE, "Unable to refresh " + host, e);
+        }
+        // Keep serving the cached addresses until they expire, then resolve again.
+        stale.refreshing.set(false);
+      }
+    });
+  }
+
+  private static final class Entry {
+    final InetAddress[] addresses;
+    final String failure;
+    final long expiresNanos;
+    final long refreshNanos;
+    final AtomicBoolean refreshing = new AtomicBoolean();
+    /** Index of the address to try first. Advanced past addresses which failed to connect. */
+    final AtomicInteger offset = new AtomicInteger();
+
+    Entry(InetAddress[] addresses, String failure, long expiresNanos, long refreshNanos) {
+      this.addresses = addresses;
+      this.failure = failure;
+      this.expiresNanos = expiresNanos;
+      this.refreshNanos = refreshNanos;
+    }
+
+    InetAddress[] rotated() {
+      int length = addresses.length;
+      int start = offset.get();
+      InetAddress[] result = new InetAddress[length];
+      System.arraycopy(addresses, start, result, 0, length - start);
+      System.arraycopy(addresses, 0, result, length - start, start);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,18 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+/**
+ * Handle to an asynchronous HTTP call. Interface methods which take a {@link Callback} may declare
+ * this as their return type instead of {@code void} in order to obtain a handle to the call.
+ * <p/>
+ * Canceling a call which has not yet started removes it from the queue of waiting calls and
+ * prevents it from running. Canceling a call which is in-flight aborts the underlying
+ * HTTP request. In both cases the {@link Callback} will not be invoked.
+ */
+public interface Call {
+  /** Cancel this call. Has no effect if the call has already completed. */
+  void cancel();
+
+  /** True if {@link #cancel()} was invoked before the call completed. */
+  boolean isCanceled();
+}
@@ -4,33 +4,45 @@ package retrofit.http;
 import java.util.concurrent.Executor;
 
 /**
- * A {@link Runnable} executed on a background thread to invoke {@link #obtainResponse()} which
- * performs an HTTP request. The response of the request, whether it be an object or exception, is
- * then marshaled to the supplied {@link Executor} in the form of a method call on a
- * {@link Callback}.
+ * A {@link Runnable} which delivers the outcome of a call on the thread which completed it. The
+ * result of {@link #obtainResponse()}, whether it be an object or exception, is marshaled to the
+ * supplied {@link Executor} in the form of a method call on a {@link Callback}. Nothing is
+ * marshaled if the {@link Call} was canceled.
  */
 abstract class CallbackRunnable<T> implements Runnable {
   private final Callback<T> callback;
   private final Executor callbackExecutor;
+  private final Call call;
 
-  CallbackRunnable(Callback<T> callback, Executor callbackExecutor) {
+  CallbackRunnable(Callback<T> callback, Executor callbackExecutor, Call call) {
     this.callback = callback;
     this.callbackExecutor = callbackExecutor;
+    this.call = call;
   }
 
   @SuppressWarnings("unchecked")
   @Override public final void run() {
+    if (call.isCanceled()) {
+      return;
+    }
     try {
       final Object response = obtainResponse();
       callbackExecutor.execute(new Runnable() {
         @Override public void run() {
-          callback.success((T) response);
+          if (!call.isCanceled()) {
+            callback.success((T) response);
+          }
         }
       });
     } catch (final RetrofitError e) {
+      if (e.isCanceled()) {
+        return;
+      }
       callbackExecutor.execute(new Runnable() {
         @Override public void run() {
-          callback.failure(e);
+          if (!call.isCanceled()) {
+            callback.failure(e);
+          }
         }
       });
     }
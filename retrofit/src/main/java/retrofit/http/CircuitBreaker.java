@@ -0,0 +1,217 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops calls to a method of a {@link Server} which is failing or slow so that callers fail
+ * quickly instead of waiting on timeouts. The outcomes of the most recent calls are tracked and
+ * once enough of them have failed or been slow the circuit opens, rejecting calls with a
+ * {@link RetrofitError} for which {@link RetrofitError#isCircuitOpen()} is true. After a while a
+ * single trial call is allowed through: if it succeeds the circuit closes, otherwise it opens
+ * again.
+ *
+ * @see RestAdapter.Builder#setCircuitBreaker
+ */
+public final class CircuitBreaker {
+  public enum State {
+    /** Calls are allowed and their outcomes tracked. */
+    CLOSED,
+    /** Calls are rejected. */
+    OPEN,
+    /** A single trial call is allowed to decide whether to close or re-open. */
+    HALF_OPEN
+  }
+
+  /** Notified whenever a circuit breaker changes state. */
+  public interface Listener {
+    /** Invoked on the thread whose call caused the transition. */
+    void onStateChange(CircuitBreaker breaker, State from, State to);
+  }
+
+  /** Permits returned by {@link #tryAcquire()}. */
+  static final int REJECTED = 0;
+  static final int PERMITTED = 1;
+  static final int TRIAL = 2;
+
+  private static final int RECORDED = 1;
+  private static final int FAILED = 2;
+  private static final int SLOW = 4;
+
+  private final String name;
+  private final Policy policy;
+  private final Listener listener;
+  private final AtomicReference<State> state = new AtomicReference<State>(State.CLOSED);
+  private final AtomicIntegerArray outcomes;
+  private final AtomicLong calls = new AtomicLong();
+  private final AtomicInteger failures = new AtomicInteger();
+  private final AtomicInteger slowCalls = new AtomicInteger();
+  private final AtomicBoolean trialInFlight = new AtomicBoolean();
+  private volatile long openedNanos;
+
+  CircuitBreaker(String name, Policy policy, Listener listener) {
+    this.name = name;
+    this.policy = policy;
+    this.listener = listener;
+    this.outcomes = new AtomicIntegerArray(policy.windowSize);
+  }
+
+  /** Identifies the server and method guarded by this breaker. */
+  public String getName() {
+    return name;
+  }
+
+  public State getState() {
+    return state.get();
+  }
+
+  /** Fraction of the calls in the window which failed. */
+  public double getFailureRate() {
+    return rate(failures.get());
+  }
+
+  /** Fraction of the calls in the window which were slow. */
+  public double getSlowCallRate() {
+    return rate(slowCalls.get());
+  }
+
+  private double rate(int count) {
+    long recorded = Math.min(calls.get(), policy.windowSize);
+    return recorded == 0 ? 0 : count / (double) recorded;
+  }
+
+  /**
+   * Returns {@link #PERMITTED} or {@link #TRIAL} if a call may proceed, otherwise
+   * {@link #REJECTED}. The outcome of every call which proceeds must be passed to
+   * {@link #record} or {@link #release}.
+   */
+  int tryAcquire() {
+    State current = state.get();
+    if (current == State.CLOSED) {
+      return PERMITTED;
+    }
+    if (current == State.OPEN) {
+      if (System.nanoTime() - openedNanos < policy.openNanos) {
+        return REJECTED;
+      }
+      halfOpen();
+    }
+    // Half-open: allow a single trial call at a time.
+    if (state.get() == State.HALF_OPEN && trialInFlight.compareAndSet(false, true)) {
+      return TRIAL;
+    }
+    return REJECTED;
+  }
+
+  /** Record the outcome of a call which was permitted by {@link #tryAcquire()}. */
+  void record(int permit, boolean failed, long elapsedNanos) {
+    boolean slow = policy.slowCallNanos > 0 && elapsedNanos >= policy.slowCallNanos;
+    if (permit == TRIAL) {
+      trialInFlight.set(false);
+      if (failed || slow) {
+        open(State.HALF_OPEN);
+      } else if (transition(State.HALF_OPEN, State.CLOSED)) {
+        reset();
+      }
+      return;
+    }
+
+    int outcome = RECORDED | (failed ? FAILED : 0) | (slow ? SLOW : 0);
+    int index = (int) (calls.getAndIncrement() % policy.windowSize);
+    int previous = outcomes.getAndSet(index, outcome);
+    failures.addAndGet(bit(outcome, FAILED) - bit(previous, FAILED));
+    slowCalls.addAndGet(bit(outcome, SLOW) - bit(previous, SLOW));
+
+    if (calls.get() >= policy.minimumCalls
+        && (getFailureRate() >= policy.threshold || getSlowCallRate() >= policy.threshold)) {
+      open(State.CLOSED);
+    }
+  }
+
+  /** Release a permitted call whose outcome says nothing about the server, e.g., a cancel. */
+  void release(int permit) {
+    if (permit == TRIAL) {
+      trialInFlight.set(false);
+    }
+  }
+
+  /**
+   * Open the circuit if it is still in state {@code from}. Only the call which opens it sets the
+   * time it opened, so late failures of calls made before it opened don't keep it open longer.
+   */
+  private void open(State from) {
+    synchronized (this) {
+      if (!state.compareAndSet(from, State.OPEN)) {
+        return;
+      }
+      openedNanos = System.nanoTime();
+    }
+    stateChanged(from, State.OPEN);
+  }
+
+  /** Let a trial call through once the circuit has been open for long enough. */
+  private void halfOpen() {
+    synchronized (this) {
+      // The caller may have read the time of an earlier opening; open() writes the state and
+      // the time together under this lock.
+      if (System.nanoTime() - openedNanos < policy.openNanos
+          || !state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+        return;
+      }
+    }
+    stateChanged(State.OPEN, State.HALF_OPEN);
+  }
+
+  private boolean transition(State from, State to) {
+    if (!state.compareAndSet(from, to)) {
+      return false;
+    }
+    stateChanged(from, to);
+    return true;
+  }
+
+  private void stateChanged(State from, State to) {
+    if (listener != null) {
+      listener.onStateChange(this, from, to);
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < outcomes.length(); i++) {
+      int previous = outcomes.getAndSet(i, 0);
+      failures.addAndGet(-bit(previous, FAILED));
+      slowCalls.addAndGet(-bit(previous, SLOW));
+    }
+    calls.set(0);
+  }
+
+  private static int bit(int outcome, int flag) {
+    return (outcome & flag) != 0 ? 1 : 0;
+  }
+
+  @Override public String toString() {
+    return "CircuitBreaker{" + name + ", " + state.get() + "}";
+  }
+
+  /** Thresholds shared by every circuit breaker of an adapter. */
+  static final class Policy {
+    final int windowSize;
+    final int minimumCalls;
+    final double threshold;
+    final long slowCallNanos;
+    final long openNanos;
+
+    Policy(int windowSize, int minimumCalls, double threshold, long slowCallNanos,
+        long openNanos) {
+      this.windowSize = windowSize;
+      this.minimumCalls = minimumCalls;
+      this.threshold = threshold;
+      this.slowCallNanos = slowCallNanos;
+      this.openNanos = openNanos;
+    }
+  }
+}
@@ -0,0 +1,21 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Share a single HTTP request among concurrent identical calls to a {@link GET} method. Calls are
+ * identical when they build the same URL and request headers. The first call performs the request
+ * and every call which arrives while it is in-flight receives the same converted result, or the
+ * same {@link RetrofitError}.
+ * <p/>
+ * Since the result is shared between callers it should not be mutated.
+ */
+@Target({ METHOD })
+@Retention(RUNTIME)
+public @interface Coalesce {
+}
@@ -0,0 +1,56 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link Executor} which queues tasks and runs them in batches on a delegate so that many
+ * callbacks completing together cost a single post to the delegate (e.g., one {@code Handler.post}
+ * on Android's main thread) rather than one each. A batch yields back to the delegate once it has
+ * run for longer than {@code maxBatchNanos}, and the remaining tasks are posted as a new batch.
+ */
+final class CoalescingExecutor implements Executor {
+  private final Executor delegate;
+  private final long maxBatchNanos;
+  private final Queue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+  private final AtomicBoolean scheduled = new AtomicBoolean();
+  private final Runnable drain = new Runnable() {
+    @Override public void run() {
+      long start = System.nanoTime();
+      try {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+          task.run();
+          if (System.nanoTime() - start >= maxBatchNanos) {
+            break;
+          }
+        }
+      } finally {
+        scheduled.set(false);
+        if (!queue.isEmpty()) {
+          schedule();
+        }
+      }
+    }
+  };
+
+  CoalescingExecutor(Executor delegate, long maxBatchNanos) {
+    this.delegate = delegate;
+    this.maxBatchNanos = maxBatchNanos;
+  }
+
+  @Override public void execute(Runnable task) {
+    if (task == null) throw new NullPointerException("task");
+    queue.offer(task);
+    schedule();
+  }
+
+  private void schedule() {
+    if (scheduled.compareAndSet(false, true)) {
+      delegate.execute(drain);
+    }
+  }
+}
@@ -0,0 +1,77 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link AdaptiveLimit}s of a {@link RestAdapter}, one for each server or, for a
+ * {@link LoadBalancedServer}, each endpoint. Each limit learns only from the requests sent to its
+ * own url, so that one slow replica doesn't shrink the limit of the others. The adapter's
+ * scheduler runs as many calls at once as the limits of the current urls add up to.
+ */
+final class ConcurrencyLimits {
+  private final PriorityScheduler scheduler;
+  private final int initialLimit;
+  private final int maxLimit;
+  // Guarded by this.
+  private final Map<String, Limit> limits = new HashMap<String, Limit>();
+
+  ConcurrencyLimits(PriorityScheduler scheduler, int initialLimit, int maxLimit) {
+    this.scheduler = scheduler;
+    this.initialLimit = initialLimit;
+    this.maxLimit = maxLimit;
+  }
+
+  /** Count a request to {@code url} as in flight and return how many are, including it. */
+  int start(String url) {
+    return limit(url).inFlight.incrementAndGet();
+  }
+
+  /** Count a request to {@code url} which was started by {@link #start} as no longer in flight. */
+  void finish(String url) {
+    limit(url).inFlight.decrementAndGet();
+  }
+
+  /**
+   * Adjust the limit of {@code url} for a request which completed, and resize the scheduler to the
+   * sum of the limits of {@code urls}. Both happen under one lock so that concurrent samples
+   * can't leave the scheduler with a stale size.
+   *
+   * @param inFlight the value returned by {@link #start} for the request.
+   */
+  synchronized void onSample(String url, long rttNanos, boolean failed, int inFlight,
+      Collection<String> urls) {
+    limit(url).adaptive.onSample(rttNanos, failed, inFlight);
+    scheduler.setMaxConcurrency(get(urls));
+  }
+
+  /** The number of calls to {@code urls} which may run at once. */
+  synchronized int get(Collection<String> urls) {
+    int sum = 0;
+    for (String url : urls) {
+      sum += limit(url).adaptive.get();
+    }
+    return Math.min(sum, maxLimit);
+  }
+
+  private synchronized Limit limit(String url) {
+    Limit limit = limits.get(url);
+    if (limit == null) {
+      limit = new Limit(new AdaptiveLimit(initialLimit, 1, maxLimit));
+      limits.put(url, limit);
+    }
+    return limit;
+  }
+
+  private static final class Limit {
+    final AdaptiveLimit adaptive;
+    final AtomicInteger inFlight = new AtomicInteger();
+
+    Limit(AdaptiveLimit adaptive) {
+      this.adaptive = adaptive;
+    }
+  }
+}
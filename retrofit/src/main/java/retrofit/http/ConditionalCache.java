@@ -0,0 +1,118 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.reflect.Type;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the {@code ETag} and {@code Last-Modified} validators of {@link GET} responses along
+ * with the objects they were converted to. Later requests for the same URL and type are made
+ * conditional, and a {@code 304 Not Modified} answer is satisfied with the remembered object
+ * rather than a downloaded and converted body. Holds the most recently used {@code maxEntries}
+ * results.
+ */
+final class ConditionalCache {
+  static final String IF_NONE_MATCH = "If-None-Match";
+  static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+  static final int NOT_MODIFIED = 304;
+
+  private final LinkedHashMap<String, Validated> entries;
+  private final AtomicLong notModified = new AtomicLong();
+
+  ConditionalCache(final int maxEntries) {
+    entries = new LinkedHashMap<String, Validated>(16, 0.75f, true) {
+      @Override protected boolean removeEldestEntry(Map.Entry<String, Validated> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * Returns {@code request} with the validators of the result remembered for its URL and
+   * {@code type}. Validators the request already carries are left alone.
+   */
+  Request addValidators(Request request, Type type) {
+    Validated entry;
+    synchronized (this) {
+      entry = entries.get(key(request.getUrl(), type));
+    }
+    if (entry == null || request.getHeader(IF_NONE_MATCH) != null
+        || request.getHeader(IF_MODIFIED_SINCE) != null) {
+      return request;
+    }
+    if (entry.etag != null) {
+      request = request.withHeader(IF_NONE_MATCH, entry.etag);
+    }
+    if (entry.lastModified != null) {
+      request = request.withHeader(IF_MODIFIED_SINCE, entry.lastModified);
+    }
+    return request;
+  }
+
+  /**
+   * Returns the result remembered for the validators {@code request} was sent with, or null if
+   * the server's {@code 304} can't be answered with a remembered result.
+   */
+  Object notModified(Request request, Type type) {
+    Validated entry;
+    synchronized (this) {
+      entry = entries.get(key(request.getUrl(), type));
+    }
+    if (entry == null || !entry.validates(request)) {
+      return null;
+    }
+    notModified.incrementAndGet();
+    return entry.result;
+  }
+
+  /**
+   * Remember {@code result}, converted from {@code response}, if the response carries validators.
+   * Otherwise forget any earlier result for the URL, as it may have changed.
+   */
+  void put(Request request, Type type, Response response, Object result) {
+    String key = key(request.getUrl(), type);
+    String etag = response.getHeader("ETag");
+    String lastModified = response.getHeader("Last-Modified");
+    synchronized (this) {
+      if (result == null || (etag == null && lastModified == null)) {
+        entries.remove(key);
+      } else {
+        entries.put(key, new Validated(etag, lastModified, result));
+      }
+    }
+  }
+
+  /** Number of responses answered with a remembered result. */
+  long notModifiedCount() {
+    return notModified.get();
+  }
+
+  private static String key(String url, Type type) {
+    return type + " " + url;
+  }
+
+  private static final class Validated {
+    final String etag;
+    final String lastModified;
+    final Object result;
+
+    Validated(String etag, String lastModified, Object result) {
+      this.etag = etag;
+      this.lastModified = lastModified;
+      this.result = result;
+    }
+
+    /** True if {@code request} was sent with this entry's validators. */
+    boolean validates(Request request) {
+      String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+      String ifModifiedSince = request.getHeader(IF_MODIFIED_SINCE);
+      if (ifNoneMatch == null && ifModifiedSince == null) {
+        return false;
+      }
+      return (ifNoneMatch == null || ifNoneMatch.equals(etag))
+          && (ifModifiedSince == null || ifModifiedSince.equals(lastModified));
+    }
+  }
+}
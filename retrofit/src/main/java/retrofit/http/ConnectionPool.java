@@ -0,0 +1,406 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.URI;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.inject.Provider;
+import javax.net.ssl.SSLContext;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionOperator;
+import org.apache.http.conn.ClientConnectionRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.scheme.HostNameResolver;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+
+import static retrofit.http.RestAdapter.THREAD_PREFIX;
+
+/**
+ * A thread-safe pool of persistent HTTP connections shared by every call of an adapter. This is
+ * the default on the JVM; set a different one with
+ * {@link RestAdapter.Builder#setConnectionPool(ConnectionPool)}.
+ * <p/>
+ * Connections are kept alive for as long as the server allows, up to {@code keepAlive}, and are
+ * closed by a background thread once they have been idle that long. Pooled connections are checked
+ * for staleness before reuse.
+ * <p/>
+ * Connections to a host may be opened ahead of the first request with {@link #prewarm}. A
+ * background thread of the pool's own then keeps them open, replacing any the server has closed,
+ * until {@link #shutdown()}. It is started by the eviction thread, which is shared by every pool
+ * and never waits for a connection to open.
+ */
+public final class ConnectionPool {
+  private static final Logger LOGGER = Logger.getLogger(ConnectionPool.class.getName());
+  private static final int WARM_TIMEOUT_MILLIS = 10000;
+
+  private static final ScheduledExecutorService EVICTOR =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, THREAD_PREFIX + "ConnectionEvictor");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  private final int maxTotal;
+  private final int maxPerRoute;
+  private final long keepAliveMillis;
+  private final HostResolver resolver;
+  private final Set<ManagedClientConnection> leased =
+      Collections.newSetFromMap(new ConcurrentHashMap<ManagedClientConnection, Boolean>());
+  private final AtomicInteger pending = new AtomicInteger();
+  private final ConcurrentMap<HttpRoute, Integer> warmRoutes =
+      new ConcurrentHashMap<HttpRoute, Integer>();
+  private final HttpParams warmParams;
+  private final ThreadSafeClientConnManager connectionManager;
+  private final DefaultHttpClient client;
+  private final ScheduledFuture<?> eviction;
+  private final ThreadPoolExecutor warmer;
+  private final AtomicBoolean refreshing = new AtomicBoolean();
+
+  /**
+   * @param maxTotal maximum number of connections open at once.
+   * @param maxPerRoute maximum number of connections open at once to a single host.
+   * @param keepAlive longest time an idle connection is kept for reuse.
+   */
+  public ConnectionPool(int maxTotal, int maxPerRoute, long keepAlive, TimeUnit unit) {
+    this(maxTotal, maxPerRoute, keepAlive, unit, HostResolver.SYSTEM);
+  }
+
+  /**
+   * @param maxTotal maximum number of connections open at once.
+   * @param maxPerRoute maximum number of connections open at once to a single host.
+   * @param keepAlive longest time an idle connection is kept for reuse.
+   * @param resolver resolves the addresses of hosts as connections to them are opened. Each address
+   * is tried in turn until one accepts the connection.
+   */
+  public ConnectionPool(int maxTotal, int maxPerRoute, long keepAlive, TimeUnit unit,
+      HostResolver resolver) {
+    if (unit == null) throw new NullPointerException("unit");
+    if (resolver == null) throw new NullPointerException("resolver");
+    if (maxTotal < 1) throw new IllegalArgumentException("maxTotal < 1");
+    if (maxPerRoute < 1 || maxPerRoute > maxTotal) {
+      throw new IllegalArgumentException("maxPerRoute must be in [1, maxTotal]");
+    }
+    if (keepAlive <= 0) throw new IllegalArgumentException("keepAlive <= 0");
+    this.maxTotal = maxTotal;
+    this.maxPerRoute = maxPerRoute;
+    this.keepAliveMillis = unit.toMillis(keepAlive);
+    this.resolver = resolver;
+
+    HttpParams params = new BasicHttpParams();
+    ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+    ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxPerRoute));
+    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+    SchemeRegistry schemes = new SchemeRegistry();
+    HostNameResolver addressResolver = FailoverConnectionOperator.ADDRESS_RESOLVER;
+    schemes.register(new Scheme("http", new PlainSocketFactory(addressResolver), 80));
+    schemes.register(new Scheme("https", new SSLSocketFactory(tls(), addressResolver), 443));
+
+    warmParams = params.copy();
+    HttpConnectionParams.setConnectionTimeout(warmParams, WARM_TIMEOUT_MILLIS);
+    HttpConnectionParams.setSoTimeout(warmParams, WARM_TIMEOUT_MILLIS);
+
+    connectionManager = new CountingConnectionManager(params, schemes);
+    client = new DefaultHttpClient(connectionManager, params);
+    client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+      private final ConnectionKeepAliveStrategy serverStrategy =
+          new DefaultConnectionKeepAliveStrategy();
+
+      @Override public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        long serverMillis = serverStrategy.getKeepAliveDuration(response, context);
+        return serverMillis > 0 ? Math.min(serverMillis, keepAliveMillis) : keepAliveMillis;
+      }
+    });
+
+    // No thread is kept while there is nothing to refresh, so an abandoned pool can be collected.
+    warmer = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactory() {
+          @Override public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, THREAD_PREFIX + "ConnectionWarmer");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+
+    long period = Math.max(1, keepAliveMillis / 2);
+    Eviction task = new Eviction(this);
+    eviction = EVICTOR.scheduleWithFixedDelay(task, period, period, TimeUnit.MILLISECONDS);
+    task.future = eviction;
+  }
+
+  private static SSLContext tls() {
+    try {
+      SSLContext context = SSLContext.getInstance(SSLSocketFactory.TLS);
+      context.init(null, null, null);
+      return context;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (KeyManagementException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  Provider<HttpClient> clientProvider() {
+    return new Provider<HttpClient>() {
+      @Override public HttpClient get() {
+        return client;
+      }
+    };
+  }
+
+  /**
+   * Open up to {@code connections} connections to the host of {@code url}, resolving its address
+   * and completing any TLS handshake, so that the first requests to it can skip those steps. At
+   * most {@link #getMaxPerRoute()} connections are opened; pooled connections count towards the
+   * total. The connections are kept open in the background until the pool is shut down.
+   *
+   * @return the number of connections which were newly opened.
+   * @throws IOException if a connection could not be opened. Connections opened before the failure
+   * remain pooled and the host is still kept warm.
+   */
+  public int prewarm(String url, int connections) throws IOException {
+    if (url == null) throw new NullPointerException("url");
+    if (connections < 1) throw new IllegalArgumentException("connections < 1");
+    HttpRoute route = route(url);
+    int count = Math.min(connections, maxPerRoute);
+    warmRoutes.put(route, count);
+    return warm(route, count);
+  }
+
+  private static HttpRoute route(String url) {
+    URI uri = URI.create(url);
+    if (uri.getHost() == null) {
+      throw new IllegalArgumentException("No host in " + url);
+    }
+    HttpHost target = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+    // Must equal the route planned for requests to the same URL or the connections won't be reused.
+    return new HttpRoute(target, null, "https".equalsIgnoreCase(uri.getScheme()));
+  }
+
+  /**
+   * Lease {@code count} connections to {@code route} at once, opening any which are closed or
+   * stale, and return them to the pool with a fresh keep-alive.
+   */
+  private int warm(HttpRoute route, int count) throws IOException {
+    List<ManagedClientConnection> connections = new ArrayList<ManagedClientConnection>(count);
+    int opened = 0;
+    try {
+      for (int i = 0; i < count; i++) {
+        ManagedClientConnection connection;
+        try {
+          connection = connectionManager.requestConnection(route, null)
+              .getConnection(WARM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (ConnectionPoolTimeoutException e) {
+          break; // Requests are using every connection; they're as warm as they get.
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+        connections.add(connection);
+        if (connection.isOpen() && connection.isStale()) {
+          connection.close();
+        }
+        if (!connection.isOpen()) {
+          connection.open(route, new BasicHttpContext(), warmParams);
+          opened++;
+        }
+      }
+    } finally {
+      for (ManagedClientConnection connection : connections) {
+        if (connection.isOpen()) {
+          connection.markReusable();
+        } else {
+          connection.unmarkReusable();
+        }
+        connectionManager.releaseConnection(connection, keepAliveMillis, TimeUnit.MILLISECONDS);
+      }
+    }
+    return opened;
+  }
+
+  /** Reopen closed connections to hosts passed to {@link #prewarm} before they're needed. */
+  void refreshWarmConnections() {
+    for (Map.Entry<HttpRoute, Integer> entry : warmRoutes.entrySet()) {
+      try {
+        warm(entry.getKey(), entry.getValue());
+      } catch (IOException e) {
+        LOGGER.log(Level.FINE, "Unable to warm connections to " + entry.getKey(), e);
+      }
+    }
+  }
+
+  /**
+   * Refresh warm connections on this pool's own thread, unless the previous refresh is still
+   * opening connections.
+   */
+  void scheduleRefresh() {
+    if (warmRoutes.isEmpty() || !refreshing.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      warmer.execute(new Runnable() {
+        @Override public void run() {
+          try {
+            refreshWarmConnections();
+          } finally {
+            refreshing.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      refreshing.set(false); // Shut down.
+    }
+  }
+
+  /** Close connections which have expired or have been idle longer than the keep-alive. */
+  void evictIdleConnections() {
+    connectionManager.closeExpiredConnections();
+    connectionManager.closeIdleConnections(keepAliveMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public int getMaxTotal() {
+    return maxTotal;
+  }
+
+  public int getMaxPerRoute() {
+    return maxPerRoute;
+  }
+
+  /** Number of connections currently in use by a request. */
+  public int getLeasedCount() {
+    return leased.size();
+  }
+
+  /** Number of open connections waiting to be reused. */
+  public int getAvailableCount() {
+    return Math.max(0, connectionManager.getConnectionsInPool() - leased.size());
+  }
+
+  /** Number of requests waiting for a connection because the pool is at a limit. */
+  public int getPendingCount() {
+    return pending.get();
+  }
+
+  /** Close every connection and stop evicting idle ones. The pool may not be used after. */
+  public void shutdown() {
+    eviction.cancel(false);
+    warmRoutes.clear();
+    warmer.shutdown();
+    connectionManager.shutdown();
+  }
+
+  @Override public String toString() {
+    return "ConnectionPool{leased=" + getLeasedCount() + ", available=" + getAvailableCount()
+        + ", pending=" + getPendingCount() + ", maxTotal=" + maxTotal + "}";
+  }
+
+  /**
+   * Periodically starts a refresh of warm connections and closes idle ones. Holds its pool weakly
+   * so that a pool which is no longer used, and was never shut down, can still be collected; the
+   * task then cancels itself.
+   */
+  private static final class Eviction implements Runnable {
+    private final WeakReference<ConnectionPool> pool;
+    volatile ScheduledFuture<?> future;
+
+    Eviction(ConnectionPool pool) {
+      this.pool = new WeakReference<ConnectionPool>(pool);
+    }
+
+    @Override public void run() {
+      ConnectionPool pool = this.pool.get();
+      if (pool == null) {
+        ScheduledFuture<?> future = this.future;
+        if (future != null) {
+          future.cancel(false);
+        }
+        return;
+      }
+      pool.scheduleRefresh();
+      pool.evictIdleConnections();
+    }
+  }
+
+  /** Counts connections as they are leased from and returned to the pool. */
+  private final class CountingConnectionManager extends ThreadSafeClientConnManager {
+    CountingConnectionManager(HttpParams params, SchemeRegistry schemes) {
+      super(params, schemes);
+    }
+
+    @Override
+    protected ClientConnectionOperator createConnectionOperator(SchemeRegistry schemes) {
+      return new FailoverConnectionOperator(schemes, resolver); // Called by the super constructor.
+    }
+
+    @Override public ClientConnectionRequest requestConnection(HttpRoute route, Object state) {
+      final ClientConnectionRequest request = super.requestConnection(route, state);
+      return new ClientConnectionRequest() {
+        @Override public ManagedClientConnection getConnection(long timeout, TimeUnit unit)
+            throws InterruptedException, ConnectionPoolTimeoutException {
+          pending.incrementAndGet();
+          try {
+            ManagedClientConnection connection = request.getConnection(timeout, unit);
+            leased.add(connection);
+            return connection;
+          } finally {
+            pending.decrementAndGet();
+          }
+        }
+
+        @Override public void abortRequest() {
+          request.abortRequest();
+        }
+      };
+    }
+
+    @Override public void releaseConnection(ManagedClientConnection connection, long validDuration,
+        TimeUnit unit) {
+      try {
+        super.releaseConnection(connection, validDuration, unit);
+      } finally {
+        leased.remove(connection);
+      }
+    }
+  }
+}
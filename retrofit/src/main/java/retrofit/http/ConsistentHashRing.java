@@ -0,0 +1,142 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An immutable consistent-hash ring over a set of endpoints. Each endpoint is placed at
+ * {@link #VIRTUAL_NODES} points derived from its url alone, so adding or removing an endpoint only
+ * moves the keys between it and its neighbours; every other key keeps its endpoint.
+ * <p/>
+ * Lookups bound each endpoint's load: an endpoint with more than {@link #LOAD_FACTOR} times the
+ * average number of requests in flight is skipped for the next distinct endpoint clockwise.
+ */
+final class ConsistentHashRing {
+  /** Points on the ring for each endpoint. More points spread keys more evenly. */
+  static final int VIRTUAL_NODES = 160;
+  /** How far above the average in-flight count an endpoint may go before keys spill past it. */
+  static final double LOAD_FACTOR = 1.25;
+
+  private final List<Endpoint> endpoints;
+  private final long[] points;
+  private final Endpoint[] owners;
+
+  ConsistentHashRing(List<Endpoint> endpoints) {
+    this.endpoints = endpoints;
+    int count = endpoints.size() * VIRTUAL_NODES;
+    Node[] nodes = new Node[count];
+    int n = 0;
+    for (Endpoint endpoint : endpoints) {
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        nodes[n++] = new Node(hash(endpoint.url() + "#" + i), endpoint);
+      }
+    }
+    Arrays.sort(nodes);
+    points = new long[count];
+    owners = new Endpoint[count];
+    for (int i = 0; i < count; i++) {
+      points[i] = nodes[i].point;
+      owners[i] = nodes[i].endpoint;
+    }
+  }
+
+  /** The endpoint which owns {@code key} when no endpoint is overloaded. */
+  Endpoint owner(String key) {
+    return owners[firstPointAtOrAfter(hash(key))];
+  }
+
+  /**
+   * The first endpoint clockwise from {@code key} whose requests in flight leave room for one more
+   * within the load bound. Ejected endpoints are passed over as long as another remains.
+   */
+  Endpoint select(String key) {
+    int size = endpoints.size();
+    if (size == 1) {
+      return owners[0];
+    }
+    int total = 0;
+    for (int i = 0; i < size; i++) {
+      total += endpoints.get(i).getInFlightCount();
+    }
+    int capacity = (int) Math.ceil(LOAD_FACTOR * (total + 1) / size);
+
+    int start = firstPointAtOrAfter(hash(key));
+    Endpoint fallback = null;
+    Endpoint[] seen = new Endpoint[size];
+    int seenCount = 0;
+    for (int i = 0; i < owners.length && seenCount < size; i++) {
+      Endpoint endpoint = owners[(start + i) % owners.length];
+      if (contains(seen, seenCount, endpoint)) {
+        continue;
+      }
+      seen[seenCount++] = endpoint;
+      if (endpoint.isEjected()) {
+        continue;
+      }
+      if (fallback == null) {
+        fallback = endpoint;
+      }
+      if (endpoint.getInFlightCount() < capacity) {
+        return endpoint;
+      }
+    }
+    // Every endpoint is ejected or at its bound. Prefer the key's own endpoint.
+    return fallback != null ? fallback : owners[start];
+  }
+
+  private int firstPointAtOrAfter(long hash) {
+    int index = Arrays.binarySearch(points, hash);
+    if (index < 0) {
+      index = -index - 1;
+    }
+    return index == points.length ? 0 : index; // Wrap around the ring.
+  }
+
+  private static boolean contains(Endpoint[] endpoints, int count, Endpoint endpoint) {
+    for (int i = 0; i < count; i++) {
+      if (endpoints[i] == endpoint) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** The first 64 bits of the MD5 digest of {@code value}, which spreads short keys evenly. */
+  static long hash(String value) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("MD5").digest(value.getBytes(RestAdapter.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    long hash = 0;
+    for (int i = 0; i < 8; i++) {
+      hash = (hash << 8) | (digest[i] & 0xff);
+    }
+    return hash;
+  }
+
+  private static final class Node implements Comparable<Node> {
+    final long point;
+    final Endpoint endpoint;
+
+    Node(long point, Endpoint endpoint) {
+      this.point = point;
+      this.endpoint = endpoint;
+    }
+
+    @Override public int compareTo(Node other) {
+      if (point != other.point) {
+        return point < other.point ? -1 : 1;
+      }
+      // Equal points are vanishingly rare; order them by url so every client agrees.
+      return endpoint.url().compareTo(other.endpoint.url());
+    }
+  }
+}
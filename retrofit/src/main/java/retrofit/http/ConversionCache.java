@@ -0,0 +1,183 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers the objects {@link GET} responses were converted to, keyed by request URL and return
+ * type, so that a response whose body hasn't changed is not converted again. Pair with a
+ * {@link ResponseCache} to skip the network as well.
+ * <p/>
+ * Results are kept for at most {@code ttl} and weighed by the size of the body they were converted
+ * from; the least recently used are evicted once the total exceeds {@code maxWeight}. Results may
+ * also be invalidated by the method which loaded them or by URL prefix.
+ * <p/>
+ * Without a {@link Copier}, every call receives the same instance, which callers must treat as
+ * read-only. With one, the cache keeps its own copy and each hit returns a fresh copy of it.
+ *
+ * @see RestAdapter.Builder#setConversionCache(ConversionCache)
+ */
+public final class ConversionCache {
+  /** Copies converted objects so that callers may mutate the result they receive. */
+  public interface Copier {
+    /** Returns a deep copy of {@code value}, an instance of {@code type}. */
+    Object copy(Object value, Type type);
+  }
+
+  private final long ttlNanos;
+  private final long maxWeight;
+  private final Copier copier;
+  private final ConversionCacheStats stats = new ConversionCacheStats();
+
+  // Guarded by this.
+  private final LinkedHashMap<String, Entry> entries =
+      new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  private long weight;
+
+  /** Shares each cached result between callers, which must not mutate it. */
+  public ConversionCache(long ttl, TimeUnit unit, long maxWeight) {
+    this(ttl, unit, maxWeight, null);
+  }
+
+  /**
+   * @param ttl how long a result may be reused after it was converted.
+   * @param maxWeight the most bytes of response bodies whose results are kept.
+   * @param copier copies results on the way in and out, or null to share them read-only.
+   */
+  public ConversionCache(long ttl, TimeUnit unit, long maxWeight, Copier copier) {
+    if (unit == null) throw new NullPointerException("unit");
+    if (ttl <= 0) throw new IllegalArgumentException("ttl <= 0");
+    if (maxWeight <= 0) throw new IllegalArgumentException("maxWeight <= 0");
+    this.ttlNanos = unit.toNanos(ttl);
+    this.maxWeight = maxWeight;
+    this.copier = copier;
+  }
+
+  /**
+   * Returns the result cached for {@code url} and {@code type} if it was converted from the same
+   * {@code body} and hasn't expired, or null.
+   */
+  Object get(String url, Type type, byte[] body) {
+    String key = key(url, type);
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry != null && System.nanoTime() - entry.expiresNanos >= 0) {
+        remove(key);
+        entry = null;
+      }
+    }
+    // Compare outside the lock. A response cache hit hands over the very same array.
+    if (entry == null || (entry.body != body && !Arrays.equals(entry.body, body))) {
+      stats.recordMiss();
+      return null;
+    }
+    stats.recordHit(entry.conversionNanos);
+    return copy(entry.value, type);
+  }
+
+  /**
+   * Remember {@code value}, which took {@code conversionNanos} to convert from {@code body}, for
+   * the call to {@code method} which requested {@code url}.
+   */
+  void put(Method method, String url, Type type, byte[] body, Object value,
+      long conversionNanos) {
+    if (value == null || body == null || body.length > maxWeight) {
+      return;
+    }
+    Object stored = copy(value, type);
+    Entry entry = new Entry(method, url, body, stored, conversionNanos,
+        System.nanoTime() + ttlNanos);
+    String key = key(url, type);
+    synchronized (this) {
+      remove(key);
+      entries.put(key, entry);
+      weight += body.length;
+      for (Iterator<Entry> i = entries.values().iterator(); weight > maxWeight && i.hasNext();) {
+        Entry eldest = i.next();
+        i.remove();
+        weight -= eldest.body.length;
+        stats.recordEviction();
+      }
+    }
+  }
+
+  /** Returns a copy of {@code value} if this cache has a {@link Copier}, or {@code value}. */
+  Object copy(Object value, Type type) {
+    return copier != null ? copier.copy(value, type) : value;
+  }
+
+  /** Forget the results loaded by calls to {@code method}. */
+  public synchronized void invalidate(Method method) {
+    if (method == null) throw new NullPointerException("method");
+    for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+      Entry entry = i.next();
+      if (method.equals(entry.method)) {
+        i.remove();
+        weight -= entry.body.length;
+      }
+    }
+  }
+
+  /** Forget the results loaded from URLs which start with {@code prefix}. */
+  public synchronized void invalidatePrefix(String prefix) {
+    if (prefix == null) throw new NullPointerException("prefix");
+    for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+      Entry entry = i.next();
+      if (entry.url.startsWith(prefix)) {
+        i.remove();
+        weight -= entry.body.length;
+      }
+    }
+  }
+
+  /** Forget every result. */
+  public synchronized void invalidateAll() {
+    entries.clear();
+    weight = 0;
+  }
+
+  /** Bytes of response bodies whose results are currently kept. */
+  public synchronized long weight() {
+    return weight;
+  }
+
+  public ConversionCacheStats getStats() {
+    return stats;
+  }
+
+  private void remove(String key) {
+    Entry removed = entries.remove(key);
+    if (removed != null) {
+      weight -= removed.body.length;
+    }
+  }
+
+  private static String key(String url, Type type) {
+    return type + " " + url;
+  }
+
+  private static final class Entry {
+    final Method method;
+    final String url;
+    final byte[] body;
+    final Object value;
+    final long conversionNanos;
+    final long expiresNanos;
+
+    Entry(Method method, String url, byte[] body, Object value, long conversionNanos,
+        long expiresNanos) {
+      this.method = method;
+      this.url = url;
+      this.body = body;
+      this.value = value;
+      this.conversionNanos = conversionNanos;
+      this.expiresNanos = expiresNanos;
+    }
+  }
+}
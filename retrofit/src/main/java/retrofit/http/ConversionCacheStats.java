@@ -0,0 +1,62 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Effectiveness of a {@link ConversionCache}. */
+public final class ConversionCacheStats {
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong savedNanos = new AtomicLong();
+
+  ConversionCacheStats() {
+  }
+
+  void recordHit(long conversionNanos) {
+    hits.incrementAndGet();
+    savedNanos.addAndGet(conversionNanos);
+  }
+
+  void recordMiss() {
+    misses.incrementAndGet();
+  }
+
+  void recordEviction() {
+    evictions.incrementAndGet();
+  }
+
+  /** Number of responses whose cached result was reused. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Number of responses which had to be converted. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Number of results removed to keep the cache within its weight. */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /** Fraction of responses whose cached result was reused, or 0 if there have been none. */
+  public double getHitRatio() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  /** Time the reused results originally took to convert, summed over every hit. */
+  public long getConversionTimeSaved(TimeUnit unit) {
+    return unit.convert(savedNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  @Override public String toString() {
+    return "ConversionCache{hits=" + getHitCount() + ", misses=" + getMissCount()
+        + ", evictions=" + getEvictionCount() + ", savedMs="
+        + getConversionTimeSaved(TimeUnit.MILLISECONDS) + "}";
+  }
+}
@@ -0,0 +1,559 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static retrofit.http.RestAdapter.UTF_8;
+
+/**
+ * A {@link ResponseCache} which keeps responses in a directory so that they survive restarts, up
+ * to a total size in bytes. The least recently used responses are evicted first.
+ * <p/>
+ * Each response is a file named for the hash of its key. A response is written to a temporary
+ * file which is then renamed over the old one, so a reader sees either the old response or the new
+ * one and a crash mid-write leaves only a temporary file, which is deleted when the cache is next
+ * opened.
+ * <p/>
+ * The index of entries and their sizes and order of use is kept in memory and recorded in an
+ * append-only journal. Opening the cache reads only the journal, never the responses. The journal
+ * is rewritten with one line per entry once most of its lines are redundant. A truncated last line
+ * left by a crash is ignored, and responses the journal doesn't know of are deleted.
+ * <p/>
+ * A cached response's headers are read first, and its body is only read if the response is fresh
+ * and matches the request.
+ */
+public final class DiskResponseCache implements ResponseCache {
+  private static final Logger LOGGER = Logger.getLogger(DiskResponseCache.class.getName());
+
+  static final String JOURNAL = "journal";
+  static final String JOURNAL_TMP = "journal.tmp";
+  static final String ENTRY_SUFFIX = ".entry";
+  static final String TMP_SUFFIX = ".tmp";
+  private static final String MAGIC = "retrofit.http.DiskResponseCache";
+  private static final String VERSION = "1";
+  private static final int ENTRY_MAGIC = 0x52455431; // "RET1"
+  private static final String PUT = "PUT";
+  private static final String READ = "READ";
+  private static final String REMOVE = "REMOVE";
+  /** Redundant journal lines tolerated before the journal is compacted. */
+  private static final int COMPACT_THRESHOLD = 2000;
+
+  private final File directory;
+  private final long maxSize;
+  private final ResponseCacheStats stats = new ResponseCacheStats();
+  private final AtomicInteger tmpSequence = new AtomicInteger();
+
+  // Guarded by this.
+  private final LinkedHashMap<String, Long> index =
+      new LinkedHashMap<String, Long>(16, 0.75f, true);
+  private long size;
+  private int journalLines;
+  private Writer journal;
+
+  private DiskResponseCache(File directory, long maxSize) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+  }
+
+  /**
+   * Open the cache in {@code directory}, creating it if necessary.
+   *
+   * @param maxSize the most bytes of responses to keep.
+   * @throws IOException if the directory can't be created or its journal can't be written.
+   */
+  public static DiskResponseCache open(File directory, long maxSize) throws IOException {
+    if (directory == null) throw new NullPointerException("directory");
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Unable to create " + directory);
+    }
+    DiskResponseCache cache = new DiskResponseCache(directory, maxSize);
+    synchronized (cache) {
+      cache.init();
+    }
+    return cache;
+  }
+
+  /** Load the index from the journal and remove whatever an earlier crash left behind. */
+  private void init() throws IOException {
+    boolean rebuild = true;
+    File journalFile = new File(directory, JOURNAL);
+    if (journalFile.exists()) {
+      try {
+        rebuild = readJournal(journalFile);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Discarding unreadable cache journal in " + directory, e);
+        index.clear();
+      }
+    }
+
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Unable to list " + directory);
+    }
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(TMP_SUFFIX)) {
+        deleteIfExists(file); // An interrupted write or journal rebuild.
+      } else if (name.endsWith(ENTRY_SUFFIX)) {
+        String hash = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+        if (!index.containsKey(hash)) {
+          deleteIfExists(file); // Written, but the crash came before its journal line.
+        }
+      }
+    }
+
+    size = 0;
+    for (Long entrySize : index.values()) {
+      size += entrySize;
+    }
+    if (rebuild) {
+      rebuildJournal();
+    } else {
+      journal = newJournalWriter(journalFile, true);
+    }
+    trimToSize();
+  }
+
+  /**
+   * Apply every complete line of the journal to the index.
+   *
+   * @return true if the journal should be rewritten because it ended with a partial line.
+   */
+  private boolean readJournal(File journalFile) throws IOException {
+    // A crash mid-append leaves a last line without its newline. Never apply it.
+    boolean complete = endsWithNewline(journalFile);
+    BufferedReader reader =
+        new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), UTF_8));
+    try {
+      if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+        throw new IOException("Unexpected journal header");
+      }
+      int lines = 0;
+      String line = reader.readLine();
+      while (line != null) {
+        String next = reader.readLine();
+        if (next == null && !complete) {
+          return true;
+        }
+        if (!applyJournalLine(line)) {
+          return true;
+        }
+        lines++;
+        line = next;
+      }
+      journalLines = lines;
+      return false;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static boolean endsWithNewline(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      long length = in.length();
+      if (length == 0) {
+        return false;
+      }
+      in.seek(length - 1);
+      return in.read() == '\n';
+    } finally {
+      in.close();
+    }
+  }
+
+  private boolean applyJournalLine(String line) {
+    String[] parts = line.split(" ");
+    if (PUT.equals(parts[0]) && parts.length == 3) {
+      try {
+        index.put(parts[1], Long.parseLong(parts[2]));
+        return true;
+      } catch (NumberFormatException e) {
+        return false;
+      }
+    } else if (READ.equals(parts[0]) && parts.length == 2) {
+      index.get(parts[1]); // Moves the entry to the most recently used end.
+      return true;
+    } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+      index.remove(parts[1]);
+      return true;
+    }
+    return false;
+  }
+
+  /** Replace the journal with one holding a line for each entry, least recently used first. */
+  private void rebuildJournal() throws IOException {
+    if (journal != null) {
+      journal.close();
+    }
+    File tmp = new File(directory, JOURNAL_TMP);
+    Writer writer = newJournalWriter(tmp, false);
+    try {
+      writer.write(MAGIC + "\n" + VERSION + "\n");
+      for (Map.Entry<String, Long> entry : index.entrySet()) {
+        writer.write(PUT + " " + entry.getKey() + " " + entry.getValue() + "\n");
+      }
+    } finally {
+      writer.close();
+    }
+    File journalFile = new File(directory, JOURNAL);
+    if (!renameOver(tmp, journalFile)) {
+      throw new IOException("Unable to replace " + journalFile);
+    }
+    journal = newJournalWriter(journalFile, true);
+    journalLines = index.size();
+  }
+
+  private static Writer newJournalWriter(File file, boolean append) throws FileNotFoundException {
+    try {
+      return new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file, append)),
+          UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override public Response get(Request request) {
+    if (!CacheEntry.acceptsCached(request)) {
+      if ("GET".equals(request.getMethod())) {
+        stats.recordMiss();
+      }
+      return null;
+    }
+    String hash = hash(CacheEntry.key(request.getUrl()));
+    synchronized (this) {
+      if (!index.containsKey(hash) || journal == null) {
+        stats.recordMiss();
+        return null;
+      }
+    }
+
+    Response response = null;
+    try {
+      response = readEntry(hash, request, System.currentTimeMillis());
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to read cached response for " + request.getUrl(), e);
+      remove(hash); // Corrupt, as when power is lost before the file reaches the disk.
+    }
+    if (response == null) {
+      stats.recordMiss();
+      return null;
+    }
+    synchronized (this) {
+      if (index.get(hash) != null) {
+        journalLine(READ + " " + hash);
+      }
+    }
+    stats.recordHit();
+    return response;
+  }
+
+  /**
+   * Read the response cached under {@code hash}, or return null if it is stale or doesn't match
+   * {@code request}. The body is only read once the headers show it will be used.
+   */
+  private Response readEntry(String hash, Request request, long nowMillis) throws IOException {
+    DataInputStream in;
+    try {
+      in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(entryFile(hash))));
+    } catch (FileNotFoundException e) {
+      remove(hash);
+      return null;
+    }
+    try {
+      if (in.readInt() != ENTRY_MAGIC) {
+        throw new IOException("Not a cache entry");
+      }
+      String url = in.readUTF();
+      long receivedMillis = in.readLong();
+      int status = in.readInt();
+      String reason = readNullableUTF(in);
+      List<Header> headers = readHeaders(in);
+      List<Header> varyHeaders = readHeaders(in);
+
+      CacheEntry entry = new CacheEntry(url,
+          new Response(status, reason, headers, null), varyHeaders, receivedMillis);
+      if (!entry.matches(request)) {
+        return null;
+      }
+      if (!entry.isFresh(nowMillis)) {
+        remove(hash);
+        return null;
+      }
+
+      int length = in.readInt();
+      byte[] body = null;
+      if (length >= 0) {
+        body = new byte[length];
+        in.readFully(body);
+      }
+      if (in.read() != -1) {
+        throw new IOException("Trailing data in cache entry");
+      }
+      return new Response(status, reason, headers, body);
+    } catch (EOFException e) {
+      throw new IOException("Truncated cache entry");
+    } finally {
+      in.close();
+    }
+  }
+
+  @Override public void put(Request request, Response response) {
+    String hash = hash(CacheEntry.key(request.getUrl()));
+    if (CacheEntry.invalidates(request, response)) {
+      remove(hash);
+      return;
+    }
+    if (!"GET".equals(request.getMethod())) {
+      return;
+    }
+    CacheEntry entry = CacheEntry.create(request, response, System.currentTimeMillis());
+    if (entry == null || entry.weight() > maxSize) {
+      remove(hash); // The server no longer allows the old response to be used.
+      return;
+    }
+
+    // Write outside the lock, to a file no other writer will use.
+    File tmp = new File(directory, hash + "." + tmpSequence.incrementAndGet() + TMP_SUFFIX);
+    long length;
+    try {
+      length = writeEntry(tmp, entry);
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to cache response for " + request.getUrl(), e);
+      deleteIfExists(tmp);
+      return;
+    }
+    synchronized (this) {
+      if (journal == null || !renameOver(tmp, entryFile(hash))) {
+        deleteIfExists(tmp);
+        removeLocked(hash);
+        return;
+      }
+      Long previous = index.put(hash, length);
+      if (previous != null) {
+        size -= previous;
+      }
+      size += length;
+      journalLine(PUT + " " + hash + " " + length);
+      trimToSize();
+    }
+  }
+
+  /** Write {@code entry} to {@code file}, returning the number of bytes written. */
+  private static long writeEntry(File file, CacheEntry entry) throws IOException {
+    FileOutputStream fileOut = new FileOutputStream(file);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    try {
+      Response response = entry.getResponse();
+      out.writeInt(ENTRY_MAGIC);
+      out.writeUTF(entry.getUrl());
+      out.writeLong(entry.getReceivedMillis());
+      out.writeInt(response.getStatus());
+      writeNullableUTF(out, response.getReason());
+      writeHeaders(out, response.getHeaders());
+      writeHeaders(out, entry.getVaryHeaders());
+      byte[] body = response.getBody();
+      if (body == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(body.length);
+        out.write(body);
+      }
+    } finally {
+      out.close();
+    }
+    return file.length();
+  }
+
+  private static void writeHeaders(DataOutputStream out, List<Header> headers)
+      throws IOException {
+    out.writeInt(headers.size());
+    for (Header header : headers) {
+      writeNullableUTF(out, header.getName());
+      writeNullableUTF(out, header.getValue());
+    }
+  }
+
+  private static List<Header> readHeaders(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Corrupt header count");
+    }
+    List<Header> headers = new ArrayList<Header>(Math.min(count, 64));
+    for (int i = 0; i < count; i++) {
+      headers.add(new Header(readNullableUTF(in), readNullableUTF(in)));
+    }
+    return headers;
+  }
+
+  private static void writeNullableUTF(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readNullableUTF(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  @Override public synchronized void evictAll() {
+    for (Iterator<String> i = index.keySet().iterator(); i.hasNext();) {
+      deleteIfExists(entryFile(i.next()));
+      i.remove();
+    }
+    size = 0;
+    if (journal != null) {
+      try {
+        rebuildJournal();
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Unable to rewrite cache journal in " + directory, e);
+        closeJournal();
+      }
+    }
+  }
+
+  @Override public ResponseCacheStats getStats() {
+    return stats;
+  }
+
+  /** The most bytes of responses this cache keeps. */
+  public long maxSize() {
+    return maxSize;
+  }
+
+  /** The bytes of responses currently kept. */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Flush and close the journal. Responses already cached stay in the directory for the next
+   * {@link #open}; this instance no longer reads or writes them.
+   */
+  public synchronized void close() {
+    closeJournal();
+  }
+
+  private void remove(String hash) {
+    synchronized (this) {
+      removeLocked(hash);
+    }
+  }
+
+  private void removeLocked(String hash) {
+    Long removed = index.remove(hash);
+    if (removed != null) {
+      size -= removed;
+      deleteIfExists(entryFile(hash));
+      journalLine(REMOVE + " " + hash);
+    }
+  }
+
+  private void trimToSize() {
+    for (Iterator<Map.Entry<String, Long>> i = index.entrySet().iterator();
+        size > maxSize && i.hasNext();) {
+      Map.Entry<String, Long> eldest = i.next();
+      i.remove();
+      size -= eldest.getValue();
+      deleteIfExists(entryFile(eldest.getKey()));
+      journalLine(REMOVE + " " + eldest.getKey());
+      stats.recordEviction();
+    }
+  }
+
+  /** Append {@code line} to the journal, compacting it if most of its lines are redundant. */
+  private void journalLine(String line) {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.write(line + "\n");
+      journal.flush();
+      journalLines++;
+      int redundant = journalLines - index.size();
+      if (redundant >= COMPACT_THRESHOLD && redundant >= index.size()) {
+        rebuildJournal();
+      }
+    } catch (IOException e) {
+      // Without a journal the index can't be persisted; stop caching rather than diverge from it.
+      LOGGER.log(Level.WARNING, "Unable to write cache journal in " + directory, e);
+      closeJournal();
+    }
+  }
+
+  private void closeJournal() {
+    if (journal == null) {
+      return;
+    }
+    try {
+      journal.close();
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to close cache journal in " + directory, e);
+    }
+    journal = null;
+  }
+
+  private File entryFile(String hash) {
+    return new File(directory, hash + ENTRY_SUFFIX);
+  }
+
+  /** Rename {@code from} to {@code to}, replacing it on platforms which won't do so directly. */
+  private static boolean renameOver(File from, File to) {
+    if (from.renameTo(to)) {
+      return true;
+    }
+    deleteIfExists(to);
+    return from.renameTo(to);
+  }
+
+  private static void deleteIfExists(File file) {
+    if (!file.delete() && file.exists()) {
+      LOGGER.fine("Unable to delete " + file);
+    }
+  }
+
+  /** The hex MD5 of {@code key}, which is safe to use as a file name. */
+  static String hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(UTF_8));
+      StringBuilder result = new StringBuilder(digest.length * 2);
+      for (byte b : digest) {
+        result.append(Character.forDigit((b >> 4) & 0xf, 16));
+        result.append(Character.forDigit(b & 0xf, 16));
+      }
+      return result.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
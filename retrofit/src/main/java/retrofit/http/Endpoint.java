@@ -0,0 +1,126 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the replicas of a {@link LoadBalancedServer}. Keeps exponentially weighted moving
+ * averages of the latency and error rate of the calls made to it, for selectors to consult.
+ */
+public final class Endpoint {
+  /** Weight of each new call in the moving averages. */
+  static final double SMOOTHING = 0.2;
+
+  private final String url;
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  // Guarded by this.
+  private double latencyNanos;
+  private double errorRate;
+  private int samples;
+
+  // Ejection state, managed by EndpointSelector.LatencyAware. The deadlines are meaningless until
+  // the first ejection, since System.nanoTime() may be negative.
+  volatile long ejectedUntilNanos;
+  volatile long recoveredAtNanos;
+  volatile int ejections;
+
+  Endpoint(String url) {
+    if (url == null) throw new NullPointerException("url");
+    this.url = url.endsWith("/") ? url : url + "/";
+  }
+
+  /** The base API url of this replica. Includes a trailing '/'. */
+  public String url() {
+    return url;
+  }
+
+  /** The number of requests currently being sent to this replica. */
+  public int getInFlightCount() {
+    return inFlight.get();
+  }
+
+  /** Moving average of the time taken by calls to this replica, or 0 if none has completed. */
+  public synchronized long getLatency(TimeUnit unit) {
+    return unit.convert((long) latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Moving average of the fraction of calls to this replica which failed with a network error or
+   * a server error.
+   */
+  public synchronized double getErrorRate() {
+    return errorRate;
+  }
+
+  /** True if this replica was ejected as an outlier and is not yet being probed again. */
+  public boolean isEjected() {
+    return isEjected(System.nanoTime());
+  }
+
+  boolean isEjected(long now) {
+    return ejections > 0 && ejectedUntilNanos - now > 0;
+  }
+
+  synchronized int getSampleCount() {
+    return samples;
+  }
+
+  synchronized void record(long elapsedNanos, boolean failed) {
+    if (samples++ == 0) {
+      latencyNanos = elapsedNanos;
+      errorRate = failed ? 1 : 0;
+    } else {
+      latencyNanos += SMOOTHING * (elapsedNanos - latencyNanos);
+      errorRate += SMOOTHING * ((failed ? 1 : 0) - errorRate);
+    }
+  }
+
+  /** Forget the moving averages, so that a replica returning from ejection starts afresh. */
+  synchronized void resetStats() {
+    latencyNanos = 0;
+    errorRate = 0;
+    samples = 0;
+  }
+
+  /**
+   * Count {@code exchange} as in flight to this endpoint while it executes, and record its latency
+   * and outcome once it completes.
+   */
+  Transport.Exchange track(final Transport.Exchange exchange) {
+    return new Transport.Exchange() {
+      private volatile boolean canceled;
+
+      @Override public Request request() {
+        return exchange.request();
+      }
+
+      @Override public Response execute() throws IOException {
+        inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+          Response response = exchange.execute();
+          failed = response != null && response.getStatus() >= 500;
+          return response;
+        } finally {
+          inFlight.decrementAndGet();
+          if (!canceled) { // A cancel says nothing about the replica's health.
+            record(System.nanoTime() - start, failed);
+          }
+        }
+      }
+
+      @Override public void cancel() {
+        canceled = true;
+        exchange.cancel();
+      }
+    };
+  }
+
+  @Override public String toString() {
+    return url;
+  }
+}
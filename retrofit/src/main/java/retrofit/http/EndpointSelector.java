@@ -0,0 +1,230 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Chooses which of a {@link LoadBalancedServer}'s endpoints receives each request. Implementations
+ * must be thread-safe and should not block, as they are consulted on every request.
+ */
+public interface EndpointSelector {
+  /** Returns one of {@code endpoints}, which is never empty. */
+  Endpoint select(List<Endpoint> endpoints);
+
+  /** Each endpoint in turn. */
+  final class RoundRobin implements EndpointSelector {
+    private final AtomicInteger next = new AtomicInteger();
+
+    @Override public Endpoint select(List<Endpoint> endpoints) {
+      return endpoints.get((next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.size());
+    }
+  }
+
+  /**
+   * The endpoint with the fewest requests in flight. Ties go to each of the tied endpoints in turn
+   * so that an idle set still shares the load.
+   */
+  final class LeastOutstanding implements EndpointSelector {
+    private final AtomicInteger offset = new AtomicInteger();
+
+    @Override public Endpoint select(List<Endpoint> endpoints) {
+      int size = endpoints.size();
+      int start = (offset.getAndIncrement() & Integer.MAX_VALUE) % size;
+      Endpoint best = null;
+      for (int i = 0; i < size; i++) {
+        Endpoint endpoint = endpoints.get((start + i) % size);
+        if (best == null || endpoint.getInFlightCount() < best.getInFlightCount()) {
+          best = endpoint;
+        }
+      }
+      return best;
+    }
+  }
+
+  /**
+   * The less busy of two endpoints chosen at random. Nearly as balanced as
+   * {@link LeastOutstanding} without scanning every endpoint, and without every client herding
+   * onto the same momentarily idle endpoint.
+   */
+  final class PowerOfTwoChoices implements EndpointSelector {
+    private final Random random;
+
+    public PowerOfTwoChoices() {
+      this(new Random());
+    }
+
+    PowerOfTwoChoices(Random random) {
+      this.random = random;
+    }
+
+    @Override public Endpoint select(List<Endpoint> endpoints) {
+      int size = endpoints.size();
+      if (size == 1) {
+        return endpoints.get(0);
+      }
+      int first = random.nextInt(size);
+      int second = random.nextInt(size - 1);
+      if (second >= first) {
+        second++; // Distinct from the first.
+      }
+      Endpoint a = endpoints.get(first);
+      Endpoint b = endpoints.get(second);
+      return b.getInFlightCount() < a.getInFlightCount() ? b : a;
+    }
+  }
+
+  /**
+   * Prefers replicas which have recently been fast and reliable, and ejects outliers for a while.
+   * <p/>
+   * Each request goes to the cheaper of two random replicas, where a replica's cost is its
+   * {@linkplain Endpoint#getLatency moving average latency} times its requests in flight, raised
+   * by its {@linkplain Endpoint#getErrorRate() error rate}. Replicas with no completed calls cost
+   * nothing, so new ones are tried at once.
+   * <p/>
+   * After {@value #MIN_SAMPLES} or more calls, a replica is an outlier if half of them failed or
+   * its latency is {@value #LATENCY_OUTLIER_FACTOR} times the median. Outliers are ejected for
+   * {@code ejectionTime}, doubling with each consecutive ejection up to {@value #MAX_BACKOFF}
+   * times, but never more than half of the replicas at once. A returning replica is probed by a
+   * share of requests which grows over {@code recoveryTime}; if it is still an outlier it is
+   * ejected again.
+   */
+  final class LatencyAware implements EndpointSelector {
+    static final int MIN_SAMPLES = 5;
+    static final double ERROR_OUTLIER_RATE = 0.5;
+    static final double LATENCY_OUTLIER_FACTOR = 3.0;
+    static final int MAX_BACKOFF = 32;
+    /** The smallest share of requests a returning replica is offered. */
+    private static final double MIN_PROBE_SHARE = 0.05;
+
+    private final long ejectionNanos;
+    private final long recoveryNanos;
+    private final Random random = new Random();
+
+    /** Ejects outliers for 10 seconds and probes them again over the following 10 seconds. */
+    public LatencyAware() {
+      this(10, 10, TimeUnit.SECONDS);
+    }
+
+    public LatencyAware(long ejectionTime, long recoveryTime, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit");
+      if (ejectionTime <= 0) throw new IllegalArgumentException("ejectionTime <= 0");
+      if (recoveryTime <= 0) throw new IllegalArgumentException("recoveryTime <= 0");
+      this.ejectionNanos = unit.toNanos(ejectionTime);
+      this.recoveryNanos = unit.toNanos(recoveryTime);
+    }
+
+    @Override public Endpoint select(List<Endpoint> endpoints) {
+      long now = System.nanoTime();
+      double medianLatency = medianLatency(endpoints);
+      int ejected = 0;
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.isEjected(now)) {
+          ejected++;
+        }
+      }
+
+      List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.size());
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.isEjected(now)) {
+          continue;
+        }
+        if (isOutlier(endpoint, medianLatency) && ejected < endpoints.size() / 2) {
+          eject(endpoint, now);
+          ejected++;
+          continue;
+        }
+        if (isRecovering(endpoint, now) && !admitProbe(endpoint, now)) {
+          continue;
+        }
+        candidates.add(endpoint);
+      }
+      if (candidates.isEmpty()) {
+        // Every remaining replica is being probed. Pick among them rather than fail.
+        for (Endpoint endpoint : endpoints) {
+          if (!endpoint.isEjected(now)) {
+            candidates.add(endpoint);
+          }
+        }
+      }
+
+      int size = candidates.size();
+      if (size == 1) {
+        return candidates.get(0);
+      }
+      int first = random.nextInt(size);
+      int second = random.nextInt(size - 1);
+      if (second >= first) {
+        second++;
+      }
+      Endpoint a = candidates.get(first);
+      Endpoint b = candidates.get(second);
+      return cost(b) < cost(a) ? b : a;
+    }
+
+    private static double cost(Endpoint endpoint) {
+      double latency = endpoint.getLatency(TimeUnit.NANOSECONDS);
+      double successRate = Math.max(1 - endpoint.getErrorRate(), 0.01);
+      return latency * (endpoint.getInFlightCount() + 1) / successRate;
+    }
+
+    private static boolean isOutlier(Endpoint endpoint, double medianLatency) {
+      if (endpoint.getSampleCount() < MIN_SAMPLES) {
+        return false;
+      }
+      return endpoint.getErrorRate() >= ERROR_OUTLIER_RATE
+          || (medianLatency > 0
+          && endpoint.getLatency(TimeUnit.NANOSECONDS) > LATENCY_OUTLIER_FACTOR * medianLatency);
+    }
+
+    /** The median latency of the replicas with enough calls to judge, or 0 if there are none. */
+    private static double medianLatency(List<Endpoint> endpoints) {
+      long[] latencies = new long[endpoints.size()];
+      int count = 0;
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.getSampleCount() >= MIN_SAMPLES) {
+          latencies[count++] = endpoint.getLatency(TimeUnit.NANOSECONDS);
+        }
+      }
+      if (count == 0) {
+        return 0;
+      }
+      Arrays.sort(latencies, 0, count);
+      return count % 2 == 1
+          ? latencies[count / 2]
+          : (latencies[count / 2 - 1] + latencies[count / 2]) / 2.0;
+    }
+
+    private void eject(Endpoint endpoint, long now) {
+      synchronized (endpoint) {
+        if (endpoint.isEjected(now)) {
+          return; // Another request ejected it first.
+        }
+        int ejections = endpoint.ejections;
+        if (!isRecovering(endpoint, now)) {
+          ejections = 0; // It recovered fully since its last ejection.
+        }
+        endpoint.ejections = ejections + 1;
+        long backoff = ejectionNanos * Math.min(1L << Math.min(ejections, 30), MAX_BACKOFF);
+        endpoint.ejectedUntilNanos = now + backoff;
+        endpoint.recoveredAtNanos = now + backoff + recoveryNanos;
+        endpoint.resetStats();
+      }
+    }
+
+    private static boolean isRecovering(Endpoint endpoint, long now) {
+      return endpoint.ejections > 0 && endpoint.recoveredAtNanos - now > 0;
+    }
+
+    /** Offer a returning replica a share of requests that grows as its recovery proceeds. */
+    private boolean admitProbe(Endpoint endpoint, long now) {
+      long elapsed = now - endpoint.ejectedUntilNanos;
+      double share = Math.max((double) elapsed / recoveryNanos, MIN_PROBE_SHARE);
+      return endpoint.getInFlightCount() == 0 && random.nextDouble() < share;
+    }
+  }
+}
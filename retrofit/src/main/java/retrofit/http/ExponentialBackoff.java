@@ -0,0 +1,62 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries network errors, and HTTP errors with any of the given status codes, waiting a random
+ * time between zero and an exponentially growing ceiling before each attempt. The randomness keeps
+ * clients which failed together from retrying together.
+ */
+public final class ExponentialBackoff implements RetryPolicy {
+  private static final Random RANDOM = new Random();
+
+  private final int maxAttempts;
+  private final long initialDelayMillis;
+  private final long maxDelayMillis;
+  private final int[] statusCodes;
+
+  /**
+   * @param maxAttempts total number of attempts including the first.
+   * @param initialDelay ceiling of the wait before the first retry, doubled for each retry after.
+   * @param maxDelay largest ceiling of the wait before any retry.
+   * @param statusCodes HTTP status codes which are retried in addition to network errors.
+   */
+  public ExponentialBackoff(int maxAttempts, long initialDelay, long maxDelay, TimeUnit unit,
+      int... statusCodes) {
+    if (unit == null) throw new NullPointerException("unit");
+    if (maxAttempts < 1) throw new IllegalArgumentException("maxAttempts < 1");
+    if (initialDelay < 0 || maxDelay < initialDelay) {
+      throw new IllegalArgumentException("Delays must satisfy 0 <= initialDelay <= maxDelay.");
+    }
+    this.maxAttempts = maxAttempts;
+    this.initialDelayMillis = unit.toMillis(initialDelay);
+    this.maxDelayMillis = unit.toMillis(maxDelay);
+    this.statusCodes = statusCodes.clone();
+  }
+
+  @Override public long retryDelay(int attempt, RetrofitError error) {
+    if (attempt >= maxAttempts || !isRetryable(error)) {
+      return -1;
+    }
+    long ceiling = initialDelayMillis << Math.min(attempt - 1, 30);
+    if (ceiling > maxDelayMillis || ceiling < 0) {
+      ceiling = maxDelayMillis;
+    }
+    return (long) (RANDOM.nextDouble() * (ceiling + 1));
+  }
+
+  private boolean isRetryable(RetrofitError error) {
+    if (error.isNetworkError()) {
+      return true;
+    }
+    int statusCode = error.getStatusCode();
+    for (int retryable : statusCodes) {
+      if (statusCode == retryable) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
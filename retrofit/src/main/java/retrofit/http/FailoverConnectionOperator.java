@@ -0,0 +1,102 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.NoRouteToHostException;
+import java.net.Socket;
+import org.apache.http.HttpHost;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.HttpHostConnectException;
+import org.apache.http.conn.OperatedClientConnection;
+import org.apache.http.conn.scheme.HostNameResolver;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.impl.conn.DefaultClientConnectionOperator;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Opens connections using a {@link HostResolver}, trying each of a host's addresses in turn until
+ * one accepts the connection.
+ * <p/>
+ * Socket factories are still given the host name, so TLS verifies it as usual. They must be
+ * created with {@link #ADDRESS_RESOLVER} to connect to the address being tried.
+ */
+final class FailoverConnectionOperator extends DefaultClientConnectionOperator {
+  private static final ThreadLocal<InetAddress> CONNECTING = new ThreadLocal<InetAddress>();
+
+  /** Resolves to the address this operator is connecting to on the calling thread. */
+  static final HostNameResolver ADDRESS_RESOLVER = new HostNameResolver() {
+    @Override public InetAddress resolve(String host) throws IOException {
+      InetAddress address = CONNECTING.get();
+      return address != null ? address : InetAddress.getByName(host);
+    }
+  };
+
+  private final HostResolver resolver;
+
+  FailoverConnectionOperator(SchemeRegistry schemes, HostResolver resolver) {
+    super(schemes);
+    this.resolver = resolver;
+  }
+
+  @Override public void openConnection(OperatedClientConnection connection, HttpHost target,
+      InetAddress local, HttpContext context, HttpParams params) throws IOException {
+    if (connection.isOpen()) {
+      throw new IllegalStateException("Connection must not be open.");
+    }
+    Scheme scheme = schemeRegistry.getScheme(target.getSchemeName());
+    SocketFactory socketFactory = scheme.getSocketFactory();
+    int port = scheme.resolvePort(target.getPort());
+    String host = target.getHostName();
+
+    InetAddress[] addresses = resolver.resolve(host);
+    for (int i = 0; i < addresses.length; i++) {
+      boolean last = i == addresses.length - 1;
+      Socket socket = socketFactory.createSocket();
+      connection.opening(socket, target);
+      CONNECTING.set(addresses[i]);
+      try {
+        Socket connected = socketFactory.connectSocket(socket, host, port, local, 0, params);
+        if (connected != socket) {
+          connection.opening(connected, target);
+        }
+        prepareSocket(connected, context, params);
+        connection.openCompleted(socketFactory.isSecure(connected), params);
+        return;
+      } catch (IOException e) {
+        if (!isConnectFailure(e)) {
+          throw e;
+        }
+        try {
+          socket.close();
+        } catch (IOException ignored) {
+        }
+        connectFailed(host, addresses[i]);
+        if (last) {
+          throw e instanceof ConnectException
+              ? new HttpHostConnectException(target, (ConnectException) e)
+              : e;
+        }
+      } finally {
+        CONNECTING.remove();
+      }
+    }
+  }
+
+  /** True if {@code e} means the address didn't accept a connection, so another may. */
+  private static boolean isConnectFailure(IOException e) {
+    return e instanceof ConnectException
+        || e instanceof NoRouteToHostException
+        || e instanceof ConnectTimeoutException;
+  }
+
+  private void connectFailed(String host, InetAddress address) {
+    if (resolver instanceof CachingHostResolver) {
+      ((CachingHostResolver) resolver).connectFailed(host, address);
+    }
+  }
+}
@@ -6,7 +6,7 @@ public final class Header {
   private final String name;
   private final String value;
 
-  Header(String name, String value) {
+  public Header(String name, String value) {
     this.name = name;
     this.value = value;
   }
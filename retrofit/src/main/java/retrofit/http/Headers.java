@@ -1,6 +1,7 @@
 // Copyright 2010 Square, Inc.
 package retrofit.http;
 
+import java.util.List;
 import org.apache.http.HttpMessage;
 
 /**
@@ -10,6 +11,25 @@ import org.apache.http.HttpMessage;
  */
 public interface Headers {
 
-  /** Sets headers on the given message */
+  /** The headers to add to each request. */
+  List<Header> get();
+
+  /**
+   * Sets headers on the given message.
+   *
+   * @deprecated Retrofit only calls {@link #get()}. Extend {@link Base} to implement this method
+   * with the headers it returns.
+   */
+  @Deprecated
   void setOn(HttpMessage message);
+
+  /** Implements the deprecated {@link #setOn} with the headers returned by {@link #get()}. */
+  abstract class Base implements Headers {
+    @Deprecated
+    @Override public void setOn(HttpMessage message) {
+      for (Header header : get()) {
+        message.addHeader(header.getName(), header.getValue());
+      }
+    }
+  }
 }
@@ -0,0 +1,26 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Send a second, identical request for a {@link GET} method when the first has not responded
+ * within {@link #delay()}. The first successful response is used and the other request is aborted.
+ * The extra load is capped by {@link RestAdapter.Builder#setHedgeBudget(double)}.
+ */
+@Target({ METHOD })
+@Retention(RUNTIME)
+public @interface Hedge {
+  /** Use the 95th percentile of the method's recently observed latency as the delay. */
+  long OBSERVED = -1;
+
+  /**
+   * Milliseconds to wait for a response before sending the hedge, or {@link #OBSERVED}. Observed
+   * delays are only used once enough calls have completed; until then no hedge is sent.
+   */
+  long delay() default OBSERVED;
+}
@@ -0,0 +1,47 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Outcomes of {@link Hedge hedged} calls. */
+public final class HedgeStats {
+  private final AtomicLong hedges = new AtomicLong();
+  private final AtomicLong hedgeWins = new AtomicLong();
+  private final AtomicLong primaryWins = new AtomicLong();
+  private final AtomicLong denied = new AtomicLong();
+
+  HedgeStats() {
+  }
+
+  void recordHedge() {
+    hedges.incrementAndGet();
+  }
+
+  void recordWin(boolean hedge) {
+    (hedge ? hedgeWins : primaryWins).incrementAndGet();
+  }
+
+  void recordDenied() {
+    denied.incrementAndGet();
+  }
+
+  /** Number of hedge requests sent. */
+  public long getHedgeCount() {
+    return hedges.get();
+  }
+
+  /** Number of hedged calls whose result came from the hedge request. */
+  public long getHedgeWinCount() {
+    return hedgeWins.get();
+  }
+
+  /** Number of hedged calls whose result came from the original request. */
+  public long getPrimaryWinCount() {
+    return primaryWins.get();
+  }
+
+  /** Number of hedges which were not sent because the hedge budget was exhausted. */
+  public long getDeniedCount() {
+    return denied.get();
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+/**
+ * Races the original request of a call against a hedge. The first attempt to succeed completes
+ * the call and aborts the other. The call fails only once every attempt which was started fails,
+ * in which case the original request's failure is reported.
+ * <p/>
+ * The hedge runs on the call's scheduler. If it is still queued there when the original request
+ * completes it is dropped rather than left to hold the call until it gets a slot of its own.
+ */
+final class HedgedCall {
+  static final int PRIMARY = 0;
+  static final int HEDGE = 1;
+
+  private final Transport.Exchange[] requests = new Transport.Exchange[2];
+  private int pending = 1; // The primary is started by the caller.
+  private boolean hedged;
+  private boolean done;
+  private boolean primaryDone;
+  private PriorityScheduler hedgeScheduler;
+  private PriorityScheduler.Task hedgeTask;
+  private int winner = -1;
+  private Object result;
+  private RetrofitError error;
+
+  HedgedCall(Transport.Exchange primary) {
+    requests[PRIMARY] = primary;
+  }
+
+  /** Reserve the hedge attempt. Returns false if the original request has already completed. */
+  synchronized boolean startHedge() {
+    if (done || primaryDone) {
+      return false;
+    }
+    pending++;
+    return true;
+  }
+
+  /** Whether the hedge request was sent. */
+  synchronized boolean isHedged() {
+    return hedged;
+  }
+
+  /**
+   * Record the scheduler task which will send the hedge so that it can be dequeued. Returns false
+   * if the original request completed first, in which case the caller must {@link #dequeueHedge}.
+   */
+  synchronized boolean setHedgeTask(PriorityScheduler scheduler, PriorityScheduler.Task task) {
+    hedgeScheduler = scheduler;
+    hedgeTask = task;
+    return !primaryDone;
+  }
+
+  /**
+   * Drop the hedge if it is still waiting for a slot on its scheduler, failing the attempt with
+   * {@code error}. Called once the original request completes.
+   */
+  void dequeueHedge(RetrofitError error) {
+    PriorityScheduler scheduler;
+    PriorityScheduler.Task task;
+    synchronized (this) {
+      primaryDone = true;
+      scheduler = hedgeScheduler;
+      task = hedgeTask;
+    }
+    if (task != null && scheduler.remove(task)) {
+      fail(HEDGE, error);
+    }
+  }
+
+  synchronized void setHedgeRequest(Transport.Exchange request) {
+    requests[HEDGE] = request;
+    hedged = true;
+    if (done && winner != HEDGE) {
+      request.cancel();
+    }
+  }
+
+  /** Returns true if the attempt won. */
+  synchronized boolean succeed(int attempt, Object result) {
+    pending--;
+    if (done) {
+      return false;
+    }
+    done = true;
+    winner = attempt;
+    this.result = result;
+    for (int i = 0; i < requests.length; i++) {
+      if (i != attempt && requests[i] != null) {
+        requests[i].cancel();
+      }
+    }
+    notifyAll();
+    return true;
+  }
+
+  synchronized void fail(int attempt, RetrofitError error) {
+    pending--;
+    if (done) {
+      return;
+    }
+    if (attempt == PRIMARY || this.error == null) {
+      this.error = error;
+    }
+    if (pending == 0) {
+      done = true;
+      notifyAll();
+    }
+  }
+
+  synchronized boolean isDone() {
+    return done;
+  }
+
+  /** Index of the winning attempt, or -1 if none succeeded. Only meaningful once done. */
+  synchronized int winner() {
+    return winner;
+  }
+
+  /** Block until an attempt succeeds or every attempt fails. */
+  synchronized Object await() throws InterruptedException {
+    while (!done) {
+      wait();
+    }
+    if (winner == -1) {
+      throw error;
+    }
+    return result;
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of recorded values in buckets. Bucket {@code i} holds values less than or equal to
+ * {@code getBound(i)} and greater than the previous bound. The final bucket holds all values
+ * greater than the largest bound.
+ */
+public final class Histogram {
+  private final long[] bounds;
+  private final AtomicLongArray counts;
+
+  Histogram(long... bounds) {
+    this.bounds = bounds.clone();
+    this.counts = new AtomicLongArray(bounds.length + 1);
+  }
+
+  void record(long value) {
+    int i = 0;
+    while (i < bounds.length && value > bounds[i]) {
+      i++;
+    }
+    counts.incrementAndGet(i);
+  }
+
+  /** Number of buckets, including the final unbounded bucket. */
+  public int getBucketCount() {
+    return counts.length();
+  }
+
+  /** Inclusive upper bound of bucket {@code i}, or {@link Long#MAX_VALUE} for the final bucket. */
+  public long getBound(int i) {
+    return i < bounds.length ? bounds[i] : Long.MAX_VALUE;
+  }
+
+  /** Number of values recorded in bucket {@code i}. */
+  public long getCount(int i) {
+    return counts.get(i);
+  }
+
+  /** Total number of values recorded. */
+  public long getTotalCount() {
+    long total = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      total += counts.get(i);
+    }
+    return total;
+  }
+
+  @Override public String toString() {
+    StringBuilder builder = new StringBuilder("[");
+    for (int i = 0; i < counts.length(); i++) {
+      if (i > 0) builder.append(", ");
+      builder.append(i < bounds.length ? "<=" + bounds[i] : ">" + bounds[bounds.length - 1]);
+      builder.append(": ").append(counts.get(i));
+    }
+    return builder.append(']').toString();
+  }
+}
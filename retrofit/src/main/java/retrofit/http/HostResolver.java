@@ -0,0 +1,28 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Resolves host names to the addresses connections are opened to. Connections try each returned
+ * address in order until one succeeds.
+ *
+ * @see ConnectionPool#ConnectionPool(int, int, long, java.util.concurrent.TimeUnit, HostResolver)
+ * @see CachingHostResolver
+ */
+public interface HostResolver {
+  /** Uses {@link InetAddress#getAllByName(String)}. */
+  HostResolver SYSTEM = new HostResolver() {
+    @Override public InetAddress[] resolve(String host) throws UnknownHostException {
+      return InetAddress.getAllByName(host);
+    }
+  };
+
+  /**
+   * Return every address of {@code host}, most preferred first.
+   *
+   * @throws UnknownHostException if {@code host} has no addresses or could not be resolved.
+   */
+  InetAddress[] resolve(String host) throws UnknownHostException;
+}
@@ -0,0 +1,493 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HPACK header compression for HTTP/2, as specified by RFC 7541.
+ * <p/>
+ * Each direction of a connection has its own encoder and decoder whose dynamic tables must stay in
+ * step, so every header block has to be encoded and decoded in the order it is sent.
+ */
+final class Hpack {
+  /** The dynamic table size both peers start with. */
+  static final int DEFAULT_TABLE_SIZE = 4096;
+
+  private static final int ENTRY_OVERHEAD = 32;
+  private static final String UTF_8 = "UTF-8";
+
+  private static final Header[] STATIC_TABLE = {
+      new Header(":authority", ""),
+      new Header(":method", "GET"),
+      new Header(":method", "POST"),
+      new Header(":path", "/"),
+      new Header(":path", "/index.html"),
+      new Header(":scheme", "http"),
+      new Header(":scheme", "https"),
+      new Header(":status", "200"),
+      new Header(":status", "204"),
+      new Header(":status", "206"),
+      new Header(":status", "304"),
+      new Header(":status", "400"),
+      new Header(":status", "404"),
+      new Header(":status", "500"),
+      new Header("accept-charset", ""),
+      new Header("accept-encoding", "gzip, deflate"),
+      new Header("accept-language", ""),
+      new Header("accept-ranges", ""),
+      new Header("accept", ""),
+      new Header("access-control-allow-origin", ""),
+      new Header("age", ""),
+      new Header("allow", ""),
+      new Header("authorization", ""),
+      new Header("cache-control", ""),
+      new Header("content-disposition", ""),
+      new Header("content-encoding", ""),
+      new Header("content-language", ""),
+      new Header("content-length", ""),
+      new Header("content-location", ""),
+      new Header("content-range", ""),
+      new Header("content-type", ""),
+      new Header("cookie", ""),
+      new Header("date", ""),
+      new Header("etag", ""),
+      new Header("expect", ""),
+      new Header("expires", ""),
+      new Header("from", ""),
+      new Header("host", ""),
+      new Header("if-match", ""),
+      new Header("if-modified-since", ""),
+      new Header("if-none-match", ""),
+      new Header("if-range", ""),
+      new Header("if-unmodified-since", ""),
+      new Header("last-modified", ""),
+      new Header("link", ""),
+      new Header("location", ""),
+      new Header("max-forwards", ""),
+      new Header("proxy-authenticate", ""),
+      new Header("proxy-authorization", ""),
+      new Header("range", ""),
+      new Header("referer", ""),
+      new Header("refresh", ""),
+      new Header("retry-after", ""),
+      new Header("server", ""),
+      new Header("set-cookie", ""),
+      new Header("strict-transport-security", ""),
+      new Header("transfer-encoding", ""),
+      new Header("user-agent", ""),
+      new Header("vary", ""),
+      new Header("via", ""),
+      new Header("www-authenticate", "")
+  };
+
+  /** One-based static table index of each header, and of the first entry with each name. */
+  private static final Map<Header, Integer> STATIC_HEADER_INDEX = new HashMap<Header, Integer>();
+  private static final Map<String, Integer> STATIC_NAME_INDEX = new HashMap<String, Integer>();
+
+  static {
+    for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+      STATIC_HEADER_INDEX.put(STATIC_TABLE[i], i + 1);
+      STATIC_NAME_INDEX.put(STATIC_TABLE[i].getName(), i + 1);
+    }
+  }
+
+  /** Headers whose values are never added to the dynamic table. */
+  private static final Set<String> SENSITIVE_HEADERS = new HashSet<String>(Arrays.asList(
+      "authorization", "proxy-authorization", "cookie", "set-cookie"));
+
+  private Hpack() {
+  }
+
+  /** Encodes the header blocks sent on a connection. Not thread-safe. */
+  static final class Encoder {
+    private final DynamicTable table = new DynamicTable(DEFAULT_TABLE_SIZE);
+    /** The smallest table size set since the last header block, or -1 if unchanged. */
+    private int pendingMinSize = -1;
+
+    /** Apply the peer's {@code SETTINGS_HEADER_TABLE_SIZE}. */
+    void setMaxTableSize(int size) {
+      size = Math.min(size, DEFAULT_TABLE_SIZE);
+      if (size == table.maxSize && pendingMinSize == -1) {
+        return;
+      }
+      pendingMinSize = pendingMinSize == -1 ? size : Math.min(pendingMinSize, size);
+      table.setMaxSize(size);
+    }
+
+    /** Encode {@code headers}, whose names must already be lowercase, as a header block. */
+    byte[] encode(List<Header> headers) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      if (pendingMinSize != -1) {
+        // Signal every size change, smallest first, so the decoder evicts what the encoder did.
+        writeInt(out, pendingMinSize, 5, 0x20);
+        if (pendingMinSize != table.maxSize) {
+          writeInt(out, table.maxSize, 5, 0x20);
+        }
+        pendingMinSize = -1;
+      }
+      for (Header header : headers) {
+        encode(out, header);
+      }
+      return out.toByteArray();
+    }
+
+    private void encode(ByteArrayOutputStream out, Header header) {
+      Integer index = STATIC_HEADER_INDEX.get(header);
+      if (index == null) {
+        int dynamic = table.indexOf(header);
+        if (dynamic != -1) {
+          index = STATIC_TABLE.length + dynamic;
+        }
+      }
+      if (index != null) {
+        writeInt(out, index, 7, 0x80);
+        return;
+      }
+
+      String name = header.getName();
+      Integer nameIndex = STATIC_NAME_INDEX.get(name);
+      if (nameIndex == null) {
+        int dynamic = table.indexOfName(name);
+        nameIndex = dynamic != -1 ? STATIC_TABLE.length + dynamic : 0;
+      }
+      if (SENSITIVE_HEADERS.contains(name)) {
+        // Never indexed, so credentials don't linger in either table or in intermediaries.
+        writeInt(out, nameIndex, 4, 0x10);
+      } else {
+        writeInt(out, nameIndex, 6, 0x40);
+        table.add(header);
+      }
+      if (nameIndex == 0) {
+        writeString(out, name);
+      }
+      writeString(out, header.getValue());
+    }
+  }
+
+  /** Decodes the header blocks received on a connection. Not thread-safe. */
+  static final class Decoder {
+    private final int maxTableSize;
+    private final DynamicTable table;
+
+    /** @param maxTableSize the {@code SETTINGS_HEADER_TABLE_SIZE} advertised to the peer. */
+    Decoder(int maxTableSize) {
+      this.maxTableSize = maxTableSize;
+      this.table = new DynamicTable(maxTableSize);
+    }
+
+    List<Header> decode(byte[] block) throws IOException {
+      List<Header> headers = new ArrayList<Header>();
+      int[] position = { 0 };
+      while (position[0] < block.length) {
+        int b = block[position[0]] & 0xff;
+        if ((b & 0x80) != 0) {
+          headers.add(get(readInt(block, position, 7)));
+        } else if ((b & 0x40) != 0) {
+          Header header = readLiteral(block, position, 6);
+          table.add(header);
+          headers.add(header);
+        } else if ((b & 0x20) != 0) {
+          if (!headers.isEmpty()) {
+            throw new IOException("HPACK table size update after a header");
+          }
+          int size = readInt(block, position, 5);
+          if (size > maxTableSize) {
+            throw new IOException("HPACK table size " + size + " > " + maxTableSize);
+          }
+          table.setMaxSize(size);
+        } else {
+          // Literal without indexing (0000) or never indexed (0001).
+          headers.add(readLiteral(block, position, 4));
+        }
+      }
+      return headers;
+    }
+
+    private Header get(int index) throws IOException {
+      if (index > 0 && index <= STATIC_TABLE.length) {
+        return STATIC_TABLE[index - 1];
+      }
+      Header header = index > STATIC_TABLE.length ? table.get(index - STATIC_TABLE.length) : null;
+      if (header == null) {
+        throw new IOException("HPACK index out of range: " + index);
+      }
+      return header;
+    }
+
+    private Header readLiteral(byte[] block, int[] position, int prefix) throws IOException {
+      int nameIndex = readInt(block, position, prefix);
+      String name = nameIndex != 0 ? get(nameIndex).getName() : readString(block, position);
+      return new Header(name, readString(block, position));
+    }
+  }
+
+  /** Entries most recently added first, as numbered by the HPACK dynamic table. */
+  private static final class DynamicTable {
+    private final LinkedList<Header> entries = new LinkedList<Header>();
+    private int maxSize;
+    private int size;
+
+    DynamicTable(int maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    void setMaxSize(int maxSize) {
+      this.maxSize = maxSize;
+      evict(0);
+    }
+
+    void add(Header header) {
+      int entrySize = size(header);
+      if (entrySize > maxSize) {
+        // Adding an entry larger than the table empties it.
+        entries.clear();
+        size = 0;
+        return;
+      }
+      evict(entrySize);
+      entries.addFirst(header);
+      size += entrySize;
+    }
+
+    /** The one-based entry at {@code index}, or null if there is none. */
+    Header get(int index) {
+      return index <= entries.size() ? entries.get(index - 1) : null;
+    }
+
+    int indexOf(Header header) {
+      int index = entries.indexOf(header);
+      return index != -1 ? index + 1 : -1;
+    }
+
+    int indexOfName(String name) {
+      int index = 1;
+      for (Header entry : entries) {
+        if (entry.getName().equals(name)) {
+          return index;
+        }
+        index++;
+      }
+      return -1;
+    }
+
+    private void evict(int needed) {
+      while (size + needed > maxSize && !entries.isEmpty()) {
+        size -= size(entries.removeLast());
+      }
+    }
+
+    private static int size(Header header) {
+      return ENTRY_OVERHEAD + bytes(header.getName()).length + bytes(header.getValue()).length;
+    }
+  }
+
+  /** Write {@code value} with an N-bit prefix, ORing {@code flags} into the first byte. */
+  static void writeInt(ByteArrayOutputStream out, int value, int prefixBits, int flags) {
+    int max = (1 << prefixBits) - 1;
+    if (value < max) {
+      out.write(flags | value);
+      return;
+    }
+    out.write(flags | max);
+    value -= max;
+    while (value >= 0x80) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static int readInt(byte[] block, int[] position, int prefixBits) throws IOException {
+    int max = (1 << prefixBits) - 1;
+    int value = block[position[0]++] & max;
+    if (value < max) {
+      return value;
+    }
+    for (int shift = 0; shift < 28; shift += 7) {
+      if (position[0] == block.length) {
+        throw new IOException("HPACK integer truncated");
+      }
+      int b = block[position[0]++] & 0xff;
+      value += (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        if (value < 0) break;
+        return value;
+      }
+    }
+    throw new IOException("HPACK integer overflow");
+  }
+
+  /** Write {@code value} as a string literal, Huffman coded when that is shorter. */
+  static void writeString(ByteArrayOutputStream out, String value) {
+    byte[] raw = bytes(value);
+    int huffmanLength = Huffman.encodedLength(raw);
+    if (huffmanLength < raw.length) {
+      writeInt(out, huffmanLength, 7, 0x80);
+      Huffman.encode(raw, out);
+    } else {
+      writeInt(out, raw.length, 7, 0);
+      out.write(raw, 0, raw.length);
+    }
+  }
+
+  static String readString(byte[] block, int[] position) throws IOException {
+    if (position[0] == block.length) {
+      throw new IOException("HPACK string truncated");
+    }
+    boolean huffman = (block[position[0]] & 0x80) != 0;
+    int length = readInt(block, position, 7);
+    if (length > block.length - position[0]) {
+      throw new IOException("HPACK string truncated");
+    }
+    int offset = position[0];
+    position[0] += length;
+    if (huffman) {
+      return new String(Huffman.decode(block, offset, length), UTF_8);
+    }
+    return new String(block, offset, length, UTF_8);
+  }
+
+  private static byte[] bytes(String value) {
+    try {
+      return value.getBytes(UTF_8);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /** The static Huffman code of RFC 7541, appendix B. */
+  static final class Huffman {
+    private static final int[] CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+      0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+      0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+      0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa, 0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16,
+      0x17, 0x18, 0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc,
+      0x20, 0xffb, 0x3fc, 0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62, 0x63, 0x64, 0x65,
+      0x66, 0x67, 0x68, 0x69, 0x6a, 0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72, 0xfc, 0x73,
+      0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22, 0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+      0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7, 0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc, 0xfffe6, 0x3fffd2, 0xfffe7,
+      0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9, 0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc,
+      0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf, 0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee,
+      0x7fffe1, 0x7fffe2, 0x7fffe3, 0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6,
+      0x7fffe7, 0xffffef, 0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9,
+      0x1fffde, 0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+      0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef, 0xfffea,
+      0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1, 0x3ffffe0, 0x3ffffe1,
+      0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec, 0x3ffffe2, 0x3ffffe3, 0x3ffffe4,
+      0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed, 0x7fff2, 0x1fffe3, 0x3ffffe6,
+      0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2, 0x1fffe4, 0x1fffe5, 0x3ffffe8,
+      0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5, 0xfffec, 0xfffff3, 0xfffed, 0x1fffe6,
+      0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3, 0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4,
+      0xfffff5, 0x3ffffea, 0x7ffff4, 0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7,
+      0x7ffffe8, 0x7ffffe9, 0x7ffffea, 0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee,
+      0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+
+    private static final byte[] LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30,
+      28, 28, 28, 28, 28, 28, 28, 28, 28, 6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10, 13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6, 15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7,
+      7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28, 20, 22, 20, 20, 22, 22,
+      22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22,
+      23, 23, 24, 22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21,
+      23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23, 26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26,
+      27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27, 20, 24,
+      20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27,
+      28, 27, 27, 27, 27, 27, 26
+    };
+
+    /** A binary trie of the codes. Leaves hold {@code -1 - symbol}; absent children are 0. */
+    private static final int[][] TRIE = new int[256][2];
+
+    static {
+      int nodes = 1;
+      for (int symbol = 0; symbol < CODES.length; symbol++) {
+        int node = 0;
+        for (int bit = LENGTHS[symbol] - 1; bit >= 0; bit--) {
+          int branch = (CODES[symbol] >>> bit) & 1;
+          if (bit == 0) {
+            TRIE[node][branch] = -1 - symbol;
+          } else {
+            if (TRIE[node][branch] == 0) {
+              TRIE[node][branch] = nodes++;
+            }
+            node = TRIE[node][branch];
+          }
+        }
+      }
+    }
+
+    private Huffman() {
+    }
+
+    static int encodedLength(byte[] data) {
+      long bits = 0;
+      for (byte b : data) {
+        bits += LENGTHS[b & 0xff];
+      }
+      return (int) ((bits + 7) >> 3);
+    }
+
+    static void encode(byte[] data, ByteArrayOutputStream out) {
+      long current = 0;
+      int bits = 0;
+      for (byte b : data) {
+        int symbol = b & 0xff;
+        current = (current << LENGTHS[symbol]) | CODES[symbol];
+        bits += LENGTHS[symbol];
+        while (bits >= 8) {
+          bits -= 8;
+          out.write((int) (current >> bits));
+        }
+      }
+      if (bits > 0) {
+        // Pad with the most significant bits of the end-of-string code, which are all ones.
+        out.write((int) ((current << (8 - bits)) | (0xff >>> bits)));
+      }
+    }
+
+    static byte[] decode(byte[] data, int offset, int length) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length * 2);
+      int node = 0;
+      int depth = 0; // Bits read since the last symbol.
+      boolean allOnes = true;
+      for (int i = offset; i < offset + length; i++) {
+        for (int bit = 7; bit >= 0; bit--) {
+          int branch = (data[i] >>> bit) & 1;
+          int next = TRIE[node][branch];
+          if (next == 0) {
+            throw new IOException("Invalid Huffman code");
+          }
+          allOnes &= branch == 1;
+          depth++;
+          if (next < 0) {
+            out.write(-1 - next);
+            node = 0;
+            depth = 0;
+            allOnes = true;
+          } else {
+            node = next;
+          }
+        }
+      }
+      if (depth > 7 || !allOnes) {
+        throw new IOException("Invalid Huffman padding");
+      }
+      return out.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,802 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static retrofit.http.RestAdapter.THREAD_PREFIX;
+
+/**
+ * A cleartext HTTP/2 connection (h2c with prior knowledge) which multiplexes concurrent requests
+ * as streams. Thread-safe.
+ * <p/>
+ * Frames are written under a lock separate from the connection state so that a thread blocked on
+ * a full socket never holds up the reader thread, which applies flow-control updates.
+ */
+final class Http2Connection {
+  private static final Logger LOGGER = Logger.getLogger(Http2Connection.class.getName());
+
+  static final byte[] PREFACE = ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+
+  static final int TYPE_DATA = 0x0;
+  static final int TYPE_HEADERS = 0x1;
+  static final int TYPE_RST_STREAM = 0x3;
+  static final int TYPE_SETTINGS = 0x4;
+  static final int TYPE_PUSH_PROMISE = 0x5;
+  static final int TYPE_PING = 0x6;
+  static final int TYPE_GOAWAY = 0x7;
+  static final int TYPE_WINDOW_UPDATE = 0x8;
+  static final int TYPE_CONTINUATION = 0x9;
+
+  static final int FLAG_END_STREAM = 0x1;
+  static final int FLAG_ACK = 0x1;
+  static final int FLAG_END_HEADERS = 0x4;
+  static final int FLAG_PADDED = 0x8;
+  static final int FLAG_PRIORITY = 0x20;
+
+  static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+  static final int SETTINGS_ENABLE_PUSH = 0x2;
+  static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+  static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+  static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+  static final int ERROR_NO_ERROR = 0x0;
+  static final int ERROR_PROTOCOL = 0x1;
+  static final int ERROR_FLOW_CONTROL = 0x3;
+  static final int ERROR_FRAME_SIZE = 0x6;
+  static final int ERROR_CANCEL = 0x8;
+  static final int ERROR_COMPRESSION = 0x9;
+
+  static final int DEFAULT_WINDOW_SIZE = 65535;
+  static final int DEFAULT_MAX_FRAME_SIZE = 16384;
+
+  /** Connection-specific headers, which are not allowed in HTTP/2. */
+  private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+      "connection", "host", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade"));
+
+  /** How much response data each stream, and the connection as a whole, may have in flight. */
+  static final int RECEIVE_WINDOW_SIZE = 1024 * 1024;
+
+  private final Socket socket;
+  private final String authority;
+  private final DataInputStream in;
+  private final OutputStream out;
+  /** Guards {@link #out} and {@link #encoder}, which must see header blocks in stream order. */
+  private final Object writeLock = new Object();
+  private final Hpack.Encoder encoder = new Hpack.Encoder();
+  private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+
+  // Guarded by this.
+  private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+  private int nextStreamId = 1;
+  private int maxConcurrentStreams = Integer.MAX_VALUE;
+  private int initialSendWindow = DEFAULT_WINDOW_SIZE;
+  private int maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+  private long sendWindow = DEFAULT_WINDOW_SIZE;
+  private int unacknowledgedBytes;
+  /** Streams waiting for the write lock to be started. They count against the stream limit. */
+  private int reservedStreams;
+  private IOException shutdown;
+
+  private Http2Connection(Socket socket, String authority) throws IOException {
+    this.socket = socket;
+    this.authority = authority;
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.out = new BufferedOutputStream(socket.getOutputStream());
+  }
+
+  /** Connect to {@code host}, send the connection preface and start reading frames. */
+  static Http2Connection open(String host, int port, int connectTimeout) throws IOException {
+    Socket socket = new Socket();
+    try {
+      socket.setTcpNoDelay(true);
+      socket.connect(new InetSocketAddress(host, port), Math.max(connectTimeout, 0));
+      Http2Connection connection = new Http2Connection(socket, host + ":" + port);
+      connection.start();
+      return connection;
+    } catch (IOException e) {
+      socket.close();
+      throw e;
+    }
+  }
+
+  private void start() throws IOException {
+    synchronized (writeLock) {
+      out.write(PREFACE);
+      byte[] settings = new byte[18];
+      putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+      putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, RECEIVE_WINDOW_SIZE);
+      putSetting(settings, 12, SETTINGS_MAX_FRAME_SIZE, DEFAULT_MAX_FRAME_SIZE);
+      writeFrame(out, TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+      writeWindowUpdate(0, RECEIVE_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+      out.flush();
+    }
+    Thread reader = new Thread(new Runnable() {
+      @Override public void run() {
+        readFrames();
+      }
+    }, THREAD_PREFIX + "Http2Reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  /** True if this connection can take another stream without waiting. */
+  synchronized boolean hasCapacity() {
+    return shutdown == null && streams.size() + reservedStreams < maxConcurrentStreams;
+  }
+
+  synchronized boolean isShutdown() {
+    return shutdown != null;
+  }
+
+  synchronized int getActiveStreamCount() {
+    return streams.size() + reservedStreams;
+  }
+
+  /**
+   * Start a stream by sending the headers of {@code request}. Waits up to {@code timeoutMillis}
+   * (zero for no limit) if the peer's limit on concurrent streams has been reached.
+   */
+  Stream newStream(Request request, String path, long timeoutMillis) throws IOException {
+    boolean hasBody = request.getBody() != null;
+    List<Header> headers = requestHeaders(request, path);
+    synchronized (this) {
+      // Wait without holding the write lock, which the reader thread needs to apply SETTINGS.
+      long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+      while (shutdown == null && streams.size() + reservedStreams >= maxConcurrentStreams) {
+        awaitUntil(deadline, timeoutMillis);
+      }
+      checkNotShutdown();
+      reservedStreams++;
+    }
+    synchronized (writeLock) {
+      Stream stream;
+      synchronized (this) {
+        reservedStreams--;
+        checkNotShutdown();
+        // Allocated under the write lock so that stream ids are sent in increasing order.
+        stream = new Stream(nextStreamId, initialSendWindow, timeoutMillis);
+        nextStreamId += 2;
+        streams.put(stream.id, stream);
+      }
+      byte[] block = encoder.encode(headers);
+      int flags = hasBody ? 0 : FLAG_END_STREAM;
+      int frameSize = getMaxFrameSize();
+      int type = TYPE_HEADERS;
+      int offset = 0;
+      do {
+        int length = Math.min(block.length - offset, frameSize);
+        boolean last = offset + length == block.length;
+        writeFrame(out, type, flags | (last ? FLAG_END_HEADERS : 0), stream.id, block, offset,
+            length);
+        offset += length;
+        type = TYPE_CONTINUATION;
+        flags = 0;
+      } while (offset < block.length);
+      out.flush();
+      return stream;
+    }
+  }
+
+  private void checkNotShutdown() throws IOException {
+    if (shutdown != null) {
+      throw new IOException("Connection shut down", shutdown);
+    }
+  }
+
+  private List<Header> requestHeaders(Request request, String path) {
+    List<Header> headers = new ArrayList<Header>();
+    headers.add(new Header(":method", request.getMethod()));
+    headers.add(new Header(":scheme", "http"));
+    headers.add(new Header(":authority", authority));
+    headers.add(new Header(":path", path));
+    boolean hasContentType = false;
+    for (Header header : request.getHeaders()) {
+      String name = header.getName().toLowerCase(Locale.US);
+      if (CONNECTION_HEADERS.contains(name)) {
+        continue;
+      }
+      hasContentType |= "content-type".equals(name);
+      headers.add(new Header(name, header.getValue()));
+    }
+    if (request.getBody() != null) {
+      if (!hasContentType) {
+        headers.add(new Header("content-type", request.getBody().mimeType().mimeName()));
+      }
+      if (request.getBody().length() >= 0) {
+        headers.add(new Header("content-length", String.valueOf(request.getBody().length())));
+      }
+    }
+    return headers;
+  }
+
+  private synchronized int getMaxFrameSize() {
+    return maxFrameSize;
+  }
+
+  /** Close the connection without waiting for streams in progress, which fail. */
+  void close() {
+    shutdown(new IOException("Connection closed"), ERROR_NO_ERROR);
+  }
+
+  private void shutdown(IOException cause, int errorCode) {
+    List<Stream> failed;
+    synchronized (this) {
+      if (shutdown == null) {
+        shutdown = cause;
+      }
+      failed = new ArrayList<Stream>(streams.values());
+      streams.clear();
+      for (Stream stream : failed) {
+        stream.fail(cause);
+      }
+      notifyAll();
+    }
+    try {
+      synchronized (writeLock) {
+        // Server push is disabled, so the peer started no streams.
+        byte[] payload = new byte[8];
+        putInt(payload, 0, 0);
+        putInt(payload, 4, errorCode);
+        writeFrame(out, TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+        out.flush();
+      }
+    } catch (IOException ignored) {
+    }
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private void readFrames() {
+    IOException cause;
+    int errorCode = ERROR_PROTOCOL;
+    try {
+      Frame settings = readFrame(in, DEFAULT_MAX_FRAME_SIZE);
+      if (settings.type != TYPE_SETTINGS || (settings.flags & FLAG_ACK) != 0) {
+        throw new Http2Exception(ERROR_PROTOCOL, "Expected SETTINGS as the server preface");
+      }
+      handle(settings);
+      while (true) {
+        Frame frame = readFrame(in, DEFAULT_MAX_FRAME_SIZE);
+        if (frame.type == TYPE_HEADERS) {
+          readHeaders(frame);
+        } else {
+          handle(frame);
+        }
+      }
+    } catch (Http2Exception e) {
+      cause = e;
+      errorCode = e.errorCode;
+    } catch (EOFException e) {
+      cause = e;
+      errorCode = ERROR_NO_ERROR;
+    } catch (IOException e) {
+      cause = e;
+    }
+    LOGGER.log(Level.FINE, "HTTP/2 connection to " + authority + " closed", cause);
+    shutdown(cause, errorCode);
+  }
+
+  private void readHeaders(Frame frame) throws IOException {
+    byte[] payload = frame.payload;
+    int offset = 0;
+    int length = payload.length;
+    if ((frame.flags & FLAG_PADDED) != 0) {
+      int padding = payload[0] & 0xff;
+      offset++;
+      length -= 1 + padding;
+    }
+    if ((frame.flags & FLAG_PRIORITY) != 0) {
+      offset += 5;
+      length -= 5;
+    }
+    if (length < 0) {
+      throw new Http2Exception(ERROR_PROTOCOL, "Malformed HEADERS frame");
+    }
+    ByteArrayOutputStream block = new ByteArrayOutputStream(length);
+    block.write(payload, offset, length);
+    int flags = frame.flags;
+    while ((flags & FLAG_END_HEADERS) == 0) {
+      Frame continuation = readFrame(in, DEFAULT_MAX_FRAME_SIZE);
+      if (continuation.type != TYPE_CONTINUATION || continuation.streamId != frame.streamId) {
+        throw new Http2Exception(ERROR_PROTOCOL, "Expected CONTINUATION");
+      }
+      block.write(continuation.payload, 0, continuation.payload.length);
+      flags = continuation.flags;
+    }
+
+    List<Header> headers;
+    try {
+      // Always decode, even for streams which were canceled, to keep the table in step.
+      headers = decoder.decode(block.toByteArray());
+    } catch (IOException e) {
+      throw new Http2Exception(ERROR_COMPRESSION, e.getMessage());
+    }
+    synchronized (this) {
+      Stream stream = streams.get(frame.streamId);
+      if (stream != null) {
+        stream.receiveHeaders(headers, (frame.flags & FLAG_END_STREAM) != 0);
+        if (stream.isDone()) {
+          streams.remove(stream.id);
+        }
+        notifyAll();
+      }
+    }
+  }
+
+  private void handle(Frame frame) throws IOException {
+    switch (frame.type) {
+      case TYPE_DATA:
+        receiveData(frame);
+        break;
+      case TYPE_RST_STREAM:
+        synchronized (this) {
+          Stream stream = streams.remove(frame.streamId);
+          if (stream != null) {
+            stream.fail(new IOException("Stream reset with error " + getInt(frame.payload, 0)));
+            notifyAll();
+          }
+        }
+        break;
+      case TYPE_SETTINGS:
+        if ((frame.flags & FLAG_ACK) == 0) {
+          applySettings(frame.payload);
+        }
+        break;
+      case TYPE_PING:
+        if ((frame.flags & FLAG_ACK) == 0) {
+          synchronized (writeLock) {
+            writeFrame(out, TYPE_PING, FLAG_ACK, 0, frame.payload, 0, frame.payload.length);
+            out.flush();
+          }
+        }
+        break;
+      case TYPE_GOAWAY:
+        receiveGoAway(getInt(frame.payload, 0) & 0x7fffffff, getInt(frame.payload, 4));
+        break;
+      case TYPE_WINDOW_UPDATE:
+        receiveWindowUpdate(frame.streamId, getInt(frame.payload, 0) & 0x7fffffff);
+        break;
+      case TYPE_PUSH_PROMISE:
+      case TYPE_CONTINUATION:
+        throw new Http2Exception(ERROR_PROTOCOL, "Unexpected frame type " + frame.type);
+      default:
+        // PRIORITY and unknown frame types are ignored.
+    }
+  }
+
+  private void receiveData(Frame frame) throws IOException {
+    byte[] payload = frame.payload;
+    int offset = 0;
+    int length = payload.length;
+    if ((frame.flags & FLAG_PADDED) != 0) {
+      offset++;
+      length -= 1 + (payload[0] & 0xff);
+      if (length < 0) {
+        throw new Http2Exception(ERROR_PROTOCOL, "Malformed DATA frame");
+      }
+    }
+    int connectionIncrement = 0;
+    int streamIncrement = 0;
+    synchronized (this) {
+      // The entire frame, padding included, counts against flow control.
+      unacknowledgedBytes += payload.length;
+      if (unacknowledgedBytes >= RECEIVE_WINDOW_SIZE / 2) {
+        connectionIncrement = unacknowledgedBytes;
+        unacknowledgedBytes = 0;
+      }
+      Stream stream = streams.get(frame.streamId);
+      if (stream != null) {
+        stream.receiveData(payload, offset, length, (frame.flags & FLAG_END_STREAM) != 0);
+        stream.unacknowledgedBytes += payload.length;
+        if (stream.isDone()) {
+          streams.remove(stream.id);
+        } else if (stream.unacknowledgedBytes >= RECEIVE_WINDOW_SIZE / 2) {
+          streamIncrement = stream.unacknowledgedBytes;
+          stream.unacknowledgedBytes = 0;
+        }
+        notifyAll();
+      }
+    }
+    if (connectionIncrement > 0 || streamIncrement > 0) {
+      // The whole response is buffered, so data is consumed as soon as it arrives.
+      synchronized (writeLock) {
+        if (connectionIncrement > 0) {
+          writeWindowUpdate(0, connectionIncrement);
+        }
+        if (streamIncrement > 0) {
+          writeWindowUpdate(frame.streamId, streamIncrement);
+        }
+        out.flush();
+      }
+    }
+  }
+
+  private void applySettings(byte[] payload) throws IOException {
+    if (payload.length % 6 != 0) {
+      throw new Http2Exception(ERROR_PROTOCOL, "Malformed SETTINGS frame");
+    }
+    synchronized (writeLock) {
+      synchronized (this) {
+        for (int i = 0; i < payload.length; i += 6) {
+          int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+          int value = getInt(payload, i + 2);
+          switch (id) {
+            case SETTINGS_HEADER_TABLE_SIZE:
+              encoder.setMaxTableSize(value);
+              break;
+            case SETTINGS_MAX_CONCURRENT_STREAMS:
+              maxConcurrentStreams = value;
+              break;
+            case SETTINGS_INITIAL_WINDOW_SIZE:
+              if (value < 0) {
+                throw new Http2Exception(ERROR_FLOW_CONTROL, "Window size too large: " + value);
+              }
+              int delta = value - initialSendWindow;
+              initialSendWindow = value;
+              for (Stream stream : streams.values()) {
+                stream.sendWindow += delta;
+              }
+              break;
+            case SETTINGS_MAX_FRAME_SIZE:
+              if (value < DEFAULT_MAX_FRAME_SIZE || value > 0xffffff) {
+                throw new Http2Exception(ERROR_PROTOCOL, "Invalid max frame size: " + value);
+              }
+              maxFrameSize = value;
+              break;
+            default:
+              // Other settings don't affect a client which buffers whole responses.
+          }
+        }
+        notifyAll();
+      }
+      writeFrame(out, TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+      out.flush();
+    }
+  }
+
+  private synchronized void receiveGoAway(int lastStreamId, int errorCode) {
+    IOException cause = new IOException("Connection shut down by peer with error " + errorCode);
+    if (shutdown == null) {
+      shutdown = cause;
+    }
+    // Streams the peer never processed can safely be retried on another connection.
+    List<Integer> refused = new ArrayList<Integer>();
+    for (Stream stream : streams.values()) {
+      if (stream.id > lastStreamId) {
+        stream.fail(cause);
+        refused.add(stream.id);
+      }
+    }
+    for (Integer id : refused) {
+      streams.remove(id);
+    }
+    notifyAll();
+  }
+
+  private synchronized void receiveWindowUpdate(int streamId, int increment)
+      throws Http2Exception {
+    if (streamId == 0) {
+      sendWindow += increment;
+      if (sendWindow > Integer.MAX_VALUE) {
+        throw new Http2Exception(ERROR_FLOW_CONTROL, "Connection window overflow");
+      }
+    } else {
+      Stream stream = streams.get(streamId);
+      if (stream != null) {
+        stream.sendWindow += increment;
+      }
+    }
+    notifyAll();
+  }
+
+  /** Send {@code length} bytes of request body, waiting for the peer to grant window space. */
+  private void writeData(Stream stream, byte[] data, int offset, int length, boolean endStream)
+      throws IOException {
+    do {
+      int chunk;
+      synchronized (this) {
+        long deadline = System.nanoTime() + stream.timeoutMillis * 1000000L;
+        while (length > 0 && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+          stream.checkNotFailed();
+          awaitUntil(deadline, stream.timeoutMillis);
+        }
+        stream.checkNotFailed();
+        chunk = length == 0 ? 0 : (int) Math.min(Math.min(length, maxFrameSize),
+            Math.min(sendWindow, stream.sendWindow));
+        sendWindow -= chunk;
+        stream.sendWindow -= chunk;
+      }
+      boolean last = endStream && chunk == length;
+      synchronized (writeLock) {
+        writeFrame(out, TYPE_DATA, last ? FLAG_END_STREAM : 0, stream.id, data, offset, chunk);
+        out.flush(); // The peer may be waiting for this data before it grants more window.
+      }
+      offset += chunk;
+      length -= chunk;
+    } while (length > 0);
+  }
+
+  private void cancel(Stream stream) {
+    synchronized (this) {
+      if (streams.remove(stream.id) == null) {
+        return;
+      }
+      stream.fail(new IOException("Canceled"));
+      notifyAll();
+    }
+    try {
+      synchronized (writeLock) {
+        byte[] payload = new byte[4];
+        putInt(payload, 0, ERROR_CANCEL);
+        writeFrame(out, TYPE_RST_STREAM, 0, stream.id, payload, 0, payload.length);
+        out.flush();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Unable to reset stream " + stream.id, e);
+    }
+  }
+
+  /** Wait on this connection's monitor until notified or until {@code deadline}. */
+  private void awaitUntil(long deadline, long timeoutMillis) throws IOException {
+    try {
+      if (timeoutMillis <= 0) {
+        wait();
+        return;
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new SocketTimeoutException("Timed out after " + timeoutMillis + "ms");
+      }
+      wait(remaining / 1000000L, (int) (remaining % 1000000L));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+  }
+
+  private void writeWindowUpdate(int streamId, int increment) throws IOException {
+    byte[] payload = new byte[4];
+    putInt(payload, 0, increment);
+    writeFrame(out, TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, payload.length);
+  }
+
+  /** One request and its response. State is guarded by the connection. */
+  final class Stream {
+    final int id;
+    final long timeoutMillis;
+    long sendWindow;
+    int unacknowledgedBytes;
+    private int status = -1;
+    private List<Header> headers;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private long lastActivityNanos = System.nanoTime();
+    private boolean finished;
+    private IOException failure;
+
+    Stream(int id, long sendWindow, long timeoutMillis) {
+      this.id = id;
+      this.sendWindow = sendWindow;
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    /** Send the request body, which ends the request. */
+    void writeBody(Request request) throws IOException {
+      OutputStream sink = new OutputStream() {
+        private final byte[] buffer = new byte[DEFAULT_MAX_FRAME_SIZE];
+        private int count;
+
+        @Override public void write(int b) throws IOException {
+          if (count == buffer.length) {
+            flushBuffer(false);
+          }
+          buffer[count++] = (byte) b;
+        }
+
+        @Override public void write(byte[] data, int offset, int length) throws IOException {
+          while (length > 0) {
+            if (count == buffer.length) {
+              flushBuffer(false);
+            }
+            int chunk = Math.min(length, buffer.length - count);
+            System.arraycopy(data, offset, buffer, count, chunk);
+            count += chunk;
+            offset += chunk;
+            length -= chunk;
+          }
+        }
+
+        @Override public void close() throws IOException {
+          flushBuffer(true);
+        }
+
+        private void flushBuffer(boolean endStream) throws IOException {
+          writeData(Stream.this, buffer, 0, count, endStream);
+          count = 0;
+        }
+      };
+      request.getBody().writeTo(sink);
+      sink.close();
+    }
+
+    /** Wait for the entire response. Times out if nothing arrives for {@code timeoutMillis}. */
+    Response awaitResponse() throws IOException {
+      try {
+        synchronized (Http2Connection.this) {
+          while (!finished) {
+            checkNotFailed();
+            awaitUntil(lastActivityNanos + timeoutMillis * 1000000L, timeoutMillis);
+          }
+          return new Response(status, "", headers, body.toByteArray());
+        }
+      } catch (SocketTimeoutException e) {
+        cancel(); // Outside the connection's monitor, as canceling takes the write lock.
+        throw e;
+      }
+    }
+
+    void cancel() {
+      Http2Connection.this.cancel(this);
+    }
+
+    void receiveHeaders(List<Header> received, boolean endStream) throws IOException {
+      lastActivityNanos = System.nanoTime();
+      if (headers == null) {
+        List<Header> regular = new ArrayList<Header>(received.size());
+        int receivedStatus = -1;
+        for (Header header : received) {
+          if (":status".equals(header.getName())) {
+            receivedStatus = parseStatus(header.getValue());
+          } else if (!header.getName().startsWith(":")) {
+            regular.add(header);
+          }
+        }
+        if (receivedStatus >= 100 && receivedStatus < 200 && !endStream) {
+          return; // Informational responses precede the final one.
+        }
+        status = receivedStatus;
+        headers = regular;
+      }
+      // Trailers are ignored.
+      finished |= endStream;
+    }
+
+    void receiveData(byte[] data, int offset, int length, boolean endStream) {
+      lastActivityNanos = System.nanoTime();
+      if (headers == null) {
+        fail(new IOException("DATA received before HEADERS"));
+        return;
+      }
+      body.write(data, offset, length);
+      finished |= endStream;
+    }
+
+    boolean isDone() {
+      return finished || failure != null;
+    }
+
+    void fail(IOException cause) {
+      if (failure == null && !finished) {
+        failure = cause;
+      }
+    }
+
+    void checkNotFailed() throws IOException {
+      if (failure != null) {
+        throw new IOException(failure.getMessage(), failure);
+      }
+    }
+
+    private int parseStatus(String value) throws IOException {
+      try {
+        return Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        throw new Http2Exception(ERROR_PROTOCOL, "Invalid :status " + value);
+      }
+    }
+  }
+
+  /** A frame as read from a connection. */
+  static final class Frame {
+    final int type;
+    final int flags;
+    final int streamId;
+    final byte[] payload;
+
+    Frame(int type, int flags, int streamId, byte[] payload) {
+      this.type = type;
+      this.flags = flags;
+      this.streamId = streamId;
+      this.payload = payload;
+    }
+  }
+
+  /** A connection error, which is reported to the peer in GOAWAY. */
+  static final class Http2Exception extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    final int errorCode;
+
+    Http2Exception(int errorCode, String message) {
+      super(message);
+      this.errorCode = errorCode;
+    }
+  }
+
+  static Frame readFrame(DataInputStream in, int maxFrameSize) throws IOException {
+    int length = (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+    int type = in.readUnsignedByte();
+    int flags = in.readUnsignedByte();
+    int streamId = in.readInt() & 0x7fffffff;
+    if (length > maxFrameSize) {
+      throw new Http2Exception(ERROR_FRAME_SIZE, "Frame too large: " + length);
+    }
+    byte[] payload = new byte[length];
+    in.readFully(payload);
+    return new Frame(type, flags, streamId, payload);
+  }
+
+  static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload,
+      int offset, int length) throws IOException {
+    byte[] header = new byte[9];
+    header[0] = (byte) (length >>> 16);
+    header[1] = (byte) (length >>> 8);
+    header[2] = (byte) length;
+    header[3] = (byte) type;
+    header[4] = (byte) flags;
+    putInt(header, 5, streamId);
+    out.write(header);
+    out.write(payload, offset, length);
+  }
+
+  static void putSetting(byte[] payload, int offset, int id, int value) {
+    payload[offset] = (byte) (id >>> 8);
+    payload[offset + 1] = (byte) id;
+    putInt(payload, offset + 2, value);
+  }
+
+  static void putInt(byte[] data, int offset, int value) {
+    data[offset] = (byte) (value >>> 24);
+    data[offset + 1] = (byte) (value >>> 16);
+    data[offset + 2] = (byte) (value >>> 8);
+    data[offset + 3] = (byte) value;
+  }
+
+  static int getInt(byte[] data, int offset) throws IOException {
+    if (data.length < offset + 4) {
+      throw new Http2Exception(ERROR_PROTOCOL, "Frame too short");
+    }
+    return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+        | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+  }
+
+  private static byte[] ascii(String value) {
+    try {
+      return value.getBytes("US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
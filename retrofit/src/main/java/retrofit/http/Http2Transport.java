@@ -0,0 +1,219 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Sends requests over cleartext HTTP/2 (h2c with prior knowledge), multiplexing concurrent calls
+ * to a host as streams over at most {@code connectionsPerHost} connections. Headers are compressed
+ * with HPACK and both request and response bodies are subject to HTTP/2 flow control.
+ * <p/>
+ * Negotiating HTTP/2 over TLS requires ALPN, which this platform lacks, so {@code https} requests
+ * are sent with a fallback transport instead.
+ */
+public final class Http2Transport implements Transport {
+  private final int connectionsPerHost;
+  private final Transport fallback;
+  private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+  private volatile boolean shutdown;
+
+  /**
+   * @param connectionsPerHost the most connections opened to each host. A new connection is only
+   * opened when every existing one has streams in progress.
+   * @param fallback transport for requests which can't use cleartext HTTP/2, or null to reject
+   * them.
+   */
+  public Http2Transport(int connectionsPerHost, Transport fallback) {
+    if (connectionsPerHost < 1) throw new IllegalArgumentException("connectionsPerHost < 1");
+    this.connectionsPerHost = connectionsPerHost;
+    this.fallback = fallback;
+  }
+
+  @Override public Exchange newExchange(final Request request) {
+    if (!request.getUrl().startsWith("http:")) {
+      if (fallback == null) {
+        throw new IllegalArgumentException("HTTP/2 requires an http URL: " + request.getUrl());
+      }
+      return fallback.newExchange(request);
+    }
+    return new Exchange() {
+      private volatile boolean canceled;
+      private volatile Http2Connection.Stream stream;
+
+      @Override public Request request() {
+        return request;
+      }
+
+      @Override public Response execute() throws IOException {
+        if (canceled) {
+          throw new IOException("Canceled");
+        }
+        URL url = new URL(request.getUrl());
+        String path = url.getFile().length() > 0 ? url.getFile() : "/";
+        int readTimeout = Math.max(request.getReadTimeout(), 0);
+
+        Route route = route(url.getHost(), url.getPort() != -1 ? url.getPort() : 80);
+        Http2Connection connection = route.acquire(request.getConnectTimeout());
+        Http2Connection.Stream stream;
+        try {
+          stream = connection.newStream(request, path, readTimeout);
+        } catch (IOException e) {
+          if (!connection.isShutdown()) {
+            throw e;
+          }
+          // The connection went away before the request was sent, so it is safe to retry.
+          stream = route.acquire(request.getConnectTimeout()).newStream(request, path, readTimeout);
+        }
+        this.stream = stream;
+        if (canceled) {
+          stream.cancel();
+        }
+        if (request.getBody() != null) {
+          stream.writeBody(request);
+        }
+        return stream.awaitResponse();
+      }
+
+      @Override public void cancel() {
+        canceled = true;
+        Http2Connection.Stream stream = this.stream;
+        if (stream != null) {
+          stream.cancel();
+        }
+      }
+    };
+  }
+
+  /** The number of open connections to all hosts. */
+  public int getConnectionCount() {
+    int count = 0;
+    for (Route route : routes.values()) {
+      count += route.getConnectionCount();
+    }
+    return count;
+  }
+
+  /** Close every connection. Exchanges in progress fail and no new ones may be started. */
+  public void shutdown() {
+    shutdown = true;
+    for (Route route : routes.values()) {
+      route.closeAll();
+    }
+  }
+
+  private Route route(String host, int port) throws IOException {
+    if (shutdown) {
+      throw new IOException("Transport shut down");
+    }
+    String key = host + ":" + port;
+    Route route = routes.get(key);
+    if (route == null) {
+      Route created = new Route(host, port);
+      route = routes.putIfAbsent(key, created);
+      if (route == null) {
+        route = created;
+      }
+    }
+    return route;
+  }
+
+  /** The connections to one host and port. */
+  private final class Route {
+    private final String host;
+    private final int port;
+    private final List<Http2Connection> connections = new ArrayList<Http2Connection>();
+    /** Connections being opened, which count against the limit. */
+    private int opening;
+
+    Route(String host, int port) {
+      this.host = host;
+      this.port = port;
+    }
+
+    /**
+     * The least busy connection, opening another if all are busy and the limit allows. Connections
+     * are opened without holding this route's lock, so that a slow connect doesn't hold up calls
+     * which can use an open connection.
+     */
+    Http2Connection acquire(int connectTimeout) throws IOException {
+      synchronized (this) {
+        while (true) {
+          Http2Connection best = null;
+          for (Iterator<Http2Connection> i = connections.iterator(); i.hasNext();) {
+            Http2Connection connection = i.next();
+            if (connection.isShutdown()) {
+              i.remove();
+              if (connection.getActiveStreamCount() == 0) {
+                connection.close();
+              }
+            } else if (best == null
+                || connection.getActiveStreamCount() < best.getActiveStreamCount()) {
+              best = connection;
+            }
+          }
+          boolean atLimit = connections.size() + opening >= connectionsPerHost;
+          if (best != null && (best.getActiveStreamCount() == 0
+              || (best.hasCapacity() && atLimit))) {
+            return best;
+          }
+          if (!atLimit) {
+            opening++;
+            break;
+          }
+          if (best != null) {
+            // Every connection is at its stream limit. The stream will wait for a slot.
+            return best;
+          }
+          try {
+            wait(); // Every connection that may be opened is being opened by another call.
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection");
+          }
+        }
+      }
+
+      Http2Connection connection = null;
+      try {
+        connection = Http2Connection.open(host, port, connectTimeout);
+      } finally {
+        synchronized (this) {
+          opening--;
+          if (connection != null && !shutdown) {
+            connections.add(connection);
+          }
+          notifyAll();
+        }
+      }
+      if (shutdown) {
+        connection.close();
+        throw new IOException("Transport shut down");
+      }
+      return connection;
+    }
+
+    synchronized int getConnectionCount() {
+      int count = 0;
+      for (Http2Connection connection : connections) {
+        if (!connection.isShutdown()) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    synchronized void closeAll() {
+      for (Http2Connection connection : connections) {
+        connection.close();
+      }
+      connections.clear();
+    }
+  }
+}
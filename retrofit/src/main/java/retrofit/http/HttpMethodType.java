@@ -1,26 +1,22 @@
 package retrofit.http;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.List;
-import org.apache.http.HttpMessage;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.utils.URIUtils;
 import org.apache.http.client.utils.URLEncodedUtils;
 import org.apache.http.entity.mime.HttpMultipartMode;
 import org.apache.http.entity.mime.MultipartEntity;
 import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.protocol.HTTP;
+import retrofit.io.MimeType;
+import retrofit.io.TypedByteArray;
 import retrofit.io.TypedBytes;
 
 /**
@@ -31,49 +27,46 @@ import retrofit.io.TypedBytes;
 enum HttpMethodType {
 
   GET {
-    @Override HttpUriRequest createFrom(HttpRequestBuilder builder) throws URISyntaxException {
+    @Override Request createFrom(HttpRequestBuilder builder) throws URISyntaxException {
       URI uri = getParameterizedUri(builder);
-      HttpGet request = new HttpGet(uri);
-      addHeaders(request, builder);
-      return request;
+      return newRequest(this, builder, uri, null);
     }
   },
 
   POST {
-    @Override HttpUriRequest createFrom(HttpRequestBuilder builder) throws URISyntaxException {
+    @Override Request createFrom(HttpRequestBuilder builder) throws URISyntaxException {
       URI uri = getUri(builder);
-      HttpPost request = new HttpPost(uri);
-      addParams(request, builder);
-      addHeaders(request, builder);
-      return request;
+      return newRequest(this, builder, uri, getBody(builder));
     }
   },
 
   PUT {
-    @Override HttpUriRequest createFrom(HttpRequestBuilder builder) throws URISyntaxException {
+    @Override Request createFrom(HttpRequestBuilder builder) throws URISyntaxException {
       URI uri = getUri(builder);
-      HttpPut request = new HttpPut(uri);
-      addParams(request, builder);
-      addHeaders(request, builder);
-      return request;
+      return newRequest(this, builder, uri, getBody(builder));
     }
   },
 
   DELETE {
-    @Override HttpUriRequest createFrom(HttpRequestBuilder builder) throws URISyntaxException {
+    @Override Request createFrom(HttpRequestBuilder builder) throws URISyntaxException {
       URI uri = getParameterizedUri(builder);
-      HttpDelete request = new HttpDelete(uri);
-      addHeaders(request, builder);
-      return request;
+      return newRequest(this, builder, uri, null);
     }
   };
 
+  private static final MimeType FORM = new MimeType("application/x-www-form-urlencoded", null);
+
   public HttpProfiler.Method profilerMethod() {
     return HttpProfiler.Method.valueOf(name());
   }
 
+  /** True if repeating a request of this type has the same effect as making it once. */
+  boolean isIdempotent() {
+    return this != POST;
+  }
+
   /** Create a request object from HttpRequestBuilder. */
-  abstract HttpUriRequest createFrom(HttpRequestBuilder builder) throws URISyntaxException;
+  abstract Request createFrom(HttpRequestBuilder builder) throws URISyntaxException;
 
   /** Gets a URI with no query parameters specified. */
   private static URI getUri(HttpRequestBuilder builder) throws URISyntaxException {
@@ -92,20 +85,14 @@ enum HttpMethodType {
         queryString, null);
   }
 
-  private static void addHeaders(HttpMessage message, HttpRequestBuilder builder) {
-    String mimeType = builder.getMimeType();
-    if (mimeType != null) {
-      message.addHeader(HTTP.CONTENT_TYPE, mimeType);
-    }
-    Headers headers = builder.getHeaders();
-    if (headers != null) {
-      headers.setOn(message);
-    }
+  private static Request newRequest(HttpMethodType type, HttpRequestBuilder builder, URI uri,
+      TypedBytes body) {
+    String url = uri.toString();
+    return new Request(type.name(), url, Utils.getHeaders(builder.getHeaders()), body);
   }
 
-  /** Adds all but the last method argument as parameters of HTTP request object. */
-  private static void addParams(HttpEntityEnclosingRequestBase request,
-      HttpRequestBuilder builder) {
+  /** Encodes all but the last method argument as the body of the request. */
+  private static TypedBytes getBody(HttpRequestBuilder builder) {
     Method method = builder.getMethod();
     Object[] args = builder.getArgs();
     Class<?>[] parameterTypes = method.getParameterTypes();
@@ -116,39 +103,33 @@ enum HttpMethodType {
       count -= 1;
     }
 
-    if (useMultipart(parameterTypes, parameterAnnotations)) {
-      MultipartEntity form = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE);
-      for (int i = 0; i < count; i++) {
-        Object arg = args[i];
-        if (arg == null) continue;
-        Annotation[] annotations = parameterAnnotations[i];
-        String name = HttpRequestBuilder.getName(annotations, method, i);
-        Class<?> type = parameterTypes[i];
-
-        if (TypedBytes.class.isAssignableFrom(type)) {
-          TypedBytes typedBytes = (TypedBytes) arg;
-          form.addPart(name, new TypedBytesBody(typedBytes, name));
-        } else {
-          try {
+    try {
+      if (useMultipart(parameterTypes, parameterAnnotations)) {
+        MultipartEntity form = new MultipartEntity(HttpMultipartMode.BROWSER_COMPATIBLE);
+        for (int i = 0; i < count; i++) {
+          Object arg = args[i];
+          if (arg == null || builder.isControlArgument(i)) continue;
+          Annotation[] annotations = parameterAnnotations[i];
+          String name = HttpRequestBuilder.getName(annotations, method, i);
+          Class<?> type = parameterTypes[i];
+
+          if (TypedBytes.class.isAssignableFrom(type)) {
+            TypedBytes typedBytes = (TypedBytes) arg;
+            form.addPart(name, new TypedBytesBody(typedBytes, name));
+          } else {
             form.addPart(name, new StringBody(String.valueOf(arg)));
-          } catch (UnsupportedEncodingException e) {
-            throw new AssertionError(e);
           }
         }
+        return new MultipartBytes(form);
+      } else if (builder.getSingleEntity() != null) {
+        return builder.getSingleEntity();
+      } else {
+        List<NameValuePair> paramList = builder.getParamList(true);
+        byte[] form = URLEncodedUtils.format(paramList, HTTP.UTF_8).getBytes(HTTP.UTF_8);
+        return new TypedByteArray(form, FORM);
       }
-      request.setEntity(form);
-    } else {
-      try {
-        if (builder.getSingleEntity() != null) {
-          TypedBytesEntity entity = new TypedBytesEntity(builder.getSingleEntity());
-          request.setEntity(entity);
-        } else {
-          List<NameValuePair> paramList = builder.getParamList(true);
-          request.setEntity(new UrlEncodedFormEntity(paramList, HTTP.UTF_8));
-        }
-      } catch (UnsupportedEncodingException e) {
-        throw new AssertionError(e);
-      }
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -172,4 +153,28 @@ enum HttpMethodType {
     }
     return false;
   }
+
+  /** Adapts a multipart form to {@link TypedBytes}. */
+  private static final class MultipartBytes implements TypedBytes {
+    private final MultipartEntity entity;
+    private final MimeType mimeType;
+
+    MultipartBytes(MultipartEntity entity) {
+      this.entity = entity;
+      this.mimeType = new MimeType(entity.getContentType().getValue(), null);
+    }
+
+    @Override public MimeType mimeType() {
+      return mimeType;
+    }
+
+    @Override public int length() {
+      long length = entity.getContentLength();
+      return length <= Integer.MAX_VALUE ? (int) length : -1;
+    }
+
+    @Override public void writeTo(OutputStream out) throws IOException {
+      entity.writeTo(out);
+    }
+  }
 }
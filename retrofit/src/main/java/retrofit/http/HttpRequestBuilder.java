@@ -11,12 +11,9 @@ import java.util.List;
 import java.util.Set;
 import javax.inject.Named;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.message.BasicNameValuePair;
 import retrofit.io.TypedBytes;
 
-import static retrofit.http.RestAdapter.MethodDetails;
-
 /**
  * Builds HTTP requests from Java method invocations.  Handles "path parameters" in the
  * {@code apiUrl} in the form of "path/to/url/{id}/action" where a parameter annotated with
@@ -55,6 +52,10 @@ final class HttpRequestBuilder {
     return methodDetails.isSynchronous;
   }
 
+  boolean isControlArgument(int index) {
+    return methodDetails.isControlArgument(index);
+  }
+
   String getRelativePath() {
     return replacedRelativePath != null ? replacedRelativePath : methodDetails.path;
   }
@@ -116,7 +117,7 @@ final class HttpRequestBuilder {
     int singleEntityArgumentIndex = methodDetails.singleEntityArgumentIndex;
     for (int i = 0; i < pathNamedParams.length; i++) {
       Object arg = args[i];
-      if (arg == null) continue;
+      if (arg == null || methodDetails.isControlArgument(i)) continue;
       if (i != singleEntityArgumentIndex) {
         params.add(new BasicNameValuePair(pathNamedParams[i], String.valueOf(arg)));
       } else {
@@ -137,16 +138,7 @@ final class HttpRequestBuilder {
     return singleEntity;
   }
 
-  /**
-   * If this builder has a custom mime-type for the request, this returns it.
-   *
-   * @return "Content-Type" string if present, null otherwise.
-   */
-  public String getMimeType() {
-    return singleEntity == null ? null : singleEntity.mimeType().mimeName();
-  }
-
-  HttpUriRequest build() throws URISyntaxException {
+  Request build() throws URISyntaxException {
     // Alter parameter list if path parameters are present.
     Set<String> pathParams = new LinkedHashSet<String>(methodDetails.pathParams);
     List<NameValuePair> paramList = createParamList();
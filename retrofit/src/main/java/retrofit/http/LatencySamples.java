@@ -0,0 +1,41 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** The most recent latencies of a method, from which percentiles are estimated. */
+final class LatencySamples {
+  private final AtomicLongArray samples;
+  private final AtomicLong count = new AtomicLong();
+  private final int minSamples;
+
+  LatencySamples(int size, int minSamples) {
+    this.samples = new AtomicLongArray(size);
+    this.minSamples = minSamples;
+  }
+
+  void record(long nanos) {
+    int index = (int) (count.getAndIncrement() % samples.length());
+    samples.set(index, nanos);
+  }
+
+  /**
+   * Returns the {@code percentile} (between 0 and 1) of the recorded samples in nanoseconds, or -1
+   * if too few have been recorded.
+   */
+  long percentile(double percentile) {
+    int n = (int) Math.min(count.get(), samples.length());
+    if (n < minSamples) {
+      return -1;
+    }
+    long[] sorted = new long[n];
+    for (int i = 0; i < n; i++) {
+      sorted[i] = samples.get(i);
+    }
+    Arrays.sort(sorted);
+    int rank = (int) Math.ceil(percentile * n) - 1;
+    return sorted[Math.max(0, Math.min(n - 1, rank))];
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A server made up of several replicas. A {@link RestAdapter} picks one for each request with an
+ * {@link EndpointSelector}, so no proxy is needed in front of them.
+ * <p/>
+ * The replicas may be replaced at any time with {@link #setEndpoints(List)}. Requests read the
+ * current set without locking.
+ * <p/>
+ * Methods annotated with {@link RouteBy} bypass the selector and are routed by key with
+ * {@link #select(String)}.
+ * <p/>
+ * The {@link #apiUrl()} of the server is the first url it was constructed with, whatever the
+ * current endpoints. Circuit breakers, rate limits and cached responses apply to the server as a
+ * whole under that url, so replacing the endpoints doesn't reset them; individual requests go to
+ * the endpoint chosen by {@link #select()}.
+ */
+public final class LoadBalancedServer extends Server {
+  private final EndpointSelector selector;
+  private volatile List<Endpoint> endpoints;
+  private volatile ConsistentHashRing ring;
+
+  public LoadBalancedServer(List<String> urls, EndpointSelector selector) {
+    this(urls, selector, DEFAULT_TYPE);
+  }
+
+  public LoadBalancedServer(List<String> urls, EndpointSelector selector, String type) {
+    super(first(urls), type);
+    if (selector == null) throw new NullPointerException("selector");
+    this.selector = selector;
+    setEndpoints(urls);
+  }
+
+  private static String first(List<String> urls) {
+    if (urls == null) throw new NullPointerException("urls");
+    if (urls.isEmpty()) throw new IllegalArgumentException("urls is empty");
+    return urls.get(0);
+  }
+
+  /** Choose the endpoint for the next request. */
+  public Endpoint select() {
+    return selector.select(endpoints);
+  }
+
+  /**
+   * Choose the endpoint for a request routed by {@code key}. The same key goes to the same
+   * endpoint unless that endpoint is ejected or carrying well over its share of the requests in
+   * flight.
+   */
+  public Endpoint select(String key) {
+    if (key == null) throw new NullPointerException("key");
+    return ring.select(key);
+  }
+
+  /** The current endpoints, in the order they were given. */
+  public List<Endpoint> getEndpoints() {
+    return endpoints;
+  }
+
+  /**
+   * Replace the endpoints with {@code urls}. Endpoints which remain keep counting the requests
+   * already in flight to them, and keys routed with {@link #select(String)} only move to or from
+   * the endpoints added or removed.
+   */
+  public synchronized void setEndpoints(List<String> urls) {
+    first(urls);
+    Map<String, Endpoint> existing = new HashMap<String, Endpoint>();
+    if (endpoints != null) {
+      for (Endpoint endpoint : endpoints) {
+        existing.put(endpoint.url(), endpoint);
+      }
+    }
+    List<Endpoint> updated = new ArrayList<Endpoint>(urls.size());
+    for (String url : urls) {
+      Endpoint endpoint = new Endpoint(url);
+      Endpoint kept = existing.remove(endpoint.url());
+      updated.add(kept != null ? kept : endpoint);
+    }
+    List<Endpoint> unmodifiable = Collections.unmodifiableList(updated);
+    ring = new ConsistentHashRing(unmodifiable);
+    endpoints = unmodifiable;
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link ResponseCache} which holds responses in memory, up to a total size in bytes. The least
+ * recently used responses are evicted first.
+ * <p/>
+ * The cache is split into segments, each with its own lock and an equal share of the size, so
+ * that concurrent requests for different URLs rarely wait for each other. Eviction is least
+ * recently used within each segment.
+ */
+public final class MemoryResponseCache implements ResponseCache {
+  private static final int DEFAULT_CONCURRENCY = 16;
+
+  private final Segment[] segments;
+  private final long maxSize;
+  private final ResponseCacheStats stats = new ResponseCacheStats();
+
+  public MemoryResponseCache(long maxSize) {
+    this(maxSize, DEFAULT_CONCURRENCY);
+  }
+
+  /**
+   * @param maxSize the most bytes of responses to hold.
+   * @param concurrencyLevel the number of segments, each locked independently.
+   */
+  public MemoryResponseCache(long maxSize, int concurrencyLevel) {
+    if (maxSize <= 0) throw new IllegalArgumentException("maxSize <= 0");
+    if (concurrencyLevel < 1) throw new IllegalArgumentException("concurrencyLevel < 1");
+    int count = (int) Math.min(concurrencyLevel, maxSize);
+    this.maxSize = maxSize;
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      // Spread the remainder so that the segments add up to exactly maxSize.
+      segments[i] = new Segment(maxSize / count + (i < maxSize % count ? 1 : 0));
+    }
+  }
+
+  @Override public Response get(Request request) {
+    if (!CacheEntry.acceptsCached(request)) {
+      if ("GET".equals(request.getMethod())) {
+        stats.recordMiss();
+      }
+      return null;
+    }
+    String key = CacheEntry.key(request.getUrl());
+    CacheEntry entry = segment(key).get(key, request, System.currentTimeMillis());
+    if (entry == null) {
+      stats.recordMiss();
+      return null;
+    }
+    stats.recordHit();
+    return entry.getResponse();
+  }
+
+  @Override public void put(Request request, Response response) {
+    if (CacheEntry.invalidates(request, response)) {
+      String key = CacheEntry.key(request.getUrl());
+      segment(key).remove(key);
+      return;
+    }
+    if (!"GET".equals(request.getMethod())) {
+      return;
+    }
+    CacheEntry entry = CacheEntry.create(request, response, System.currentTimeMillis());
+    String key = CacheEntry.key(request.getUrl());
+    if (entry == null) {
+      segment(key).remove(key); // The server no longer allows the old response to be used.
+    } else {
+      segment(key).put(key, entry);
+    }
+  }
+
+  @Override public void evictAll() {
+    for (Segment segment : segments) {
+      segment.clear();
+    }
+  }
+
+  @Override public ResponseCacheStats getStats() {
+    return stats;
+  }
+
+  /** The most bytes of responses this cache holds. */
+  public long maxSize() {
+    return maxSize;
+  }
+
+  /** The bytes of responses currently held. */
+  public long size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+    return size;
+  }
+
+  private Segment segment(String key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 20) ^ (hash >>> 12); // Spread URLs which differ only in their last chars.
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    return segments[(hash & Integer.MAX_VALUE) % segments.length];
+  }
+
+  /** A share of the cache, ordered from least to most recently used. */
+  private final class Segment {
+    private final long maxSize;
+    private final LinkedHashMap<String, CacheEntry> entries =
+        new LinkedHashMap<String, CacheEntry>(16, 0.75f, true);
+    private long size;
+
+    Segment(long maxSize) {
+      this.maxSize = maxSize;
+    }
+
+    synchronized CacheEntry get(String key, Request request, long nowMillis) {
+      CacheEntry entry = entries.get(key);
+      if (entry == null || !entry.matches(request)) {
+        return null;
+      }
+      if (!entry.isFresh(nowMillis)) {
+        entries.remove(key);
+        size -= entry.weight();
+        return null;
+      }
+      return entry;
+    }
+
+    synchronized void put(String key, CacheEntry entry) {
+      long weight = entry.weight();
+      CacheEntry previous = entries.remove(key);
+      if (previous != null) {
+        size -= previous.weight();
+      }
+      if (weight > maxSize) {
+        return; // Would evict everything else and still not fit.
+      }
+      entries.put(key, entry);
+      size += weight;
+      for (Iterator<Map.Entry<String, CacheEntry>> i = entries.entrySet().iterator();
+          size > maxSize && i.hasNext();) {
+        CacheEntry eldest = i.next().getValue();
+        i.remove();
+        size -= eldest.weight();
+        stats.recordEviction();
+      }
+    }
+
+    synchronized void remove(String key) {
+      CacheEntry entry = entries.remove(key);
+      if (entry != null) {
+        size -= entry.weight();
+      }
+    }
+
+    synchronized void clear() {
+      entries.clear();
+      size = 0;
+    }
+
+    synchronized long size() {
+      return size;
+    }
+  }
+}
@@ -0,0 +1,342 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.inject.Named;
+
+/** Cached details about an interface method. */
+final class MethodDetails {
+  private static final Pattern PATH_PARAMETERS = Pattern.compile("\\{([a-z_-]*)\\}");
+  private static final int LATENCY_SAMPLES = 128;
+  private static final int MIN_LATENCY_SAMPLES = 20;
+
+  final Method method;
+  final boolean isSynchronous;
+
+  private boolean loaded = false;
+
+  Type type;
+  HttpMethodType httpMethod;
+  String path;
+  Set<String> pathParams;
+  QueryParam[] pathQueryParams;
+  String[] pathNamedParams;
+  int singleEntityArgumentIndex = -1;
+  int tagArgumentIndex = -1;
+  long connectTimeout = Timeout.INHERIT;
+  long readTimeout = Timeout.INHERIT;
+  long deadline = Timeout.INHERIT;
+  Priority.Level priority = Priority.Level.NORMAL;
+  int priorityArgumentIndex = -1;
+  boolean coalesce;
+  Bulk bulk;
+  int bulkKeyArgumentIndex = -1;
+  Hedge hedge;
+  LatencySamples latencies;
+  RetryPolicy retryPolicy;
+  RateLimit rateLimit;
+  String bulkhead;
+  String routeKey;
+  int routeKeyArgumentIndex = -1;
+
+  MethodDetails(Method method) {
+    this.method = method;
+    isSynchronous = parseResponseType();
+  }
+
+  /** Identifies this method on the server at {@code apiUrl}. */
+  String key(String apiUrl) {
+    return apiUrl + " " + method.getDeclaringClass().getSimpleName() + "." + method.getName();
+  }
+
+  synchronized void init() {
+    if (loaded) return;
+
+    parseMethodAnnotations();
+    parseParameterAnnotations();
+
+    loaded = true;
+  }
+
+  /**
+   * Loads {@link #httpMethod}, {@link #path}, {@link #pathQueryParams}, {@link #priority},
+   * {@link #coalesce}, {@link #bulk}, {@link #hedge}, {@link #retryPolicy}, {@link #rateLimit},
+   * {@link #bulkhead}, {@link #routeKey}, and the {@link Timeout} budgets.
+   */
+  private void parseMethodAnnotations() {
+    Bulkhead typeBulkhead = method.getDeclaringClass().getAnnotation(Bulkhead.class);
+    if (typeBulkhead != null) {
+      bulkhead = typeBulkhead.value();
+    }
+    for (Annotation annotation : method.getAnnotations()) {
+      Class<? extends Annotation> annotationType = annotation.annotationType();
+
+      // Look for an HttpMethod annotation describing the request type.
+      if (annotationType == GET.class
+          || annotationType == POST.class
+          || annotationType == PUT.class
+          || annotationType == DELETE.class) {
+        if (this.httpMethod != null) {
+          throw new IllegalStateException(
+              "Method annotated with multiple HTTP method annotations: " + method);
+        }
+        this.httpMethod = annotationType.getAnnotation(HttpMethod.class).value();
+        try {
+          path = (String) annotationType.getMethod("value").invoke(annotation);
+        } catch (Exception e) {
+          throw new IllegalStateException("Failed to extract URI path.", e);
+        }
+
+        pathParams = parsePathParameters(path);
+      } else if (annotationType == QueryParams.class) {
+        if (this.pathQueryParams != null) {
+          throw new IllegalStateException(
+              "QueryParam and QueryParams annotations are mutually exclusive.");
+        }
+        this.pathQueryParams = ((QueryParams) annotation).value();
+      } else if (annotationType == QueryParam.class) {
+        if (this.pathQueryParams != null) {
+          throw new IllegalStateException(
+              "QueryParam and QueryParams annotations are mutually exclusive.");
+        }
+        this.pathQueryParams = new QueryParam[] { (QueryParam) annotation };
+      } else if (annotationType == Timeout.class) {
+        Timeout timeout = (Timeout) annotation;
+        connectTimeout = timeout.connect();
+        readTimeout = timeout.read();
+        deadline = timeout.deadline();
+      } else if (annotationType == Priority.class) {
+        priority = ((Priority) annotation).value();
+      } else if (annotationType == Coalesce.class) {
+        coalesce = true;
+      } else if (annotationType == Bulk.class) {
+        bulk = (Bulk) annotation;
+        if (bulk.window() <= 0 || bulk.maxSize() < 1) {
+          throw new IllegalStateException(
+              "Bulk window and maxSize must be positive: " + method);
+        }
+        checkBulkKey();
+      } else if (annotationType == Hedge.class) {
+        hedge = (Hedge) annotation;
+        if (hedge.delay() < 0 && hedge.delay() != Hedge.OBSERVED) {
+          throw new IllegalStateException("Hedge delay may not be negative: " + method);
+        }
+        latencies = new LatencySamples(LATENCY_SAMPLES, MIN_LATENCY_SAMPLES);
+      } else if (annotationType == Retry.class) {
+        Retry retry = (Retry) annotation;
+        try {
+          retryPolicy = new ExponentialBackoff(retry.attempts(), retry.initialDelay(),
+              retry.maxDelay(), TimeUnit.MILLISECONDS, retry.statusCodes());
+        } catch (IllegalArgumentException e) {
+          throw new IllegalStateException("Invalid Retry on " + method + ": " + e.getMessage());
+        }
+      } else if (annotationType == RateLimit.class) {
+        rateLimit = (RateLimit) annotation;
+        if (rateLimit.value() <= 0 || rateLimit.burst() < 1) {
+          throw new IllegalStateException(
+              "RateLimit value and burst must be positive: " + method);
+        }
+      } else if (annotationType == Bulkhead.class) {
+        bulkhead = ((Bulkhead) annotation).value();
+      } else if (annotationType == RouteBy.class) {
+        routeKey = ((RouteBy) annotation).value();
+      }
+    }
+
+    if (httpMethod == null) {
+      throw new IllegalStateException(
+          "Method not annotated with GET, POST, PUT, or DELETE: " + method);
+    }
+    if (pathQueryParams == null) {
+      pathQueryParams = new QueryParam[0];
+    }
+    if (coalesce && httpMethod != HttpMethodType.GET) {
+      throw new IllegalStateException(
+          "Only GET methods may be annotated with Coalesce: " + method);
+    }
+    if (hedge != null && httpMethod != HttpMethodType.GET) {
+      throw new IllegalStateException("Only GET methods may be annotated with Hedge: " + method);
+    }
+    if (retryPolicy != null && !httpMethod.isIdempotent()) {
+      throw new IllegalStateException(
+          "Only idempotent methods may be annotated with Retry: " + method);
+    }
+  }
+
+  /** True if the argument at {@code index} configures the call rather than the request. */
+  boolean isControlArgument(int index) {
+    return index == tagArgumentIndex || index == priorityArgumentIndex;
+  }
+
+  /** Loads {@link #type}. Returns true if the method is synchronous. */
+  private boolean parseResponseType() {
+    // Synchronous methods have a non-void return type.
+    Type returnType = method.getGenericReturnType();
+
+    // Asynchronous methods should have a Callback type as the last argument.
+    Type lastArgType = null;
+    Class<?> lastArgClass = null;
+    Type[] parameterTypes = method.getGenericParameterTypes();
+    if (parameterTypes.length > 0) {
+      Type typeToCheck = parameterTypes[parameterTypes.length - 1];
+      lastArgType = typeToCheck;
+      if (typeToCheck instanceof ParameterizedType) {
+        typeToCheck = ((ParameterizedType) typeToCheck).getRawType();
+      }
+      if (typeToCheck instanceof Class) {
+        lastArgClass = (Class<?>) typeToCheck;
+      }
+    }
+
+    boolean hasCallback = lastArgClass != null && Callback.class.isAssignableFrom(lastArgClass);
+    // Asynchronous methods may return a Call handle in place of void.
+    boolean returnsCall = hasCallback && returnType == Call.class;
+    boolean hasReturnType = returnType != void.class && !returnsCall;
+
+    // Check for invalid configurations.
+    if (hasReturnType && hasCallback) {
+      throw new IllegalArgumentException(
+          "Method may only have return type or Callback as last argument, not both.");
+    }
+    if (!hasReturnType && !hasCallback) {
+      throw new IllegalArgumentException(
+          "Method must have either a return type or Callback as last argument.");
+    }
+
+    if (hasReturnType) {
+      type = returnType;
+      return true;
+    }
+
+    lastArgType = Utils.getGenericSupertype(lastArgType, lastArgClass, Callback.class);
+    if (lastArgType instanceof ParameterizedType) {
+      Type[] types = ((ParameterizedType) lastArgType).getActualTypeArguments();
+      for (int i = 0; i < types.length; i++) {
+        Type type = types[i];
+        if (type instanceof WildcardType) {
+          types[i] = ((WildcardType) type).getUpperBounds()[0];
+        }
+      }
+      type = types[0];
+      return false;
+    }
+    throw new IllegalArgumentException(
+        String.format("Last parameter of %s must be of type Callback<X> or Callback<? super X>.",
+            method));
+  }
+
+  /**
+   * Fail fast when a bulk method answering with a collection or array has no {@link Bulk#key()}
+   * to index its elements by. A bulk method which can't be found is reported on first use.
+   */
+  private void checkBulkKey() {
+    if (bulk.key().length() > 0) return;
+    for (Method candidate : method.getDeclaringClass().getDeclaredMethods()) {
+      if (!candidate.getName().equals(bulk.method())) continue;
+      if (!Map.class.isAssignableFrom(candidate.getReturnType())) {
+        throw new IllegalStateException("Bulk method " + bulk.method()
+            + " returns a collection or array and needs a key field: " + method);
+      }
+    }
+  }
+
+  /**
+   * Loads {@link #pathNamedParams}, {@link #singleEntityArgumentIndex},
+   * {@link #tagArgumentIndex}, {@link #priorityArgumentIndex}, {@link #bulkKeyArgumentIndex},
+   * and {@link #routeKeyArgumentIndex}.
+   */
+  private void parseParameterAnnotations() {
+    Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+    int count = parameterAnnotations.length;
+    if (!isSynchronous) {
+      count -= 1; // Callback is last argument when not a synchronous method.
+    }
+
+    String[] namedParams = new String[count];
+    for (int i = 0; i < count; i++) {
+      for (Annotation parameterAnnotation : parameterAnnotations[i]) {
+        Class<? extends Annotation> annotationType = parameterAnnotation.annotationType();
+        if (annotationType == Named.class) {
+          namedParams[i] = ((Named) parameterAnnotation).value();
+        } else if (annotationType == SingleEntity.class) {
+          if (singleEntityArgumentIndex != -1) {
+            throw new IllegalStateException(
+                "Method annotated with multiple SingleEntity method annotations: " + method);
+          }
+          singleEntityArgumentIndex = i;
+        } else if (annotationType == Tag.class) {
+          if (tagArgumentIndex != -1) {
+            throw new IllegalStateException(
+                "Method annotated with multiple Tag method annotations: " + method);
+          }
+          tagArgumentIndex = i;
+        } else if (annotationType == Priority.class) {
+          if (priorityArgumentIndex != -1) {
+            throw new IllegalStateException(
+                "Method annotated with multiple Priority method annotations: " + method);
+          }
+          if (method.getParameterTypes()[i] != Priority.Level.class) {
+            throw new IllegalStateException(
+                "Priority parameter must be of type Priority.Level: " + method);
+          }
+          priorityArgumentIndex = i;
+        } else {
+          throw new IllegalArgumentException(
+              "Method argument " + i + " not annotated with Named, SingleEntity, Tag, or "
+                  + "Priority: " + method);
+        }
+      }
+    }
+    pathNamedParams = namedParams;
+
+    if (bulk != null) {
+      for (int i = 0; i < count; i++) {
+        if (namedParams[i] == null) continue;
+        if (bulkKeyArgumentIndex != -1) {
+          throw new IllegalStateException(
+              "Bulk methods must take a single @Named argument: " + method);
+        }
+        bulkKeyArgumentIndex = i;
+      }
+      if (bulkKeyArgumentIndex == -1) {
+        throw new IllegalStateException(
+            "Bulk methods must take a single @Named argument: " + method);
+      }
+    }
+
+    if (routeKey != null) {
+      for (int i = 0; i < count; i++) {
+        if (routeKey.equals(namedParams[i])) {
+          routeKeyArgumentIndex = i;
+        }
+      }
+      if (routeKeyArgumentIndex == -1) {
+        throw new IllegalStateException(
+            "RouteBy must name a @Named parameter, found \"" + routeKey + "\": " + method);
+      }
+    }
+  }
+
+  /**
+   * Gets the set of unique path parameters used in the given URI. If a parameter is used twice in
+   * the URI, it will only show up once in the set.
+   */
+  static Set<String> parsePathParameters(String path) {
+    Matcher m = PATH_PARAMETERS.matcher(path);
+    Set<String> patterns = new LinkedHashSet<String>();
+    while (m.find()) {
+      patterns.add(m.group(1));
+    }
+    return patterns;
+  }
+}
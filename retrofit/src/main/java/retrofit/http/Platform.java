@@ -1,15 +1,15 @@
 package retrofit.http;
 
 import android.net.http.AndroidHttpClient;
+import android.os.Build;
 import android.os.Process;
 import com.google.gson.Gson;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import javax.inject.Provider;
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
 import retrofit.android.MainThreadExecutor;
 
 import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
@@ -35,19 +35,46 @@ abstract class Platform {
   Converter defaultConverter() {
     return new GsonConverter(new Gson());
   }
-  abstract Provider<HttpClient> defaultHttpClient();
+  /** The pool behind {@link #defaultTransport}, or null if the platform's client is used. */
+  abstract ConnectionPool defaultConnectionPool();
+  /** @param connectionPool the result of {@link #defaultConnectionPool()}. */
+  abstract Transport defaultTransport(ConnectionPool connectionPool);
   abstract Executor defaultHttpExecutor();
   abstract Executor defaultCallbackExecutor();
+  abstract int defaultMaxConcurrentRequests();
+
+  /**
+   * A single daemon thread, shared by every adapter, used for timed work such as enforcing
+   * deadlines.
+   */
+  ScheduledExecutorService defaultScheduledExecutor() {
+    return SharedScheduler.INSTANCE;
+  }
+
+  /** Holds the shared scheduler so that its thread isn't started until an adapter needs it. */
+  private static final class SharedScheduler {
+    static final ScheduledExecutorService INSTANCE =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+          @Override public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, THREAD_PREFIX + "Scheduler");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
 
   /** Provides sane defaults for operation on the JVM. */
   private static class Base extends Platform {
-    @Override Provider<HttpClient> defaultHttpClient() {
-      final HttpClient client = new DefaultHttpClient();
-      return new Provider<HttpClient>() {
-        @Override public HttpClient get() {
-          return client;
-        }
-      };
+    @Override ConnectionPool defaultConnectionPool() {
+      int maxConnections = defaultMaxConcurrentRequests();
+      // The JVM's default lifetimes for resolved and unresolvable hosts.
+      HostResolver resolver =
+          new CachingHostResolver(HostResolver.SYSTEM, 30, 10, TimeUnit.SECONDS);
+      return new ConnectionPool(maxConnections, maxConnections, 30, TimeUnit.SECONDS, resolver);
+    }
+
+    @Override Transport defaultTransport(ConnectionPool connectionPool) {
+      return new ApacheTransport(connectionPool.clientProvider());
     }
 
     @Override Executor defaultHttpExecutor() {
@@ -68,18 +95,24 @@ abstract class Platform {
     @Override Executor defaultCallbackExecutor() {
       return new SynchronousExecutor();
     }
+
+    @Override int defaultMaxConcurrentRequests() {
+      return 64;
+    }
   }
 
   /** Provides sane defaults for operation on Android. */
   private static class Android extends Platform {
-    @Override Provider<HttpClient> defaultHttpClient() {
-      // TODO use HttpUrlConnection on Android 2.3+
-      final HttpClient client = AndroidHttpClient.newInstance("Retrofit");
-      return new Provider<HttpClient>() {
-        @Override public HttpClient get() {
-          return client;
-        }
-      };
+    @Override Transport defaultTransport(ConnectionPool connectionPool) {
+      if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+        // HttpURLConnection is the better maintained client from 2.3 onwards.
+        return new UrlConnectionTransport();
+      }
+      return new ApacheTransport(AndroidHttpClient.newInstance("Retrofit"));
+    }
+
+    @Override ConnectionPool defaultConnectionPool() {
+      return null; // Both of the platform's clients pool their own connections.
     }
 
     @Override Executor defaultHttpExecutor() {
@@ -100,5 +133,9 @@ abstract class Platform {
     @Override Executor defaultCallbackExecutor() {
       return new MainThreadExecutor();
     }
+
+    @Override int defaultMaxConcurrentRequests() {
+      return 4; // Mobile radios and CPUs gain little from more parallelism than this.
+    }
   }
 }
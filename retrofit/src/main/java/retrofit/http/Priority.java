@@ -0,0 +1,36 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Scheduling priority of asynchronous calls. When more calls are outstanding than the
+ * {@link RestAdapter.Builder#setMaxConcurrentRequests maximum concurrent requests}, waiting calls
+ * are started in order of priority. Waiting calls age so that low priority calls are not starved.
+ * <p/>
+ * On a method this sets the priority of every call to the method. On a parameter of type
+ * {@link Level} the argument overrides the method's priority for that call (a {@code null}
+ * argument keeps the method's priority). For example:
+ * <pre>
+ *   &#64;GET("sync") &#64;Priority(Priority.Level.LOW)
+ *   void sync(@Priority Priority.Level override, Callback&lt;SyncResult> callback);
+ * </pre>
+ */
+@Target({ METHOD, PARAMETER })
+@Retention(RUNTIME)
+public @interface Priority {
+  /** Ignored when used on a parameter. */
+  Level value() default Level.NORMAL;
+
+  /** Priority classes in increasing order of importance. */
+  enum Level {
+    LOW,
+    NORMAL,
+    HIGH
+  }
+}
@@ -0,0 +1,160 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sits in front of the HTTP {@link Executor} and limits the number of calls it runs at once. Calls
+ * beyond that limit wait in a queue ordered by {@link Priority.Level}.
+ * <p/>
+ * To prevent starvation each waiting call ages: a call is ordered as though it had been enqueued
+ * {@code agingNanos} earlier for each level of priority it has. A low priority call which has
+ * waited longer than that is therefore started ahead of newly-arrived high priority calls.
+ * <p/>
+ * While every permit is in use and {@code maxQueued} calls are waiting, further calls are
+ * rejected.
+ */
+final class PriorityScheduler {
+  private final Executor executor;
+  private volatile int maxConcurrency;
+  private final long agingNanos;
+  private final int maxQueued;
+  private final QueueStats stats = new QueueStats();
+  private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<Task>();
+  private final AtomicInteger running = new AtomicInteger();
+  /** Drainers which have been started but have not yet taken a task from the queue. */
+  private final AtomicInteger starting = new AtomicInteger();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+
+  PriorityScheduler(Executor executor, int maxConcurrency, long agingNanos) {
+    this(executor, maxConcurrency, agingNanos, Integer.MAX_VALUE);
+  }
+
+  PriorityScheduler(Executor executor, int maxConcurrency, long agingNanos, int maxQueued) {
+    this.executor = executor;
+    this.maxConcurrency = maxConcurrency;
+    this.agingNanos = agingNanos;
+    this.maxQueued = maxQueued;
+  }
+
+  int maxConcurrency() {
+    return maxConcurrency;
+  }
+
+  int activeCount() {
+    return running.get();
+  }
+
+  /** Tasks waiting for a permit, excluding those about to be taken by a started drainer. */
+  int queuedCount() {
+    return Math.max(0, queue.size() - starting.get());
+  }
+
+  long rejectedCount() {
+    return rejected.get();
+  }
+
+  QueueStats stats() {
+    return stats;
+  }
+
+  /** Change the number of tasks which may run at once, starting waiting tasks if it grew. */
+  void setMaxConcurrency(int maxConcurrency) {
+    int growth;
+    synchronized (this) {
+      growth = maxConcurrency - this.maxConcurrency;
+      this.maxConcurrency = maxConcurrency;
+    }
+    for (int i = 0; i < growth; i++) {
+      startIfPermitted();
+    }
+  }
+
+  /**
+   * Enqueue {@code runnable} at {@code level}. The returned task may be passed to remove. Returns
+   * null if the queue is full.
+   */
+  Task execute(Runnable runnable, Priority.Level level) {
+    Task task;
+    synchronized (this) {
+      // Waiting tasks for which a permit is free are about to start, and don't count as queued.
+      int free = Math.max(0, maxConcurrency - running.get());
+      if (queuedCount() - free >= maxQueued) {
+        rejected.incrementAndGet();
+        return null;
+      }
+      task = new Task(runnable, level, System.nanoTime(), sequence.getAndIncrement());
+      queue.add(task);
+    }
+    startIfPermitted();
+    return task;
+  }
+
+  /** Remove a task which has not yet started. Returns false if it has already started. */
+  boolean remove(Task task) {
+    return queue.remove(task);
+  }
+
+  private void startIfPermitted() {
+    while (!queue.isEmpty()) {
+      int current = running.get();
+      if (current >= maxConcurrency) {
+        return;
+      }
+      if (running.compareAndSet(current, current + 1)) {
+        starting.incrementAndGet();
+        executor.execute(new Drainer());
+        return;
+      }
+    }
+  }
+
+  /** Runs the highest priority waiting task on the HTTP executor, then hands off its permit. */
+  private final class Drainer implements Runnable {
+    @Override public void run() {
+      try {
+        Task task;
+        synchronized (PriorityScheduler.this) {
+          task = queue.poll();
+          starting.decrementAndGet();
+        }
+        if (task != null) {
+          stats.record(task.level, System.nanoTime() - task.enqueuedNanos);
+          task.runnable.run();
+        }
+      } finally {
+        running.decrementAndGet();
+        startIfPermitted();
+      }
+    }
+  }
+
+  final class Task implements Comparable<Task> {
+    final Runnable runnable;
+    final Priority.Level level;
+    final long enqueuedNanos;
+    final long sortKey;
+    final long sequence;
+
+    Task(Runnable runnable, Priority.Level level, long enqueuedNanos, long sequence) {
+      this.runnable = runnable;
+      this.level = level;
+      this.enqueuedNanos = enqueuedNanos;
+      this.sortKey = enqueuedNanos - level.ordinal() * agingNanos;
+      this.sequence = sequence;
+    }
+
+    @Override public int compareTo(Task other) {
+      // Compare the difference to be safe against nanoTime overflow.
+      long delta = sortKey - other.sortKey;
+      if (delta != 0) {
+        return delta < 0 ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+  }
+}
@@ -0,0 +1,55 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Time asynchronous calls spent waiting to start, for each {@link Priority.Level}. */
+public final class QueueStats {
+  private final AtomicLong[] counts;
+  private final AtomicLong[] totalWaitNanos;
+  private final AtomicLong[] maxWaitNanos;
+
+  QueueStats() {
+    int levels = Priority.Level.values().length;
+    counts = new AtomicLong[levels];
+    totalWaitNanos = new AtomicLong[levels];
+    maxWaitNanos = new AtomicLong[levels];
+    for (int i = 0; i < levels; i++) {
+      counts[i] = new AtomicLong();
+      totalWaitNanos[i] = new AtomicLong();
+      maxWaitNanos[i] = new AtomicLong();
+    }
+  }
+
+  void record(Priority.Level level, long waitNanos) {
+    int i = level.ordinal();
+    counts[i].incrementAndGet();
+    totalWaitNanos[i].addAndGet(waitNanos);
+    AtomicLong max = maxWaitNanos[i];
+    long current;
+    while (waitNanos > (current = max.get())) {
+      if (max.compareAndSet(current, waitNanos)) break;
+    }
+  }
+
+  /** Number of calls of {@code level} which have started. */
+  public long getCount(Priority.Level level) {
+    return counts[level.ordinal()].get();
+  }
+
+  /** Average time in milliseconds calls of {@code level} waited before starting. */
+  public double getAverageWaitMillis(Priority.Level level) {
+    long count = getCount(level);
+    if (count == 0) {
+      return 0;
+    }
+    double averageNanos = totalWaitNanos[level.ordinal()].get() / (double) count;
+    return averageNanos / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /** Longest time in milliseconds a call of {@code level} waited before starting. */
+  public long getMaxWaitMillis(Priority.Level level) {
+    return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos[level.ordinal()].get());
+  }
+}
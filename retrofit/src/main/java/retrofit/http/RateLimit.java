@@ -0,0 +1,22 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Limit the rate of requests made by a method to each server. This applies in addition to any
+ * limit set with {@link RestAdapter.Builder#setRateLimit(double, int)}.
+ */
+@Target({ METHOD })
+@Retention(RUNTIME)
+public @interface RateLimit {
+  /** Sustained number of requests allowed each second. */
+  double value();
+
+  /** Number of requests which may be made at once after a period of inactivity. */
+  int burst() default 1;
+}
@@ -0,0 +1,132 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * A token bucket holding up to {@code burst} permits which refills at {@code permitsPerSecond}.
+ * Reserving a permit from an empty bucket borrows against future refills, so the wait returned to
+ * each caller spaces their requests evenly. The server may also pause the bucket, for example with
+ * a {@code Retry-After} header.
+ */
+final class RateLimiter {
+  /** Reset values larger than this are epoch seconds rather than seconds from now. */
+  private static final long EPOCH_SECONDS_THRESHOLD = 1000000000L;
+
+  private final double permitsPerNano;
+  private final double burst;
+
+  private double permits;
+  private long updatedNanos;
+  private long pausedUntilNanos;
+
+  RateLimiter(double permitsPerSecond, int burst) {
+    this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+    this.burst = burst;
+    this.permits = burst;
+    this.updatedNanos = System.nanoTime();
+    this.pausedUntilNanos = updatedNanos;
+  }
+
+  /** Reserve a permit and return the nanoseconds to wait before using it. */
+  synchronized long reserve() {
+    long wait = peekWait();
+    permits -= 1;
+    return wait;
+  }
+
+  /** Returns the nanoseconds {@link #reserve()} would wait, without reserving a permit. */
+  synchronized long peekWait() {
+    long now = refill();
+    long wait = permits >= 1 ? 0 : (long) Math.ceil((1 - permits) / permitsPerNano);
+    return Math.max(wait, pausedUntilNanos - now);
+  }
+
+  /** Take a permit only if one may be used immediately. */
+  synchronized boolean tryAcquire() {
+    long now = refill();
+    if (permits < 1 || pausedUntilNanos - now > 0) {
+      return false;
+    }
+    permits -= 1;
+    return true;
+  }
+
+  /**
+   * Return a permit taken by {@link #tryAcquire()} or {@link #reserve()} which was not used. This
+   * also pays back the debt of a reservation made against future refills.
+   */
+  synchronized void refund() {
+    permits = Math.min(burst, permits + 1);
+  }
+
+  /** Allow no requests for {@code nanos}, and none beyond the bucket's rate after. */
+  synchronized void pause(long nanos) {
+    long now = refill();
+    pausedUntilNanos = Math.max(pausedUntilNanos, now + nanos);
+    permits = Math.min(permits, 0);
+  }
+
+  private long refill() {
+    long now = System.nanoTime();
+    permits = Math.min(burst, permits + (now - updatedNanos) * permitsPerNano);
+    updatedNanos = now;
+    return now;
+  }
+
+  /**
+   * Returns the nanoseconds for which a server asked that no further requests be made, or zero.
+   * Honors {@code Retry-After} on 429 and 503 responses, and a reset time sent along with zero
+   * remaining requests in {@code X-RateLimit-*} or {@code RateLimit-*} headers.
+   */
+  static long pauseNanos(int statusCode, Header[] headers) {
+    if (headers == null) {
+      return 0;
+    }
+    String retryAfter = null;
+    String remaining = null;
+    String reset = null;
+    for (Header header : headers) {
+      String name = header.getName();
+      if ("Retry-After".equalsIgnoreCase(name)) {
+        retryAfter = header.getValue();
+      } else if ("X-RateLimit-Remaining".equalsIgnoreCase(name)
+          || "RateLimit-Remaining".equalsIgnoreCase(name)) {
+        remaining = header.getValue();
+      } else if ("X-RateLimit-Reset".equalsIgnoreCase(name)
+          || "RateLimit-Reset".equalsIgnoreCase(name)) {
+        reset = header.getValue();
+      }
+    }
+
+    long pauseMillis = 0;
+    if (retryAfter != null && (statusCode == 429 || statusCode == 503)) {
+      pauseMillis = parseRetryAfter(retryAfter.trim());
+    } else if (remaining != null && reset != null && "0".equals(remaining.trim())) {
+      try {
+        long seconds = Long.parseLong(reset.trim());
+        pauseMillis = seconds > EPOCH_SECONDS_THRESHOLD
+            ? seconds * 1000 - System.currentTimeMillis()
+            : seconds * 1000;
+      } catch (NumberFormatException ignored) {
+      }
+    }
+    return TimeUnit.MILLISECONDS.toNanos(Math.max(0, pauseMillis));
+  }
+
+  private static long parseRetryAfter(String value) {
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+    } catch (NumberFormatException e) {
+      try {
+        Date date = DateUtils.parseDate(value);
+        return date.getTime() - System.currentTimeMillis();
+      } catch (DateParseException ignored) {
+        return 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link RateLimiter}s of a {@link RestAdapter}: one for each server when the adapter has a
+ * rate limit, and one for each {@link RateLimit} method on each server.
+ */
+final class RateLimits {
+  private final double permitsPerSecond;
+  private final int burst;
+  private final boolean failFast;
+  private final ConcurrentMap<String, RateLimiter> limiters =
+      new ConcurrentHashMap<String, RateLimiter>();
+
+  /** @param permitsPerSecond the adapter's rate limit for each server, or 0 for none. */
+  RateLimits(double permitsPerSecond, int burst, boolean failFast) {
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+    this.failFast = failFast;
+  }
+
+  /**
+   * Wait for a permit from each limiter guarding a synchronous call, or fail if the adapter is
+   * configured to fail fast.
+   */
+  void acquire(String apiUrl, MethodDetails methodDetails, RealCall call) {
+    List<RateLimiter> limiters = get(apiUrl, methodDetails);
+    if (limiters.isEmpty()) {
+      return;
+    }
+    if (failFast) {
+      for (int i = 0; i < limiters.size(); i++) {
+        if (!limiters.get(i).tryAcquire()) {
+          for (int j = 0; j < i; j++) {
+            limiters.get(j).refund();
+          }
+          throw RetrofitError.rateLimitedError(apiUrl);
+        }
+      }
+      return;
+    }
+    // Check the deadline before reserving so that a rejected call doesn't leave the bucket in debt.
+    long peekNanos = peekWait(limiters);
+    if (peekNanos > 0 && call.hasDeadline()
+        && TimeUnit.NANOSECONDS.toMillis(peekNanos) >= call.remainingMillis()) {
+      throw RetrofitError.deadlineExceededError(apiUrl);
+    }
+    long waitNanos = reserve(limiters);
+    if (waitNanos <= 0) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(waitNanos);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw RetrofitError.unexpectedError(apiUrl, e);
+    }
+  }
+
+  /**
+   * Reserve a permit from each limiter guarding an asynchronous call and return the longest wait
+   * in nanoseconds.
+   */
+  long reserve(String apiUrl, MethodDetails methodDetails) {
+    return reserve(get(apiUrl, methodDetails));
+  }
+
+  /** Returns the nanoseconds {@link #reserve} would wait, without reserving any permits. */
+  long peekWait(String apiUrl, MethodDetails methodDetails) {
+    return peekWait(get(apiUrl, methodDetails));
+  }
+
+  /** Return the permits reserved for a call which was canceled before it was sent. */
+  void refund(String apiUrl, MethodDetails methodDetails) {
+    for (RateLimiter limiter : get(apiUrl, methodDetails)) {
+      limiter.refund();
+    }
+  }
+
+  /** Stop handing out permits for calls to {@code methodDetails} for {@code pauseNanos}. */
+  void pause(String apiUrl, MethodDetails methodDetails, long pauseNanos) {
+    for (RateLimiter limiter : get(apiUrl, methodDetails)) {
+      limiter.pause(pauseNanos);
+    }
+  }
+
+  private static long reserve(List<RateLimiter> limiters) {
+    long waitNanos = 0;
+    for (RateLimiter limiter : limiters) {
+      waitNanos = Math.max(waitNanos, limiter.reserve());
+    }
+    return waitNanos;
+  }
+
+  private static long peekWait(List<RateLimiter> limiters) {
+    long waitNanos = 0;
+    for (RateLimiter limiter : limiters) {
+      waitNanos = Math.max(waitNanos, limiter.peekWait());
+    }
+    return waitNanos;
+  }
+
+  /** The rate limiters guarding calls to {@code methodDetails} on {@code apiUrl}. */
+  private List<RateLimiter> get(String apiUrl, MethodDetails methodDetails) {
+    if (permitsPerSecond == 0 && methodDetails.rateLimit == null) {
+      return Collections.emptyList();
+    }
+    List<RateLimiter> limiters = new ArrayList<RateLimiter>(2);
+    if (permitsPerSecond > 0) {
+      limiters.add(limiter(apiUrl, permitsPerSecond, burst));
+    }
+    if (methodDetails.rateLimit != null) {
+      limiters.add(limiter(methodDetails.key(apiUrl), methodDetails.rateLimit.value(),
+          methodDetails.rateLimit.burst()));
+    }
+    return limiters;
+  }
+
+  private RateLimiter limiter(String key, double permitsPerSecond, int burst) {
+    RateLimiter limiter = limiters.get(key);
+    if (limiter == null) {
+      limiter = new RateLimiter(permitsPerSecond, burst);
+      RateLimiter existing = limiters.putIfAbsent(key, limiter);
+      if (existing != null) {
+        limiter = existing;
+      }
+    }
+    return limiter;
+  }
+}
@@ -0,0 +1,149 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** State of a single invocation of an interface method, synchronous or asynchronous. */
+final class RealCall implements Call {
+  private final Object tag;
+  private final long startNanos;
+  private final long deadlineNanos;
+  private final AtomicBoolean canceled = new AtomicBoolean();
+
+  private volatile boolean deadlineExceeded;
+  private volatile Transport.Exchange request;
+  private volatile Transport.Exchange hedgeRequest;
+  private volatile SingleFlight.Waiter waiter;
+  private volatile PriorityScheduler scheduler;
+  private volatile PriorityScheduler.Task task;
+  private volatile Set<RealCall> activeCalls;
+
+  /**
+   * @param deadlineMillis budget for the entire call measured from now, or zero for no deadline.
+   */
+  RealCall(Object tag, long deadlineMillis) {
+    this.tag = tag;
+    this.startNanos = System.nanoTime();
+    this.deadlineNanos = deadlineMillis > 0
+        ? startNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMillis)
+        : 0;
+  }
+
+  Object tag() {
+    return tag;
+  }
+
+  /** The {@link System#nanoTime()} at which this call was created. */
+  long startNanos() {
+    return startNanos;
+  }
+
+  boolean hasDeadline() {
+    return deadlineNanos != 0;
+  }
+
+  /** Milliseconds remaining until the deadline. Only meaningful if {@link #hasDeadline()}. */
+  long remainingMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+  }
+
+  boolean isDeadlineExceeded() {
+    return deadlineExceeded;
+  }
+
+  /**
+   * Track this call in {@code activeCalls} until it is {@linkplain #finish() finished} or
+   * canceled, so that it may be canceled by tag.
+   */
+  void start(Set<RealCall> activeCalls) {
+    this.activeCalls = activeCalls;
+    activeCalls.add(this);
+    // Handle a cancel which raced with starting, and so couldn't remove the call.
+    if (canceled.get()) {
+      activeCalls.remove(this);
+    }
+  }
+
+  /** Stop tracking this call once its outcome has been returned or delivered. */
+  void finish() {
+    Set<RealCall> activeCalls = this.activeCalls;
+    if (activeCalls != null) {
+      activeCalls.remove(this);
+    }
+  }
+
+  /** Record the scheduler task which will perform this call so that it can be dequeued. */
+  void setQueued(PriorityScheduler scheduler, PriorityScheduler.Task task) {
+    this.task = task;
+    this.scheduler = scheduler;
+    // Handle a cancel which raced with scheduling, and so couldn't dequeue the task.
+    if (canceled.get()) {
+      scheduler.remove(task);
+    }
+  }
+
+  /** Record the request which is about to be executed so that it can be aborted. */
+  void setRequest(Transport.Exchange request) {
+    this.request = request;
+    // Handle a cancel or expiration which raced with building the request.
+    if (canceled.get() || deadlineExceeded) {
+      request.cancel();
+    }
+  }
+
+  /** Record a {@link Hedge hedge} request which runs alongside the original. */
+  void setHedgeRequest(Transport.Exchange request) {
+    this.hedgeRequest = request;
+    if (canceled.get() || deadlineExceeded) {
+      request.cancel();
+    }
+  }
+
+  /** Record that this call is waiting for an identical call so that it can stop waiting. */
+  void setWaiter(SingleFlight.Waiter waiter) {
+    this.waiter = waiter;
+    if (canceled.get() || deadlineExceeded) {
+      waiter.abort();
+    }
+  }
+
+  /** Abort the in-flight request because the deadline has passed. */
+  void expire() {
+    deadlineExceeded = true;
+    abortRequests();
+  }
+
+  @Override public void cancel() {
+    if (!canceled.compareAndSet(false, true)) {
+      return;
+    }
+    // A dequeued call never reaches delivery, so stop tracking it here.
+    finish();
+    PriorityScheduler scheduler = this.scheduler;
+    if (scheduler != null) {
+      scheduler.remove(task);
+    }
+    abortRequests();
+  }
+
+  private void abortRequests() {
+    Transport.Exchange request = this.request;
+    if (request != null) {
+      request.cancel();
+    }
+    Transport.Exchange hedgeRequest = this.hedgeRequest;
+    if (hedgeRequest != null) {
+      hedgeRequest.cancel();
+    }
+    SingleFlight.Waiter waiter = this.waiter;
+    if (waiter != null) {
+      waiter.abort();
+    }
+  }
+
+  @Override public boolean isCanceled() {
+    return canceled.get();
+  }
+}
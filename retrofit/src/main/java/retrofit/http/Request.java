@@ -0,0 +1,103 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import retrofit.io.TypedBytes;
+
+/** An HTTP request to be sent by a {@link Transport}. */
+public final class Request {
+  /** Value of a timeout which leaves it to the transport. */
+  public static final int DEFAULT_TIMEOUT = -1;
+
+  private final String method;
+  private final String url;
+  private final List<Header> headers;
+  private final TypedBytes body;
+  private final int connectTimeout;
+  private final int readTimeout;
+
+  /**
+   * @param headers request headers other than {@code Content-Type}, which is the mime type of
+   * {@code body}.
+   * @param body the request body, or null for none.
+   */
+  public Request(String method, String url, List<Header> headers, TypedBytes body) {
+    this(method, url, headers, body, DEFAULT_TIMEOUT, DEFAULT_TIMEOUT);
+  }
+
+  Request(String method, String url, List<Header> headers, TypedBytes body, int connectTimeout,
+      int readTimeout) {
+    if (method == null) throw new NullPointerException("method");
+    if (url == null) throw new NullPointerException("url");
+    if (headers == null) throw new NullPointerException("headers");
+    this.method = method;
+    this.url = url;
+    this.headers = Collections.unmodifiableList(new ArrayList<Header>(headers));
+    this.body = body;
+    this.connectTimeout = connectTimeout;
+    this.readTimeout = readTimeout;
+  }
+
+  public String getMethod() {
+    return method;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public List<Header> getHeaders() {
+    return headers;
+  }
+
+  /** The value of the first header named {@code name}, ignoring case, or null. */
+  public String getHeader(String name) {
+    for (Header header : headers) {
+      if (name.equalsIgnoreCase(header.getName())) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  /** The request body, or null if the request has none. */
+  public TypedBytes getBody() {
+    return body;
+  }
+
+  /** Milliseconds to wait for a connection, zero for no limit, or {@link #DEFAULT_TIMEOUT}. */
+  public int getConnectTimeout() {
+    return connectTimeout;
+  }
+
+  /** Milliseconds to wait for each read, zero for no limit, or {@link #DEFAULT_TIMEOUT}. */
+  public int getReadTimeout() {
+    return readTimeout;
+  }
+
+  Request withTimeouts(int connectTimeout, int readTimeout) {
+    return new Request(method, url, headers, body, connectTimeout, readTimeout);
+  }
+
+  Request withUrl(String url) {
+    return new Request(method, url, headers, body, connectTimeout, readTimeout);
+  }
+
+  /** A copy of this request with {@code name} set to {@code value}, replacing any others. */
+  Request withHeader(String name, String value) {
+    List<Header> headers = new ArrayList<Header>(this.headers.size() + 1);
+    for (Header header : this.headers) {
+      if (!name.equalsIgnoreCase(header.getName())) {
+        headers.add(header);
+      }
+    }
+    headers.add(new Header(name, value));
+    return new Request(method, url, headers, body, connectTimeout, readTimeout);
+  }
+
+  @Override public String toString() {
+    return method + " " + url;
+  }
+}
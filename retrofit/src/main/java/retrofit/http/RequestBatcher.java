@@ -0,0 +1,105 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects calls into batches which are passed to {@link #send(List)}. Calls are collected either
+ * explicitly, between {@link #begin()} and {@link Batch#send()} on a single thread, or implicitly
+ * when a window is configured: the first call starts the window and all calls which arrive before
+ * it closes, up to a maximum batch size, are sent together.
+ */
+abstract class RequestBatcher<T> {
+  private final ScheduledExecutorService scheduledExecutor;
+  private final long windowNanos;
+  private final int maxBatchSize;
+  private final ThreadLocal<Batch> scope = new ThreadLocal<Batch>();
+
+  // Guarded by this.
+  private List<T> pending;
+
+  /**
+   * @param windowNanos time to collect implicit batches for, or zero to only batch explicitly.
+   */
+  RequestBatcher(ScheduledExecutorService scheduledExecutor, long windowNanos, int maxBatchSize) {
+    this.scheduledExecutor = scheduledExecutor;
+    this.windowNanos = windowNanos;
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /** Begin an explicit batch on the current thread. */
+  Batch begin() {
+    if (scope.get() != null) {
+      throw new IllegalStateException("A batch is already in progress on this thread.");
+    }
+    Batch batch = new Batch(this, new ArrayList<T>());
+    scope.set(batch);
+    return batch;
+  }
+
+  @SuppressWarnings("unchecked")
+  void end(Batch batch) {
+    if (scope.get() != batch) {
+      throw new IllegalStateException("Batches must be sent on the thread which began them.");
+    }
+    scope.remove();
+    List<T> calls = (List<T>) batch.calls();
+    if (!calls.isEmpty()) {
+      send(calls);
+    }
+  }
+
+  /**
+   * Add {@code call} to the current batch. Returns false if no batch is being collected, in which
+   * case the caller should execute it immediately.
+   */
+  @SuppressWarnings("unchecked")
+  boolean offer(T call) {
+    Batch batch = scope.get();
+    if (batch != null) {
+      ((List<T>) batch.calls()).add(call);
+      return true;
+    }
+    if (windowNanos == 0) {
+      return false;
+    }
+
+    List<T> full = null;
+    synchronized (this) {
+      if (pending == null) {
+        pending = new ArrayList<T>();
+        final List<T> window = pending;
+        scheduledExecutor.schedule(new Runnable() {
+          @Override public void run() {
+            flush(window);
+          }
+        }, windowNanos, TimeUnit.NANOSECONDS);
+      }
+      pending.add(call);
+      if (pending.size() >= maxBatchSize) {
+        full = pending;
+        pending = null;
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    return true;
+  }
+
+  private void flush(List<T> window) {
+    synchronized (this) {
+      if (pending != window) {
+        return; // Already sent because it filled up.
+      }
+      pending = null;
+    }
+    send(window);
+  }
+
+  /** Send a non-empty batch of calls. Must not block. */
+  abstract void send(List<T> batch);
+}
@@ -0,0 +1,50 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** An HTTP response received by a {@link Transport}. */
+public final class Response {
+  private final int status;
+  private final String reason;
+  private final List<Header> headers;
+  private final byte[] body;
+
+  /** @param body the entire response body, or null if the response has none. */
+  public Response(int status, String reason, List<Header> headers, byte[] body) {
+    if (headers == null) throw new NullPointerException("headers");
+    this.status = status;
+    this.reason = reason;
+    this.headers = Collections.unmodifiableList(new ArrayList<Header>(headers));
+    this.body = body;
+  }
+
+  public int getStatus() {
+    return status;
+  }
+
+  public String getReason() {
+    return reason;
+  }
+
+  public List<Header> getHeaders() {
+    return headers;
+  }
+
+  /** The value of the first header named {@code name}, ignoring case, or null. */
+  public String getHeader(String name) {
+    for (Header header : headers) {
+      if (name.equalsIgnoreCase(header.getName())) {
+        return header.getValue();
+      }
+    }
+    return null;
+  }
+
+  /** The response body, or null if the response has none. */
+  public byte[] getBody() {
+    return body;
+  }
+}
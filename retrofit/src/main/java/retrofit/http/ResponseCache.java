@@ -0,0 +1,32 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+/**
+ * Stores responses to {@link GET} requests so that repeated calls can be answered without
+ * contacting the server. Responses are cached and served as their {@code Cache-Control},
+ * {@code Expires} and {@code Vary} headers allow. Implementations must be thread-safe.
+ *
+ * @see RestAdapter.Builder#setResponseCache(ResponseCache)
+ * @see MemoryResponseCache
+ * @see DiskResponseCache
+ */
+public interface ResponseCache {
+  /**
+   * Returns a cached response to {@code request} which is still fresh and was sent with the same
+   * values of the headers it varies by, or null if the request must go to the server.
+   */
+  Response get(Request request);
+
+  /**
+   * Offer the response received for {@code request}. It is stored if its headers allow, replacing
+   * any response cached for the same URL. A successful response to a request which may change the
+   * resource, like a {@link POST}, removes the response cached for its URL.
+   */
+  void put(Request request, Response response);
+
+  /** Remove every cached response. */
+  void evictAll();
+
+  /** Hits, misses and evictions since the cache was created. */
+  ResponseCacheStats getStats();
+}
@@ -0,0 +1,53 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Effectiveness of a {@link ResponseCache}. */
+public final class ResponseCacheStats {
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  ResponseCacheStats() {
+  }
+
+  void recordHit() {
+    hits.incrementAndGet();
+  }
+
+  void recordMiss() {
+    misses.incrementAndGet();
+  }
+
+  void recordEviction() {
+    evictions.incrementAndGet();
+  }
+
+  /** Number of requests answered from the cache. */
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  /** Number of cacheable requests which had to go to the server. */
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  /** Number of responses removed to keep the cache within its size. */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  /** Fraction of cacheable requests answered from the cache, or 0 if there have been none. */
+  public double getHitRatio() {
+    long hitCount = hits.get();
+    long total = hitCount + misses.get();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  @Override public String toString() {
+    return "ResponseCache{hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions="
+        + getEvictionCount() + "}";
+  }
+}
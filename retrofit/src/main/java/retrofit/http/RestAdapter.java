@@ -3,35 +3,35 @@ package retrofit.http;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Proxy;
-import java.lang.reflect.Type;
-import java.lang.reflect.WildcardType;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import javax.inject.Named;
 import javax.inject.Provider;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
-import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.util.EntityUtils;
 import retrofit.http.HttpProfiler.RequestInformation;
+import retrofit.io.MimeType;
+import retrofit.io.TypedByteArray;
+import retrofit.io.TypedBytes;
 
 import static retrofit.http.Utils.SynchronousExecutor;
 
@@ -46,25 +46,99 @@ public class RestAdapter {
   private static final int LOG_CHUNK_SIZE = 4000;
   static final String THREAD_PREFIX = "Retrofit-";
   static final String UTF_8 = "UTF-8";
+  static final String CONTENT_TYPE = "Content-Type";
 
   private final Server server;
-  private final Provider<HttpClient> httpClientProvider;
+  private final Transport transport;
   private final Executor httpExecutor;
   private final Executor callbackExecutor;
   private final Headers requestHeaders;
   private final Converter converter;
   private final HttpProfiler profiler;
+  private final ScheduledExecutorService scheduledExecutor;
+  private final long connectTimeout;
+  private final long readTimeout;
+  private final long deadline;
+  private final String deadlineHeader;
+  private final PriorityScheduler priorityScheduler;
+  private final SingleFlight singleFlight;
+  private final String batchPath;
+  private final RequestBatcher<BatchedCall> batcher;
+  private final BulkStats bulkStats = new BulkStats();
+  private final TokenBudget hedgeBudget;
+  private final HedgeStats hedgeStats = new HedgeStats();
+  private final RetryPolicy retryPolicy;
+  private final TokenBudget retryBudget;
+  private final CircuitBreaker.Policy circuitBreakerPolicy;
+  private final CircuitBreaker.Listener circuitBreakerListener;
+  private final ConcurrentMap<String, CircuitBreaker> circuitBreakers =
+      new ConcurrentHashMap<String, CircuitBreaker>();
+  private final RateLimits rateLimits;
+  private final ConcurrencyLimits concurrencyLimits;
+  private final Map<String, BulkheadStats> bulkheads;
+  private final ConnectionPool connectionPool;
+  private final CachePipeline cachePipeline;
+  private final AtomicLong firstResponseNanos = new AtomicLong(-1);
+  private final Set<RealCall> activeCalls =
+      Collections.newSetFromMap(new ConcurrentHashMap<RealCall, Boolean>());
 
-  private RestAdapter(Server server, Provider<HttpClient> httpClientProvider, Executor httpExecutor,
-      Executor callbackExecutor, Headers requestHeaders, Converter converter,
-      HttpProfiler profiler) {
-    this.server = server;
-    this.httpClientProvider = httpClientProvider;
-    this.httpExecutor = httpExecutor;
-    this.callbackExecutor = callbackExecutor;
-    this.requestHeaders = requestHeaders;
-    this.converter = converter;
-    this.profiler = profiler;
+  private RestAdapter(Builder builder) {
+    server = builder.server;
+    transport = builder.transport;
+    httpExecutor = builder.httpExecutor;
+    callbackExecutor = builder.callbackBatchNanos != 0
+        ? new CoalescingExecutor(builder.callbackExecutor, builder.callbackBatchNanos)
+        : builder.callbackExecutor;
+    requestHeaders = builder.headers;
+    converter = builder.converter;
+    profiler = builder.profiler;
+    scheduledExecutor = Platform.get().defaultScheduledExecutor();
+    singleFlight = new SingleFlight(scheduledExecutor);
+    connectTimeout = builder.connectTimeout;
+    readTimeout = builder.readTimeout;
+    deadline = builder.deadline;
+    deadlineHeader = builder.deadlineHeader;
+    priorityScheduler = new PriorityScheduler(httpExecutor, builder.maxConcurrentRequests,
+        builder.priorityAgingNanos);
+    batchPath = builder.batchPath;
+    if (batchPath != null) {
+      batcher = new RequestBatcher<BatchedCall>(scheduledExecutor, builder.batchWindowNanos,
+          builder.maxBatchSize) {
+        @Override void send(List<BatchedCall> batch) {
+          enqueueBatch(batch);
+        }
+      };
+    } else {
+      batcher = null;
+    }
+    hedgeBudget = new TokenBudget(builder.hedgeBudget, Builder.HEDGE_ALLOWANCE);
+    retryPolicy = builder.retryPolicy;
+    retryBudget = new TokenBudget(builder.retryBudget, Builder.RETRY_ALLOWANCE);
+    circuitBreakerPolicy = builder.circuitBreakerPolicy;
+    circuitBreakerListener = builder.circuitBreakerListener;
+    rateLimits =
+        new RateLimits(builder.rateLimit, builder.rateLimitBurst, builder.rateLimitFailFast);
+    bulkheads = new LinkedHashMap<String, BulkheadStats>();
+    for (Map.Entry<String, int[]> entry : builder.bulkheads.entrySet()) {
+      int[] limits = entry.getValue();
+      PriorityScheduler scheduler = new PriorityScheduler(httpExecutor, limits[0],
+          builder.priorityAgingNanos, limits[1]);
+      bulkheads.put(entry.getKey(), new BulkheadStats(entry.getKey(), limits[1], scheduler));
+    }
+    connectionPool = builder.connectionPool;
+    ConditionalCache conditionalCache = builder.conditionalCacheSize != 0
+        ? new ConditionalCache(builder.conditionalCacheSize)
+        : null;
+    cachePipeline = new CachePipeline(server, converter, requestHeaders, builder.responseCache,
+        conditionalCache, builder.conversionCache);
+    if (builder.initialConcurrencyLimit != 0) {
+      int max = builder.maxConcurrentRequests;
+      concurrencyLimits = new ConcurrencyLimits(priorityScheduler,
+          Math.min(builder.initialConcurrencyLimit, max), max);
+      priorityScheduler.setMaxConcurrency(concurrencyLimits.get(serverUrls()));
+    } else {
+      concurrencyLimits = null;
+    }
   }
 
   /**
@@ -95,6 +169,10 @@ public class RestAdapter {
    *     MyResult go(@Named("a") String a, @Named("b") int b);
    *   }
    * </pre>
+   * <p/>
+   * Asynchronous methods may declare a return type of {@link Call} in order to obtain a handle
+   * which can cancel the request. A parameter annotated with {@link Tag} allows canceling all calls
+   * which share a tag using {@link #cancel(Object)}.
    *
    * @param type to implement
    */
@@ -107,10 +185,183 @@ public class RestAdapter {
         new RestHandler(type));
   }
 
+  /**
+   * Cancel all outstanding calls, synchronous or asynchronous, whose {@link Tag} argument is equal
+   * to {@code tag}. Callbacks of canceled asynchronous calls will not be invoked and canceled
+   * synchronous calls will throw a {@link RetrofitError} for which
+   * {@link RetrofitError#isCanceled()} is true.
+   */
+  public void cancel(Object tag) {
+    if (tag == null) throw new NullPointerException("tag");
+    for (RealCall call : activeCalls) {
+      if (tag.equals(call.tag())) {
+        call.cancel();
+      }
+    }
+  }
+
+  /** Number of calls which have started and have neither completed nor been canceled. */
+  int activeCallCount() {
+    return activeCalls.size();
+  }
+
+  /**
+   * Number of asynchronous calls which may currently run at once. This only changes if
+   * {@link Builder#setAdaptiveConcurrency(int)} was called.
+   */
+  public int getConcurrencyLimit() {
+    return concurrencyLimits != null
+        ? concurrencyLimits.get(serverUrls())
+        : priorityScheduler.maxConcurrency();
+  }
+
+  /** The url of the current server, or of each endpoint of a {@link LoadBalancedServer}. */
+  private List<String> serverUrls() {
+    if (!(server instanceof LoadBalancedServer)) {
+      return Collections.singletonList(server.apiUrl());
+    }
+    List<String> urls = new ArrayList<String>();
+    for (Endpoint endpoint : ((LoadBalancedServer) server).getEndpoints()) {
+      urls.add(endpoint.url());
+    }
+    return urls;
+  }
+
+  /** The url of the server or endpoint which {@code request} is sent to. */
+  private String endpointUrl(Request request) {
+    if (server instanceof LoadBalancedServer) {
+      String url = request.getUrl();
+      for (Endpoint endpoint : ((LoadBalancedServer) server).getEndpoints()) {
+        if (url.startsWith(endpoint.url())) {
+          return endpoint.url();
+        }
+      }
+    }
+    return server.apiUrl();
+  }
+
+  /**
+   * The pool of connections used by this adapter's client, or null if the client was set with
+   * {@link Builder#setClient} or {@link Builder#setTransport}, or is provided by the platform.
+   */
+  public ConnectionPool getConnectionPool() {
+    return connectionPool;
+  }
+
+  /**
+   * Open {@code connections} connections to the current {@link Server#apiUrl() server}, or to each
+   * endpoint of a {@link LoadBalancedServer}, ahead of the first requests and keep them open until
+   * the pool is shut down. This blocks while the connections are opened. Does nothing if this
+   * adapter has no {@link #getConnectionPool() pool}.
+   *
+   * @return the number of connections which were newly opened.
+   * @throws RetrofitError if a connection could not be opened.
+   */
+  public int prewarm(int connections) {
+    if (connectionPool == null) {
+      return 0;
+    }
+    int opened = 0;
+    for (String url : serverUrls()) {
+      try {
+        opened += connectionPool.prewarm(url, connections);
+      } catch (IOException e) {
+        throw RetrofitError.networkError(url, e);
+      }
+    }
+    return opened;
+  }
+
+  /**
+   * Time between sending the first request made by this adapter and having read its entire
+   * response, or -1 if no response has been received yet. This includes the download of the
+   * response body, which {@link Transport.Exchange#execute()} reads in full. Compare with an
+   * adapter built with {@link Builder#setPrewarmConnections(int)} to see what warming up saves.
+   */
+  public long getFirstResponseTime(TimeUnit unit) {
+    long nanos = firstResponseNanos.get();
+    return nanos < 0 ? -1 : unit.convert(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  private void prewarmInBackground(final int connections) {
+    httpExecutor.execute(new Runnable() {
+      @Override public void run() {
+        try {
+          prewarm(connections);
+        } catch (RetrofitError e) {
+          LOGGER.log(Level.FINE, "Unable to warm connections to " + server.apiUrl(), e);
+        }
+      }
+    });
+  }
+
+  /** Saturation of the {@link Bulkhead} named {@code name}. */
+  public BulkheadStats getBulkheadStats(String name) {
+    if (name == null) throw new NullPointerException("name");
+    BulkheadStats stats = bulkheads.get(name);
+    if (stats == null) {
+      throw new IllegalArgumentException("No bulkhead named " + name);
+    }
+    return stats;
+  }
+
+  /** Time asynchronous calls from this adapter have spent waiting to start. */
+  public QueueStats getQueueStats() {
+    return priorityScheduler.stats();
+  }
+
+  /**
+   * Number of calls to {@link Coalesce} methods which shared the result of an identical in-flight
+   * call rather than making their own HTTP request.
+   */
+  public long getCoalescedCallCount() {
+    return singleFlight.coalescedCount();
+  }
+
+  /**
+   * Number of {@code 304 Not Modified} responses answered with a previously converted result.
+   * Always zero unless {@link Builder#setConditionalCacheSize} was called.
+   */
+  public long getNotModifiedCount() {
+    return cachePipeline.notModifiedCount();
+  }
+
+  /**
+   * Collect asynchronous calls made on the current thread until {@link Batch#send()} is called and
+   * then send them to the server in a single request. Requires
+   * {@link Builder#setBatchEndpoint(String)}.
+   */
+  public Batch beginBatch() {
+    if (batcher == null) {
+      throw new IllegalStateException("Batching requires calling setBatchEndpoint.");
+    }
+    return batcher.begin();
+  }
+
+  /** Sizes and latencies of the requests made for {@link Bulk} methods. */
+  public BulkStats getBulkStats() {
+    return bulkStats;
+  }
+
+  /**
+   * The circuit breakers created so far, one for each server URL and method which has been called.
+   * Empty unless {@link Builder#setCircuitBreaker} was called.
+   */
+  public Collection<CircuitBreaker> getCircuitBreakers() {
+    return Collections.unmodifiableCollection(circuitBreakers.values());
+  }
+
+  /** Hedge requests sent for {@link Hedge} methods and which attempts won. */
+  public HedgeStats getHedgeStats() {
+    return hedgeStats;
+  }
+
   private class RestHandler implements InvocationHandler {
     private final Class<?> declaringType;
     private final Map<Method, MethodDetails> methodDetailsCache =
         new LinkedHashMap<Method, MethodDetails>();
+    private final Map<Method, RequestBatcher<BulkLoad>> bulkLoaders =
+        new LinkedHashMap<Method, RequestBatcher<BulkLoad>>();
 
     RestHandler(Class<?> declaringType) {
       this.declaringType = declaringType;
@@ -124,295 +375,1069 @@ public class RestAdapter {
         return method.invoke(this, args);
       }
 
-      // Load or create the details cache for the current method.
-      final MethodDetails methodDetails;
-      synchronized (methodDetailsCache) {
-        MethodDetails tempMethodDetails = methodDetailsCache.get(method);
-        if (tempMethodDetails == null) {
-          tempMethodDetails = new MethodDetails(method);
-          methodDetailsCache.put(method, tempMethodDetails);
-        }
-        methodDetails = tempMethodDetails;
+      final MethodDetails methodDetails = getMethodDetails(method);
+
+      Object tag = null;
+      if (methodDetails.tagArgumentIndex != -1) {
+        tag = args[methodDetails.tagArgumentIndex];
+      }
+      final RealCall call = new RealCall(tag, budget(methodDetails.deadline, deadline));
+
+      if (methodDetails.bulk != null) {
+        return invokeBulk(methodDetails, args, call);
       }
 
       if (methodDetails.isSynchronous) {
-        return invokeRequest(methodDetails, args);
+        call.start(activeCalls);
+        try {
+          return invokeWithRetries(methodDetails, args, call);
+        } finally {
+          call.finish();
+        }
       }
 
       if (httpExecutor == null || callbackExecutor == null) {
         throw new IllegalStateException("Asynchronous invocation requires calling setExecutors.");
       }
       Callback<?> callback = (Callback<?>) args[args.length - 1];
-      httpExecutor.execute(new CallbackRunnable(callback, callbackExecutor) {
-        @Override public Object obtainResponse() {
-          return invokeRequest(methodDetails, args);
-        }
-      });
-      return null; // Asynchronous methods should have return type of void.
+      call.start(activeCalls);
+      BatchedCall batched = new BatchedCall(methodDetails, args, call, callback,
+          priority(methodDetails, args));
+      Object cached;
+      try {
+        cached = cachePipeline.cachedResult(methodDetails, args);
+      } catch (RetrofitError e) {
+        deliver(batched, null, e);
+        return call;
+      }
+      if (cached != CachePipeline.NOT_CACHED) {
+        deliver(batched, cached, null);
+        return call;
+      }
+      if (batcher == null || !batcher.offer(batched)) {
+        enqueue(batched);
+      }
+      return call; // Ignored by the proxy for asynchronous methods with a return type of void.
     }
 
-    /**
-     * Execute an HTTP request.
-     *
-     * @return HTTP response object of specified {@code type}.
-     * @throws RetrofitError Thrown if any error occurs during the HTTP request.
-     */
-    private Object invokeRequest(MethodDetails methodDetails, Object[] args) {
-      long start = System.nanoTime();
-
+    /** Load or create the details cache for {@code method}. */
+    private MethodDetails getMethodDetails(Method method) {
+      MethodDetails methodDetails;
+      synchronized (methodDetailsCache) {
+        methodDetails = methodDetailsCache.get(method);
+        if (methodDetails == null) {
+          methodDetails = new MethodDetails(method);
+          methodDetailsCache.put(method, methodDetails);
+        }
+      }
       methodDetails.init(); // Ensure all relevant method information has been loaded.
+      if (methodDetails.bulkhead != null && !bulkheads.containsKey(methodDetails.bulkhead)) {
+        throw new IllegalStateException(
+            "No bulkhead named " + methodDetails.bulkhead + " for " + method);
+      }
+      return methodDetails;
+    }
 
-      String url = server.apiUrl();
+    /** Add a call to a {@link Bulk} method to the next bulk request. */
+    private Object invokeBulk(MethodDetails methodDetails, Object[] args, RealCall call) {
+      if (!methodDetails.isSynchronous && (httpExecutor == null || callbackExecutor == null)) {
+        throw new IllegalStateException("Asynchronous invocation requires calling setExecutors.");
+      }
+      RequestBatcher<BulkLoad> loader = getBulkLoader(methodDetails);
+      String key = String.valueOf(args[methodDetails.bulkKeyArgumentIndex]);
+      Callback<?> callback =
+          methodDetails.isSynchronous ? null : (Callback<?>) args[args.length - 1];
+      BulkLoad load = new BulkLoad(key, call, callback);
+
+      call.start(activeCalls);
+      loader.offer(load);
+      if (callback != null) {
+        return call;
+      }
       try {
-        // Build the request and headers.
-        final HttpUriRequest request = new HttpRequestBuilder(converter) //
-            .setMethod(methodDetails)
-            .setArgs(args)
-            .setApiUrl(url)
-            .setHeaders(requestHeaders)
-            .build();
-        url = request.getURI().toString();
-
-        if (!methodDetails.isSynchronous) {
-          // If we are executing asynchronously then update the current thread with a useful name.
-          Thread.currentThread().setName(THREAD_PREFIX + url);
+        return load.await(server.apiUrl() + methodDetails.path);
+      } finally {
+        call.finish();
+      }
+    }
+
+    private RequestBatcher<BulkLoad> getBulkLoader(final MethodDetails methodDetails) {
+      synchronized (bulkLoaders) {
+        RequestBatcher<BulkLoad> loader = bulkLoaders.get(methodDetails.method);
+        if (loader == null) {
+          final MethodDetails bulkDetails = getBulkMethodDetails(methodDetails);
+          final Bulk bulk = methodDetails.bulk;
+          long windowNanos = TimeUnit.MILLISECONDS.toNanos(bulk.window());
+          loader = new RequestBatcher<BulkLoad>(scheduledExecutor, windowNanos, bulk.maxSize()) {
+            @Override void send(List<BulkLoad> batch) {
+              sendBulk(bulkDetails, bulk, batch, methodDetails.priority);
+            }
+          };
+          bulkLoaders.put(methodDetails.method, loader);
         }
+        return loader;
+      }
+    }
 
-        Object profilerObject = null;
-        if (profiler != null) {
-          profilerObject = profiler.beforeCall();
+    private MethodDetails getBulkMethodDetails(MethodDetails methodDetails) {
+      String name = methodDetails.bulk.method();
+      for (Method candidate : declaringType.getDeclaredMethods()) {
+        if (!candidate.getName().equals(name)) continue;
+        MethodDetails bulkDetails = getMethodDetails(candidate);
+        if (!bulkDetails.isSynchronous || bulkDetails.pathNamedParams.length != 1
+            || bulkDetails.pathNamedParams[0] == null) {
+          throw new IllegalStateException("Bulk method " + name
+              + " must be synchronous and take a single @Named argument: " + methodDetails.method);
         }
+        return bulkDetails;
+      }
+      throw new IllegalStateException(
+          "Bulk method " + name + " not found for " + methodDetails.method);
+    }
+  }
 
-        LOGGER.fine("Sending " + request.getMethod() + " to " + url);
-        HttpResponse response = httpClientProvider.get().execute(request);
-        StatusLine statusLine = response.getStatusLine();
-        int statusCode = statusLine.getStatusCode();
+  /** Schedule a bulk request on the HTTP executor once the rate limits of the bulk method allow. */
+  private void sendBulk(final MethodDetails bulkDetails, final Bulk bulk,
+      final List<BulkLoad> batch, final Priority.Level priority) {
+    final Runnable submit = new Runnable() {
+      @Override public void run() {
+        priorityScheduler.execute(new Runnable() {
+          @Override public void run() {
+            executeBulk(bulkDetails, bulk, batch);
+          }
+        }, priority);
+      }
+    };
+    long waitNanos = rateLimits.reserve(server.apiUrl(), bulkDetails);
+    if (waitNanos <= 0) {
+      submit.run();
+    } else {
+      scheduledExecutor.schedule(submit, waitNanos, TimeUnit.NANOSECONDS);
+    }
+  }
 
-        long elapsedTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
-        if (profiler != null) {
-          RequestInformation requestInfo = getRequestInfo(server, methodDetails, request);
-          profiler.afterCall(requestInfo, elapsedTime, statusCode, profilerObject);
-        }
+  /**
+   * Request the distinct keys of {@code batch} from a bulk method and deliver the matching element
+   * of the response to each call. The request runs as a call of its own, within the latest of the
+   * loads' deadlines, which {@link #cancel(Object)} aborts if every load shares the tag.
+   */
+  private void executeBulk(MethodDetails bulkDetails, Bulk bulk, List<BulkLoad> batch) {
+    Set<String> keys = new LinkedHashSet<String>();
+    for (BulkLoad load : batch) {
+      if (!load.call.isCanceled()) {
+        keys.add(load.key);
+      }
+    }
+    StringBuilder joined = new StringBuilder();
+    for (String key : keys) {
+      if (joined.length() > 0) joined.append(bulk.separator());
+      joined.append(key);
+    }
 
-        HttpEntity entity = response.getEntity();
-        byte[] body = null;
-        if (entity != null) {
-          body = EntityUtils.toByteArray(entity);
-        }
-        if (LOGGER.isLoggable(Level.FINE)) {
-          logResponseBody(url, body, statusCode, elapsedTime);
+    Map<String, Object> index = null;
+    RetrofitError error = null;
+    if (keys.isEmpty()) {
+      error = RetrofitError.canceledError(server.apiUrl() + bulkDetails.path);
+    } else {
+      long start = System.nanoTime();
+      try {
+        Object[] bulkArgs = new Object[] { joined.toString() };
+        Object response = cachePipeline.cachedResult(bulkDetails, bulkArgs);
+        if (response == CachePipeline.NOT_CACHED) {
+          RealCall call = bulkCall(batch);
+          call.start(activeCalls);
+          try {
+            response = invokeRequest(bulkDetails, bulkArgs, call, null);
+          } finally {
+            call.finish();
+          }
         }
+        index = BulkLoad.index(response, bulk.key());
+      } catch (RetrofitError e) {
+        error = e;
+      } catch (Exception e) {
+        error = RetrofitError.unexpectedError(server.apiUrl() + bulkDetails.path, e);
+      }
+      bulkStats.record(keys.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
 
-        org.apache.http.Header[] realHeaders = response.getAllHeaders();
-        Header[] headers = null;
-        if (realHeaders != null) {
-          headers = new Header[realHeaders.length];
-          for (int i = 0; i < realHeaders.length; i++) {
-            org.apache.http.Header realHeader = realHeaders[i];
-            String headerName = realHeader.getName();
-            String headerValue = realHeader.getValue();
-
-            if (HTTP.CONTENT_TYPE.equalsIgnoreCase(headerName) //
-                && !UTF_8.equalsIgnoreCase(Utils.parseCharset(headerValue))) {
-              throw new IOException("Only UTF-8 charset supported.");
-            }
+    for (BulkLoad load : batch) {
+      Object result = index != null ? index.get(load.key) : null;
+      if (load.callback != null) {
+        load.call.finish();
+        deliver(load.callback, load.call, result, error);
+      } else {
+        load.complete(result, error);
+      }
+    }
+  }
+
+  /**
+   * The call of a bulk request: tagged if all of its loads share a tag, and bound by the latest of
+   * their deadlines.
+   */
+  private static RealCall bulkCall(List<BulkLoad> batch) {
+    Object tag = batch.get(0).call.tag();
+    long deadlineMillis = 0;
+    boolean unbounded = false;
+    for (BulkLoad load : batch) {
+      if (tag != null && !tag.equals(load.call.tag())) {
+        tag = null;
+      }
+      if (load.call.hasDeadline()) {
+        deadlineMillis = Math.max(deadlineMillis, load.call.remainingMillis());
+      } else {
+        unbounded = true;
+      }
+    }
+    return new RealCall(tag, unbounded ? 0 : Math.max(1, deadlineMillis));
+  }
+
+  /**
+   * Execute an HTTP request.
+   *
+   * @param batched the asynchronous call being executed, or null for a synchronous call. An
+   * asynchronous call to a {@link Coalesce} method which joins an identical call in flight frees
+   * its thread and returns {@link SingleFlight#JOINED}; its outcome is delivered on completion.
+   * @return HTTP response object of specified {@code type}.
+   * @throws RetrofitError Thrown if any error occurs during the HTTP request.
+   */
+  private Object invokeRequest(final MethodDetails methodDetails, final Object[] args,
+      final RealCall call, final BatchedCall batched) {
+    final long start = System.nanoTime();
+
+    String url = server.apiUrl();
+    try {
+      if (call.isCanceled()) {
+        throw RetrofitError.canceledError(url);
+      }
+      if (call.hasDeadline() && call.remainingMillis() <= 0) {
+        throw RetrofitError.deadlineExceededError(url); // Expired while queued.
+      }
+
+      final Transport.Exchange exchange = buildRequest(methodDetails, args, call);
+      url = exchange.request().getUrl();
+      call.setRequest(exchange);
+
+      if (!methodDetails.isSynchronous) {
+        // If we are executing asynchronously then update the current thread with a useful name.
+        Thread.currentThread().setName(THREAD_PREFIX + url);
+      }
 
-            headers[i] = new Header(headerName, headerValue);
+      if (methodDetails.coalesce) {
+        String key = coalescingKey(methodDetails, exchange.request());
+        Callable<Object> work = new Callable<Object>() {
+          @Override public Object call() throws InterruptedException {
+            return sendRequest(methodDetails, args, call, exchange, start);
           }
+        };
+        if (batched == null) {
+          return singleFlight.execute(key, call, url, work);
         }
+        return singleFlight.execute(key, new SingleFlight.Waiter(call, url) {
+          @Override void complete(Object result, RetrofitError error) {
+            if (error != null) {
+              retryOrDeliver(batched, error);
+            } else {
+              deliver(batched, result, null);
+            }
+          }
 
-        Type type = methodDetails.type;
-        if (statusCode >= 200 && statusCode < 300) { // 2XX == successful request
-          try {
-            return converter.to(body, type);
-          } catch (ConversionException e) {
-            throw RetrofitError.conversionError(url, converter, statusCode, headers, body, type, e);
+          @Override void runAlone() {
+            submit(batched);
           }
-        }
-        throw RetrofitError.httpError(url, converter, statusCode, headers, body, type);
-      } catch (RetrofitError e) {
-        throw e; // Pass through our own errors.
-      } catch (IOException e) {
-        throw RetrofitError.networkError(url, e);
-      } catch (Throwable t) {
-        throw RetrofitError.unexpectedError(url, t);
+        }, work);
       }
+      return sendRequest(methodDetails, args, call, exchange, start);
+    } catch (RetrofitError e) {
+      throw e; // Pass through our own errors.
+    } catch (Throwable t) {
+      throw RetrofitError.unexpectedError(url, t);
     }
   }
 
-  /** Cached details about an interface method. */
-  static class MethodDetails {
-    private static final Pattern PATH_PARAMETERS = Pattern.compile("\\{([a-z_-]*)\\}");
+  /** Build the request for a call to {@code methodDetails} and apply its time budgets. */
+  private Transport.Exchange buildRequest(MethodDetails methodDetails, Object[] args,
+      RealCall call) throws URISyntaxException {
+    Endpoint endpoint = null;
+    String apiUrl = server.apiUrl();
+    if (server instanceof LoadBalancedServer) {
+      LoadBalancedServer loadBalancedServer = (LoadBalancedServer) server;
+      endpoint = methodDetails.routeKeyArgumentIndex != -1
+          ? loadBalancedServer.select(String.valueOf(args[methodDetails.routeKeyArgumentIndex]))
+          : loadBalancedServer.select();
+      apiUrl = endpoint.url();
+    }
+    Request request = new HttpRequestBuilder(converter) //
+        .setMethod(methodDetails)
+        .setArgs(args)
+        .setApiUrl(apiUrl)
+        .setHeaders(requestHeaders)
+        .build();
+    request = applyTimeouts(methodDetails, call, request);
+    request = cachePipeline.addValidators(methodDetails, request);
+    Transport.Exchange exchange = transport.newExchange(request);
+    return endpoint != null ? endpoint.track(exchange) : exchange;
+  }
 
-    final Method method;
-    final boolean isSynchronous;
+  /**
+   * Send {@code request} unless the circuit breaker for its server and method is open.
+   *
+   * @throws RetrofitError Thrown if the circuit is open or any error occurs during the request.
+   */
+  private Object sendRequest(MethodDetails methodDetails, Object[] args, RealCall call,
+      Transport.Exchange exchange, long start) throws InterruptedException {
+    CircuitBreaker breaker = circuitBreaker(methodDetails);
+    int permit = CircuitBreaker.PERMITTED;
+    if (breaker != null) {
+      permit = breaker.tryAcquire();
+      if (permit == CircuitBreaker.REJECTED) {
+        throw RetrofitError.circuitOpenError(exchange.request().getUrl());
+      }
+    }
+    String endpointUrl = endpointUrl(exchange.request());
+    int inFlight = concurrencyLimits != null ? concurrencyLimits.start(endpointUrl) : 0;
+    long sent = System.nanoTime();
+    boolean completed = false;
+    boolean failed = false;
+    try {
+      Object result = hedgeRequest(methodDetails, args, call, exchange, start);
+      completed = true;
+      return result;
+    } catch (RetrofitError e) {
+      // A cancel says nothing about the server's health.
+      completed = !e.isCanceled();
+      failed = e.isServerFailure();
+      throw e;
+    } finally {
+      if (concurrencyLimits != null) {
+        concurrencyLimits.finish(endpointUrl);
+      }
+      long elapsed = System.nanoTime() - sent;
+      if (breaker != null) {
+        if (completed) {
+          breaker.record(permit, failed, elapsed);
+        } else {
+          breaker.release(permit);
+        }
+      }
+      if (completed) {
+        recordSample(endpointUrl, elapsed, failed, inFlight);
+      }
+    }
+  }
 
-    private boolean loaded = false;
+  /** Adjust the adaptive concurrency limit of {@code url}, if any, for a completed request. */
+  private void recordSample(String url, long elapsedNanos, boolean failed, int inFlight) {
+    if (concurrencyLimits != null) {
+      concurrencyLimits.onSample(url, elapsedNanos, failed, inFlight, serverUrls());
+    }
+  }
 
-    Type type;
-    HttpMethodType httpMethod;
-    String path;
-    Set<String> pathParams;
-    QueryParam[] pathQueryParams;
-    String[] pathNamedParams;
-    int singleEntityArgumentIndex = -1;
+  /** The scheduler of calls to {@code methodDetails}: that of its {@link Bulkhead}, if any. */
+  private PriorityScheduler scheduler(MethodDetails methodDetails) {
+    return methodDetails.bulkhead != null
+        ? bulkheads.get(methodDetails.bulkhead).scheduler()
+        : priorityScheduler;
+  }
 
-    MethodDetails(Method method) {
-      this.method = method;
-      isSynchronous = parseResponseType();
+  /** The priority of a call: its {@link Priority} argument if given, otherwise the method's. */
+  private static Priority.Level priority(MethodDetails methodDetails, Object[] args) {
+    if (methodDetails.priorityArgumentIndex != -1
+        && args[methodDetails.priorityArgumentIndex] != null) {
+      return (Priority.Level) args[methodDetails.priorityArgumentIndex];
     }
+    return methodDetails.priority;
+  }
 
-    synchronized void init() {
-      if (loaded) return;
-
-      parseMethodAnnotations();
-      parseParameterAnnotations();
+  /** Returns the circuit breaker for calls to the current server, or null if disabled. */
+  private CircuitBreaker circuitBreaker(MethodDetails methodDetails) {
+    if (circuitBreakerPolicy == null) {
+      return null;
+    }
+    String name = methodDetails.key(server.apiUrl());
+    CircuitBreaker breaker = circuitBreakers.get(name);
+    if (breaker == null) {
+      breaker = new CircuitBreaker(name, circuitBreakerPolicy, circuitBreakerListener);
+      CircuitBreaker existing = circuitBreakers.putIfAbsent(name, breaker);
+      if (existing != null) {
+        breaker = existing;
+      }
+    }
+    return breaker;
+  }
 
-      loaded = true;
+  /** Send {@code request}, hedging it if the method is annotated with {@link Hedge}. */
+  private Object hedgeRequest(MethodDetails methodDetails, Object[] args, RealCall call,
+      Transport.Exchange exchange, long start) throws InterruptedException {
+    if (methodDetails.hedge == null) {
+      return executeRequest(methodDetails, call, exchange, start);
+    }
+    hedgeBudget.deposit();
+    long delayMillis = methodDetails.hedge.delay();
+    if (delayMillis == Hedge.OBSERVED) {
+      long p95 = methodDetails.latencies.percentile(0.95);
+      delayMillis = p95 != -1 ? TimeUnit.NANOSECONDS.toMillis(p95) : -1;
     }
 
-    /** Loads {@link #httpMethod}, {@link #path}, and {@link #pathQueryParams}. */
-    private void parseMethodAnnotations() {
-      for (Annotation annotation : method.getAnnotations()) {
-        Class<? extends Annotation> annotationType = annotation.annotationType();
+    HedgedCall hedged = new HedgedCall(exchange);
+    ScheduledFuture<?> hedge = null;
+    if (delayMillis >= 0 && (!call.hasDeadline() || delayMillis < call.remainingMillis())) {
+      hedge = scheduledExecutor.schedule(
+          newHedge(hedged, methodDetails, args, call, start), delayMillis, TimeUnit.MILLISECONDS);
+    }
+    try {
+      Object result = executeRequest(methodDetails, call, exchange, start);
+      if (hedged.succeed(HedgedCall.PRIMARY, result)) {
+        methodDetails.latencies.record(System.nanoTime() - start);
+      }
+    } catch (RetrofitError e) {
+      hedged.fail(HedgedCall.PRIMARY, e);
+    } finally {
+      if (hedge != null) {
+        hedge.cancel(false);
+      }
+      // A hedge still waiting for a slot may wait behind this call's own, so don't wait for it.
+      hedged.dequeueHedge(RetrofitError.canceledError(server.apiUrl()));
+    }
+    Object result = hedged.await();
+    if (hedged.isHedged()) {
+      hedgeStats.recordWin(hedged.winner() == HedgedCall.HEDGE);
+    }
+    return result;
+  }
 
-        // Look for an HttpMethod annotation describing the request type.
-        if (annotationType == GET.class
-            || annotationType == POST.class
-            || annotationType == PUT.class
-            || annotationType == DELETE.class) {
-          if (this.httpMethod != null) {
-            throw new IllegalStateException(
-                "Method annotated with multiple HTTP method annotations: " + method);
-          }
-          this.httpMethod = annotationType.getAnnotation(HttpMethod.class).value();
-          try {
-            path = (String) annotationType.getMethod("value").invoke(annotation);
-          } catch (Exception e) {
-            throw new IllegalStateException("Failed to extract URI path.", e);
+  /**
+   * Returns a task which sends a hedge of the call. The hedge waits for a slot on the call's
+   * scheduler, at the call's priority, so that hedges count against the adapter's concurrency
+   * limit and the method's {@link Bulkhead}.
+   */
+  private Runnable newHedge(final HedgedCall hedged, final MethodDetails methodDetails,
+      final Object[] args, final RealCall call, final long start) {
+    return new Runnable() {
+      @Override public void run() {
+        if (hedged.isDone() || call.isCanceled()) {
+          return;
+        }
+        if (!hedgeBudget.tryWithdraw()) {
+          hedgeStats.recordDenied();
+          return;
+        }
+        if (!hedged.startHedge()) {
+          return;
+        }
+        PriorityScheduler scheduler = scheduler(methodDetails);
+        PriorityScheduler.Task task = scheduler.execute(new Runnable() {
+          @Override public void run() {
+            if (hedged.isDone() || call.isCanceled()) {
+              hedged.fail(HedgedCall.HEDGE, RetrofitError.canceledError(server.apiUrl()));
+              return;
+            }
+            try {
+              Transport.Exchange exchange = buildRequest(methodDetails, args, call);
+              hedged.setHedgeRequest(exchange);
+              call.setHedgeRequest(exchange);
+              hedgeStats.recordHedge();
+              Object result = executeRequest(methodDetails, call, exchange, start);
+              if (hedged.succeed(HedgedCall.HEDGE, result)) {
+                methodDetails.latencies.record(System.nanoTime() - start);
+              }
+            } catch (RetrofitError e) {
+              hedged.fail(HedgedCall.HEDGE, e);
+            } catch (Throwable t) {
+              hedged.fail(HedgedCall.HEDGE,
+                  RetrofitError.unexpectedError(server.apiUrl(), t));
+            }
           }
+        }, priority(methodDetails, args));
+        if (task == null) {
+          hedged.fail(HedgedCall.HEDGE, RetrofitError.bulkheadFullError(server.apiUrl()));
+        } else if (!hedged.setHedgeTask(scheduler, task)) {
+          hedged.dequeueHedge(RetrofitError.canceledError(server.apiUrl()));
+        }
+      }
+    };
+  }
 
-          pathParams = parsePathParameters(path);
-        } else if (annotationType == QueryParams.class) {
-          if (this.pathQueryParams != null) {
-            throw new IllegalStateException(
-                "QueryParam and QueryParams annotations are mutually exclusive.");
-          }
-          this.pathQueryParams = ((QueryParams) annotation).value();
-        } else if (annotationType == QueryParam.class) {
-          if (this.pathQueryParams != null) {
-            throw new IllegalStateException(
-                "QueryParam and QueryParams annotations are mutually exclusive.");
-          }
-          this.pathQueryParams = new QueryParam[] { (QueryParam) annotation };
+  /**
+   * Send a built request and convert its response.
+   *
+   * @return HTTP response object of specified {@code type}.
+   * @throws RetrofitError Thrown if any error occurs during the HTTP request.
+   */
+  private Object executeRequest(MethodDetails methodDetails, final RealCall call,
+      Transport.Exchange exchange, long start) {
+    Request request = exchange.request();
+    String url = request.getUrl();
+    try {
+      Object profilerObject = null;
+      if (profiler != null) {
+        profilerObject = profiler.beforeCall();
+      }
+
+      ScheduledFuture<?> expiration = scheduleExpiration(call);
+
+      LOGGER.fine("Sending " + request.getMethod() + " to " + url);
+      Response response;
+      try {
+        long sent = System.nanoTime();
+        response = exchange.execute();
+        firstResponseNanos.compareAndSet(-1, System.nanoTime() - sent);
+      } finally {
+        if (expiration != null) {
+          expiration.cancel(false);
         }
       }
+      int statusCode = response.getStatus();
+      byte[] body = response.getBody();
 
-      if (httpMethod == null) {
-        throw new IllegalStateException(
-            "Method not annotated with GET, POST, PUT, or DELETE: " + method);
+      long elapsedTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      if (profiler != null) {
+        RequestInformation requestInfo = getRequestInfo(server, methodDetails, request);
+        profiler.afterCall(requestInfo, elapsedTime, statusCode, profilerObject);
       }
-      if (pathQueryParams == null) {
-        pathQueryParams = new QueryParam[0];
+
+      if (LOGGER.isLoggable(Level.FINE)) {
+        logResponseBody(url, body, statusCode, elapsedTime);
       }
+
+      Header[] headers = convertHeaders(response.getHeaders());
+      long pauseNanos = RateLimiter.pauseNanos(statusCode, headers);
+      if (pauseNanos > 0) {
+        rateLimits.pause(server.apiUrl(), methodDetails, pauseNanos);
+      }
+      return cachePipeline.handle(methodDetails, request, endpointUrl(request), response, headers);
+    } catch (RetrofitError e) {
+      throw e; // Pass through our own errors.
+    } catch (IOException e) {
+      if (call.isCanceled()) {
+        throw RetrofitError.canceledError(url);
+      }
+      if (call.isDeadlineExceeded()) {
+        throw RetrofitError.deadlineExceededError(url);
+      }
+      throw RetrofitError.networkError(url, e);
+    } catch (Throwable t) {
+      throw RetrofitError.unexpectedError(url, t);
+    }
+  }
+
+  /** Abort the request of {@code call} once its deadline passes. Returns null if it has none. */
+  private ScheduledFuture<?> scheduleExpiration(final RealCall call) {
+    if (!call.hasDeadline()) {
+      return null;
+    }
+    return scheduledExecutor.schedule(new Runnable() {
+      @Override public void run() {
+        call.expire();
+      }
+    }, call.remainingMillis(), TimeUnit.MILLISECONDS);
+  }
+
+  /** Invoke a synchronous call, sleeping between attempts as its {@link RetryPolicy} directs. */
+  private Object invokeWithRetries(MethodDetails methodDetails, Object[] args, RealCall call) {
+    Object cached = cachePipeline.cachedResult(methodDetails, args);
+    if (cached != CachePipeline.NOT_CACHED) {
+      return cached;
+    }
+    for (int attempt = 1; true; attempt++) {
+      try {
+        rateLimits.acquire(server.apiUrl(), methodDetails, call);
+        Object result = invokeRequest(methodDetails, args, call, null);
+        retryBudget.deposit();
+        return result;
+      } catch (RetrofitError e) {
+        long delay = retryDelay(methodDetails, call, attempt, e);
+        if (delay < 0) {
+          throw e;
+        }
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the milliseconds to wait before retrying a call which failed with {@code error}, or -1
+   * if the call may not be retried.
+   */
+  private long retryDelay(MethodDetails methodDetails, RealCall call, int attempt,
+      RetrofitError error) {
+    RetryPolicy policy = methodDetails.retryPolicy;
+    if (policy == null) {
+      policy = retryPolicy;
     }
+    if (policy == null || !methodDetails.httpMethod.isIdempotent() || call.isCanceled()
+        || error.isCanceled() || error.isDeadlineExceeded()) {
+      return -1;
+    }
+    long delay = policy.retryDelay(attempt, error);
+    if (delay < 0 || (call.hasDeadline() && delay >= call.remainingMillis())) {
+      return -1;
+    }
+    if (!retryBudget.tryWithdraw()) {
+      LOGGER.fine("Retry budget exhausted; not retrying " + error.getUrl());
+      return -1;
+    }
+    return delay;
+  }
 
-    /** Loads {@link #type}. Returns true if the method is synchronous. */
-    private boolean parseResponseType() {
-      // Synchronous methods have a non-void return type.
-      Type returnType = method.getGenericReturnType();
+  /**
+   * Schedule a single asynchronous call on the HTTP executor once its rate limits allow. Waits
+   * for rate limits and retries are timed by the scheduled executor rather than blocking a thread.
+   */
+  private void enqueue(final BatchedCall batched) {
+    final String apiUrl = server.apiUrl();
+    RealCall call = batched.call;
+    // Check the deadline before reserving so that a rejected call doesn't leave the bucket in debt.
+    long peekNanos = rateLimits.peekWait(apiUrl, batched.methodDetails);
+    if (peekNanos > 0 && call.hasDeadline()
+        && TimeUnit.NANOSECONDS.toMillis(peekNanos) >= call.remainingMillis()) {
+      deliver(batched, null, RetrofitError.deadlineExceededError(apiUrl));
+      return;
+    }
+    long waitNanos = rateLimits.reserve(apiUrl, batched.methodDetails);
+    if (waitNanos <= 0) {
+      submit(batched);
+      return;
+    }
+    scheduledExecutor.schedule(new Runnable() {
+      @Override public void run() {
+        if (batched.call.isCanceled()) {
+          rateLimits.refund(apiUrl, batched.methodDetails);
+          return;
+        }
+        submit(batched);
+      }
+    }, waitNanos, TimeUnit.NANOSECONDS);
+  }
 
-      // Asynchronous methods should have a Callback type as the last argument.
-      Type lastArgType = null;
-      Class<?> lastArgClass = null;
-      Type[] parameterTypes = method.getGenericParameterTypes();
-      if (parameterTypes.length > 0) {
-        Type typeToCheck = parameterTypes[parameterTypes.length - 1];
-        lastArgType = typeToCheck;
-        if (typeToCheck instanceof ParameterizedType) {
-          typeToCheck = ((ParameterizedType) typeToCheck).getRawType();
+  /**
+   * Run a single asynchronous call on the HTTP executor, in order of priority, within its
+   * {@link Bulkhead} if it has one.
+   */
+  private void submit(final BatchedCall batched) {
+    Runnable runnable = new Runnable() {
+      @Override public void run() {
+        Object result;
+        try {
+          result = invokeRequest(batched.methodDetails, batched.args, batched.call, batched);
+        } catch (RetrofitError e) {
+          retryOrDeliver(batched, e);
+          return;
         }
-        if (typeToCheck instanceof Class) {
-          lastArgClass = (Class<?>) typeToCheck;
+        if (result == SingleFlight.JOINED) {
+          return; // Delivered by the identical call in flight.
         }
+        retryBudget.deposit();
+        deliver(batched, result, null);
       }
+    };
+    PriorityScheduler scheduler = scheduler(batched.methodDetails);
+    PriorityScheduler.Task task = scheduler.execute(runnable, batched.priority);
+    if (task == null) {
+      deliver(batched, null, RetrofitError.bulkheadFullError(server.apiUrl()));
+      return;
+    }
+    batched.call.setQueued(scheduler, task);
+  }
 
-      boolean hasReturnType = returnType != void.class;
-      boolean hasCallback = lastArgClass != null && Callback.class.isAssignableFrom(lastArgClass);
+  /**
+   * Schedule a batch of calls on the HTTP executor, at the highest of their priorities, once the
+   * rate limits of every call allow. Calls which need a {@link Bulkhead} or {@link Hedge} are
+   * sent alone since those apply to individual requests.
+   */
+  private void enqueueBatch(List<BatchedCall> batch) {
+    final List<BatchedCall> batchable = new ArrayList<BatchedCall>(batch.size());
+    for (BatchedCall batched : batch) {
+      if (batched.methodDetails.bulkhead != null || batched.methodDetails.hedge != null) {
+        enqueue(batched);
+      } else {
+        batchable.add(batched);
+      }
+    }
+    if (batchable.size() < 2) {
+      for (BatchedCall batched : batchable) {
+        enqueue(batched);
+      }
+      return;
+    }
+    long waitNanos = 0;
+    for (BatchedCall batched : batchable) {
+      waitNanos = Math.max(waitNanos, rateLimits.reserve(server.apiUrl(), batched.methodDetails));
+    }
+    if (waitNanos <= 0) {
+      submitBatch(batchable);
+      return;
+    }
+    // Calls whose deadline passes while waiting fail when the batch is sent.
+    scheduledExecutor.schedule(new Runnable() {
+      @Override public void run() {
+        submitBatch(batchable);
+      }
+    }, waitNanos, TimeUnit.NANOSECONDS);
+  }
 
-      // Check for invalid configurations.
-      if (hasReturnType && hasCallback) {
-        throw new IllegalArgumentException(
-            "Method may only have return type or Callback as last argument, not both.");
+  private void submitBatch(final List<BatchedCall> batch) {
+    Priority.Level priority = Priority.Level.LOW;
+    for (BatchedCall batched : batch) {
+      if (batched.priority.compareTo(priority) > 0) {
+        priority = batched.priority;
+      }
+    }
+    PriorityScheduler.Task task = priorityScheduler.execute(new Runnable() {
+      @Override public void run() {
+        executeBatch(batch);
       }
-      if (!hasReturnType && !hasCallback) {
-        throw new IllegalArgumentException(
-            "Method must have either a return type or Callback as last argument.");
+    }, priority);
+    if (task == null) {
+      for (BatchedCall batched : batch) {
+        deliver(batched, null, RetrofitError.bulkheadFullError(server.apiUrl()));
       }
+    }
+  }
 
-      if (hasReturnType) {
-        type = returnType;
-        return true;
+  /**
+   * Send a batch of calls as a single {@code multipart/mixed} request and deliver each part of the
+   * response to the corresponding call's {@link Callback}. The request goes to an endpoint chosen
+   * as for any other, within the latest of the calls' deadlines. Each call's circuit breaker must
+   * admit it, records the outcome of its part, and each failed call may be retried on its own.
+   */
+  private void executeBatch(List<BatchedCall> batch) {
+    Endpoint endpoint = null;
+    String apiUrl = server.apiUrl();
+    if (server instanceof LoadBalancedServer) {
+      endpoint = ((LoadBalancedServer) server).select();
+      apiUrl = endpoint.url();
+    }
+    String url = apiUrl + batchPath;
+
+    List<BatchPart> sending = new ArrayList<BatchPart>(batch.size());
+    List<Request> requests = new ArrayList<Request>(batch.size());
+    long deadlineMillis = 0;
+    boolean unbounded = false;
+    for (BatchedCall batched : batch) {
+      BatchPart part = prepareBatchPart(batched, apiUrl);
+      if (part == null) {
+        continue;
+      }
+      if (batched.call.hasDeadline()) {
+        deadlineMillis = Math.max(deadlineMillis, batched.call.remainingMillis());
+      } else {
+        unbounded = true;
       }
+      sending.add(part);
+      requests.add(part.request);
+    }
+    if (sending.isEmpty()) {
+      return;
+    }
 
-      lastArgType = Utils.getGenericSupertype(lastArgType, lastArgClass, Callback.class);
-      if (lastArgType instanceof ParameterizedType) {
-        Type[] types = ((ParameterizedType) lastArgType).getActualTypeArguments();
-        for (int i = 0; i < types.length; i++) {
-          Type type = types[i];
-          if (type instanceof WildcardType) {
-            types[i] = ((WildcardType) type).getUpperBounds()[0];
-          }
+    Thread.currentThread().setName(THREAD_PREFIX + url);
+    RealCall envelope = new RealCall(null, unbounded ? 0 : Math.max(1, deadlineMillis));
+    RetrofitError error = null;
+    BatchEnvelope.Part[] responses = null;
+    int statusCode = 0;
+    Header[] errorHeaders = null;
+    byte[] errorBody = null;
+    int inFlight = concurrencyLimits != null ? concurrencyLimits.start(apiUrl) : 0;
+    long start = System.nanoTime();
+    try {
+      String boundary = BatchEnvelope.newBoundary();
+      TypedBytes entity = new TypedByteArray(BatchEnvelope.encode(requests, boundary),
+          new MimeType(BatchEnvelope.contentType(boundary), null));
+      Request post = new Request(HttpMethodType.POST.name(), url,
+          Utils.getHeaders(requestHeaders), entity);
+      post = post.withTimeouts(clampTimeout(connectTimeout, envelope),
+          clampTimeout(readTimeout, envelope));
+      Transport.Exchange exchange = transport.newExchange(post);
+      if (endpoint != null) {
+        exchange = endpoint.track(exchange);
+      }
+      envelope.setRequest(exchange);
+
+      LOGGER.fine("Sending batch of " + requests.size() + " to " + url);
+      Response response;
+      ScheduledFuture<?> expiration = scheduleExpiration(envelope);
+      try {
+        response = exchange.execute();
+      } finally {
+        if (expiration != null) {
+          expiration.cancel(false);
         }
-        type = types[0];
-        return false;
-      }
-      throw new IllegalArgumentException(
-          String.format("Last parameter of %s must be of type Callback<X> or Callback<? super X>.",
-              method));
-    }
-
-    /** Loads {@link #pathNamedParams} and {@link #singleEntityArgumentIndex}. */
-    private void parseParameterAnnotations() {
-      Annotation[][] parameterAnnotations = method.getParameterAnnotations();
-      int count = parameterAnnotations.length;
-      if (!isSynchronous) {
-        count -= 1; // Callback is last argument when not a synchronous method.
-      }
-
-      String[] namedParams = new String[count];
-      for (int i = 0; i < count; i++) {
-        for (Annotation parameterAnnotation : parameterAnnotations[i]) {
-          Class<? extends Annotation> annotationType = parameterAnnotation.annotationType();
-          if (annotationType == Named.class) {
-            namedParams[i] = ((Named) parameterAnnotation).value();
-          } else if (annotationType == SingleEntity.class) {
-            if (singleEntityArgumentIndex != -1) {
-              throw new IllegalStateException(
-                  "Method annotated with multiple SingleEntity method annotations: " + method);
-            }
-            singleEntityArgumentIndex = i;
-          } else {
-            throw new IllegalArgumentException(
-                "Method argument " + i + " not annotated with Named or SingleEntity: " + method);
-          }
+      }
+      statusCode = response.getStatus();
+      byte[] body = response.getBody() != null ? response.getBody() : new byte[0];
+      if (statusCode < 200 || statusCode >= 300) {
+        errorHeaders = convertHeaders(response.getHeaders());
+        errorBody = body;
+      } else {
+        String boundaryReply =
+            BatchEnvelope.parseBoundary(response.getHeader(CONTENT_TYPE));
+        if (boundaryReply == null) {
+          throw new IOException("Batch response is not " + BatchEnvelope.MIME_TYPE + ".");
         }
+        responses = BatchEnvelope.decode(body, boundaryReply, sending.size());
+      }
+    } catch (IOException e) {
+      // A read timeout clamped to the deadline may fire just before the deadline expires it.
+      boolean expired = envelope.isDeadlineExceeded()
+          || (envelope.hasDeadline() && envelope.remainingMillis() <= 0);
+      error = expired
+          ? RetrofitError.deadlineExceededError(url)
+          : RetrofitError.networkError(url, e);
+    } catch (Throwable t) {
+      error = RetrofitError.unexpectedError(url, t);
+    } finally {
+      if (concurrencyLimits != null) {
+        concurrencyLimits.finish(apiUrl);
       }
-      pathNamedParams = namedParams;
     }
 
-    /**
-     * Gets the set of unique path parameters used in the given URI. If a parameter is used twice in
-     * the URI, it will only show up once in the set.
-     */
-    static Set<String> parsePathParameters(String path) {
-      Matcher m = PATH_PARAMETERS.matcher(path);
-      Set<String> patterns = new LinkedHashSet<String>();
-      while (m.find()) {
-        patterns.add(m.group(1));
+    long elapsed = System.nanoTime() - start;
+    boolean anyFailed = false;
+    for (int i = 0; i < sending.size(); i++) {
+      BatchPart part = sending.get(i);
+      BatchEnvelope.Part response = responses != null ? responses[i] : null;
+      RetrofitError partError = error;
+      if (errorBody != null) {
+        partError = RetrofitError.httpError(url, converter, statusCode, errorHeaders, errorBody,
+            part.batched.methodDetails.type);
+      }
+      anyFailed |= completeBatchPart(part, response, partError, statusCode, elapsed);
+    }
+    recordSample(apiUrl, elapsed, anyFailed, inFlight);
+  }
+
+  /**
+   * Build the request for a call in a batch and take a permit from its circuit breaker. Returns
+   * null if the call can't be sent, in which case it has been retried or its outcome delivered.
+   */
+  private BatchPart prepareBatchPart(BatchedCall batched, String apiUrl) {
+    RealCall call = batched.call;
+    if (call.isCanceled()) {
+      deliver(batched, null, RetrofitError.canceledError(apiUrl));
+      return null;
+    }
+    Request request;
+    try {
+      request = new HttpRequestBuilder(converter) //
+          .setMethod(batched.methodDetails)
+          .setArgs(batched.args)
+          .setApiUrl(apiUrl)
+          .setHeaders(requestHeaders)
+          .build();
+      // Adds the deadline header to the part, or fails if the deadline has passed.
+      request = applyTimeouts(batched.methodDetails, call, request);
+    } catch (RetrofitError e) {
+      retryOrDeliver(batched, e);
+      return null;
+    } catch (Throwable t) {
+      deliver(batched, null, RetrofitError.unexpectedError(apiUrl, t));
+      return null;
+    }
+    CircuitBreaker breaker = circuitBreaker(batched.methodDetails);
+    int permit = CircuitBreaker.PERMITTED;
+    if (breaker != null) {
+      permit = breaker.tryAcquire();
+      if (permit == CircuitBreaker.REJECTED) {
+        retryOrDeliver(batched, RetrofitError.circuitOpenError(request.getUrl()));
+        return null;
       }
-      return patterns;
     }
+    Object profilerObject = profiler != null ? profiler.beforeCall() : null;
+    return new BatchPart(batched, request, breaker, permit, profilerObject);
+  }
+
+  /**
+   * Convert the response to a call in a batch, or take the error of the whole batch, then record
+   * the outcome with the call's circuit breaker and retry or deliver it. Returns true if the
+   * server failed the call.
+   *
+   * @param statusCode status of the whole batch, or zero if no response was received.
+   */
+  private boolean completeBatchPart(BatchPart part, BatchEnvelope.Part response,
+      RetrofitError batchError, int statusCode, long elapsedNanos) {
+    BatchedCall batched = part.batched;
+    String callUrl = part.request.getUrl();
+    long elapsedTime = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+    Object result = null;
+    RetrofitError error = batchError;
+    if (response != null) {
+      profileBatched(batched, part.request, elapsedTime, response.statusCode,
+          part.profilerObject);
+      try {
+        result = cachePipeline.handleResponse(batched.methodDetails, callUrl, response.statusCode,
+            response.headers, response.body);
+      } catch (RetrofitError e) {
+        error = e;
+      } catch (IOException e) {
+        error = RetrofitError.networkError(callUrl, e);
+      } catch (Throwable t) {
+        error = RetrofitError.unexpectedError(callUrl, t);
+      }
+    } else if (statusCode != 0) {
+      profileBatched(batched, part.request, elapsedTime, statusCode, part.profilerObject);
+    }
+    if (error == null && batched.call.hasDeadline() && batched.call.remainingMillis() <= 0) {
+      error = RetrofitError.deadlineExceededError(callUrl); // Only the batch's deadline was met.
+    }
+
+    boolean failed = error != null && error.isServerFailure();
+    if (part.breaker != null) {
+      part.breaker.record(part.permit, failed, elapsedNanos);
+    }
+    if (error != null) {
+      retryOrDeliver(batched, error);
+    } else {
+      retryBudget.deposit();
+      deliver(batched, result, null);
+    }
+    return failed;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void profileBatched(BatchedCall batched, Request request, long elapsedTime,
+      int statusCode, Object profilerObject) {
+    if (profiler != null) {
+      RequestInformation requestInfo = getRequestInfo(server, batched.methodDetails, request);
+      profiler.afterCall(requestInfo, elapsedTime, statusCode, profilerObject);
+    }
+  }
+
+  /**
+   * Schedule a failed asynchronous call to be sent again, on its own, if its {@link RetryPolicy}
+   * allows. Otherwise deliver {@code error}.
+   */
+  private void retryOrDeliver(final BatchedCall batched, RetrofitError error) {
+    long delay = retryDelay(batched.methodDetails, batched.call, batched.attempt, error);
+    if (delay < 0) {
+      deliver(batched, null, error);
+      return;
+    }
+    batched.attempt++;
+    scheduledExecutor.schedule(new Runnable() {
+      @Override public void run() {
+        enqueue(batched);
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /** Deliver the outcome of a batched call to its {@link Callback}. */
+  private void deliver(BatchedCall batched, Object result, RetrofitError error) {
+    batched.call.finish();
+    deliver(batched.callback, batched.call, result, error);
+  }
+
+  /** Deliver the outcome of a call to {@code callback} on the callback executor. */
+  private <T> void deliver(Callback<T> callback, RealCall call, final Object result,
+      final RetrofitError error) {
+    Runnable delivery = new CallbackRunnable<T>(callback, callbackExecutor, call) {
+      @Override public Object obtainResponse() {
+        if (error != null) {
+          throw error;
+        }
+        return result;
+      }
+    };
+    delivery.run();
+  }
+
+  /** An asynchronous call waiting to be scheduled, possibly as part of a batch. */
+  static final class BatchedCall {
+    final MethodDetails methodDetails;
+    final Object[] args;
+    final RealCall call;
+    final Callback<?> callback;
+    final Priority.Level priority;
+    int attempt = 1;
+
+    BatchedCall(MethodDetails methodDetails, Object[] args, RealCall call, Callback<?> callback,
+        Priority.Level priority) {
+      this.methodDetails = methodDetails;
+      this.args = args;
+      this.call = call;
+      this.callback = callback;
+      this.priority = priority;
+    }
+  }
+
+  /** A call in a batch which is being sent, with its request and circuit breaker permit. */
+  static final class BatchPart {
+    final BatchedCall batched;
+    final Request request;
+    final CircuitBreaker breaker;
+    final int permit;
+    final Object profilerObject;
+
+    BatchPart(BatchedCall batched, Request request, CircuitBreaker breaker, int permit,
+        Object profilerObject) {
+      this.batched = batched;
+      this.request = request;
+      this.breaker = breaker;
+      this.permit = permit;
+      this.profilerObject = profilerObject;
+    }
+  }
+
+  static Header[] convertHeaders(List<Header> headers) {
+    return headers.toArray(new Header[headers.size()]);
+  }
+
+  /**
+   * Apply the connect and read budgets for {@code methodDetails} to {@code request}, clamping each
+   * to the time remaining before the call's deadline.
+   */
+  private Request applyTimeouts(MethodDetails methodDetails, RealCall call, Request request) {
+    if (call.hasDeadline()) {
+      long remaining = call.remainingMillis();
+      if (remaining <= 0) {
+        throw RetrofitError.deadlineExceededError(request.getUrl());
+      }
+      if (deadlineHeader != null) {
+        request = request.withHeader(deadlineHeader, String.valueOf(remaining));
+      }
+    }
+    return request.withTimeouts(
+        clampTimeout(budget(methodDetails.connectTimeout, connectTimeout), call),
+        clampTimeout(budget(methodDetails.readTimeout, readTimeout), call));
+  }
+
+  /** Returns {@code budget} clamped to the time remaining before the call's deadline. */
+  private static int clampTimeout(long budget, RealCall call) {
+    if (call.hasDeadline()) {
+      // At least a millisecond, since zero disables the timeout.
+      long remaining = Math.max(1, call.remainingMillis());
+      budget = budget > 0 ? Math.min(budget, remaining) : remaining;
+    }
+    return budget >= 0 ? toIntMillis(budget) : Request.DEFAULT_TIMEOUT;
+  }
+
+  private static int toIntMillis(long millis) {
+    return (int) Math.min(millis, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Identifies requests which may share a response: the same URL, request headers, and response
+   * type. The deadline header is excluded since its value differs for every call.
+   */
+  private String coalescingKey(MethodDetails methodDetails, Request request) {
+    StringBuilder key = new StringBuilder();
+    key.append(methodDetails.type).append(' ').append(request.getUrl());
+    for (Header header : request.getHeaders()) {
+      if (header.getName().equalsIgnoreCase(deadlineHeader)) continue;
+      key.append('\n').append(header.getName()).append(": ").append(header.getValue());
+    }
+    return key.toString();
+  }
+
+  /** Returns the method's budget if specified, otherwise the adapter's. */
+  private static long budget(long methodBudget, long adapterBudget) {
+    return methodBudget != Timeout.INHERIT ? methodBudget : adapterBudget;
   }
 
   private static void logResponseBody(String url, byte[] body, int statusCode, long elapsedTime)
@@ -427,19 +1452,16 @@ public class RestAdapter {
   }
 
   private static HttpProfiler.RequestInformation getRequestInfo(Server server,
-      MethodDetails methodDetails, HttpUriRequest request) {
+      MethodDetails methodDetails, Request request) {
     HttpMethodType httpMethod = methodDetails.httpMethod;
     HttpProfiler.Method profilerMethod = httpMethod.profilerMethod();
 
     long contentLength = 0;
     String contentType = null;
-    if (request instanceof HttpEntityEnclosingRequestBase) {
-      HttpEntityEnclosingRequestBase entityReq = (HttpEntityEnclosingRequestBase) request;
-      HttpEntity entity = entityReq.getEntity();
-      contentLength = entity.getContentLength();
-
-      org.apache.http.Header entityContentType = entity.getContentType();
-      contentType = entityContentType != null ? entityContentType.getValue() : null;
+    TypedBytes body = request.getBody();
+    if (body != null) {
+      contentLength = body.length();
+      contentType = body.mimeType().mimeName();
     }
 
     return new HttpProfiler.RequestInformation(profilerMethod, server.apiUrl(), methodDetails.path,
@@ -462,13 +1484,43 @@ public class RestAdapter {
    * </ul>
    */
   public static class Builder {
+    private static final int HEDGE_ALLOWANCE = 10;
+    private static final int RETRY_ALLOWANCE = 10;
+    private static final int CIRCUIT_WINDOW = 100;
+    private static final int CIRCUIT_MINIMUM_CALLS = 20;
+
     private Server server;
-    private Provider<HttpClient> clientProvider;
+    private Transport transport;
+    private ConnectionPool connectionPool;
     private Executor httpExecutor;
     private Executor callbackExecutor;
     private Headers headers;
     private Converter converter;
     private HttpProfiler profiler;
+    private long connectTimeout = Timeout.INHERIT;
+    private long readTimeout = Timeout.INHERIT;
+    private long deadline = 0;
+    private String deadlineHeader;
+    private int maxConcurrentRequests;
+    private long priorityAgingNanos = TimeUnit.SECONDS.toNanos(1);
+    private String batchPath;
+    private long batchWindowNanos;
+    private int maxBatchSize = Integer.MAX_VALUE;
+    private long callbackBatchNanos;
+    private double hedgeBudget = 0.1;
+    private RetryPolicy retryPolicy;
+    private double retryBudget = 0.1;
+    private CircuitBreaker.Policy circuitBreakerPolicy;
+    private CircuitBreaker.Listener circuitBreakerListener;
+    private double rateLimit;
+    private int rateLimitBurst;
+    private boolean rateLimitFailFast;
+    private int initialConcurrencyLimit;
+    private int prewarmConnections;
+    private ResponseCache responseCache;
+    private int conditionalCacheSize;
+    private ConversionCache conversionCache;
+    private final Map<String, int[]> bulkheads = new LinkedHashMap<String, int[]>();
 
     public Builder setServer(String endpoint) {
       if (endpoint == null) throw new NullPointerException("endpoint");
@@ -492,7 +1544,75 @@ public class RestAdapter {
 
     public Builder setClient(Provider<HttpClient> clientProvider) {
       if (clientProvider == null) throw new NullPointerException("clientProvider");
-      this.clientProvider = clientProvider;
+      return setTransport(new ApacheTransport(clientProvider));
+    }
+
+    /**
+     * Send requests with {@code transport}. This replaces any client or connection pool set with
+     * {@link #setClient} or {@link #setConnectionPool}.
+     */
+    public Builder setTransport(Transport transport) {
+      if (transport == null) throw new NullPointerException("transport");
+      this.transport = transport;
+      this.connectionPool = null;
+      return this;
+    }
+
+    /**
+     * Make requests with a client backed by {@code connectionPool}. This replaces any client set
+     * with {@link #setClient}. On the JVM a pool is used by default.
+     */
+    public Builder setConnectionPool(ConnectionPool connectionPool) {
+      if (connectionPool == null) throw new NullPointerException("connectionPool");
+      this.connectionPool = connectionPool;
+      this.transport = new ApacheTransport(connectionPool.clientProvider());
+      return this;
+    }
+
+    /**
+     * Open {@code connections} connections to the server on the HTTP executor as soon as the
+     * adapter is built, and keep them open in the background, so that the first requests don't
+     * wait for DNS, TCP and TLS. Has no effect unless a {@link ConnectionPool} is in use. Use
+     * {@link RestAdapter#prewarm(int)} to warm up on demand instead.
+     */
+    public Builder setPrewarmConnections(int connections) {
+      if (connections < 1) throw new IllegalArgumentException("connections < 1");
+      this.prewarmConnections = connections;
+      return this;
+    }
+
+    /**
+     * Answer {@link GET} requests from {@code responseCache} while the cached response is fresh,
+     * and store the responses the server allows to be cached.
+     */
+    public Builder setResponseCache(ResponseCache responseCache) {
+      if (responseCache == null) throw new NullPointerException("responseCache");
+      this.responseCache = responseCache;
+      return this;
+    }
+
+    /**
+     * Remember the {@code ETag} and {@code Last-Modified} validators of up to {@code entries}
+     * {@link GET} responses, with the objects they were converted to. Later requests for the same
+     * URL and return type are sent with {@code If-None-Match} and {@code If-Modified-Since}, and a
+     * {@code 304 Not Modified} response returns the remembered object without converting a body.
+     * <p/>
+     * Callers receive the same instance each time the server reports it unmodified, so it should
+     * not be mutated.
+     */
+    public Builder setConditionalCacheSize(int entries) {
+      if (entries < 1) throw new IllegalArgumentException("entries < 1");
+      this.conditionalCacheSize = entries;
+      return this;
+    }
+
+    /**
+     * Reuse the objects {@link GET} responses were converted to while the same URL returns the
+     * same body for the same return type, rather than converting it again.
+     */
+    public Builder setConversionCache(ConversionCache conversionCache) {
+      if (conversionCache == null) throw new NullPointerException("conversionCache");
+      this.conversionCache = conversionCache;
       return this;
     }
 
@@ -530,21 +1650,236 @@ public class RestAdapter {
       return this;
     }
 
+    /**
+     * Default time budgets for every method. Individual methods may override these with
+     * {@link Timeout}. Until this is called the connect and read budgets are those of the
+     * {@link HttpClient}'s own parameters. A value of zero disables the budget.
+     *
+     * @param connect maximum time to establish a connection.
+     * @param read maximum time to wait for data between reads from the connection.
+     * @param deadline maximum time for the entire call, including time spent waiting on the HTTP
+     * executor.
+     */
+    public Builder setTimeouts(long connect, long read, long deadline, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit");
+      if (connect < 0 || read < 0 || deadline < 0) {
+        throw new IllegalArgumentException("Timeouts may not be negative.");
+      }
+      this.connectTimeout = unit.toMillis(connect);
+      this.readTimeout = unit.toMillis(read);
+      this.deadline = unit.toMillis(deadline);
+      return this;
+    }
+
+    /**
+     * Send the milliseconds remaining before a call's deadline to the server in the header
+     * {@code name}. Only calls which have a deadline include the header.
+     */
+    public Builder setDeadlineHeader(String name) {
+      if (name == null) throw new NullPointerException("name");
+      this.deadlineHeader = name;
+      return this;
+    }
+
+    /**
+     * Maximum number of asynchronous calls which may run on the HTTP executor at once. Calls beyond
+     * this limit wait and are started in order of their {@link Priority}.
+     */
+    public Builder setMaxConcurrentRequests(int maxConcurrentRequests) {
+      if (maxConcurrentRequests < 1) {
+        throw new IllegalArgumentException("maxConcurrentRequests < 1");
+      }
+      this.maxConcurrentRequests = maxConcurrentRequests;
+      return this;
+    }
+
+    /**
+     * How long a waiting call must wait to be treated as though it had the next higher
+     * {@link Priority}. Defaults to one second.
+     */
+    public Builder setPriorityAging(long aging, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit");
+      if (aging < 0) throw new IllegalArgumentException("aging < 0");
+      this.priorityAgingNanos = unit.toNanos(aging);
+      return this;
+    }
+
+    /**
+     * Path, relative to the server's URL, of an endpoint which accepts a {@code multipart/mixed}
+     * request whose parts are {@code application/http} requests and answers with a
+     * {@code multipart/mixed} response of the same shape. Enables {@link RestAdapter#beginBatch()}.
+     */
+    public Builder setBatchEndpoint(String path) {
+      if (path == null) throw new NullPointerException("path");
+      this.batchPath = path.startsWith("/") ? path.substring(1) : path;
+      return this;
+    }
+
+    /**
+     * Automatically batch asynchronous calls. The first call starts a window of {@code window}
+     * during which subsequent calls, up to {@code maxBatchSize} in total, are collected and sent
+     * together. Requires {@link #setBatchEndpoint(String)}.
+     */
+    public Builder setBatchWindow(long window, TimeUnit unit, int maxBatchSize) {
+      if (unit == null) throw new NullPointerException("unit");
+      if (window <= 0) throw new IllegalArgumentException("window <= 0");
+      if (maxBatchSize < 2) throw new IllegalArgumentException("maxBatchSize < 2");
+      this.batchWindowNanos = unit.toNanos(window);
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /**
+     * Deliver callbacks which complete together in a single task on the callback executor instead
+     * of posting one task per callback. A batch runs for at most {@code maxBatchTime} before the
+     * remaining callbacks are posted as a new batch, giving the executor's other work a turn.
+     */
+    public Builder setCallbackCoalescing(long maxBatchTime, TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit");
+      if (maxBatchTime <= 0) throw new IllegalArgumentException("maxBatchTime <= 0");
+      this.callbackBatchNanos = unit.toNanos(maxBatchTime);
+      return this;
+    }
+
+    /**
+     * Maximum number of {@link Hedge} requests to send as a fraction of calls to hedged methods.
+     * Defaults to 0.1, allowing at most one hedge for every ten calls once a small initial
+     * allowance is spent.
+     */
+    public Builder setHedgeBudget(double ratio) {
+      if (ratio < 0 || ratio > 1) throw new IllegalArgumentException("ratio must be in [0, 1]");
+      this.hedgeBudget = ratio;
+      return this;
+    }
+
+    /**
+     * Policy deciding which failed calls to idempotent methods are retried and when. Individual
+     * methods may override this with {@link Retry}. By default no calls are retried.
+     */
+    public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+      if (retryPolicy == null) throw new NullPointerException("retryPolicy");
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    /**
+     * Maximum number of retries as a fraction of successful calls, shared by every method so that
+     * retries cannot multiply load during an outage. Defaults to 0.1, allowing at most one retry
+     * for every ten successful calls once a small initial allowance is spent.
+     */
+    public Builder setRetryBudget(double ratio) {
+      if (ratio < 0) throw new IllegalArgumentException("ratio < 0");
+      this.retryBudget = ratio;
+      return this;
+    }
+
+    /**
+     * Guard each method of each server with a {@link CircuitBreaker}. A circuit opens once at least
+     * {@code failureRate} of its last 100 calls failed, or took longer than {@code slowCall}, as
+     * long as it has seen at least 20 calls.
+     * Network errors, expired deadlines, and 5XX responses are failures. An open circuit allows a
+     * trial call after {@code openDuration}.
+     *
+     * @param slowCall duration at or beyond which a call is slow, or zero to ignore latency.
+     */
+    public Builder setCircuitBreaker(double failureRate, long slowCall, long openDuration,
+        TimeUnit unit) {
+      if (unit == null) throw new NullPointerException("unit");
+      if (failureRate <= 0 || failureRate > 1) {
+        throw new IllegalArgumentException("failureRate must be in (0, 1]");
+      }
+      if (slowCall < 0 || openDuration < 0) {
+        throw new IllegalArgumentException("Durations may not be negative.");
+      }
+      this.circuitBreakerPolicy = new CircuitBreaker.Policy(CIRCUIT_WINDOW, CIRCUIT_MINIMUM_CALLS,
+          failureRate, unit.toNanos(slowCall), unit.toNanos(openDuration));
+      return this;
+    }
+
+    /** Notified whenever one of the adapter's circuit breakers changes state. */
+    public Builder setCircuitBreakerListener(CircuitBreaker.Listener listener) {
+      if (listener == null) throw new NullPointerException("listener");
+      this.circuitBreakerListener = listener;
+      return this;
+    }
+
+    /**
+     * Limit the rate of requests to each server. Methods may add a stricter limit with
+     * {@link RateLimit}. Asynchronous calls are delayed until they are within the limit, as are
+     * synchronous calls unless {@link #setRateLimitFailFast(boolean)} is set.
+     *
+     * @param permitsPerSecond sustained number of requests allowed each second.
+     * @param burst number of requests which may be made at once after a period of inactivity.
+     */
+    public Builder setRateLimit(double permitsPerSecond, int burst) {
+      if (permitsPerSecond <= 0) throw new IllegalArgumentException("permitsPerSecond <= 0");
+      if (burst < 1) throw new IllegalArgumentException("burst < 1");
+      this.rateLimit = permitsPerSecond;
+      this.rateLimitBurst = burst;
+      return this;
+    }
+
+    /**
+     * Whether synchronous calls which exceed a rate limit throw a {@link RetrofitError} for which
+     * {@link RetrofitError#isRateLimited()} is true rather than waiting. Defaults to false.
+     */
+    public Builder setRateLimitFailFast(boolean failFast) {
+      this.rateLimitFailFast = failFast;
+      return this;
+    }
+
+    /**
+     * Adjust the number of asynchronous calls which may run at once to what the server can
+     * sustain, between one and {@link #setMaxConcurrentRequests(int)}. The limit grows while
+     * requests succeed promptly and shrinks when they fail or their latency climbs well above the
+     * lowest recently observed. Each endpoint of a {@link LoadBalancedServer} learns its own limit
+     * from its own requests, and as many calls run at once as those limits add up to. Calls beyond
+     * the limit wait in the priority queue. Synchronous calls run on their callers' threads and so
+     * are measured but never held back.
+     */
+    public Builder setAdaptiveConcurrency(int initialLimit) {
+      if (initialLimit < 1) throw new IllegalArgumentException("initialLimit < 1");
+      this.initialConcurrencyLimit = initialLimit;
+      return this;
+    }
+
+    /**
+     * Add a pool, named for use with {@link Bulkhead}, which runs at most {@code maxConcurrency}
+     * asynchronous calls at once on the HTTP executor and holds at most {@code maxQueued} more.
+     * Calls beyond that fail with a {@link RetrofitError} for which
+     * {@link RetrofitError#isBulkheadFull()} is true. Synchronous calls run on their callers'
+     * threads and are not limited by bulkheads.
+     */
+    public Builder addBulkhead(String name, int maxConcurrency, int maxQueued) {
+      if (name == null) throw new NullPointerException("name");
+      if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency < 1");
+      if (maxQueued < 0) throw new IllegalArgumentException("maxQueued < 0");
+      bulkheads.put(name, new int[] { maxConcurrency, maxQueued });
+      return this;
+    }
+
     public RestAdapter build() {
       if (server == null) {
         throw new IllegalArgumentException("Server may not be null.");
       }
+      if (batchWindowNanos != 0 && batchPath == null) {
+        throw new IllegalArgumentException("Batch window requires a batch endpoint.");
+      }
       ensureSaneDefaults();
-      return new RestAdapter(server, clientProvider, httpExecutor, callbackExecutor, headers,
-          converter, profiler);
+      RestAdapter restAdapter = new RestAdapter(this);
+      if (prewarmConnections != 0 && connectionPool != null) {
+        restAdapter.prewarmInBackground(prewarmConnections);
+      }
+      return restAdapter;
     }
 
     private void ensureSaneDefaults() {
       if (converter == null) {
         converter = Platform.get().defaultConverter();
       }
-      if (clientProvider == null) {
-        clientProvider = Platform.get().defaultHttpClient();
+      if (transport == null) {
+        connectionPool = Platform.get().defaultConnectionPool();
+        transport = Platform.get().defaultTransport(connectionPool);
       }
       if (httpExecutor == null) {
         httpExecutor = Platform.get().defaultHttpExecutor();
@@ -552,6 +1887,9 @@ public class RestAdapter {
       if (callbackExecutor == null) {
         callbackExecutor = Platform.get().defaultCallbackExecutor();
       }
+      if (maxConcurrentRequests == 0) {
+        maxConcurrentRequests = Platform.get().defaultMaxConcurrentRequests();
+      }
     }
   }
 }
\ No newline at end of file
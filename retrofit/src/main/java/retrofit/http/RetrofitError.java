@@ -6,22 +6,65 @@ import java.lang.reflect.Type;
 
 public class RetrofitError extends RuntimeException {
   static RetrofitError networkError(String url, IOException exception) {
-    return new RetrofitError(url, 0, null, null, null, null, true, exception);
+    return new RetrofitError(url, 0, null, null, null, null, Kind.NETWORK, exception);
   }
 
   static RetrofitError conversionError(String url, Converter converter, int statusCode,
       Header[] headers, byte[] body, Type successType, ConversionException exception) {
-    return new RetrofitError(url, statusCode, headers, body, converter, successType, false,
-        exception);
+    return new RetrofitError(url, statusCode, headers, body, converter, successType,
+        Kind.CONVERSION, exception);
   }
 
   static RetrofitError httpError(String url, Converter converter, int statuCode, Header[] headers,
       byte[] body, Type successType) {
-    return new RetrofitError(url, statuCode, headers, body, converter, successType, false, null);
+    return new RetrofitError(url, statuCode, headers, body, converter, successType, Kind.HTTP,
+        null);
   }
 
   static RetrofitError unexpectedError(String url, Throwable exception) {
-    return new RetrofitError(url, 0, null, null, null, null, false, exception);
+    return new RetrofitError(url, 0, null, null, null, null, Kind.UNEXPECTED, exception);
+  }
+
+  static RetrofitError canceledError(String url) {
+    return new RetrofitError(url, 0, null, null, null, null, Kind.CANCELED, null);
+  }
+
+  static RetrofitError deadlineExceededError(String url) {
+    return new RetrofitError(url, 0, null, null, null, null, Kind.DEADLINE_EXCEEDED, null);
+  }
+
+  static RetrofitError circuitOpenError(String url) {
+    return new RetrofitError(url, 0, null, null, null, null, Kind.CIRCUIT_OPEN, null);
+  }
+
+  static RetrofitError rateLimitedError(String url) {
+    return new RetrofitError(url, 0, null, null, null, null, Kind.RATE_LIMITED, null);
+  }
+
+  static RetrofitError bulkheadFullError(String url) {
+    return new RetrofitError(url, 0, null, null, null, null, Kind.BULKHEAD_FULL, null);
+  }
+
+  /** Identifies the event which caused a {@link RetrofitError}. */
+  enum Kind {
+    /** An {@link IOException} occurred while communicating with the server. */
+    NETWORK,
+    /** The response body could not be converted to the expected type. */
+    CONVERSION,
+    /** A non-2XX status code was received from the server. */
+    HTTP,
+    /** The {@link Call} was canceled before it could complete. */
+    CANCELED,
+    /** The call did not complete before its {@link Timeout#deadline() deadline}. */
+    DEADLINE_EXCEEDED,
+    /** The call was rejected without a request because its {@link CircuitBreaker} is open. */
+    CIRCUIT_OPEN,
+    /** The call was rejected without a request because it would exceed a {@link RateLimit}. */
+    RATE_LIMITED,
+    /** The call was rejected because its {@link Bulkhead} had too many calls waiting. */
+    BULKHEAD_FULL,
+    /** An internal error occurred while attempting to execute a request. */
+    UNEXPECTED
   }
 
   private final String url;
@@ -30,18 +73,18 @@ public class RetrofitError extends RuntimeException {
   private final Header[] headers;
   private final byte[] body;
   private final Type successType;
-  private final boolean networkError;
+  private final Kind kind;
   private final Throwable exception;
 
   private RetrofitError(String url, int statusCode, Header[] headers, byte[] body,
-      Converter converter, Type successType, boolean networkError, Throwable exception) {
+      Converter converter, Type successType, Kind kind, Throwable exception) {
     this.url = url;
     this.converter = converter;
     this.statusCode = statusCode;
     this.headers = headers;
     this.body = body;
     this.successType = successType;
-    this.networkError = networkError;
+    this.kind = kind;
     this.exception = exception;
   }
 
@@ -57,7 +100,37 @@ public class RetrofitError extends RuntimeException {
 
   /** Whether or not this error was the result of a network error. */
   public boolean isNetworkError() {
-    return networkError;
+    return kind == Kind.NETWORK;
+  }
+
+  /** Whether or not this error was the result of the call being canceled. */
+  public boolean isCanceled() {
+    return kind == Kind.CANCELED;
+  }
+
+  /** Whether or not this error was the result of the call exceeding its deadline. */
+  public boolean isDeadlineExceeded() {
+    return kind == Kind.DEADLINE_EXCEEDED;
+  }
+
+  /** Whether or not this error was the result of the call's circuit breaker being open. */
+  public boolean isCircuitOpen() {
+    return kind == Kind.CIRCUIT_OPEN;
+  }
+
+  /** True if this error suggests the server is unhealthy rather than the request being bad. */
+  boolean isServerFailure() {
+    return kind == Kind.NETWORK || kind == Kind.DEADLINE_EXCEEDED || statusCode >= 500;
+  }
+
+  /** Whether or not this error was the result of the call being rejected by a rate limit. */
+  public boolean isRateLimited() {
+    return kind == Kind.RATE_LIMITED;
+  }
+
+  /** Whether or not this error was the result of the call's bulkhead being full. */
+  public boolean isBulkheadFull() {
+    return kind == Kind.BULKHEAD_FULL;
   }
 
   /** List of headers returning in the HTTP response, if any. */
@@ -0,0 +1,29 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Retry policy for a {@link GET}, {@link PUT}, or {@link DELETE} method, overriding the adapter's
+ * {@link RetryPolicy}. Calls are retried with {@link ExponentialBackoff}; use
+ * {@code @Retry(attempts = 1)} to disable retries for a method.
+ */
+@Target({ METHOD })
+@Retention(RUNTIME)
+public @interface Retry {
+  /** Total number of attempts including the first. */
+  int attempts();
+
+  /** Milliseconds ceiling of the wait before the first retry, doubled for each retry after. */
+  long initialDelay() default 100;
+
+  /** Largest ceiling in milliseconds of the wait before any retry. */
+  long maxDelay() default 10000;
+
+  /** HTTP status codes which are retried in addition to network errors. */
+  int[] statusCodes() default { };
+}
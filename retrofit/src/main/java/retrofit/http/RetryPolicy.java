@@ -0,0 +1,20 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+/**
+ * Decides whether and when a failed call is retried. Only calls to idempotent methods
+ * ({@link GET}, {@link PUT}, and {@link DELETE}) are retried, and never once they are canceled or
+ * their deadline has passed.
+ *
+ * @see RestAdapter.Builder#setRetryPolicy(RetryPolicy)
+ * @see Retry
+ */
+public interface RetryPolicy {
+  /**
+   * Returns the number of milliseconds to wait before retrying a call which failed with
+   * {@code error}, or -1 if it should not be retried.
+   *
+   * @param attempt number of attempts made so far, starting at 1.
+   */
+  long retryDelay(int attempt, RetrofitError error);
+}
@@ -0,0 +1,30 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Route calls to a {@link LoadBalancedServer} by the value of one of the method's
+ * {@link javax.inject.Named @Named} parameters rather than with the server's
+ * {@link EndpointSelector}. Calls with the same value go to the same replica, keeping that
+ * replica's caches warm for the key:
+ * <pre>
+ *   &#64;GET("accounts/{id}") &#64;RouteBy("id")
+ *   Account account(@Named("id") String id);
+ * </pre>
+ * Keys are placed on a consistent-hash ring, so changing the server's endpoints only moves the
+ * keys of the replicas added or removed. A replica already carrying well over its share of the
+ * requests in flight is passed over for the next one on the ring until its load drops.
+ * <p/>
+ * Ignored when the server is not a {@link LoadBalancedServer}.
+ */
+@Target({ METHOD })
+@Retention(RUNTIME)
+public @interface RouteBy {
+  /** Name of the {@code @Named} parameter whose value is the routing key. */
+  String value();
+}
@@ -0,0 +1,221 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicates concurrent executions of work with the same key. The first caller for a key runs the
+ * work while subsequent callers register a {@link Waiter} which receives its result. Waiters hold
+ * no thread: they are completed by the caller which ran the work, or released by their own call's
+ * cancellation or deadline.
+ */
+final class SingleFlight {
+  /** Returned by {@link #execute(String, Waiter, Callable)} when the caller joined a flight. */
+  static final Object JOINED = new Object();
+
+  private final ScheduledExecutorService scheduledExecutor;
+  private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<String, Flight>();
+  private final AtomicLong coalescedCount = new AtomicLong();
+
+  /** @param scheduledExecutor expires waiters whose call reaches its deadline. */
+  SingleFlight(ScheduledExecutorService scheduledExecutor) {
+    this.scheduledExecutor = scheduledExecutor;
+  }
+
+  /** Number of calls which received the result of another call rather than running their own. */
+  long coalescedCount() {
+    return coalescedCount.get();
+  }
+
+  /**
+   * Run {@code work} or, on the calling thread, wait for the in-flight execution with the same
+   * {@code key}. If the shared execution was canceled or exceeded its deadline the caller runs
+   * {@code work} itself since those failures are specific to the original caller.
+   */
+  Object execute(String key, RealCall call, String url, Callable<Object> work) throws Exception {
+    BlockingWaiter waiter = new BlockingWaiter(call, url);
+    Object result = execute(key, waiter, work);
+    if (result != JOINED) {
+      return result;
+    }
+    try {
+      waiter.latch.await();
+    } catch (InterruptedException e) {
+      waiter.leave();
+      throw e;
+    }
+    if (waiter.runAlone) {
+      return work.call();
+    }
+    if (waiter.error != null) {
+      throw waiter.error;
+    }
+    return waiter.result;
+  }
+
+  /**
+   * Run {@code work} and return its result, or register {@code waiter} with the in-flight execution
+   * with the same {@code key} and return {@link #JOINED}.
+   */
+  Object execute(String key, Waiter waiter, Callable<Object> work) throws Exception {
+    Flight flight = new Flight();
+    Flight existing;
+    while ((existing = flights.putIfAbsent(key, flight)) != null) {
+      if (existing.add(waiter)) {
+        waiter.joined(scheduledExecutor);
+        return JOINED;
+      }
+      flights.remove(key, existing); // Completed but not yet removed by its leader.
+    }
+
+    Object result = null;
+    RetrofitError error = null;
+    try {
+      result = work.call();
+      return result;
+    } catch (RetrofitError e) {
+      error = e;
+      throw e;
+    } catch (Exception e) {
+      error = RetrofitError.unexpectedError(waiter.url, e);
+      throw e;
+    } finally {
+      flights.remove(key, flight);
+      boolean shared = error == null || !(error.isCanceled() || error.isDeadlineExceeded());
+      for (Waiter joined : flight.complete()) {
+        if (shared) {
+          coalescedCount.incrementAndGet();
+          joined.finish(result, error);
+        } else {
+          joined.finishAlone();
+        }
+      }
+    }
+  }
+
+  /**
+   * A call which joined the execution of another. Exactly one of {@link #complete} and
+   * {@link #runAlone} is called, on the thread which completes the waiter.
+   */
+  abstract static class Waiter {
+    final RealCall call;
+    final String url;
+    private volatile Flight flight;
+    private volatile ScheduledFuture<?> expiration;
+
+    Waiter(RealCall call, String url) {
+      this.call = call;
+      this.url = url;
+    }
+
+    /** Receive the outcome of the call: that of the shared execution, or its own abort. */
+    abstract void complete(Object result, RetrofitError error);
+
+    /** The shared execution was canceled or expired. The call should run on its own. */
+    abstract void runAlone();
+
+    /**
+     * Release the waiter because its call was canceled or reached its deadline. Does nothing if
+     * the shared execution already completed it.
+     */
+    void abort() {
+      if (leave()) {
+        finish(null, call.isCanceled()
+            ? RetrofitError.canceledError(url)
+            : RetrofitError.deadlineExceededError(url));
+      }
+    }
+
+    /** Stop waiting. Returns false if the waiter was already completed. */
+    boolean leave() {
+      Flight flight = this.flight;
+      return flight != null && flight.remove(this);
+    }
+
+    private void joined(ScheduledExecutorService scheduledExecutor) {
+      if (call.hasDeadline()) {
+        expiration = scheduledExecutor.schedule(new Runnable() {
+          @Override public void run() {
+            call.expire();
+          }
+        }, call.remainingMillis(), TimeUnit.MILLISECONDS);
+      }
+      call.setWaiter(this); // Aborts the waiter if the call was canceled while joining.
+    }
+
+    private void finish(Object result, RetrofitError error) {
+      cancelExpiration();
+      complete(result, error);
+    }
+
+    private void finishAlone() {
+      cancelExpiration();
+      runAlone();
+    }
+
+    private void cancelExpiration() {
+      ScheduledFuture<?> expiration = this.expiration;
+      if (expiration != null) {
+        expiration.cancel(false);
+      }
+    }
+  }
+
+  /** Parks the caller's own thread until the shared execution completes. */
+  private static final class BlockingWaiter extends Waiter {
+    final CountDownLatch latch = new CountDownLatch(1);
+    // Published to the waiting thread by the latch.
+    Object result;
+    RetrofitError error;
+    boolean runAlone;
+
+    BlockingWaiter(RealCall call, String url) {
+      super(call, url);
+    }
+
+    @Override void complete(Object result, RetrofitError error) {
+      this.result = result;
+      this.error = error;
+      latch.countDown();
+    }
+
+    @Override void runAlone() {
+      runAlone = true;
+      latch.countDown();
+    }
+  }
+
+  private static final class Flight {
+    // Guarded by this. Null once the flight completes.
+    private List<Waiter> waiters = new ArrayList<Waiter>();
+
+    synchronized boolean add(Waiter waiter) {
+      if (waiters == null) {
+        return false;
+      }
+      waiter.flight = this;
+      waiters.add(waiter);
+      return true;
+    }
+
+    synchronized boolean remove(Waiter waiter) {
+      return waiters != null && waiters.remove(waiter);
+    }
+
+    /** Close the flight to new waiters and return those to complete. */
+    synchronized List<Waiter> complete() {
+      List<Waiter> result = waiters;
+      waiters = null;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,22 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.PARAMETER;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Marks a method parameter whose value is used to tag the call rather than being sent with the
+ * request. All outstanding calls which share a tag can be canceled with
+ * {@link RestAdapter#cancel(Object)}. For example:
+ * <pre>
+ *   &#64;GET("user/{id}")
+ *   void user(@Named("id") String id, @Tag Object screen, Callback&lt;User> callback);
+ * </pre>
+ */
+@Target({ PARAMETER })
+@Retention(RUNTIME)
+public @interface Tag {
+}
@@ -0,0 +1,33 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Time budgets, in milliseconds, for a single method. Values which are not specified fall back to
+ * those set with {@link RestAdapter.Builder#setTimeouts}. A value of zero disables the budget.
+ * <p/>
+ * The {@link #deadline()} budget covers the entire call measured from the moment the method is
+ * invoked, including time spent waiting on the HTTP executor. A call which exceeds its deadline is
+ * aborted and fails with a {@link RetrofitError} for which
+ * {@link RetrofitError#isDeadlineExceeded()} is true.
+ */
+@Target({ METHOD })
+@Retention(RUNTIME)
+public @interface Timeout {
+  /** Value used to indicate a budget should be inherited from the {@link RestAdapter}. */
+  long INHERIT = -1;
+
+  /** Maximum time to establish a connection. */
+  long connect() default INHERIT;
+
+  /** Maximum time to wait for data between reads from the connection. */
+  long read() default INHERIT;
+
+  /** Maximum time for the entire call. */
+  long deadline() default INHERIT;
+}
@@ -0,0 +1,43 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits extra requests to a fraction of ordinary requests. Each ordinary request deposits
+ * {@code ratio} of a token, up to {@code maxTokens}, and each extra request withdraws a whole
+ * token.
+ */
+final class TokenBudget {
+  private static final long SCALE = 1000;
+
+  private final long deposit;
+  private final long max;
+  private final AtomicLong tokens;
+
+  TokenBudget(double ratio, int maxTokens) {
+    this.deposit = (long) (ratio * SCALE);
+    this.max = maxTokens * SCALE;
+    this.tokens = new AtomicLong(max);
+  }
+
+  void deposit() {
+    long current;
+    long next;
+    do {
+      current = tokens.get();
+      next = Math.min(max, current + deposit);
+    } while (current != next && !tokens.compareAndSet(current, next));
+  }
+
+  boolean tryWithdraw() {
+    long current;
+    do {
+      current = tokens.get();
+      if (current < SCALE) {
+        return false;
+      }
+    } while (!tokens.compareAndSet(current, current - SCALE));
+    return true;
+  }
+}
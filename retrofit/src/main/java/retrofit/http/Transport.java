@@ -0,0 +1,34 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+
+/**
+ * Sends HTTP requests on behalf of a {@link RestAdapter}. Implementations must be thread-safe.
+ *
+ * @see ApacheTransport
+ * @see UrlConnectionTransport
+ */
+public interface Transport {
+  /** Prepare to send {@code request}. Nothing is sent until {@link Exchange#execute()}. */
+  Exchange newExchange(Request request);
+
+  /** A single request and its response. */
+  interface Exchange {
+    Request request();
+
+    /**
+     * Send the request and read the entire response. Blocks the calling thread.
+     *
+     * @throws IOException if the request could not be sent, the response could not be read, or
+     * the exchange was canceled.
+     */
+    Response execute() throws IOException;
+
+    /**
+     * Abandon the exchange, from any thread. An {@link #execute()} which is in progress or starts
+     * later throws an {@link IOException}.
+     */
+    void cancel();
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import retrofit.io.TypedBytes;
+
+/**
+ * Sends requests with {@link HttpURLConnection}, which pools connections on its own. This is the
+ * default on Android 2.3 and newer.
+ */
+public final class UrlConnectionTransport implements Transport {
+  private static final int BUFFER_SIZE = 4096;
+
+  @Override public Exchange newExchange(final Request request) {
+    return new Exchange() {
+      private volatile boolean canceled;
+      private volatile HttpURLConnection connection;
+
+      @Override public Request request() {
+        return request;
+      }
+
+      @Override public Response execute() throws IOException {
+        HttpURLConnection connection = openConnection(request);
+        this.connection = connection;
+        if (canceled) {
+          connection.disconnect();
+          throw new IOException("Canceled");
+        }
+        try {
+          return readResponse(connection, request);
+        } catch (IOException e) {
+          connection.disconnect();
+          throw e;
+        }
+      }
+
+      @Override public void cancel() {
+        canceled = true;
+        HttpURLConnection connection = this.connection;
+        if (connection != null) {
+          connection.disconnect();
+        }
+      }
+    };
+  }
+
+  private static HttpURLConnection openConnection(Request request) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(request.getUrl()).openConnection();
+    if (request.getConnectTimeout() != Request.DEFAULT_TIMEOUT) {
+      connection.setConnectTimeout(request.getConnectTimeout());
+    }
+    if (request.getReadTimeout() != Request.DEFAULT_TIMEOUT) {
+      connection.setReadTimeout(request.getReadTimeout());
+    }
+    connection.setRequestMethod(request.getMethod());
+    connection.setDoInput(true);
+    for (Header header : request.getHeaders()) {
+      connection.addRequestProperty(header.getName(), header.getValue());
+    }
+    return connection;
+  }
+
+  private static Response readResponse(HttpURLConnection connection, Request request)
+      throws IOException {
+    TypedBytes body = request.getBody();
+    if (body != null) {
+      connection.setDoOutput(true);
+      if (request.getHeader("Content-Type") == null) {
+        connection.addRequestProperty("Content-Type", body.mimeType().mimeName());
+      }
+      int length = body.length();
+      if (length >= 0) {
+        connection.setFixedLengthStreamingMode(length);
+      } else {
+        connection.setChunkedStreamingMode(BUFFER_SIZE);
+      }
+      OutputStream out = connection.getOutputStream();
+      try {
+        body.writeTo(out);
+      } finally {
+        out.close();
+      }
+    }
+
+    int status = connection.getResponseCode();
+    String reason = connection.getResponseMessage();
+    List<Header> headers = new ArrayList<Header>();
+    for (int i = 0; true; i++) {
+      String value = connection.getHeaderField(i);
+      if (value == null) {
+        break;
+      }
+      String name = connection.getHeaderFieldKey(i);
+      if (name != null) { // The status line has no name.
+        headers.add(new Header(name, value));
+      }
+    }
+
+    InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+    byte[] responseBody = in != null ? readFully(in) : null;
+    return new Response(status, reason, headers, responseBody);
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int count;
+      while ((count = in.read(buffer)) != -1) {
+        out.write(buffer, 0, count);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -2,6 +2,8 @@
 package retrofit.http;
 
 import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -60,6 +62,15 @@ final class Utils {
     return UTF_8;
   }
 
+  /** The headers {@code headers} adds to each request, or none if {@code headers} is null. */
+  static List<Header> getHeaders(Headers headers) {
+    if (headers == null) {
+      return Collections.emptyList();
+    }
+    List<Header> result = headers.get();
+    return result != null ? result : Collections.<Header>emptyList();
+  }
+
   static class SynchronousExecutor implements Executor {
     @Override public void execute(Runnable runnable) {
       runnable.run();
@@ -0,0 +1,150 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class AdaptiveLimitTest {
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int CALLS = 300;
+
+  private LocalServer server;
+
+  @After public void tearDown() {
+    if (server != null) {
+      server.shutdown();
+    }
+  }
+
+  @Test public void growsWhileUtilizedAndHealthy() {
+    AdaptiveLimit limit = new AdaptiveLimit(10, 1, 12);
+    limit.onSample(10 * MILLIS, false, 2); // Mostly idle: no growth.
+    assertThat(limit.get()).isEqualTo(10);
+    limit.onSample(10 * MILLIS, false, 5);
+    assertThat(limit.get()).isEqualTo(11);
+    limit.onSample(10 * MILLIS, false, 10);
+    limit.onSample(10 * MILLIS, false, 10);
+    assertThat(limit.get()).isEqualTo(12); // Capped at the maximum.
+  }
+
+  @Test public void shrinksOnFailure() {
+    AdaptiveLimit limit = new AdaptiveLimit(10, 1, 20);
+    limit.onSample(10 * MILLIS, true, 10);
+    assertThat(limit.get()).isEqualTo(9);
+    for (int i = 0; i < 100; i++) {
+      limit.onSample(10 * MILLIS, true, 10);
+    }
+    assertThat(limit.get()).isEqualTo(1); // Never below the minimum.
+  }
+
+  @Test public void shrinksWhenLatencyClimbs() {
+    AdaptiveLimit limit = new AdaptiveLimit(10, 1, 20);
+    limit.onSample(10 * MILLIS, false, 1);
+    limit.onSample(15 * MILLIS, false, 1); // Within tolerance.
+    assertThat(limit.get()).isEqualTo(10);
+    limit.onSample(50 * MILLIS, false, 10);
+    assertThat(limit.get()).isEqualTo(9);
+  }
+
+  @Test public void eachUrlLearnsItsOwnLimit() {
+    PriorityScheduler scheduler = new PriorityScheduler(new Utils.SynchronousExecutor(), 32, 0);
+    ConcurrencyLimits limits = new ConcurrencyLimits(scheduler, 10, 32);
+    List<String> urls = Arrays.asList("http://a/", "http://b/");
+    limits.onSample("http://a/", 10 * MILLIS, false, 1, urls);
+    limits.onSample("http://b/", 10 * MILLIS, false, 1, urls);
+    assertThat(scheduler.maxConcurrency()).isEqualTo(20);
+
+    for (int i = 0; i < 5; i++) {
+      limits.onSample("http://a/", 10 * MILLIS, true, 10, urls); // Only a is overloaded.
+    }
+    assertThat(limits.get(Collections.singletonList("http://a/"))).isEqualTo(5);
+    assertThat(limits.get(Collections.singletonList("http://b/"))).isEqualTo(10);
+    assertThat(scheduler.maxConcurrency()).isEqualTo(15);
+    assertThat(limits.get(urls)).isEqualTo(15);
+  }
+
+  /**
+   * Goodput of 300 calls, at most 32 at once, against a local server which handles four requests
+   * at once, slows down as more queue behind those, and answers 503 once more than eight are in
+   * flight.
+   */
+  @Test public void adaptiveLimitImprovesGoodputOfOverloadedServer() throws Exception {
+    final AtomicInteger concurrent = new AtomicInteger();
+    server = LocalServer.start(0, new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        int load = concurrent.incrementAndGet();
+        try {
+          if (load > 8) {
+            LocalServer.respond(exchange, 503, "text/plain", new byte[0]);
+            return;
+          }
+          Thread.sleep(5 * Math.max(1, load - 3));
+          LocalServer.respond(exchange, 200, "application/json; charset=UTF-8",
+              "\"ok\"".getBytes("UTF-8"));
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        } finally {
+          concurrent.decrementAndGet();
+        }
+      }
+    });
+    long start = System.nanoTime();
+    int fixed = goodput(new RestAdapter.Builder());
+    long fixedNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    int adapted = goodput(new RestAdapter.Builder().setAdaptiveConcurrency(32));
+    long adaptedNanos = System.nanoTime() - start;
+    Benchmark.report("adaptive concurrency",
+        "%d of %d calls succeeded with a fixed limit of 32 in %.0f ms, %d adaptively in %.0f ms",
+        fixed, CALLS, Benchmark.millis(fixedNanos), adapted, Benchmark.millis(adaptedNanos));
+    assertThat(adapted).isGreaterThan(fixed);
+  }
+
+  private int goodput(RestAdapter.Builder builder) throws InterruptedException {
+    ExecutorService httpExecutor = Executors.newCachedThreadPool();
+    RestAdapter restAdapter = builder //
+        .setServer(server.url() + "api/")
+        .setTransport(new UrlConnectionTransport())
+        .setExecutors(httpExecutor, new Utils.SynchronousExecutor())
+        .setConverter(new GsonConverter(new Gson()))
+        .setMaxConcurrentRequests(32)
+        .build();
+    Service service = restAdapter.create(Service.class);
+
+    final CountDownLatch latch = new CountDownLatch(CALLS);
+    final AtomicInteger successes = new AtomicInteger();
+    for (int i = 0; i < CALLS; i++) {
+      service.get(new Callback<String>() {
+        @Override public void success(String s) {
+          successes.incrementAndGet();
+          latch.countDown();
+        }
+
+        @Override public void failure(RetrofitError error) {
+          latch.countDown();
+        }
+      });
+    }
+    assertThat(latch.await(30, TimeUnit.SECONDS)).isTrue();
+    httpExecutor.shutdown();
+    return successes.get();
+  }
+
+  interface Service {
+    @GET("things") void get(Callback<String> callback);
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+import retrofit.io.MimeType;
+import retrofit.io.TypedByteArray;
+import retrofit.io.TypedBytes;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BatchEnvelopeTest {
+  private static final String BOUNDARY = "batch_boundary";
+
+  @Test public void encodesRequestsAsHttpParts() throws IOException {
+    Request get = new Request("GET", "http://host/api/users/1?fields=name",
+        Arrays.asList(new Header("Authorization", "token")), null);
+    TypedBytes entity = new TypedByteArray("{\"name\":\"jake\"}".getBytes("UTF-8"),
+        new MimeType("application/json", "json"));
+    Request post = new Request("POST", "http://host/api/users", Collections.<Header>emptyList(),
+        entity);
+    List<Request> requests = Arrays.asList(get, post);
+
+    String encoded = new String(BatchEnvelope.encode(requests, BOUNDARY), "UTF-8");
+    assertThat(encoded).isEqualTo(""
+        + "--batch_boundary\r\n"
+        + "Content-Type: application/http\r\n"
+        + "Content-ID: <0>\r\n"
+        + "\r\n"
+        + "GET /api/users/1?fields=name HTTP/1.1\r\n"
+        + "Host: host\r\n"
+        + "Authorization: token\r\n"
+        + "\r\n"
+        + "\r\n"
+        + "--batch_boundary\r\n"
+        + "Content-Type: application/http\r\n"
+        + "Content-ID: <1>\r\n"
+        + "\r\n"
+        + "POST /api/users HTTP/1.1\r\n"
+        + "Host: host\r\n"
+        + "Content-Type: application/json\r\n"
+        + "Content-Length: 15\r\n"
+        + "\r\n"
+        + "{\"name\":\"jake\"}\r\n"
+        + "--batch_boundary--\r\n");
+  }
+
+  @Test public void decodesPartsByContentId() throws IOException {
+    String body = ""
+        + "--batch_boundary\r\n"
+        + "Content-Type: application/http\r\n"
+        + "Content-ID: <response-1>\r\n"
+        + "\r\n"
+        + "HTTP/1.1 404 Not Found\r\n"
+        + "\r\n"
+        + "\r\n"
+        + "--batch_boundary\r\n"
+        + "Content-Type: application/http\r\n"
+        + "Content-ID: <response-0>\r\n"
+        + "\r\n"
+        + "HTTP/1.1 200 OK\r\n"
+        + "Content-Type: application/json; charset=UTF-8\r\n"
+        + "\r\n"
+        + "{\"a\":\"é\"}\r\n"
+        + "--batch_boundary--\r\n";
+
+    BatchEnvelope.Part[] parts = BatchEnvelope.decode(body.getBytes("UTF-8"), BOUNDARY, 2);
+    assertThat(parts[0].statusCode).isEqualTo(200);
+    assertThat(parts[0].headers).containsOnly(
+        new Header("Content-Type", "application/json; charset=UTF-8"));
+    assertThat(new String(parts[0].body, "UTF-8")).isEqualTo("{\"a\":\"é\"}");
+    assertThat(parts[1].statusCode).isEqualTo(404);
+    assertThat(parts[1].body).isEmpty();
+  }
+
+  @Test(expected = IOException.class)
+  public void missingPartFails() throws IOException {
+    String body = ""
+        + "--batch_boundary\r\n"
+        + "Content-Type: application/http\r\n"
+        + "\r\n"
+        + "HTTP/1.1 200 OK\r\n"
+        + "\r\n"
+        + "{}\r\n"
+        + "--batch_boundary--\r\n";
+    BatchEnvelope.decode(body.getBytes("UTF-8"), BOUNDARY, 2);
+  }
+
+  @Test public void parsesBoundary() {
+    assertThat(BatchEnvelope.parseBoundary("multipart/mixed; boundary=abc")).isEqualTo("abc");
+    assertThat(BatchEnvelope.parseBoundary("multipart/mixed; boundary=\"a b\"")).isEqualTo("a b");
+    assertThat(BatchEnvelope.parseBoundary("application/json")).isNull();
+  }
+}
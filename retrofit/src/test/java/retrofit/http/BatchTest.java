@@ -0,0 +1,213 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.inject.Named;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class BatchTest {
+  private static final long RTT_MILLIS = 100;
+  private static final int CALLS = 20;
+  private static final Pattern REQUEST_LINE = Pattern.compile("GET (\\S+) HTTP/1.1");
+
+  /** Paths whose next request fails with 503. */
+  private final Set<String> failOnce =
+      Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  private final List<LocalServer> servers = new ArrayList<LocalServer>();
+
+  @After public void tearDown() {
+    for (LocalServer server : servers) {
+      server.shutdown();
+    }
+  }
+
+  /**
+   * Twenty calls over a link with a 100 ms round trip and four calls in flight at once. Sent
+   * separately they take five round trips; batched they take one.
+   */
+  @Test public void batchingSavesRoundTrips() throws Exception {
+    LocalServer server = startServer(RTT_MILLIS);
+    final RestAdapter separate = newAdapter(server.url(), false).build();
+    final RestAdapter batched = newAdapter(server.url(), true).build();
+
+    long separateNanos = Benchmark.medianNanos(1, 3, new Benchmark.Task() {
+      @Override public void run() throws Exception {
+        callAll(separate, false);
+      }
+    });
+    int requestsBefore = server.requestCount();
+    long batchedNanos = Benchmark.medianNanos(1, 3, new Benchmark.Task() {
+      @Override public void run() throws Exception {
+        callAll(batched, true);
+      }
+    });
+    Benchmark.report("batch", "%d calls at %d ms RTT: separate %.0f ms, batched %.0f ms", CALLS,
+        RTT_MILLIS, Benchmark.millis(separateNanos), Benchmark.millis(batchedNanos));
+    assertThat(server.requestCount() - requestsBefore).isEqualTo(4); // One per run.
+    assertThat(batchedNanos).isLessThan(separateNanos / 2);
+  }
+
+  @Test public void failedPartsAreRetriedAlone() throws Exception {
+    LocalServer server = startServer(0);
+    RestAdapter restAdapter = newAdapter(server.url(), true)
+        .setRetryPolicy(new ExponentialBackoff(2, 1, 1, TimeUnit.MILLISECONDS, 503))
+        .setCircuitBreaker(0.5, 0, 1, TimeUnit.HOURS)
+        .build();
+    failOnce.add("/api/items/1");
+
+    Result[] results = callAll(restAdapter, true, 3);
+    assertThat(results[0].value).isEqualTo("item 0");
+    assertThat(results[1].value).isEqualTo("item 1");
+    assertThat(results[2].value).isEqualTo("item 2");
+    assertThat(server.requestCount()).isEqualTo(2); // The batch, then item 1 alone.
+    assertThat(restAdapter.getCircuitBreakers()).hasSize(1);
+  }
+
+  @Test public void batchIsBoundByTheCallsDeadlines() throws Exception {
+    LocalServer server = startServer(500);
+    RestAdapter restAdapter = newAdapter(server.url(), true)
+        .setTimeouts(0, 0, 100, TimeUnit.MILLISECONDS)
+        .build();
+
+    long start = System.nanoTime();
+    Result[] results = callAll(restAdapter, true, 2);
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(400);
+    for (Result result : results) {
+      assertThat(result.error.isDeadlineExceeded()).isTrue();
+    }
+  }
+
+  @Test public void batchIsSentToASelectedEndpoint() throws Exception {
+    LocalServer a = startServer(0);
+    LocalServer b = startServer(0);
+    LoadBalancedServer server = new LoadBalancedServer(
+        Arrays.asList(a.url() + "api/", b.url() + "api/"), new EndpointSelector.RoundRobin());
+    RestAdapter restAdapter = newAdapter(server, true).build();
+
+    callAll(restAdapter, true, 2);
+    callAll(restAdapter, true, 2);
+    assertThat(a.requestCount()).isEqualTo(1);
+    assertThat(b.requestCount()).isEqualTo(1);
+  }
+
+  private Result[] callAll(RestAdapter restAdapter, boolean batch) throws Exception {
+    Result[] results = callAll(restAdapter, batch, CALLS);
+    for (int i = 0; i < results.length; i++) {
+      assertThat(results[i].value).isEqualTo("item " + i);
+    }
+    return results;
+  }
+
+  private Result[] callAll(RestAdapter restAdapter, boolean batch, int count) throws Exception {
+    Service service = restAdapter.create(Service.class);
+    CountDownLatch latch = new CountDownLatch(count);
+    Result[] results = new Result[count];
+    Batch scope = batch ? restAdapter.beginBatch() : null;
+    for (int i = 0; i < count; i++) {
+      results[i] = new Result(latch);
+      service.item(String.valueOf(i), results[i]);
+    }
+    if (scope != null) {
+      scope.send();
+    }
+    assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    return results;
+  }
+
+  private RestAdapter.Builder newAdapter(String url, boolean batch) {
+    return newAdapter(new Server(url + "api/"), batch);
+  }
+
+  private RestAdapter.Builder newAdapter(Server server, boolean batch) {
+    RestAdapter.Builder builder = new RestAdapter.Builder() //
+        .setServer(server)
+        .setTransport(new UrlConnectionTransport())
+        .setExecutors(Executors.newCachedThreadPool(), new Utils.SynchronousExecutor())
+        .setMaxConcurrentRequests(4)
+        .setConverter(new GsonConverter(new Gson()));
+    if (batch) {
+      builder.setBatchEndpoint("batch");
+    }
+    return builder;
+  }
+
+  /** Answers single item requests, and batches of them as a multipart/mixed response. */
+  private LocalServer startServer(long delayMillis) throws IOException {
+    LocalServer server = LocalServer.start(delayMillis, new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        if (!path.endsWith("/batch")) {
+          byte[] body = item(path).getBytes("UTF-8");
+          int status = failOnce.remove(path) ? 503 : 200;
+          LocalServer.respond(exchange, status, "application/json; charset=UTF-8", body);
+          return;
+        }
+        String request = new String(LocalServer.readBody(exchange), "UTF-8");
+        StringBuilder response = new StringBuilder();
+        Matcher requestLine = REQUEST_LINE.matcher(request);
+        for (int i = 0; requestLine.find(); i++) {
+          String partPath = requestLine.group(1);
+          int status = failOnce.remove(partPath) ? 503 : 200;
+          response.append("--reply\r\n")
+              .append("Content-Type: application/http\r\n")
+              .append("Content-ID: <response-").append(i).append(">\r\n")
+              .append("\r\n")
+              .append("HTTP/1.1 ").append(status).append(" Status\r\n")
+              .append("Content-Type: application/json; charset=UTF-8\r\n")
+              .append("\r\n")
+              .append(item(partPath)).append("\r\n");
+        }
+        response.append("--reply--\r\n");
+        LocalServer.respond(exchange, 200, "multipart/mixed; boundary=reply",
+            response.toString().getBytes("UTF-8"));
+      }
+    });
+    servers.add(server);
+    return server;
+  }
+
+  private static String item(String path) {
+    return "\"item " + path.substring(path.lastIndexOf('/') + 1) + "\"";
+  }
+
+  static final class Result implements Callback<String> {
+    final CountDownLatch latch;
+    volatile String value;
+    volatile RetrofitError error;
+
+    Result(CountDownLatch latch) {
+      this.latch = latch;
+    }
+
+    @Override public void success(String value) {
+      this.value = value;
+      latch.countDown();
+    }
+
+    @Override public void failure(RetrofitError error) {
+      this.error = error;
+      latch.countDown();
+    }
+  }
+
+  interface Service {
+    @GET("items/{id}") void item(@Named("id") String id, Callback<String> callback);
+  }
+}
@@ -0,0 +1,78 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A small timing harness for tests which compare two ways of doing the same work. Each
+ * measurement warms up and then takes the median of several timed runs, so that a single slow run
+ * doesn't decide the comparison. Results are printed for comparison across builds; tests assert
+ * only on margins wide enough to hold on a busy machine.
+ */
+final class Benchmark {
+  /** Work to be measured. */
+  interface Task {
+    void run() throws Exception;
+  }
+
+  private Benchmark() {
+  }
+
+  /** Runs {@code task} {@code warmups} times, then returns the median of {@code runs} timings. */
+  static long medianNanos(int warmups, int runs, Task task) throws Exception {
+    for (int i = 0; i < warmups; i++) {
+      task.run();
+    }
+    long[] timings = new long[runs];
+    for (int i = 0; i < runs; i++) {
+      long start = System.nanoTime();
+      task.run();
+      timings[i] = System.nanoTime() - start;
+    }
+    return percentile(timings, 0.5);
+  }
+
+  /** The value at {@code percentile}, in [0, 1], of {@code values}. Sorts {@code values}. */
+  static long percentile(long[] values, double percentile) {
+    Arrays.sort(values);
+    int index = (int) Math.ceil(values.length * percentile) - 1;
+    return values[Math.max(0, index)];
+  }
+
+  /**
+   * Bytes allocated by the current thread while running {@code task}, or -1 if the JVM doesn't
+   * report allocation.
+   */
+  static long allocatedBytes(Task task) throws Exception {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    Method allocated;
+    try {
+      // Only HotSpot's extension of the management interface reports allocation.
+      Class<?> extension = Class.forName("com.sun.management.ThreadMXBean");
+      if (!extension.isInstance(threads)) {
+        throw new ClassNotFoundException(extension.getName());
+      }
+      allocated = extension.getMethod("getThreadAllocatedBytes", long.class);
+    } catch (Exception e) {
+      task.run();
+      return -1;
+    }
+    long id = Thread.currentThread().getId();
+    long before = (Long) allocated.invoke(threads, id);
+    task.run();
+    return (Long) allocated.invoke(threads, id) - before;
+  }
+
+  /** Print a result as {@code [benchmark] name: result}. */
+  static void report(String name, String format, Object... args) {
+    System.out.println("[benchmark] " + name + ": " + String.format(Locale.US, format, args));
+  }
+
+  static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+}
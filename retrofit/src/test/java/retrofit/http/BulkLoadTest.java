@@ -0,0 +1,359 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.inject.Named;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static retrofit.http.DummyHttpClient.response;
+
+public class BulkLoadTest {
+  private static final long RTT_MILLIS = 100;
+  private static final int CALLS = 20;
+
+  private LocalServer server;
+
+  @After public void tearDown() {
+    if (server != null) {
+      server.shutdown();
+    }
+  }
+
+  @Test public void indexesCollectionsByField() throws Exception {
+    User jake = new User("jake");
+    User bob = new User("bob");
+    Map<String, Object> index = BulkLoad.index(Arrays.asList(jake, bob), "id");
+    assertThat(index).hasSize(2);
+    assertThat(index.get("jake")).isSameAs(jake);
+    assertThat(index.get("bob")).isSameAs(bob);
+  }
+
+  @Test public void indexesArraysByField() throws Exception {
+    User jake = new User("jake");
+    Map<String, Object> index = BulkLoad.index(new User[] { jake }, "id");
+    assertThat(index.get("jake")).isSameAs(jake);
+  }
+
+  @Test public void indexesMapsByKey() throws Exception {
+    Map<String, Object> index = BulkLoad.index(Collections.singletonMap(1, "one"), "");
+    assertThat(index.get("1")).isEqualTo("one");
+  }
+
+  @Test public void concurrentCallsShareBulkRequest() throws Exception {
+    final AtomicReference<String> requested = new AtomicReference<String>();
+    DummyHttpClient client = new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) {
+        requested.set(request.getURI().toString());
+        return response("[{\"id\":\"jake\"},{\"id\":\"bob\"}]");
+      }
+    };
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(client)
+        .setExecutors(SYNCHRONOUS, SYNCHRONOUS)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    final UserService service = restAdapter.create(UserService.class);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<User> jake = executor.submit(new Callable<User>() {
+        @Override public User call() {
+          return service.user("jake");
+        }
+      });
+      Future<User> bob = executor.submit(new Callable<User>() {
+        @Override public User call() {
+          return service.user("bob");
+        }
+      });
+      assertThat(jake.get().id).isEqualTo("jake");
+      assertThat(bob.get().id).isEqualTo("bob");
+    } finally {
+      executor.shutdown();
+    }
+    assertThat(requested.get()).isIn("http://host/api/users?ids=jake%2Cbob",
+        "http://host/api/users?ids=bob%2Cjake");
+    assertThat(restAdapter.getBulkStats().getSizes().getTotalCount()).isEqualTo(1);
+  }
+
+  @Test public void canceledSynchronousCallThrows() throws Exception {
+    DummyHttpClient client = new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) {
+        return response("[{\"id\":\"jake\"},{\"id\":\"bob\"}]");
+      }
+    };
+    final RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(client)
+        .setExecutors(SYNCHRONOUS, SYNCHRONOUS)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    final UserService service = restAdapter.create(UserService.class);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<User> jake = executor.submit(new Callable<User>() {
+        @Override public User call() {
+          return service.taggedUser("jake", "jake");
+        }
+      });
+      Future<User> bob = executor.submit(new Callable<User>() {
+        @Override public User call() {
+          return service.taggedUser("bob", "bob");
+        }
+      });
+      Thread.sleep(50); // Both calls are waiting for the window to close.
+      restAdapter.cancel("jake");
+      try {
+        jake.get();
+        fail("A canceled call must not return.");
+      } catch (ExecutionException e) {
+        assertThat(((RetrofitError) e.getCause()).isCanceled()).isTrue();
+      }
+      assertThat(bob.get().id).isEqualTo("bob");
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test public void cancelByTagAbortsBulkRequest() throws Exception {
+    final CountDownLatch requested = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    DummyHttpClient client = new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) {
+        requested.countDown();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        return response("[{\"id\":\"jake\"},{\"id\":\"bob\"}]");
+      }
+    };
+    final RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(client)
+        .setExecutors(SYNCHRONOUS, SYNCHRONOUS)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    final UserService service = restAdapter.create(UserService.class);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      executor.submit(new Callable<User>() {
+        @Override public User call() {
+          return service.taggedUser("jake", "screen");
+        }
+      });
+      executor.submit(new Callable<User>() {
+        @Override public User call() {
+          return service.taggedUser("bob", "screen");
+        }
+      });
+      assertThat(requested.await(1, TimeUnit.SECONDS)).isTrue();
+      assertThat(restAdapter.activeCallCount()).isEqualTo(3); // Both loads and the bulk request.
+      restAdapter.cancel("screen");
+      assertThat(restAdapter.activeCallCount()).isZero();
+    } finally {
+      release.countDown();
+      executor.shutdown();
+    }
+  }
+
+  @Test public void bulkRequestsHonorRateLimits() throws Exception {
+    final AtomicInteger requests = new AtomicInteger();
+    DummyHttpClient client = new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) {
+        requests.incrementAndGet();
+        return response("[{\"id\":\"jake\"}]");
+      }
+    };
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(client)
+        .setExecutors(SYNCHRONOUS, SYNCHRONOUS)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    RateLimitedUserService service = restAdapter.create(RateLimitedUserService.class);
+
+    long start = System.nanoTime();
+    assertThat(service.user("jake").id).isEqualTo("jake");
+    assertThat(service.user("jake").id).isEqualTo("jake");
+    long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    assertThat(requests.get()).isEqualTo(2);
+    assertThat(elapsedMillis).isGreaterThanOrEqualTo(200); // The second waits for a permit.
+  }
+
+  @Test public void keylessCollectionResponseIsRejectedUpFront() {
+    DummyHttpClient client = new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) {
+        return response("{\"jake\":{\"id\":\"jake\"}}");
+      }
+    };
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(client)
+        .setExecutors(SYNCHRONOUS, SYNCHRONOUS)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    KeylessService service = restAdapter.create(KeylessService.class);
+    try {
+      service.user("jake");
+      fail("A bulk method returning a list needs a key field.");
+    } catch (IllegalStateException expected) {
+      assertThat(expected.getMessage()).contains("needs a key field");
+    }
+    assertThat(service.userByMap("jake").id).isEqualTo("jake"); // Maps are indexed by their keys.
+  }
+
+  /**
+   * Twenty asynchronous calls over a link with a 100 ms round trip and four calls in flight at
+   * once. Loaded one by one they take five round trips; merged they take one after the window.
+   */
+  @Test public void bulkLoadingSavesRoundTrips() throws Exception {
+    server = LocalServer.start(RTT_MILLIS, new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String ids = exchange.getRequestURI().getQuery();
+        StringBuilder json = new StringBuilder();
+        if (ids == null) {
+          json.append("{\"id\":\"").append(path.substring(path.lastIndexOf('/') + 1))
+              .append("\"}");
+        } else {
+          json.append('[');
+          for (String id : ids.substring("ids=".length()).split(",")) {
+            if (json.length() > 1) json.append(',');
+            json.append("{\"id\":\"").append(id).append("\"}");
+          }
+          json.append(']');
+        }
+        LocalServer.respond(exchange, 200, "application/json; charset=UTF-8",
+            json.toString().getBytes("UTF-8"));
+      }
+    });
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer(server.url() + "api/")
+        .setTransport(new UrlConnectionTransport())
+        .setExecutors(Executors.newCachedThreadPool(), SYNCHRONOUS)
+        .setMaxConcurrentRequests(4)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    final RemoteUserService service = restAdapter.create(RemoteUserService.class);
+
+    long separateNanos = Benchmark.medianNanos(1, 3, new Benchmark.Task() {
+      @Override public void run() throws Exception {
+        loadAll(service, false);
+      }
+    });
+    int requestsBefore = server.requestCount();
+    long bulkNanos = Benchmark.medianNanos(1, 3, new Benchmark.Task() {
+      @Override public void run() throws Exception {
+        loadAll(service, true);
+      }
+    });
+    Benchmark.report("bulk", "%d loads at %d ms RTT: separate %.0f ms, bulk %.0f ms", CALLS,
+        RTT_MILLIS, Benchmark.millis(separateNanos), Benchmark.millis(bulkNanos));
+    assertThat(server.requestCount() - requestsBefore).isEqualTo(4); // One per run.
+    assertThat(bulkNanos).isLessThan(separateNanos / 2);
+  }
+
+  private static void loadAll(RemoteUserService service, boolean bulk) throws Exception {
+    final CountDownLatch latch = new CountDownLatch(CALLS);
+    final User[] users = new User[CALLS];
+    for (int i = 0; i < CALLS; i++) {
+      final int index = i;
+      Callback<User> callback = new Callback<User>() {
+        @Override public void success(User user) {
+          users[index] = user;
+          latch.countDown();
+        }
+
+        @Override public void failure(RetrofitError error) {
+          latch.countDown();
+        }
+      };
+      if (bulk) {
+        service.user(String.valueOf(i), callback);
+      } else {
+        service.userAlone(String.valueOf(i), callback);
+      }
+    }
+    assertThat(latch.await(10, TimeUnit.SECONDS)).isTrue();
+    for (int i = 0; i < CALLS; i++) {
+      assertThat(users[i].id).isEqualTo(String.valueOf(i));
+    }
+  }
+
+  interface UserService {
+    @GET("users/{id}") @Bulk(method = "users", key = "id", window = 200)
+    User user(@Named("id") String id);
+
+    @GET("users/{id}") @Bulk(method = "users", key = "id", window = 200)
+    User taggedUser(@Named("id") String id, @Tag Object tag);
+
+    @GET("users") List<User> users(@Named("ids") String ids);
+  }
+
+  interface RateLimitedUserService {
+    @GET("users/{id}") @Bulk(method = "users", key = "id", window = 10)
+    User user(@Named("id") String id);
+
+    @GET("users") @RateLimit(5) List<User> users(@Named("ids") String ids);
+  }
+
+  interface KeylessService {
+    @GET("users/{id}") @Bulk(method = "users") User user(@Named("id") String id);
+
+    @GET("users") List<User> users(@Named("ids") String ids);
+
+    @GET("users/{id}") @Bulk(method = "usersByMap") User userByMap(@Named("id") String id);
+
+    @GET("users") Map<String, User> usersByMap(@Named("ids") String ids);
+  }
+
+  interface RemoteUserService {
+    @GET("users/{id}") @Bulk(method = "users", key = "id", window = 20)
+    void user(@Named("id") String id, Callback<User> callback);
+
+    @GET("users/{id}") void userAlone(@Named("id") String id, Callback<User> callback);
+
+    @GET("users") List<User> users(@Named("ids") String ids);
+  }
+
+  static class User {
+    final String id;
+
+    User(String id) {
+      this.id = id;
+    }
+  }
+
+  private static final Executor SYNCHRONOUS = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+}
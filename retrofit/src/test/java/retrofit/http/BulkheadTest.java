@@ -0,0 +1,100 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class BulkheadTest {
+  private final List<Runnable> started = new ArrayList<Runnable>();
+  private final List<RetrofitError> failures = new ArrayList<RetrofitError>();
+  private final Callback<String> callback = new Callback<String>() {
+    @Override public void success(String s) {
+      throw new AssertionError();
+    }
+
+    @Override public void failure(RetrofitError error) {
+      failures.add(error);
+    }
+  };
+  private RestAdapter restAdapter;
+
+  @Before public void setUp() {
+    Executor httpExecutor = new Executor() {
+      @Override public void execute(Runnable command) {
+        started.add(command); // Never run, so that calls stay active.
+      }
+    };
+    restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(new DummyHttpClient())
+        .setExecutors(httpExecutor, null)
+        .setConverter(new GsonConverter(new Gson()))
+        .addBulkhead("reports", 1, 1)
+        .addBulkhead("monthly", 1, 1)
+        .build();
+  }
+
+  @Test public void bulkheadLimitsItsOwnCalls() {
+    Reports reports = restAdapter.create(Reports.class);
+    reports.daily(callback);
+    reports.daily(callback);
+    assertThat(failures).isEmpty();
+    reports.daily(callback);
+    assertThat(failures).hasSize(1);
+    assertThat(failures.get(0).isBulkheadFull()).isTrue();
+
+    BulkheadStats stats = restAdapter.getBulkheadStats("reports");
+    assertThat(stats.getActiveCount()).isEqualTo(1);
+    assertThat(stats.getQueuedCount()).isEqualTo(1);
+    assertThat(stats.getRejectedCount()).isEqualTo(1);
+    assertThat(started).hasSize(1);
+
+    // Other interfaces use the shared pool and are unaffected.
+    restAdapter.create(Checkout.class).pay(callback);
+    assertThat(started).hasSize(2);
+    assertThat(failures).hasSize(1);
+  }
+
+  @Test public void methodAnnotationOverridesInterface() {
+    Reports reports = restAdapter.create(Reports.class);
+    reports.daily(callback);
+    reports.daily(callback);
+    reports.weekly(callback);
+    assertThat(failures).hasSize(1);
+    assertThat(failures.get(0).isBulkheadFull()).isTrue();
+    reports.monthly(callback);
+    assertThat(failures).hasSize(1);
+  }
+
+  @Test public void unknownBulkheadFails() {
+    try {
+      restAdapter.create(Unknown.class).get(callback);
+      fail("IllegalStateException expected.");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Bulkhead("reports")
+  interface Reports {
+    @GET("daily") void daily(Callback<String> callback);
+
+    @GET("weekly") void weekly(Callback<String> callback);
+
+    @GET("monthly") @Bulkhead("monthly") void monthly(Callback<String> callback);
+  }
+
+  interface Checkout {
+    @POST("pay") void pay(Callback<String> callback);
+  }
+
+  interface Unknown {
+    @GET("things") @Bulkhead("missing") void get(Callback<String> callback);
+  }
+}
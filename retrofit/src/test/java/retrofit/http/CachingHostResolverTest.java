@@ -0,0 +1,170 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class CachingHostResolverTest {
+  private final FakeResolver fake = new FakeResolver();
+  private final List<Runnable> refreshes = new ArrayList<Runnable>();
+  private final Executor refreshExecutor = new Executor() {
+    @Override public void execute(Runnable command) {
+      refreshes.add(command);
+    }
+  };
+
+  @Test public void cachesAddressesUntilTtl() throws Exception {
+    fake.put("example.com", address(10, 0, 0, 1));
+    CachingHostResolver resolver =
+        new CachingHostResolver(fake, refreshExecutor, 100, 0, TimeUnit.MILLISECONDS);
+
+    assertThat(resolver.resolve("example.com")).containsOnly(address(10, 0, 0, 1));
+    assertThat(resolver.resolve("example.com")).containsOnly(address(10, 0, 0, 1));
+    assertThat(fake.lookups.get()).isEqualTo(1);
+
+    fake.put("example.com", address(10, 0, 0, 2));
+    Thread.sleep(150);
+    assertThat(resolver.resolve("example.com")).containsOnly(address(10, 0, 0, 2));
+    assertThat(fake.lookups.get()).isEqualTo(2);
+  }
+
+  @Test public void cachesFailures() throws Exception {
+    CachingHostResolver resolver =
+        new CachingHostResolver(fake, refreshExecutor, 1, 100, TimeUnit.SECONDS);
+    for (int i = 0; i < 3; i++) {
+      try {
+        resolver.resolve("missing.example.com");
+        fail();
+      } catch (UnknownHostException expected) {
+        assertThat(expected.getMessage()).isEqualTo("missing.example.com");
+      }
+    }
+    assertThat(fake.lookups.get()).isEqualTo(1);
+
+    resolver.clear();
+    fake.put("missing.example.com", address(10, 0, 0, 1));
+    assertThat(resolver.resolve("missing.example.com")).containsOnly(address(10, 0, 0, 1));
+  }
+
+  @Test public void refreshesInBackgroundBeforeExpiry() throws Exception {
+    fake.put("example.com", address(10, 0, 0, 1));
+    CachingHostResolver resolver =
+        new CachingHostResolver(fake, refreshExecutor, 200, 0, TimeUnit.MILLISECONDS);
+    resolver.resolve("example.com");
+
+    Thread.sleep(160); // Past three quarters of the TTL.
+    fake.put("example.com", address(10, 0, 0, 2));
+    assertThat(resolver.resolve("example.com")).containsOnly(address(10, 0, 0, 1));
+    assertThat(resolver.resolve("example.com")).containsOnly(address(10, 0, 0, 1));
+    assertThat(refreshes).hasSize(1);
+    assertThat(fake.lookups.get()).isEqualTo(1); // Lookups didn't wait.
+
+    refreshes.get(0).run();
+    assertThat(resolver.resolve("example.com")).containsOnly(address(10, 0, 0, 2));
+    assertThat(fake.lookups.get()).isEqualTo(2);
+  }
+
+  @Test public void failedRefreshKeepsCachedAddresses() throws Exception {
+    fake.put("example.com", address(10, 0, 0, 1));
+    CachingHostResolver resolver =
+        new CachingHostResolver(fake, refreshExecutor, 200, 0, TimeUnit.MILLISECONDS);
+    resolver.resolve("example.com");
+
+    Thread.sleep(160);
+    fake.remove("example.com");
+    resolver.resolve("example.com");
+    refreshes.get(0).run();
+    assertThat(resolver.resolve("example.com")).containsOnly(address(10, 0, 0, 1));
+  }
+
+  @Test public void rotatesPastAddressesWhichFailToConnect() throws Exception {
+    InetAddress a = address(10, 0, 0, 1);
+    InetAddress b = address(10, 0, 0, 2);
+    InetAddress c = address(10, 0, 0, 3);
+    fake.put("example.com", a, b, c);
+    CachingHostResolver resolver =
+        new CachingHostResolver(fake, refreshExecutor, 1, 0, TimeUnit.MINUTES);
+
+    assertThat(resolver.resolve("example.com")).isEqualTo(new InetAddress[] { a, b, c });
+    resolver.connectFailed("example.com", a);
+    assertThat(resolver.resolve("example.com")).isEqualTo(new InetAddress[] { b, c, a });
+    resolver.connectFailed("example.com", a); // Already rotated by another connection.
+    assertThat(resolver.resolve("example.com")).isEqualTo(new InetAddress[] { b, c, a });
+    resolver.connectFailed("example.com", b);
+    resolver.connectFailed("example.com", c);
+    assertThat(resolver.resolve("example.com")).isEqualTo(new InetAddress[] { a, b, c });
+  }
+
+  @Test public void connectionsFailOverToNextAddress() throws Exception {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+      }
+    });
+    server.start();
+    // Nothing listens on 127.0.0.2 so connections to it are refused.
+    InetAddress refusing = address(127, 0, 0, 2);
+    InetAddress listening = address(127, 0, 0, 1);
+    fake.put("api.example.com", refusing, listening);
+    CachingHostResolver resolver =
+        new CachingHostResolver(fake, refreshExecutor, 1, 0, TimeUnit.MINUTES);
+    ConnectionPool pool = new ConnectionPool(4, 4, 30, TimeUnit.SECONDS, resolver);
+    try {
+      String url = "http://api.example.com:" + server.getAddress().getPort() + "/";
+      HttpResponse response = pool.clientProvider().get().execute(new HttpGet(url));
+      assertThat(response.getStatusLine().getStatusCode()).isEqualTo(204);
+      assertThat(resolver.resolve("api.example.com"))
+          .isEqualTo(new InetAddress[] { listening, refusing });
+    } finally {
+      pool.shutdown();
+      server.stop(0);
+    }
+  }
+
+  private static InetAddress address(int a, int b, int c, int d) throws UnknownHostException {
+    return InetAddress.getByAddress(new byte[] { (byte) a, (byte) b, (byte) c, (byte) d });
+  }
+
+  /** Resolves hosts from memory. */
+  static class FakeResolver implements HostResolver {
+    final AtomicInteger lookups = new AtomicInteger();
+    private final Map<String, InetAddress[]> hosts = new ConcurrentHashMap<String, InetAddress[]>();
+
+    void put(String host, InetAddress... addresses) {
+      hosts.put(host, addresses);
+    }
+
+    void remove(String host) {
+      hosts.remove(host);
+    }
+
+    @Override public InetAddress[] resolve(String host) throws UnknownHostException {
+      lookups.incrementAndGet();
+      InetAddress[] addresses = hosts.get(host);
+      if (addresses == null) {
+        throw new UnknownHostException(host);
+      }
+      return addresses;
+    }
+  }
+}
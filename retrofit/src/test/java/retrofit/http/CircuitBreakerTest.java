@@ -0,0 +1,149 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static retrofit.http.CircuitBreaker.PERMITTED;
+import static retrofit.http.CircuitBreaker.REJECTED;
+import static retrofit.http.CircuitBreaker.State.CLOSED;
+import static retrofit.http.CircuitBreaker.State.HALF_OPEN;
+import static retrofit.http.CircuitBreaker.State.OPEN;
+import static retrofit.http.CircuitBreaker.TRIAL;
+
+public class CircuitBreakerTest {
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final List<String> transitions = new ArrayList<String>();
+  private final CircuitBreaker.Listener listener = new CircuitBreaker.Listener() {
+    @Override public void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from,
+        CircuitBreaker.State to) {
+      transitions.add(from + "->" + to);
+    }
+  };
+
+  @Test public void opensOnceFailureRateReached() {
+    CircuitBreaker breaker = breaker(TimeUnit.HOURS.toNanos(1));
+    for (int i = 0; i < 4; i++) {
+      breaker.record(breaker.tryAcquire(), true, 0);
+    }
+    assertThat(breaker.getState()).isEqualTo(CLOSED); // Too few calls to judge.
+    breaker.record(breaker.tryAcquire(), false, 0);
+    assertThat(breaker.getState()).isEqualTo(OPEN);
+    assertThat(breaker.getFailureRate()).isEqualTo(0.8);
+    assertThat(breaker.tryAcquire()).isEqualTo(REJECTED);
+    assertThat(transitions).containsExactly("CLOSED->OPEN");
+  }
+
+  @Test public void slowCallsOpenCircuit() {
+    CircuitBreaker breaker = breaker(TimeUnit.HOURS.toNanos(1));
+    for (int i = 0; i < 5; i++) {
+      breaker.record(breaker.tryAcquire(), false, SLOW);
+    }
+    assertThat(breaker.getState()).isEqualTo(OPEN);
+    assertThat(breaker.getSlowCallRate()).isEqualTo(1.0);
+  }
+
+  @Test public void oldOutcomesSlideOutOfWindow() {
+    CircuitBreaker breaker = breaker(TimeUnit.HOURS.toNanos(1));
+    for (int i = 0; i < 2; i++) {
+      breaker.record(PERMITTED, true, 0);
+    }
+    assertThat(breaker.getFailureRate()).isEqualTo(1.0);
+    for (int i = 0; i < 10; i++) {
+      breaker.record(PERMITTED, false, 0);
+    }
+    assertThat(breaker.getFailureRate()).isZero();
+    assertThat(breaker.getState()).isEqualTo(CLOSED);
+  }
+
+  @Test public void trialSuccessCloses() throws Exception {
+    CircuitBreaker breaker = breaker(0);
+    trip(breaker);
+    int permit = breaker.tryAcquire();
+    assertThat(permit).isEqualTo(TRIAL);
+    assertThat(breaker.getState()).isEqualTo(HALF_OPEN);
+    assertThat(breaker.tryAcquire()).isEqualTo(REJECTED); // Only one trial at a time.
+    breaker.record(permit, false, 0);
+    assertThat(breaker.getState()).isEqualTo(CLOSED);
+    assertThat(breaker.getFailureRate()).isZero();
+    assertThat(transitions).containsExactly("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED");
+  }
+
+  @Test public void trialFailureReopens() throws Exception {
+    CircuitBreaker breaker = breaker(0);
+    trip(breaker);
+    breaker.record(breaker.tryAcquire(), true, 0);
+    assertThat(breaker.getState()).isEqualTo(OPEN);
+    assertThat(transitions).containsExactly("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->OPEN");
+  }
+
+  @Test public void lateFailuresDoNotExtendTheOpenPeriod() throws Exception {
+    CircuitBreaker breaker = breaker(TimeUnit.MILLISECONDS.toNanos(100));
+    trip(breaker);
+    Thread.sleep(60);
+    breaker.record(PERMITTED, true, 0); // A call permitted before the circuit opened.
+    assertThat(breaker.tryAcquire()).isEqualTo(REJECTED);
+    Thread.sleep(60);
+    assertThat(breaker.tryAcquire()).isEqualTo(TRIAL);
+    assertThat(transitions).containsExactly("CLOSED->OPEN", "OPEN->HALF_OPEN");
+  }
+
+  @Test public void openCircuitRejectsWithoutRequest() {
+    final AtomicInteger requests = new AtomicInteger();
+    Service service = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(new DummyHttpClient() {
+          @Override public HttpResponse execute(HttpUriRequest request) throws IOException {
+            requests.incrementAndGet();
+            throw new IOException("Connection refused");
+          }
+        })
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new GsonConverter(new Gson()))
+        .setCircuitBreaker(0.5, 0, 1, TimeUnit.HOURS)
+        .setCircuitBreakerListener(listener)
+        .build()
+        .create(Service.class);
+    for (int i = 0; i < 20; i++) {
+      try {
+        service.get();
+        fail("RetrofitError expected.");
+      } catch (RetrofitError e) {
+        assertThat(e.isNetworkError()).isTrue();
+      }
+    }
+    try {
+      service.get();
+      fail("RetrofitError expected.");
+    } catch (RetrofitError e) {
+      assertThat(e.isCircuitOpen()).isTrue();
+    }
+    assertThat(requests.get()).isEqualTo(20);
+    assertThat(transitions).containsExactly("CLOSED->OPEN");
+  }
+
+  private CircuitBreaker breaker(long openNanos) {
+    return new CircuitBreaker("test", new CircuitBreaker.Policy(10, 5, 0.5, SLOW, openNanos),
+        listener);
+  }
+
+  private static void trip(CircuitBreaker breaker) {
+    for (int i = 0; i < 5; i++) {
+      breaker.record(PERMITTED, true, 0);
+    }
+  }
+
+  interface Service {
+    @GET("things") String get();
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class CoalescingExecutorTest {
+  private static final int COMPLETIONS = 1000;
+
+  private final List<Runnable> posted = new ArrayList<Runnable>();
+  private final Executor delegate = new Executor() {
+    @Override public void execute(Runnable command) {
+      posted.add(command);
+    }
+  };
+
+  @Test public void completionsShareOnePost() {
+    CoalescingExecutor executor = new CoalescingExecutor(delegate, TimeUnit.SECONDS.toNanos(10));
+    final int[] ran = new int[1];
+    for (int i = 0; i < 1000; i++) {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          ran[0]++;
+        }
+      });
+    }
+    assertThat(posted).hasSize(1);
+
+    posted.remove(0).run();
+    assertThat(ran[0]).isEqualTo(1000);
+    assertThat(posted).isEmpty();
+
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        ran[0]++;
+      }
+    });
+    assertThat(posted).hasSize(1);
+  }
+
+  /**
+   * A thousand completions delivered to a single callback thread, standing in for Android's main
+   * thread, posted one at a time and coalesced.
+   */
+  @Test public void coalescedCompletionsBenchmark() throws Exception {
+    ExecutorService mainThread = Executors.newSingleThreadExecutor();
+    try {
+      AtomicInteger directPosts = new AtomicInteger();
+      AtomicInteger coalescedPosts = new AtomicInteger();
+      Executor direct = countingPosts(mainThread, directPosts);
+      Executor coalesced =
+          new CoalescingExecutor(countingPosts(mainThread, coalescedPosts), Long.MAX_VALUE);
+
+      long directNanos = Benchmark.medianNanos(3, 11, completions(direct));
+      long coalescedNanos = Benchmark.medianNanos(3, 11, completions(coalesced));
+      int runs = 14;
+      Benchmark.report("callback coalescing",
+          "%d completions: direct %.2f ms and %d posts, coalesced %.2f ms and %.1f posts",
+          COMPLETIONS, Benchmark.millis(directNanos), directPosts.get() / runs,
+          Benchmark.millis(coalescedNanos), coalescedPosts.get() / (double) runs);
+      assertThat(directPosts.get()).isEqualTo(runs * COMPLETIONS);
+      assertThat(coalescedPosts.get()).isLessThan(runs * COMPLETIONS / 10);
+    } finally {
+      mainThread.shutdown();
+    }
+  }
+
+  private static Executor countingPosts(final Executor delegate, final AtomicInteger posts) {
+    return new Executor() {
+      @Override public void execute(Runnable command) {
+        posts.incrementAndGet();
+        delegate.execute(command);
+      }
+    };
+  }
+
+  /** Complete {@link #COMPLETIONS} callbacks on {@code executor} and wait for all to run. */
+  private static Benchmark.Task completions(final Executor executor) {
+    return new Benchmark.Task() {
+      @Override public void run() throws Exception {
+        final CountDownLatch done = new CountDownLatch(COMPLETIONS);
+        Runnable callback = new Runnable() {
+          @Override public void run() {
+            done.countDown();
+          }
+        };
+        for (int i = 0; i < COMPLETIONS; i++) {
+          executor.execute(callback);
+        }
+        assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+      }
+    };
+  }
+
+  @Test public void batchYieldsAfterTimeCap() {
+    CoalescingExecutor executor = new CoalescingExecutor(delegate, 1);
+    final List<String> ran = new ArrayList<String>();
+    for (final String name : new String[] { "a", "b", "c" }) {
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          ran.add(name);
+        }
+      });
+    }
+    posted.remove(0).run();
+    assertThat(ran).containsExactly("a");
+    assertThat(posted).hasSize(1);
+
+    posted.remove(0).run();
+    posted.remove(0).run();
+    assertThat(ran).containsExactly("a", "b", "c");
+    assertThat(posted).isEmpty();
+  }
+
+  @Test public void failingTaskDoesNotStallQueue() {
+    CoalescingExecutor executor = new CoalescingExecutor(delegate, TimeUnit.SECONDS.toNanos(10));
+    final boolean[] ran = new boolean[1];
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        throw new IllegalStateException("boom");
+      }
+    });
+    executor.execute(new Runnable() {
+      @Override public void run() {
+        ran[0] = true;
+      }
+    });
+    try {
+      posted.remove(0).run();
+    } catch (IllegalStateException expected) {
+    }
+    assertThat(ran[0]).isFalse();
+    assertThat(posted).hasSize(1);
+    posted.remove(0).run();
+    assertThat(ran[0]).isTrue();
+  }
+}
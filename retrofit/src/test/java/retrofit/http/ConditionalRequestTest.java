@@ -0,0 +1,229 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit.io.TypedBytes;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class ConditionalRequestTest {
+  private final List<Request> requests = new ArrayList<Request>();
+  private final AtomicInteger conversions = new AtomicInteger();
+  private String etag;
+  private String lastModified;
+  private String body;
+  private boolean alwaysNotModified;
+  private Service service;
+  private RestAdapter restAdapter;
+
+  @Before public void setUp() {
+    restAdapter = newAdapter(true);
+    service = restAdapter.create(Service.class);
+  }
+
+  @Test public void notModifiedReturnsThePreviousResultWithoutConverting() {
+    etag = "\"v1\"";
+    body = "{\"name\":\"catalog\"}";
+    Catalog first = service.catalog();
+    assertThat(first.name).isEqualTo("catalog");
+    assertThat(requests.get(0).getHeader("If-None-Match")).isNull();
+
+    Catalog second = service.catalog();
+    assertThat(requests.get(1).getHeader("If-None-Match")).isEqualTo("\"v1\"");
+    assertThat(second).isSameAs(first);
+    assertThat(conversions.get()).isEqualTo(1);
+    assertThat(restAdapter.getNotModifiedCount()).isEqualTo(1);
+
+    // The catalog changes, so it is downloaded and remembered with its new validator.
+    etag = "\"v2\"";
+    body = "{\"name\":\"updated\"}";
+    Catalog third = service.catalog();
+    assertThat(third.name).isEqualTo("updated");
+    assertThat(service.catalog()).isSameAs(third);
+    assertThat(requests.get(3).getHeader("If-None-Match")).isEqualTo("\"v2\"");
+    assertThat(conversions.get()).isEqualTo(2);
+  }
+
+  @Test public void lastModifiedIsSentAsIfModifiedSince() {
+    lastModified = "Sat, 01 Jan 2000 00:00:00 GMT";
+    body = "{\"name\":\"catalog\"}";
+    Catalog first = service.catalog();
+    assertThat(service.catalog()).isSameAs(first);
+    assertThat(requests.get(1).getHeader("If-Modified-Since")).isEqualTo(lastModified);
+    assertThat(requests.get(1).getHeader("If-None-Match")).isNull();
+  }
+
+  @Test public void responsesWithoutValidatorsAreForgotten() {
+    etag = "\"v1\"";
+    body = "{\"name\":\"catalog\"}";
+    service.catalog();
+    etag = null;
+    body = "{\"name\":\"unversioned\"}";
+    service.catalog(); // The server didn't match the tag, and sent no new one.
+    service.catalog();
+    assertThat(requests.get(2).getHeader("If-None-Match")).isNull();
+    assertThat(conversions.get()).isEqualTo(3);
+  }
+
+  @Test public void resultsAreRememberedPerReturnType() {
+    etag = "\"v1\"";
+    body = "{\"name\":\"catalog\"}";
+    service.catalog();
+    service.catalogJson();
+    assertThat(requests.get(1).getHeader("If-None-Match")).isNull();
+  }
+
+  @Test public void notModifiedWithoutARememberedResultIsAnError() {
+    Service uncached = newAdapter(false).create(Service.class);
+    etag = "\"v1\"";
+    alwaysNotModified = true;
+    try {
+      uncached.catalog();
+      fail("RetrofitError expected.");
+    } catch (RetrofitError e) {
+      assertThat(e.getStatusCode()).isEqualTo(304);
+    }
+    assertThat(requests.get(0).getHeader("If-None-Match")).isNull();
+  }
+
+  @Test public void notModifiedIsNotOfferedToTheResponseCache() {
+    final List<Integer> offered = new ArrayList<Integer>();
+    ResponseCache responseCache = new ResponseCache() {
+      @Override public Response get(Request request) {
+        return null; // Always stale, so every call is revalidated.
+      }
+
+      @Override public void put(Request request, Response response) {
+        offered.add(response.getStatus());
+      }
+
+      @Override public void evictAll() {
+      }
+
+      @Override public ResponseCacheStats getStats() {
+        throw new UnsupportedOperationException();
+      }
+    };
+    Service cached = newAdapter(true, responseCache).create(Service.class);
+    etag = "\"v1\"";
+    body = "{\"name\":\"catalog\"}";
+    Catalog first = cached.catalog();
+    assertThat(cached.catalog()).isSameAs(first);
+    assertThat(offered).containsExactly(200); // A 304 would evict the stored response.
+  }
+
+  @Test public void notModifiedResultIsCopiedLikeAConversionCacheHit() {
+    ConversionCache conversionCache = new ConversionCache(1, TimeUnit.MINUTES, 1024,
+        new ConversionCache.Copier() {
+          @Override public Object copy(Object value, Type type) {
+            Catalog copy = new Catalog();
+            copy.name = ((Catalog) value).name;
+            return copy;
+          }
+        });
+    Service copied = newAdapter(true, null, conversionCache).create(Service.class);
+    etag = "\"v1\"";
+    body = "{\"name\":\"catalog\"}";
+    Catalog first = copied.catalog();
+    first.name = "mutated";
+    Catalog second = copied.catalog();
+    assertThat(requests.get(1).getHeader("If-None-Match")).isEqualTo("\"v1\"");
+    assertThat(second).isNotSameAs(first);
+    assertThat(second.name).isEqualTo("catalog");
+    second.name = "mutated again";
+    assertThat(copied.catalog().name).isEqualTo("catalog");
+    assertThat(conversions.get()).isEqualTo(1);
+  }
+
+  private RestAdapter newAdapter(boolean conditional) {
+    return newAdapter(conditional, null);
+  }
+
+  private RestAdapter newAdapter(boolean conditional, ResponseCache responseCache) {
+    return newAdapter(conditional, responseCache, null);
+  }
+
+  private RestAdapter newAdapter(boolean conditional, ResponseCache responseCache,
+      ConversionCache conversionCache) {
+    final GsonConverter gson = new GsonConverter(new Gson());
+    RestAdapter.Builder builder = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setTransport(new Transport() {
+          @Override public Exchange newExchange(final Request request) {
+            return new Exchange() {
+              @Override public Request request() {
+                return request;
+              }
+
+              @Override public Response execute() throws IOException {
+                return respond(request);
+              }
+
+              @Override public void cancel() {
+              }
+            };
+          }
+        })
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new Converter() {
+          @Override public Object to(byte[] body, Type type) throws ConversionException {
+            conversions.incrementAndGet();
+            return gson.to(body, type);
+          }
+
+          @Override public TypedBytes from(Object object) {
+            return gson.from(object);
+          }
+        });
+    if (conditional) {
+      builder.setConditionalCacheSize(10);
+    }
+    if (responseCache != null) {
+      builder.setResponseCache(responseCache);
+    }
+    if (conversionCache != null) {
+      builder.setConversionCache(conversionCache);
+    }
+    return builder.build();
+  }
+
+  /** Answers as a server would, honoring the conditional headers. */
+  private synchronized Response respond(Request request) throws IOException {
+    requests.add(request);
+    List<Header> headers = new ArrayList<Header>();
+    if (etag != null) {
+      headers.add(new Header("ETag", etag));
+    }
+    if (lastModified != null) {
+      headers.add(new Header("Last-Modified", lastModified));
+    }
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    String ifModifiedSince = request.getHeader("If-Modified-Since");
+    if (alwaysNotModified
+        || (ifNoneMatch != null && ifNoneMatch.equals(etag))
+        || (ifNoneMatch == null && ifModifiedSince != null
+        && ifModifiedSince.equals(lastModified))) {
+      return new Response(304, "Not Modified", headers, new byte[0]);
+    }
+    headers.add(new Header("Content-Type", "application/json; charset=UTF-8"));
+    return new Response(200, "OK", headers, body.getBytes("UTF-8"));
+  }
+
+  static class Catalog {
+    String name;
+  }
+
+  interface Service {
+    @GET("catalog") Catalog catalog();
+    @GET("catalog") Object catalogJson();
+  }
+}
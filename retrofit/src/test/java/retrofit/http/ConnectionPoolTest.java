@@ -0,0 +1,300 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class ConnectionPoolTest {
+  private static final int THREADS = 256;
+  private static final int REQUESTS_PER_THREAD = 10;
+
+  private final AtomicInteger maxConcurrent = new AtomicInteger();
+  private HttpServer server;
+  private ConnectionPool pool;
+  private String url;
+
+  @Before public void setUp() throws IOException {
+    startServer(0);
+    url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  private void startServer(int port) throws IOException {
+    final AtomicInteger concurrent = new AtomicInteger();
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), THREADS);
+    server.createContext("/", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        int current = concurrent.incrementAndGet();
+        int max;
+        while (current > (max = maxConcurrent.get())) {
+          if (maxConcurrent.compareAndSet(max, current)) break;
+        }
+        try {
+          byte[] body = "\"ok\"".getBytes("UTF-8");
+          exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+          exchange.sendResponseHeaders(200, body.length);
+          OutputStream out = exchange.getResponseBody();
+          out.write(body);
+          out.close();
+        } finally {
+          concurrent.decrementAndGet();
+        }
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+  }
+
+  @After public void tearDown() {
+    if (pool != null) {
+      pool.shutdown();
+    }
+    server.stop(0);
+  }
+
+  @Test public void concurrentRequestsShareBoundedConnections() throws Exception {
+    pool = new ConnectionPool(16, 8, 30, TimeUnit.SECONDS);
+    final HttpClient client = pool.clientProvider().get();
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      Future<?>[] futures = new Future<?>[THREADS];
+      for (int i = 0; i < THREADS; i++) {
+        futures[i] = executor.submit(new Callable<String>() {
+          @Override public String call() throws Exception {
+            HttpResponse response = client.execute(new HttpGet(url));
+            return EntityUtils.toString(response.getEntity());
+          }
+        });
+      }
+      for (Future<?> future : futures) {
+        assertThat(future.get(30, TimeUnit.SECONDS)).isEqualTo("\"ok\"");
+      }
+    } finally {
+      executor.shutdown();
+    }
+
+    assertThat(maxConcurrent.get()).isLessThanOrEqualTo(8); // A single route.
+    assertThat(pool.getLeasedCount()).isZero();
+    assertThat(pool.getPendingCount()).isZero();
+    assertThat(pool.getAvailableCount()).isGreaterThan(0).isLessThanOrEqualTo(8);
+  }
+
+  /**
+   * 256 threads each sending ten requests, through the pool and through a client which opens a
+   * connection for every request.
+   */
+  @Test public void pooledConnectionsBenchmark() throws Exception {
+    pool = new ConnectionPool(64, 64, 30, TimeUnit.SECONDS);
+    final HttpClient client = pool.clientProvider().get();
+    final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    try {
+      final long[] pooledLatencies = new long[THREADS * REQUESTS_PER_THREAD];
+      long pooledNanos = Benchmark.medianNanos(1, 3, new Benchmark.Task() {
+        @Override public void run() throws Exception {
+          sendAll(executor, client, pooledLatencies);
+        }
+      });
+      final long[] unpooledLatencies = new long[THREADS * REQUESTS_PER_THREAD];
+      long unpooledNanos = Benchmark.medianNanos(1, 3, new Benchmark.Task() {
+        @Override public void run() throws Exception {
+          sendAll(executor, null, unpooledLatencies);
+        }
+      });
+      int requests = THREADS * REQUESTS_PER_THREAD;
+      Benchmark.report("connection pool", "%d threads: pooled %.0f requests/s, p99 %.1f ms, "
+          + "%d connections; a connection per request %.0f requests/s, p99 %.1f ms",
+          THREADS, requests / (pooledNanos / 1e9),
+          Benchmark.millis(Benchmark.percentile(pooledLatencies, 0.99)),
+          pool.getAvailableCount(), requests / (unpooledNanos / 1e9),
+          Benchmark.millis(Benchmark.percentile(unpooledLatencies, 0.99)));
+      assertThat(pool.getAvailableCount()).isLessThanOrEqualTo(64);
+      assertThat(pool.getLeasedCount()).isZero();
+      assertThat(pooledNanos).isLessThan(unpooledNanos);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Send {@link #REQUESTS_PER_THREAD} requests from each of {@link #THREADS} threads, recording
+   * each request's latency. A null {@code client} opens and closes a connection per request.
+   */
+  private void sendAll(ExecutorService executor, final HttpClient client, final long[] latencies)
+      throws Exception {
+    Future<?>[] futures = new Future<?>[THREADS];
+    for (int i = 0; i < THREADS; i++) {
+      final int thread = i;
+      futures[i] = executor.submit(new Callable<Void>() {
+        @Override public Void call() throws Exception {
+          for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+            long start = System.nanoTime();
+            HttpClient requestClient = client != null ? client : new DefaultHttpClient();
+            try {
+              HttpResponse response = requestClient.execute(new HttpGet(url));
+              assertThat(EntityUtils.toString(response.getEntity())).isEqualTo("\"ok\"");
+            } finally {
+              if (client == null) {
+                requestClient.getConnectionManager().shutdown();
+              }
+            }
+            latencies[thread * REQUESTS_PER_THREAD + j] = System.nanoTime() - start;
+          }
+          return null;
+        }
+      });
+    }
+    for (Future<?> future : futures) {
+      future.get(60, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test public void idleConnectionsAreEvicted() throws Exception {
+    pool = new ConnectionPool(4, 4, 50, TimeUnit.MILLISECONDS);
+    HttpClient client = pool.clientProvider().get();
+    HttpResponse response = client.execute(new HttpGet(url));
+    EntityUtils.toString(response.getEntity());
+    assertThat(pool.getAvailableCount()).isEqualTo(1);
+
+    Thread.sleep(100);
+    pool.evictIdleConnections();
+    assertThat(pool.getAvailableCount()).isZero();
+  }
+
+  @Test public void unusedPoolIsCollectedWithoutShutdown() throws Exception {
+    WeakReference<ConnectionPool> reference =
+        new WeakReference<ConnectionPool>(new ConnectionPool(4, 4, 30, TimeUnit.SECONDS));
+    for (int i = 0; i < 100 && reference.get() != null; i++) {
+      System.gc();
+      Thread.sleep(10);
+    }
+    assertThat(reference.get()).isNull();
+  }
+
+  @Test public void adapterUsesPool() throws Exception {
+    pool = new ConnectionPool(4, 4, 30, TimeUnit.SECONDS);
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer(url)
+        .setConnectionPool(pool)
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    assertThat(restAdapter.getConnectionPool()).isSameAs(pool);
+    assertThat(restAdapter.create(Service.class).get()).isEqualTo("ok");
+    assertThat(pool.getLeasedCount()).isZero();
+    assertThat(pool.getAvailableCount()).isEqualTo(1);
+  }
+
+  @Test public void prewarmOpensConnectionsAheadOfRequests() throws Exception {
+    pool = new ConnectionPool(16, 4, 30, TimeUnit.SECONDS);
+    assertThat(pool.prewarm(url, 8)).isEqualTo(4); // Capped at the per-route limit.
+    assertThat(pool.getAvailableCount()).isEqualTo(4);
+    assertThat(pool.prewarm(url, 2)).isZero(); // Already warm.
+
+    HttpResponse response = pool.clientProvider().get().execute(new HttpGet(url + "things"));
+    EntityUtils.toString(response.getEntity());
+    assertThat(pool.getAvailableCount()).isEqualTo(4); // Reused a warm connection.
+  }
+
+  @Test public void refreshReplacesConnectionsClosedByServer() throws Exception {
+    pool = new ConnectionPool(16, 4, 30, TimeUnit.SECONDS);
+    pool.prewarm(url, 2);
+    int port = server.getAddress().getPort();
+    server.stop(0); // Closes every connection.
+    try {
+      pool.prewarm(url, 2);
+      fail("Stale connections must be reopened.");
+    } catch (IOException expected) {
+    }
+
+    startServer(port);
+    pool.refreshWarmConnections();
+    assertThat(pool.getAvailableCount()).isEqualTo(2);
+    assertThat(pool.prewarm(url, 2)).isZero();
+  }
+
+  @Test public void refreshOpensConnectionsOffTheEvictionThread() throws Exception {
+    final AtomicBoolean blocking = new AtomicBoolean();
+    final AtomicReference<String> resolvingThread = new AtomicReference<String>();
+    final CountDownLatch resolving = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    pool = new ConnectionPool(16, 4, 30, TimeUnit.SECONDS, new HostResolver() {
+      @Override public InetAddress[] resolve(String host) throws UnknownHostException {
+        if (blocking.get()) {
+          resolvingThread.set(Thread.currentThread().getName());
+          resolving.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+        return HostResolver.SYSTEM.resolve(host);
+      }
+    });
+    pool.prewarm(url, 2);
+    int port = server.getAddress().getPort();
+    server.stop(0); // Closes every connection.
+    startServer(port);
+
+    blocking.set(true);
+    pool.scheduleRefresh(); // Returns while the connections are being opened.
+    assertThat(resolving.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(resolvingThread.get()).endsWith("ConnectionWarmer");
+    pool.scheduleRefresh(); // Skipped while the refresh is in progress.
+    blocking.set(false);
+    release.countDown();
+    for (int i = 0; i < 100 && pool.getAvailableCount() < 2; i++) {
+      Thread.sleep(10);
+    }
+    assertThat(pool.getAvailableCount()).isEqualTo(2);
+  }
+
+  @Test public void adapterPrewarmsAtBuildAndMeasuresFirstResponse() throws Exception {
+    pool = new ConnectionPool(4, 4, 30, TimeUnit.SECONDS);
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer(url)
+        .setConnectionPool(pool)
+        .setPrewarmConnections(2)
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    assertThat(pool.getAvailableCount()).isEqualTo(2);
+    assertThat(restAdapter.getFirstResponseTime(TimeUnit.NANOSECONDS)).isEqualTo(-1);
+
+    restAdapter.create(Service.class).get();
+    assertThat(restAdapter.getFirstResponseTime(TimeUnit.NANOSECONDS)).isGreaterThan(0);
+    assertThat(pool.getAvailableCount()).isEqualTo(2);
+    assertThat(restAdapter.prewarm(2)).isZero();
+  }
+
+  interface Service {
+    @GET("things") String get();
+  }
+}
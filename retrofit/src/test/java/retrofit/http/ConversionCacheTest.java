@@ -0,0 +1,185 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import retrofit.io.TypedBytes;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+public class ConversionCacheTest {
+  private static final String URL = "http://host/api/";
+
+  private final AtomicInteger requests = new AtomicInteger();
+  private final AtomicInteger conversions = new AtomicInteger();
+  private String body = "{\"name\":\"catalog\"}";
+  private String cacheControl;
+
+  @Test public void unchangedBodiesAreNotConvertedAgain() {
+    ConversionCache cache = new ConversionCache(1, TimeUnit.MINUTES, 1024);
+    Service service = newAdapter(cache, null).create(Service.class);
+    Catalog first = service.catalog();
+    assertThat(service.catalog()).isSameAs(first);
+    assertThat(requests.get()).isEqualTo(2);
+    assertThat(conversions.get()).isEqualTo(1);
+
+    body = "{\"name\":\"updated\"}";
+    Catalog updated = service.catalog();
+    assertThat(updated.name).isEqualTo("updated");
+    assertThat(conversions.get()).isEqualTo(2);
+
+    // Results are kept per return type.
+    service.catalogJson();
+    assertThat(conversions.get()).isEqualTo(3);
+
+    ConversionCacheStats stats = cache.getStats();
+    assertThat(stats.getHitCount()).isEqualTo(1);
+    assertThat(stats.getMissCount()).isEqualTo(3);
+    assertThat(stats.getHitRatio()).isEqualTo(0.25);
+    assertThat(stats.getConversionTimeSaved(TimeUnit.NANOSECONDS)).isGreaterThan(0);
+  }
+
+  @Test public void withAResponseCacheNeitherNetworkNorConverterIsUsed() {
+    cacheControl = "max-age=60";
+    ConversionCache cache = new ConversionCache(1, TimeUnit.MINUTES, 1024);
+    ResponseCache responseCache = new MemoryResponseCache(1024 * 1024);
+    Service service = newAdapter(cache, responseCache).create(Service.class);
+    Catalog first = service.catalog();
+    assertThat(service.catalog()).isSameAs(first);
+    assertThat(requests.get()).isEqualTo(1);
+    assertThat(conversions.get()).isEqualTo(1);
+  }
+
+  @Test public void resultsExpire() throws InterruptedException {
+    ConversionCache cache = new ConversionCache(50, TimeUnit.MILLISECONDS, 1024);
+    Service service = newAdapter(cache, null).create(Service.class);
+    Catalog first = service.catalog();
+    Thread.sleep(100);
+    assertThat(service.catalog()).isNotSameAs(first);
+    assertThat(conversions.get()).isEqualTo(2);
+  }
+
+  @Test public void leastRecentlyUsedAreEvictedByWeight() throws Exception {
+    ConversionCache cache = new ConversionCache(1, TimeUnit.MINUTES, 100);
+    Method method = Service.class.getMethod("catalog");
+    byte[] body = new byte[40];
+    cache.put(method, URL + "a", Catalog.class, body, "a", 1);
+    cache.put(method, URL + "b", Catalog.class, body, "b", 1);
+    assertThat(cache.get(URL + "a", Catalog.class, body)).isEqualTo("a");
+    cache.put(method, URL + "c", Catalog.class, body, "c", 1);
+
+    assertThat(cache.get(URL + "b", Catalog.class, body)).isNull();
+    assertThat(cache.get(URL + "a", Catalog.class, body)).isEqualTo("a");
+    assertThat(cache.get(URL + "c", Catalog.class, body)).isEqualTo("c");
+    assertThat(cache.weight()).isEqualTo(80);
+    assertThat(cache.getStats().getEvictionCount()).isEqualTo(1);
+
+    cache.put(method, URL + "d", Catalog.class, new byte[101], "d", 1);
+    assertThat(cache.get(URL + "d", Catalog.class, new byte[101])).isNull();
+  }
+
+  @Test public void invalidateByMethodOrUrlPrefix() throws Exception {
+    ConversionCache cache = new ConversionCache(1, TimeUnit.MINUTES, 1024);
+    Method catalog = Service.class.getMethod("catalog");
+    Method catalogJson = Service.class.getMethod("catalogJson");
+    byte[] body = new byte[1];
+    cache.put(catalog, URL + "catalog", Catalog.class, body, "catalog", 1);
+    cache.put(catalogJson, URL + "catalog", Object.class, body, "json", 1);
+    cache.put(catalog, URL + "users/1", Catalog.class, body, "user 1", 1);
+    cache.put(catalog, URL + "users/2", Catalog.class, body, "user 2", 1);
+
+    cache.invalidatePrefix(URL + "users/");
+    assertThat(cache.get(URL + "users/1", Catalog.class, body)).isNull();
+    assertThat(cache.get(URL + "users/2", Catalog.class, body)).isNull();
+    assertThat(cache.get(URL + "catalog", Catalog.class, body)).isEqualTo("catalog");
+
+    cache.invalidate(catalog);
+    assertThat(cache.get(URL + "catalog", Catalog.class, body)).isNull();
+    assertThat(cache.get(URL + "catalog", Object.class, body)).isEqualTo("json");
+
+    cache.invalidateAll();
+    assertThat(cache.get(URL + "catalog", Object.class, body)).isNull();
+    assertThat(cache.weight()).isZero();
+  }
+
+  @Test public void copierGivesEachCallItsOwnInstance() {
+    ConversionCache cache = new ConversionCache(1, TimeUnit.MINUTES, 1024,
+        new ConversionCache.Copier() {
+          @Override public Object copy(Object value, Type type) {
+            Catalog copy = new Catalog();
+            copy.name = ((Catalog) value).name;
+            return copy;
+          }
+        });
+    Service service = newAdapter(cache, null).create(Service.class);
+    Catalog first = service.catalog();
+    first.name = "mutated";
+    Catalog second = service.catalog();
+    assertThat(second).isNotSameAs(first);
+    assertThat(second.name).isEqualTo("catalog");
+    second.name = "mutated again";
+    assertThat(service.catalog().name).isEqualTo("catalog");
+    assertThat(conversions.get()).isEqualTo(1);
+  }
+
+  private RestAdapter newAdapter(ConversionCache cache, ResponseCache responseCache) {
+    final GsonConverter gson = new GsonConverter(new Gson());
+    RestAdapter.Builder builder = new RestAdapter.Builder() //
+        .setServer(URL)
+        .setTransport(new Transport() {
+          @Override public Exchange newExchange(final Request request) {
+            return new Exchange() {
+              @Override public Request request() {
+                return request;
+              }
+
+              @Override public Response execute() throws IOException {
+                requests.incrementAndGet();
+                List<Header> headers = new ArrayList<Header>();
+                headers.add(new Header("Content-Type", "application/json; charset=UTF-8"));
+                if (cacheControl != null) {
+                  headers.add(new Header("Cache-Control", cacheControl));
+                }
+                // A new array for each response, as a transport would read.
+                return new Response(200, "OK", headers, body.getBytes("UTF-8"));
+              }
+
+              @Override public void cancel() {
+              }
+            };
+          }
+        })
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new Converter() {
+          @Override public Object to(byte[] body, Type type) throws ConversionException {
+            conversions.incrementAndGet();
+            return gson.to(body, type);
+          }
+
+          @Override public TypedBytes from(Object object) {
+            return gson.from(object);
+          }
+        })
+        .setConversionCache(cache);
+    if (responseCache != null) {
+      builder.setResponseCache(responseCache);
+    }
+    return builder.build();
+  }
+
+  static class Catalog {
+    String name;
+  }
+
+  interface Service {
+    @GET("catalog") Catalog catalog();
+    @GET("catalog") Object catalogJson();
+  }
+}
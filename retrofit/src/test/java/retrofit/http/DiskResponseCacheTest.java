@@ -0,0 +1,225 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static retrofit.http.TestMessages.get;
+import static retrofit.http.TestMessages.headers;
+
+public class DiskResponseCacheTest {
+  private static final String URL = "http://host/api/things";
+
+  @Rule public TemporaryFolder temporaryFolder = new TemporaryFolder();
+  private File directory;
+  private DiskResponseCache cache;
+
+  @Before public void setUp() throws IOException {
+    directory = temporaryFolder.newFolder("cache");
+    cache = DiskResponseCache.open(directory, 1024 * 1024);
+  }
+
+  @After public void tearDown() {
+    cache.close();
+  }
+
+  @Test public void responsesSurviveRestart() throws IOException {
+    cache.put(get(URL), response("hello", "Cache-Control", "max-age=60", "Vary", "Accept"));
+    reopen(1024 * 1024);
+
+    Response cached = cache.get(get(URL));
+    assertThat(cached).isNotNull();
+    assertThat(new String(cached.getBody(), "UTF-8")).isEqualTo("hello");
+    assertThat(cached.getStatus()).isEqualTo(200);
+    assertThat(cached.getReason()).isEqualTo("OK");
+    assertThat(cached.getHeader("Vary")).isEqualTo("Accept");
+    assertThat(cache.get(get(URL, "Accept", "text/plain"))).isNull();
+    assertThat(cache.getStats().getHitCount()).isEqualTo(1);
+  }
+
+  @Test public void staleAndInvalidatedResponsesAreRemoved() throws IOException {
+    cache.put(get(URL), response("stale", "Cache-Control", "max-age=60", "Age", "61"));
+    assertThat(cache.get(get(URL))).isNull();
+    assertThat(entryFiles()).isEmpty();
+
+    cache.put(get(URL), response("fresh", "Cache-Control", "max-age=60"));
+    cache.put(new Request("DELETE", URL, Collections.<Header>emptyList(), null),
+        new Response(204, "No Content", Collections.<Header>emptyList(), null));
+    assertThat(cache.get(get(URL))).isNull();
+    assertThat(entryFiles()).isEmpty();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test public void leftoversOfInterruptedWritesAreDeletedOnOpen() throws IOException {
+    cache.put(get(URL), response("kept", "Cache-Control", "max-age=60"));
+    cache.close();
+    // A write which never reached its rename, one renamed before its journal line, and a journal
+    // rebuild which never finished.
+    write(new File(directory, "0123456789abcdef0123456789abcdef.7.tmp"), "partial");
+    write(new File(directory, DiskResponseCache.hash("GET " + URL + "/orphan") + ".entry"), "x");
+    write(new File(directory, DiskResponseCache.JOURNAL_TMP), "partial journal");
+
+    cache = DiskResponseCache.open(directory, 1024 * 1024);
+    assertThat(directory.list()).containsOnly(DiskResponseCache.JOURNAL,
+        DiskResponseCache.hash("GET " + URL) + ".entry");
+    assertThat(cache.get(get(URL))).isNotNull();
+    assertThat(cache.get(get(URL + "/orphan"))).isNull();
+  }
+
+  @Test public void partialJournalLineIsIgnored() throws IOException {
+    cache.put(get(URL + "/a"), response("a", "Cache-Control", "max-age=60"));
+    cache.close();
+    // The crash came midway through appending a line.
+    FileOutputStream journal =
+        new FileOutputStream(new File(directory, DiskResponseCache.JOURNAL), true);
+    journal.write(("PUT " + DiskResponseCache.hash("GET " + URL + "/b") + " 1").getBytes("UTF-8"));
+    journal.close();
+
+    reopen(1024 * 1024);
+    assertThat(cache.get(get(URL + "/a"))).isNotNull();
+    assertThat(cache.get(get(URL + "/b"))).isNull();
+    cache.put(get(URL + "/c"), response("c", "Cache-Control", "max-age=60"));
+
+    // Later lines aren't lost after the partial one.
+    reopen(1024 * 1024);
+    assertThat(cache.get(get(URL + "/a"))).isNotNull();
+    assertThat(cache.get(get(URL + "/c"))).isNotNull();
+  }
+
+  @Test public void corruptEntriesAreMissesAndRemoved() throws IOException {
+    cache.put(get(URL), response("a longer body which will be cut short",
+        "Cache-Control", "max-age=60"));
+    cache.close();
+    File entry = entryFiles().get(0);
+    RandomAccessFile file = new RandomAccessFile(entry, "rw");
+    file.setLength(file.length() - 10);
+    file.close();
+
+    reopen(1024 * 1024);
+    assertThat(cache.get(get(URL))).isNull();
+    assertThat(entry.exists()).isFalse();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test public void leastRecentlyUsedAreEvictedAcrossRestarts() throws IOException {
+    reopen(2500);
+    cache.put(get(URL + "/a"), response(new byte[1000], "Cache-Control", "max-age=60"));
+    cache.put(get(URL + "/b"), response(new byte[1000], "Cache-Control", "max-age=60"));
+    assertThat(cache.get(get(URL + "/a"))).isNotNull(); // Now more recently used than b.
+
+    reopen(2500);
+    assertThat(cache.size()).isGreaterThan(2000).isLessThanOrEqualTo(2500);
+    cache.put(get(URL + "/c"), response(new byte[1000], "Cache-Control", "max-age=60"));
+    assertThat(cache.get(get(URL + "/b"))).isNull();
+    assertThat(cache.get(get(URL + "/a"))).isNotNull();
+    assertThat(cache.get(get(URL + "/c"))).isNotNull();
+    assertThat(cache.getStats().getEvictionCount()).isEqualTo(1);
+    assertThat(entryFiles()).hasSize(2);
+
+    // A smaller limit evicts on open.
+    reopen(1500);
+    assertThat(entryFiles()).hasSize(1);
+    assertThat(cache.get(get(URL + "/c"))).isNotNull();
+
+    cache.evictAll();
+    assertThat(entryFiles()).isEmpty();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test public void journalIsCompacted() throws IOException {
+    for (int i = 0; i < 5000; i++) {
+      cache.put(get(URL + "/" + (i % 10)), response("" + i, "Cache-Control", "max-age=60"));
+    }
+    assertThat(journalLines()).isLessThan(2100);
+
+    reopen(1024 * 1024);
+    Response cached = cache.get(get(URL + "/9"));
+    assertThat(new String(cached.getBody(), "UTF-8")).isEqualTo("4999");
+    assertThat(entryFiles()).hasSize(10);
+  }
+
+  /**
+   * Stands in for a cold-start benchmark: opening a large cache reads only its journal, which
+   * stays small however large the responses are.
+   */
+  @Test public void openingReadsOnlyTheJournal() throws IOException {
+    reopen(64 * 1024 * 1024);
+    int count = 500;
+    for (int i = 0; i < count; i++) {
+      cache.put(get(URL + "/" + i), response(new byte[16 * 1024], "Cache-Control", "max-age=60"));
+    }
+    cache.close();
+    File journal = new File(directory, DiskResponseCache.JOURNAL);
+    assertThat(journal.length()).isLessThan(count * 64L);
+
+    // Scramble every response. Opening doesn't notice; reading each does.
+    for (File entry : entryFiles()) {
+      RandomAccessFile file = new RandomAccessFile(entry, "rw");
+      file.write(new byte[16]);
+      file.close();
+    }
+    cache = DiskResponseCache.open(directory, 64 * 1024 * 1024);
+    assertThat(cache.size()).isGreaterThan(count * 16 * 1024L);
+    assertThat(cache.get(get(URL + "/0"))).isNull();
+    assertThat(entryFiles()).hasSize(count - 1);
+  }
+
+  private void reopen(long maxSize) throws IOException {
+    cache.close();
+    cache = DiskResponseCache.open(directory, maxSize);
+  }
+
+  private List<File> entryFiles() {
+    List<File> entries = new ArrayList<File>();
+    for (File file : directory.listFiles()) {
+      if (file.getName().endsWith(DiskResponseCache.ENTRY_SUFFIX)) {
+        entries.add(file);
+      }
+    }
+    return entries;
+  }
+
+  private int journalLines() throws IOException {
+    BufferedReader reader =
+        new BufferedReader(new FileReader(new File(directory, DiskResponseCache.JOURNAL)));
+    try {
+      int lines = 0;
+      while (reader.readLine() != null) {
+        lines++;
+      }
+      return lines;
+    } finally {
+      reader.close();
+    }
+  }
+
+  private static void write(File file, String content) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(content.getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static Response response(String body, String... headers) throws IOException {
+    return response(body.getBytes("UTF-8"), headers);
+  }
+
+  private static Response response(byte[] body, String... headers) {
+    return new Response(200, "OK", headers(headers), body);
+  }
+}
@@ -4,15 +4,19 @@ package retrofit.http;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.ResponseHandler;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
 import org.apache.http.params.HttpParams;
 import org.apache.http.protocol.HttpContext;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 
 /**
  * Support for dummy HttpClients.
@@ -29,7 +33,7 @@ class DummyHttpClient implements HttpClient {
   public ClientConnectionManager getConnectionManager() {
     throw new UnsupportedOperationException();
   }
-  public HttpResponse execute(HttpUriRequest request) {
+  public HttpResponse execute(HttpUriRequest request) throws IOException {
     throw new UnsupportedOperationException();
   }
   public HttpResponse execute(HttpUriRequest request, HttpContext context) {
@@ -54,4 +58,15 @@ class DummyHttpClient implements HttpClient {
       ResponseHandler<? extends T> responseHandler, HttpContext context) {
     throw new UnsupportedOperationException();
   }
+
+  /** A {@code 200 OK} response with {@code json} as its UTF-8 body. */
+  static HttpResponse response(String json) {
+    BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    try {
+      response.setEntity(new StringEntity(json, "UTF-8"));
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+    return response;
+  }
 }
@@ -0,0 +1,152 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+import static retrofit.http.DummyHttpClient.response;
+
+public class HedgeTest {
+  private final ExecutorService httpExecutor = Executors.newCachedThreadPool();
+  private final AtomicInteger requests = new AtomicInteger();
+
+  @After public void tearDown() {
+    httpExecutor.shutdown();
+  }
+
+  @Test public void hedgeWinsAndAbortsSlowRequest() throws Exception {
+    final boolean[] primaryAborted = new boolean[1];
+    Service service = service(0.1, new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) throws IOException {
+        if (requests.incrementAndGet() == 1) {
+          primaryAborted[0] = awaitAbort(request);
+          throw new IOException("Aborted");
+        }
+        return response("\"hedge\"");
+      }
+    });
+    assertThat(service.get()).isEqualTo("hedge");
+    assertThat(primaryAborted[0]).isTrue();
+    assertThat(restAdapter.getHedgeStats().getHedgeCount()).isEqualTo(1);
+    assertThat(restAdapter.getHedgeStats().getHedgeWinCount()).isEqualTo(1);
+  }
+
+  @Test public void fastResponseSendsNoHedge() throws Exception {
+    Service service = service(0.1, new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) {
+        requests.incrementAndGet();
+        return response("\"primary\"");
+      }
+    });
+    assertThat(service.get()).isEqualTo("primary");
+    Thread.sleep(100);
+    assertThat(requests.get()).isEqualTo(1);
+    assertThat(restAdapter.getHedgeStats().getHedgeCount()).isZero();
+  }
+
+  @Test public void exhaustedBudgetSendsNoHedge() throws Exception {
+    Service service = service(0, new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) {
+        try {
+          Thread.sleep(60);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        return response("\"ok\"");
+      }
+    });
+    for (int i = 0; i < 12; i++) {
+      assertThat(service.get()).isEqualTo("ok");
+    }
+    // A zero budget leaves only the initial allowance of ten hedges.
+    assertThat(restAdapter.getHedgeStats().getHedgeCount()).isEqualTo(10);
+    assertThat(restAdapter.getHedgeStats().getDeniedCount()).isEqualTo(2);
+  }
+
+  @Test public void hedgeWaitsForASlotOnTheCallsScheduler() throws Exception {
+    restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(new DummyHttpClient() {
+          @Override public HttpResponse execute(HttpUriRequest request) throws IOException {
+            requests.incrementAndGet();
+            try {
+              Thread.sleep(60);
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            return response("\"primary\"");
+          }
+        })
+        .setExecutors(httpExecutor, new Utils.SynchronousExecutor())
+        .setMaxConcurrentRequests(1)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicReference<String> result = new AtomicReference<String>();
+    restAdapter.create(Service.class).get(new Callback<String>() {
+      @Override public void success(String value) {
+        result.set(value);
+        latch.countDown();
+      }
+
+      @Override public void failure(RetrofitError error) {
+        latch.countDown();
+      }
+    });
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+
+    // The only slot is held by the original request, so the hedge is dropped unsent.
+    assertThat(result.get()).isEqualTo("primary");
+    assertThat(requests.get()).isEqualTo(1);
+    assertThat(restAdapter.getHedgeStats().getHedgeCount()).isZero();
+  }
+
+  private RestAdapter restAdapter;
+
+  private Service service(double budget, DummyHttpClient client) {
+    restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(client)
+        .setExecutors(httpExecutor, null)
+        .setConverter(new GsonConverter(new Gson()))
+        .setHedgeBudget(budget)
+        .build();
+    return restAdapter.create(Service.class);
+  }
+
+  private static boolean awaitAbort(HttpUriRequest request) {
+    long start = System.nanoTime();
+    while (!((HttpRequestBase) request).isAborted()) {
+      if (System.nanoTime() - start > 5000000000L) {
+        fail("Request was never aborted.");
+      }
+      try {
+        Thread.sleep(5);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+    }
+    return true;
+  }
+
+  interface Service {
+    @GET("things") @Hedge(delay = 20)
+    String get();
+
+    @GET("things") @Hedge(delay = 20)
+    void get(Callback<String> callback);
+  }
+}
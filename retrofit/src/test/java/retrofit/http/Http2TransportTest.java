@@ -0,0 +1,540 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit.io.MimeType;
+import retrofit.io.TypedByteArray;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+import static retrofit.http.Http2Connection.FLAG_ACK;
+import static retrofit.http.Http2Connection.FLAG_END_HEADERS;
+import static retrofit.http.Http2Connection.FLAG_END_STREAM;
+import static retrofit.http.Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE;
+import static retrofit.http.Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS;
+import static retrofit.http.Http2Connection.TYPE_CONTINUATION;
+import static retrofit.http.Http2Connection.TYPE_DATA;
+import static retrofit.http.Http2Connection.TYPE_GOAWAY;
+import static retrofit.http.Http2Connection.TYPE_HEADERS;
+import static retrofit.http.Http2Connection.TYPE_PING;
+import static retrofit.http.Http2Connection.TYPE_SETTINGS;
+import static retrofit.http.Http2Connection.TYPE_WINDOW_UPDATE;
+import static retrofit.http.Http2Connection.getInt;
+import static retrofit.http.Http2Connection.putInt;
+import static retrofit.http.Http2Connection.putSetting;
+import static retrofit.http.Http2Connection.readFrame;
+import static retrofit.http.Http2Connection.writeFrame;
+
+public class Http2TransportTest {
+  private static final List<Header> NO_HEADERS = Collections.emptyList();
+  /** Small, so that request bodies need many window updates. */
+  private static final int SERVER_WINDOW = 1024;
+  private static final int CONCURRENT_CALLS = 32;
+  private static final int REQUESTS_PER_THREAD = 50;
+
+  private H2cServer server;
+  private Http2Transport transport;
+  private String url;
+
+  @Before public void setUp() throws IOException {
+    server = new H2cServer();
+    url = "http://127.0.0.1:" + server.serverSocket.getLocalPort();
+    transport = new Http2Transport(2, null);
+  }
+
+  @After public void tearDown() throws IOException {
+    transport.shutdown();
+    server.close();
+  }
+
+  @Test public void hpackMatchesSpecificationExamples() throws IOException {
+    // RFC 7541, appendix C.4: requests with Huffman coding, sharing one dynamic table.
+    List<List<Header>> requests = Arrays.asList(
+        Arrays.asList(new Header(":method", "GET"), new Header(":scheme", "http"),
+            new Header(":path", "/"), new Header(":authority", "www.example.com")),
+        Arrays.asList(new Header(":method", "GET"), new Header(":scheme", "http"),
+            new Header(":path", "/"), new Header(":authority", "www.example.com"),
+            new Header("cache-control", "no-cache")),
+        Arrays.asList(new Header(":method", "GET"), new Header(":scheme", "https"),
+            new Header(":path", "/index.html"), new Header(":authority", "www.example.com"),
+            new Header("custom-key", "custom-value")));
+    byte[][] encoded = {
+        bytes("828684418cf1e3c2e5f23a6ba0ab90f4ff"),
+        bytes("828684be5886a8eb10649cbf"),
+        bytes("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf")
+    };
+    Hpack.Encoder encoder = new Hpack.Encoder();
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    for (int i = 0; i < encoded.length; i++) {
+      assertThat(encoder.encode(requests.get(i))).isEqualTo(encoded[i]);
+      assertThat(decoder.decode(encoded[i])).isEqualTo(requests.get(i));
+    }
+
+    // Appendix C.3: the same requests without Huffman coding.
+    decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    assertThat(decoder.decode(bytes("828684410f7777772e6578616d706c652e636f6d")))
+        .isEqualTo(requests.get(0));
+    assertThat(decoder.decode(bytes("828684be58086e6f2d6361636865"))).isEqualTo(requests.get(1));
+  }
+
+  @Test public void hpackTableSizeChangesReachTheDecoder() throws IOException {
+    Hpack.Encoder encoder = new Hpack.Encoder();
+    Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    List<Header> headers = Arrays.asList(new Header("x-token", "abc"));
+    decoder.decode(encoder.encode(headers));
+    encoder.setMaxTableSize(0);
+    encoder.setMaxTableSize(256);
+    byte[] block = encoder.encode(headers);
+    assertThat(block[0]).isEqualTo((byte) 0x20); // Evict everything, then allow 256 bytes.
+    assertThat(decoder.decode(block)).isEqualTo(headers);
+    assertThat(decoder.decode(encoder.encode(headers))).isEqualTo(headers);
+  }
+
+  @Test public void concurrentCallsAreMultiplexedOverFewConnections() throws Exception {
+    server.gate = new CountDownLatch(CONCURRENT_CALLS);
+    ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_CALLS);
+    try {
+      List<Future<Response>> futures = new ArrayList<Future<Response>>();
+      for (int i = 0; i < CONCURRENT_CALLS; i++) {
+        futures.add(executor.submit(new Callable<Response>() {
+          @Override public Response call() throws IOException {
+            return transport.newExchange(new Request("GET", url + "/wait", NO_HEADERS, null))
+                .execute();
+          }
+        }));
+      }
+      for (Future<Response> future : futures) {
+        assertThat(future.get(10, TimeUnit.SECONDS).getStatus()).isEqualTo(200);
+      }
+    } finally {
+      executor.shutdown();
+    }
+    // Every call was in flight at once, yet shared at most two connections.
+    assertThat(server.maxOpenStreams.get()).isEqualTo(CONCURRENT_CALLS);
+    assertThat(server.connections.get()).isLessThanOrEqualTo(2);
+    assertThat(transport.getConnectionCount()).isEqualTo(server.connections.get());
+  }
+
+  @Test public void bodiesLargerThanFlowControlWindowsAreSent() throws IOException {
+    byte[] body = new byte[200 * 1024];
+    for (int i = 0; i < body.length; i++) {
+      body[i] = (byte) i;
+    }
+    TypedByteArray typed = new TypedByteArray(body, new MimeType("application/octet-stream", "b"));
+    List<Header> headers = Arrays.asList(new Header("X-Echo", "hello"));
+    Response echo = transport.newExchange(new Request("POST", url + "/echo", headers, typed))
+        .execute();
+    assertThat(echo.getStatus()).isEqualTo(200);
+    assertThat(echo.getHeader("X-Echo")).isEqualTo("hello");
+    assertThat(echo.getHeader("Content-Type")).isEqualTo("application/octet-stream");
+    assertThat(echo.getBody()).isEqualTo(body);
+
+    // Three times the client's receive window.
+    Response big = transport.newExchange(new Request("GET", url + "/big", NO_HEADERS, null))
+        .execute();
+    assertThat(big.getBody().length).isEqualTo(3 * Http2Connection.RECEIVE_WINDOW_SIZE);
+    assertThat(server.connections.get()).isEqualTo(1);
+  }
+
+  @Test public void timedOutStreamIsResetWithoutClosingConnection() throws IOException {
+    Request slow = new Request("GET", url + "/slow", NO_HEADERS, null).withTimeouts(1000, 100);
+    long start = System.nanoTime();
+    try {
+      transport.newExchange(slow).execute();
+      fail();
+    } catch (IOException expected) {
+    }
+    assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(900);
+
+    Request echo = new Request("GET", url + "/echo", NO_HEADERS, null);
+    assertThat(transport.newExchange(echo).execute().getStatus()).isEqualTo(200);
+    assertThat(server.connections.get()).isEqualTo(1);
+  }
+
+  @Test public void slowConnectsDoNotHoldTheRoute() throws Exception {
+    // A listener which never accepts. Once its backlog is full, further connects stall.
+    ServerSocket stalled = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    List<Socket> backlog = new ArrayList<Socket>();
+    try {
+      for (int i = 0; i < 2; i++) {
+        Socket socket = new Socket();
+        socket.connect(stalled.getLocalSocketAddress(), 1000);
+        backlog.add(socket);
+      }
+      final Request request = new Request("GET",
+          "http://127.0.0.1:" + stalled.getLocalPort() + "/", NO_HEADERS, null)
+          .withTimeouts(500, 0);
+      ExecutorService executor = Executors.newFixedThreadPool(2);
+      try {
+        long start = System.nanoTime();
+        List<Future<Response>> futures = new ArrayList<Future<Response>>();
+        for (int i = 0; i < 2; i++) {
+          futures.add(executor.submit(new Callable<Response>() {
+            @Override public Response call() throws IOException {
+              return transport.newExchange(request).execute();
+            }
+          }));
+        }
+        Thread.sleep(100);
+        long countStart = System.nanoTime();
+        assertThat(transport.getConnectionCount()).isZero();
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - countStart)).isLessThan(100);
+        for (Future<Response> future : futures) {
+          try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+          } catch (ExecutionException expected) {
+          }
+        }
+        // Both connections were attempted at once rather than one after the other.
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(900);
+      } finally {
+        executor.shutdown();
+      }
+    } finally {
+      for (Socket socket : backlog) {
+        socket.close();
+      }
+      stalled.close();
+    }
+  }
+
+  /**
+   * Requests per second from 32 threads over h2c, multiplexed over one connection and over four.
+   */
+  @Test public void multiplexedThroughput() throws Exception {
+    for (int connections : new int[] { 1, 4 }) {
+      final Http2Transport multiplexed = new Http2Transport(connections, null);
+      final Request request = new Request("GET", url + "/echo", NO_HEADERS, null);
+      final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_CALLS);
+      int opened = server.connections.get();
+      try {
+        long nanos = Benchmark.medianNanos(1, 3, new Benchmark.Task() {
+          @Override public void run() throws Exception {
+            List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < CONCURRENT_CALLS; i++) {
+              futures.add(executor.submit(new Callable<Integer>() {
+                @Override public Integer call() throws IOException {
+                  for (int j = 0; j < REQUESTS_PER_THREAD; j++) {
+                    multiplexed.newExchange(request).execute();
+                  }
+                  return REQUESTS_PER_THREAD;
+                }
+              }));
+            }
+            for (Future<Integer> future : futures) {
+              future.get(30, TimeUnit.SECONDS);
+            }
+          }
+        });
+        int requests = CONCURRENT_CALLS * REQUESTS_PER_THREAD;
+        Benchmark.report("h2c", "%d threads, up to %d connections per host: %.0f requests/s, "
+            + "%d opened", CONCURRENT_CALLS, connections, requests / (nanos / 1e9),
+            server.connections.get() - opened);
+        assertThat(server.connections.get() - opened).isLessThanOrEqualTo(connections);
+      } finally {
+        executor.shutdown();
+        multiplexed.shutdown();
+      }
+    }
+  }
+
+  @Test public void canceledExchangeIsNotSent() {
+    Transport.Exchange exchange =
+        transport.newExchange(new Request("GET", url + "/echo", NO_HEADERS, null));
+    exchange.cancel();
+    try {
+      exchange.execute();
+      fail();
+    } catch (IOException expected) {
+    }
+    assertThat(server.connections.get()).isZero();
+  }
+
+  @Test public void httpsUsesFallback() {
+    final Transport.Exchange fallbackExchange =
+        new UrlConnectionTransport().newExchange(new Request("GET", url, NO_HEADERS, null));
+    transport = new Http2Transport(1, new Transport() {
+      @Override public Exchange newExchange(Request request) {
+        return fallbackExchange;
+      }
+    });
+    Request request = new Request("GET", "https://example.com/", NO_HEADERS, null);
+    assertThat(transport.newExchange(request)).isSameAs(fallbackExchange);
+  }
+
+  @Test public void adapterCallsOverHttp2() {
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer(url)
+        .setTransport(transport)
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    Service service = restAdapter.create(Service.class);
+    assertThat(service.get()).isEqualTo("ok");
+    assertThat(service.get()).isEqualTo("ok");
+    assertThat(server.connections.get()).isEqualTo(1);
+  }
+
+  interface Service {
+    @GET("json") String get();
+  }
+
+  private static byte[] bytes(String hex) {
+    byte[] result = new byte[hex.length() / 2];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+    }
+    return result;
+  }
+
+  /** A minimal h2c server which honours flow control and counts connections and streams. */
+  private static final class H2cServer {
+    final ServerSocket serverSocket;
+    final AtomicInteger connections = new AtomicInteger();
+    final AtomicInteger openStreams = new AtomicInteger();
+    final AtomicInteger maxOpenStreams = new AtomicInteger();
+    final ExecutorService executor = Executors.newCachedThreadPool();
+    final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+    volatile CountDownLatch gate;
+
+    H2cServer() throws IOException {
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      executor.execute(new Runnable() {
+        @Override public void run() {
+          try {
+            while (true) {
+              final Socket socket = serverSocket.accept();
+              sockets.add(socket);
+              connections.incrementAndGet();
+              executor.execute(new Runnable() {
+                @Override public void run() {
+                  try {
+                    new ServerConnection(socket).serve();
+                  } catch (IOException ignored) {
+                  }
+                }
+              });
+            }
+          } catch (IOException ignored) {
+          }
+        }
+      });
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+      synchronized (sockets) {
+        for (Socket socket : sockets) {
+          socket.close();
+        }
+      }
+      executor.shutdownNow();
+    }
+
+    byte[] respond(Map<String, String> request, byte[] body, List<Header> headers)
+        throws Exception {
+      String path = request.get(":path");
+      headers.add(new Header(":status", "200"));
+      if (path.equals("/echo")) {
+        headers.add(new Header("content-type", String.valueOf(request.get("content-type"))));
+        headers.add(new Header("x-echo", String.valueOf(request.get("x-echo"))));
+        return body;
+      } else if (path.equals("/big")) {
+        return new byte[3 * Http2Connection.RECEIVE_WINDOW_SIZE];
+      } else if (path.equals("/wait")) {
+        gate.countDown();
+        gate.await(10, TimeUnit.SECONDS);
+      } else if (path.equals("/slow")) {
+        Thread.sleep(1000);
+      } else if (path.equals("/json")) {
+        headers.add(new Header("content-type", "application/json; charset=UTF-8"));
+        return "\"ok\"".getBytes("UTF-8");
+      }
+      return "ok".getBytes("UTF-8");
+    }
+
+    private final class ServerConnection {
+      private final DataInputStream in;
+      private final OutputStream out;
+      private final Hpack.Encoder encoder = new Hpack.Encoder();
+      private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+      private final Map<Integer, ByteArrayOutputStream> bodies =
+          new HashMap<Integer, ByteArrayOutputStream>();
+      private final Map<Integer, Map<String, String>> requests =
+          new HashMap<Integer, Map<String, String>>();
+      // Guarded by this.
+      private final Map<Integer, Long> streamWindows = new HashMap<Integer, Long>();
+      private long connectionWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+      private int initialWindow = Http2Connection.DEFAULT_WINDOW_SIZE;
+
+      ServerConnection(Socket socket) throws IOException {
+        in = new DataInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+      }
+
+      void serve() throws IOException {
+        byte[] preface = new byte[Http2Connection.PREFACE.length];
+        in.readFully(preface);
+        assertThat(preface).isEqualTo(Http2Connection.PREFACE);
+        byte[] settings = new byte[12];
+        putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, 100);
+        putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, SERVER_WINDOW);
+        write(TYPE_SETTINGS, 0, 0, settings, settings.length);
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        while (true) {
+          Http2Connection.Frame frame = readFrame(in, 1 << 24);
+          switch (frame.type) {
+            case TYPE_SETTINGS:
+              if ((frame.flags & FLAG_ACK) == 0) {
+                applySettings(frame.payload);
+                write(TYPE_SETTINGS, FLAG_ACK, 0, new byte[0], 0);
+              }
+              break;
+            case TYPE_PING:
+              write(TYPE_PING, FLAG_ACK, 0, frame.payload, frame.payload.length);
+              break;
+            case TYPE_WINDOW_UPDATE:
+              synchronized (this) {
+                long increment = getInt(frame.payload, 0);
+                if (frame.streamId == 0) {
+                  connectionWindow += increment;
+                } else if (streamWindows.containsKey(frame.streamId)) {
+                  streamWindows.put(frame.streamId, streamWindows.get(frame.streamId) + increment);
+                }
+                notifyAll();
+              }
+              break;
+            case TYPE_HEADERS:
+            case TYPE_CONTINUATION:
+              block.write(frame.payload, 0, frame.payload.length);
+              if ((frame.flags & FLAG_END_HEADERS) != 0) {
+                Map<String, String> request = new HashMap<String, String>();
+                for (Header header : decoder.decode(block.toByteArray())) {
+                  request.put(header.getName(), header.getValue());
+                }
+                block.reset();
+                requests.put(frame.streamId, request);
+                bodies.put(frame.streamId, new ByteArrayOutputStream());
+                synchronized (this) {
+                  streamWindows.put(frame.streamId, (long) initialWindow);
+                }
+              }
+              if ((frame.flags & FLAG_END_STREAM) != 0) {
+                dispatch(frame.streamId);
+              }
+              break;
+            case TYPE_DATA:
+              bodies.get(frame.streamId).write(frame.payload, 0, frame.payload.length);
+              byte[] increment = new byte[4];
+              putInt(increment, 0, frame.payload.length);
+              if (frame.payload.length > 0) {
+                write(TYPE_WINDOW_UPDATE, 0, 0, increment, 4);
+                write(TYPE_WINDOW_UPDATE, 0, frame.streamId, increment, 4);
+              }
+              if ((frame.flags & FLAG_END_STREAM) != 0) {
+                dispatch(frame.streamId);
+              }
+              break;
+            case TYPE_GOAWAY:
+              return;
+            default:
+          }
+        }
+      }
+
+      private synchronized void applySettings(byte[] payload) throws IOException {
+        for (int i = 0; i < payload.length; i += 6) {
+          if (payload[i + 1] == SETTINGS_INITIAL_WINDOW_SIZE) {
+            int value = getInt(payload, i + 2);
+            for (Map.Entry<Integer, Long> entry : streamWindows.entrySet()) {
+              entry.setValue(entry.getValue() + value - initialWindow);
+            }
+            initialWindow = value;
+          }
+        }
+      }
+
+      private void dispatch(final int streamId) {
+        final Map<String, String> request = requests.remove(streamId);
+        final byte[] body = bodies.remove(streamId).toByteArray();
+        int open = openStreams.incrementAndGet();
+        int max;
+        while (open > (max = maxOpenStreams.get())) {
+          if (maxOpenStreams.compareAndSet(max, open)) break;
+        }
+        executor.execute(new Runnable() {
+          @Override public void run() {
+            try {
+              List<Header> headers = new ArrayList<Header>();
+              byte[] response = respond(request, body, headers);
+              openStreams.decrementAndGet();
+              synchronized (out) {
+                byte[] block = encoder.encode(headers);
+                write(TYPE_HEADERS, FLAG_END_HEADERS, streamId, block, block.length);
+              }
+              writeData(streamId, response);
+            } catch (Exception ignored) {
+              // The client reset the stream or went away.
+            }
+          }
+        });
+      }
+
+      private void writeData(int streamId, byte[] data) throws Exception {
+        int offset = 0;
+        do {
+          int chunk;
+          synchronized (this) {
+            while (offset < data.length
+                && (connectionWindow <= 0 || streamWindows.get(streamId) <= 0)) {
+              wait();
+            }
+            chunk = (int) Math.min(Math.min(data.length - offset, 16384),
+                Math.min(connectionWindow, streamWindows.get(streamId)));
+            connectionWindow -= chunk;
+            streamWindows.put(streamId, streamWindows.get(streamId) - chunk);
+          }
+          boolean last = offset + chunk == data.length;
+          byte[] frame = Arrays.copyOfRange(data, offset, offset + chunk);
+          write(TYPE_DATA, last ? FLAG_END_STREAM : 0, streamId, frame, chunk);
+          offset += chunk;
+        } while (offset < data.length);
+      }
+
+      private void write(int type, int flags, int streamId, byte[] payload, int length)
+          throws IOException {
+        synchronized (out) {
+          writeFrame(out, type, flags, streamId, payload, 0, length);
+          out.flush();
+        }
+      }
+    }
+  }
+}
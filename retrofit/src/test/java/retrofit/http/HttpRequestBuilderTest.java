@@ -8,14 +8,10 @@ import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.UUID;
 import javax.inject.Named;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpUriRequest;
 import org.junit.Test;
 
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.fest.assertions.api.Fail.fail;
-import static retrofit.http.RestAdapter.MethodDetails;
 
 /** @author Eric Denman (edenman@squareup.com) */
 public class HttpRequestBuilderTest {
@@ -26,13 +22,12 @@ public class HttpRequestBuilderTest {
     Method method = getTestMethod("normalGet");
     String expectedId = UUID.randomUUID().toString();
     Object[] args = new Object[] { expectedId, new MyCallback() };
-    HttpUriRequest request = build(method, args);
+    Request request = build(method, args);
 
-    assertThat(request).isInstanceOf(HttpGet.class);
+    assertThat(request.getMethod()).isEqualTo("GET");
 
-    HttpGet put = (HttpGet) request;
     // Make sure the url param got translated.
-    final String uri = put.getURI().toString();
+    final String uri = request.getUrl();
     assertThat(uri).isEqualTo(API_URL + "/foo/bar?id=" + expectedId);
   }
 
@@ -41,13 +36,12 @@ public class HttpRequestBuilderTest {
     String expectedId = UUID.randomUUID().toString();
     String category = UUID.randomUUID().toString();
     Object[] args = new Object[] { expectedId, category, new MyCallback() };
-    HttpUriRequest request = build(method, args);
+    Request request = build(method, args);
 
-    assertThat(request).isInstanceOf(HttpGet.class);
+    assertThat(request.getMethod()).isEqualTo("GET");
 
-    HttpGet put = (HttpGet) request;
     // Make sure the url param got translated.
-    final String uri = put.getURI().toString();
+    final String uri = request.getUrl();
     assertThat(uri).isEqualTo(API_URL + "/foo/" + expectedId + "/bar?category=" + category);
   }
 
@@ -56,13 +50,12 @@ public class HttpRequestBuilderTest {
     String expectedId = "I have spaces buddy";
     String category = UUID.randomUUID().toString();
     Object[] args = new Object[] { expectedId, category, new MyCallback() };
-    HttpUriRequest request = build(method, args);
+    Request request = build(method, args);
 
-    assertThat(request).isInstanceOf(HttpGet.class);
+    assertThat(request.getMethod()).isEqualTo("GET");
 
-    HttpGet put = (HttpGet) request;
     // Make sure the url param got translated.
-    final String uri = put.getURI().toString();
+    final String uri = request.getUrl();
     assertThat(uri).isEqualTo(
         API_URL + "/foo/" + URLEncoder.encode(expectedId, "UTF-8") + "/bar?category=" + category);
   }
@@ -72,18 +65,17 @@ public class HttpRequestBuilderTest {
     String expectedId = UUID.randomUUID().toString();
     String bodyText = UUID.randomUUID().toString();
     Object[] args = new Object[] { new MyJsonObj(bodyText), expectedId, new MyCallback() };
-    HttpUriRequest request = build(method, args);
+    Request request = build(method, args);
 
-    assertThat(request).isInstanceOf(HttpPut.class);
+    assertThat(request.getMethod()).isEqualTo("PUT");
 
-    HttpPut put = (HttpPut) request;
     // Make sure the url param got translated.
-    final String uri = put.getURI().toString();
+    final String uri = request.getUrl();
     assertThat(uri).isEqualTo(API_URL + "/foo/bar/" + expectedId);
 
     // Make sure the request body has the json string.
     ByteArrayOutputStream out = new ByteArrayOutputStream();
-    put.getEntity().writeTo(out);
+    request.getBody().writeTo(out);
     final String requestBody = out.toString();
     assertThat(requestBody).isEqualTo("{\"bodyText\":\"" + bodyText + "\"}");
   }
@@ -93,18 +85,17 @@ public class HttpRequestBuilderTest {
     String expectedId = UUID.randomUUID().toString();
     String bodyText = UUID.randomUUID().toString();
     Object[] args = new Object[] { expectedId, bodyText, new MyCallback() };
-    HttpUriRequest request = build(method, args);
+    Request request = build(method, args);
 
-    assertThat(request).isInstanceOf(HttpPut.class);
+    assertThat(request.getMethod()).isEqualTo("PUT");
 
-    HttpPut put = (HttpPut) request;
     // Make sure the url param got translated.
-    final String uri = put.getURI().toString();
+    final String uri = request.getUrl();
     assertThat(uri).isEqualTo(API_URL + "/foo/bar/" + expectedId);
 
     // Make sure the request body has the json string.
     ByteArrayOutputStream out = new ByteArrayOutputStream();
-    put.getEntity().writeTo(out);
+    request.getBody().writeTo(out);
     final String requestBody = out.toString();
     assertThat(requestBody).isEqualTo("id=" + expectedId + "&body=" + bodyText);
   }
@@ -177,7 +168,7 @@ public class HttpRequestBuilderTest {
     throw new IllegalArgumentException("Unknown method '" + name + "' on MyService");
   }
 
-  private HttpUriRequest build(Method method, Object[] args) throws URISyntaxException {
+  private Request build(Method method, Object[] args) throws URISyntaxException {
     MethodDetails methodDetails = new MethodDetails(method);
     methodDetails.init();
     return new HttpRequestBuilder(new GsonConverter(GSON)) //
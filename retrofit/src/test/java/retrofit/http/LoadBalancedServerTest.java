@@ -0,0 +1,474 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.inject.Named;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class LoadBalancedServerTest {
+  private static final List<String> URLS =
+      Arrays.asList("http://a.example.com", "http://b.example.com/", "http://c.example.com");
+  private static final long SLOW_MILLIS = 20;
+  private static final int SIMULATED_CALLS = 300;
+
+  @Test public void roundRobinVisitsEachEndpointInTurn() {
+    LoadBalancedServer server = new LoadBalancedServer(URLS, new EndpointSelector.RoundRobin());
+    List<String> selected = new ArrayList<String>();
+    for (int i = 0; i < 6; i++) {
+      selected.add(server.select().url());
+    }
+    assertThat(selected).containsExactly("http://a.example.com/", "http://b.example.com/",
+        "http://c.example.com/", "http://a.example.com/", "http://b.example.com/",
+        "http://c.example.com/");
+    assertThat(server.apiUrl()).isEqualTo("http://a.example.com/");
+  }
+
+  @Test public void leastOutstandingAvoidsBusyEndpoints() throws Exception {
+    final LoadBalancedServer server =
+        new LoadBalancedServer(URLS, new EndpointSelector.LeastOutstanding());
+    final List<Endpoint> endpoints = server.getEndpoints();
+    Endpoint selected = whileBusy(endpoints.get(0), new Callable<Endpoint>() {
+      @Override public Endpoint call() throws Exception {
+        return whileBusy(endpoints.get(2), new Callable<Endpoint>() {
+          @Override public Endpoint call() {
+            assertThat(endpoints.get(0).getInFlightCount()).isEqualTo(1);
+            return server.select();
+          }
+        });
+      }
+    });
+    assertThat(selected).isSameAs(endpoints.get(1));
+    assertThat(endpoints.get(0).getInFlightCount()).isZero();
+
+    // When all are idle, ties are shared.
+    List<Endpoint> idle = new ArrayList<Endpoint>();
+    for (int i = 0; i < 3; i++) {
+      idle.add(server.select());
+    }
+    assertThat(idle).containsOnly(endpoints.toArray(new Endpoint[3]));
+  }
+
+  @Test public void powerOfTwoChoicesPicksTheLessBusyOfTwo() throws Exception {
+    final LoadBalancedServer server = new LoadBalancedServer(URLS.subList(0, 2),
+        new EndpointSelector.PowerOfTwoChoices(new Random(0)));
+    final Endpoint busy = server.getEndpoints().get(0);
+    whileBusy(busy, new Callable<Void>() {
+      @Override public Void call() {
+        for (int i = 0; i < 20; i++) {
+          assertThat(server.select()).isNotSameAs(busy);
+        }
+        return null;
+      }
+    });
+
+    LoadBalancedServer single = new LoadBalancedServer(URLS.subList(0, 1),
+        new EndpointSelector.PowerOfTwoChoices());
+    assertThat(single.select().url()).isEqualTo("http://a.example.com/");
+  }
+
+  @Test public void replacingEndpointsKeepsInFlightCounts() throws Exception {
+    final LoadBalancedServer server =
+        new LoadBalancedServer(URLS, new EndpointSelector.RoundRobin());
+    final Endpoint a = server.getEndpoints().get(0);
+    whileBusy(a, new Callable<Void>() {
+      @Override public Void call() {
+        server.setEndpoints(Arrays.asList("http://d.example.com", "http://a.example.com/"));
+        return null;
+      }
+    });
+    List<Endpoint> endpoints = server.getEndpoints();
+    assertThat(endpoints).hasSize(2);
+    assertThat(endpoints.get(0).url()).isEqualTo("http://d.example.com/");
+    assertThat(endpoints.get(1)).isSameAs(a);
+    assertThat(a.getInFlightCount()).isZero();
+    assertThat(server.apiUrl()).isEqualTo("http://a.example.com/"); // Its identity is kept.
+  }
+
+  @Test public void latencyAwareEjectsOutliersAndProbesThemAgain() throws Exception {
+    List<String> urls = Arrays.asList("http://a.example.com", "http://b.example.com",
+        "http://c.example.com", "http://d.example.com");
+    LoadBalancedServer server = new LoadBalancedServer(urls,
+        new EndpointSelector.LatencyAware(200, 200, TimeUnit.MILLISECONDS));
+    List<Endpoint> endpoints = server.getEndpoints();
+    Endpoint slow = endpoints.get(0);
+    recordSamples(endpoints, slow, 100);
+
+    assertThat(server.select()).isNotSameAs(slow);
+    assertThat(slow.isEjected()).isTrue();
+    for (int i = 0; i < 100; i++) {
+      assertThat(server.select()).isNotSameAs(slow);
+    }
+
+    Thread.sleep(250);
+    assertThat(slow.isEjected()).isFalse();
+    int probes = 0;
+    for (int i = 0; i < 200; i++) {
+      if (server.select() == slow) {
+        probes++;
+      }
+    }
+    assertThat(probes).isGreaterThan(0).isLessThan(100); // Only a growing share is probed.
+
+    // Still slow, so it is ejected again for twice as long.
+    recordSamples(endpoints, slow, 100);
+    server.select();
+    assertThat(slow.isEjected()).isTrue();
+    assertThat(slow.ejectedUntilNanos - System.nanoTime())
+        .isGreaterThan(TimeUnit.MILLISECONDS.toNanos(300));
+  }
+
+  @Test public void endpointsNeverEjectedAreSelectableWhateverTheClock() {
+    List<String> urls = Arrays.asList("http://a.example.com", "http://b.example.com");
+    LoadBalancedServer server =
+        new LoadBalancedServer(urls, new EndpointSelector.LatencyAware());
+    for (Endpoint endpoint : server.getEndpoints()) {
+      // As if System.nanoTime() were negative: the initial deadline lies in the future.
+      endpoint.ejectedUntilNanos = System.nanoTime() + TimeUnit.HOURS.toNanos(1);
+      assertThat(endpoint.isEjected()).isFalse();
+    }
+    assertThat(server.select()).isNotNull();
+  }
+
+  @Test public void latencyAwareEjectsAtMostHalfOfTheEndpoints() {
+    List<String> urls = Arrays.asList("http://a.example.com", "http://b.example.com",
+        "http://c.example.com", "http://d.example.com");
+    LoadBalancedServer server =
+        new LoadBalancedServer(urls, new EndpointSelector.LatencyAware());
+    for (Endpoint endpoint : server.getEndpoints()) {
+      for (int i = 0; i < EndpointSelector.LatencyAware.MIN_SAMPLES; i++) {
+        endpoint.record(TimeUnit.MILLISECONDS.toNanos(1), true);
+      }
+      assertThat(endpoint.getErrorRate()).isEqualTo(1.0);
+    }
+    server.select();
+    int ejected = 0;
+    for (Endpoint endpoint : server.getEndpoints()) {
+      if (endpoint.isEjected()) {
+        ejected++;
+      }
+    }
+    assertThat(ejected).isEqualTo(2);
+  }
+
+  /**
+   * Four replicas, one of them slow. Spreading calls evenly leaves a quarter of them slow, while
+   * latency-aware selection keeps the slow replica out of the 99th percentile.
+   */
+  @Test public void latencyAwareSelectionImprovesTailLatency() throws IOException {
+    List<Replica> replicas = new ArrayList<Replica>();
+    List<String> urls = new ArrayList<String>();
+    for (int i = 0; i < 4; i++) {
+      Replica replica = new Replica(i == 0 ? SLOW_MILLIS : 0);
+      replicas.add(replica);
+      urls.add("http://127.0.0.1:" + replica.serverSocket.getLocalPort());
+    }
+    try {
+      long roundRobin = p99(new LoadBalancedServer(urls, new EndpointSelector.RoundRobin()));
+      long latencyAware = p99(new LoadBalancedServer(urls, new EndpointSelector.LatencyAware()));
+      assertThat(roundRobin).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(SLOW_MILLIS));
+      assertThat(latencyAware).isLessThan(roundRobin / 2);
+    } finally {
+      for (Replica replica : replicas) {
+        replica.close();
+      }
+    }
+  }
+
+  private static long p99(LoadBalancedServer server) {
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer(server)
+        .setTransport(new UrlConnectionTransport())
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new GsonConverter(new Gson()))
+        .build();
+    Service service = restAdapter.create(Service.class);
+    long[] latencies = new long[SIMULATED_CALLS];
+    for (int i = 0; i < latencies.length; i++) {
+      long start = System.nanoTime();
+      assertThat(service.get()).isEqualTo("ok");
+      latencies[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(latencies);
+    return latencies[(int) Math.ceil(latencies.length * 0.99) - 1];
+  }
+
+  /** Record enough calls to judge each endpoint, with {@code slow} taking {@code slowMillis}. */
+  private static void recordSamples(List<Endpoint> endpoints, Endpoint slow, long slowMillis) {
+    for (int i = 0; i < EndpointSelector.LatencyAware.MIN_SAMPLES; i++) {
+      for (Endpoint endpoint : endpoints) {
+        long millis = endpoint == slow ? slowMillis : 1;
+        endpoint.record(TimeUnit.MILLISECONDS.toNanos(millis), false);
+      }
+    }
+  }
+
+  @Test public void routingByKeyIsStableAndEven() {
+    List<String> urls = Arrays.asList("http://a.example.com", "http://b.example.com",
+        "http://c.example.com", "http://d.example.com");
+    LoadBalancedServer server = new LoadBalancedServer(urls, new EndpointSelector.RoundRobin());
+    Map<Endpoint, Integer> counts = new HashMap<Endpoint, Integer>();
+    for (int i = 0; i < 4000; i++) {
+      Endpoint endpoint = server.select("account-" + i);
+      assertThat(server.select("account-" + i)).isSameAs(endpoint);
+      Integer count = counts.get(endpoint);
+      counts.put(endpoint, count == null ? 1 : count + 1);
+    }
+    assertThat(counts).hasSize(4);
+    for (int count : counts.values()) {
+      assertThat(count).isGreaterThan(800).isLessThan(1200);
+    }
+  }
+
+  @Test public void changingEndpointsRemapsKeysMinimally() {
+    LoadBalancedServer server = new LoadBalancedServer(URLS, new EndpointSelector.RoundRobin());
+    Map<String, String> before = new HashMap<String, String>();
+    for (int i = 0; i < 3000; i++) {
+      before.put("account-" + i, server.select("account-" + i).url());
+    }
+
+    List<String> added = new ArrayList<String>(URLS);
+    added.add("http://d.example.com");
+    server.setEndpoints(added);
+    int moved = 0;
+    for (Map.Entry<String, String> entry : before.entrySet()) {
+      String url = server.select(entry.getKey()).url();
+      if (!url.equals(entry.getValue())) {
+        assertThat(url).isEqualTo("http://d.example.com/"); // Keys only move to the new endpoint.
+        moved++;
+      }
+    }
+    assertThat(moved).isGreaterThan(500).isLessThan(1000); // About a quarter.
+
+    server.setEndpoints(Arrays.asList("http://a.example.com", "http://c.example.com",
+        "http://d.example.com"));
+    for (Map.Entry<String, String> entry : before.entrySet()) {
+      String url = server.select(entry.getKey()).url();
+      if (!entry.getValue().equals("http://b.example.com/")
+          && !url.equals("http://d.example.com/")) {
+        assertThat(url).isEqualTo(entry.getValue());
+      }
+    }
+  }
+
+  @Test public void routingByKeySpillsPastOverloadedEndpoints() throws Exception {
+    final LoadBalancedServer server =
+        new LoadBalancedServer(URLS, new EndpointSelector.RoundRobin());
+    final Endpoint owner = server.select("account-1");
+    Endpoint selected = whileBusy(owner, new Callable<Endpoint>() {
+      @Override public Endpoint call() {
+        return server.select("account-1");
+      }
+    });
+    assertThat(selected).isNotSameAs(owner);
+    assertThat(server.select("account-1")).isSameAs(owner); // Back once its load drops.
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void endpointsMayNotBeEmpty() {
+    new LoadBalancedServer(Collections.<String>emptyList(), new EndpointSelector.RoundRobin());
+  }
+
+  @Test public void adapterSpreadsRequestsAcrossEndpoints() throws IOException {
+    AtomicInteger first = new AtomicInteger();
+    AtomicInteger second = new AtomicInteger();
+    HttpServer a = startServer(first);
+    HttpServer b = startServer(second);
+    try {
+      LoadBalancedServer server = new LoadBalancedServer(Arrays.asList(
+          "http://127.0.0.1:" + a.getAddress().getPort(),
+          "http://127.0.0.1:" + b.getAddress().getPort()), new EndpointSelector.RoundRobin());
+      RestAdapter restAdapter = new RestAdapter.Builder() //
+          .setServer(server)
+          .setTransport(new UrlConnectionTransport())
+          .setExecutors(new Utils.SynchronousExecutor(), null)
+          .setConverter(new GsonConverter(new Gson()))
+          .build();
+      Service service = restAdapter.create(Service.class);
+      for (int i = 0; i < 4; i++) {
+        assertThat(service.get()).isEqualTo("ok");
+      }
+      assertThat(first.get()).isEqualTo(2);
+      assertThat(second.get()).isEqualTo(2);
+      for (Endpoint endpoint : server.getEndpoints()) {
+        assertThat(endpoint.getInFlightCount()).isZero();
+      }
+    } finally {
+      a.stop(0);
+      b.stop(0);
+    }
+  }
+
+  @Test public void adapterRoutesByNamedParameter() throws IOException {
+    AtomicInteger first = new AtomicInteger();
+    AtomicInteger second = new AtomicInteger();
+    HttpServer a = startServer(first);
+    HttpServer b = startServer(second);
+    try {
+      LoadBalancedServer server = new LoadBalancedServer(Arrays.asList(
+          "http://127.0.0.1:" + a.getAddress().getPort(),
+          "http://127.0.0.1:" + b.getAddress().getPort()), new EndpointSelector.RoundRobin());
+      RestAdapter restAdapter = new RestAdapter.Builder() //
+          .setServer(server)
+          .setTransport(new UrlConnectionTransport())
+          .setExecutors(new Utils.SynchronousExecutor(), null)
+          .setConverter(new GsonConverter(new Gson()))
+          .build();
+      Service service = restAdapter.create(Service.class);
+      String id = "42";
+      for (int i = 0; i < 4; i++) {
+        assertThat(service.account(id)).isEqualTo("ok");
+      }
+      AtomicInteger owner = server.select(id) == server.getEndpoints().get(0) ? first : second;
+      assertThat(owner.get()).isEqualTo(4);
+      assertThat(first.get() + second.get()).isEqualTo(4);
+
+      try {
+        service.misrouted("42");
+        fail("IllegalStateException expected.");
+      } catch (IllegalStateException expected) {
+      }
+    } finally {
+      a.stop(0);
+      b.stop(0);
+    }
+  }
+
+  interface Service {
+    @GET("things") String get();
+    @GET("accounts/{id}") @RouteBy("id") String account(@Named("id") String id);
+    @GET("accounts/{id}") @RouteBy("account") String misrouted(@Named("id") String id);
+  }
+
+  /** Run {@code whileBusy} as a request to {@code endpoint} is in flight. */
+  private static <T> T whileBusy(Endpoint endpoint, final Callable<T> whileBusy)
+      throws Exception {
+    final List<T> result = new ArrayList<T>();
+    Transport.Exchange exchange = endpoint.track(new Transport.Exchange() {
+      @Override public Request request() {
+        return null;
+      }
+
+      @Override public Response execute() throws IOException {
+        try {
+          result.add(whileBusy.call());
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+        return null;
+      }
+
+      @Override public void cancel() {
+      }
+    });
+    exchange.execute();
+    return result.get(0);
+  }
+
+  private static HttpServer startServer(final AtomicInteger requests) throws IOException {
+    HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        byte[] body = "\"ok\"".getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  /**
+   * A keep-alive HTTP/1.1 server which answers every request with the same small response. Unlike
+   * {@link HttpServer}, it writes each response in one packet, so Nagle's algorithm doesn't delay
+   * it and the only slow replica is the one made slow.
+   */
+  private static final class Replica {
+    final ServerSocket serverSocket;
+
+    Replica(final long delayMillis) throws IOException {
+      serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      Thread acceptor = new Thread(new Runnable() {
+        @Override public void run() {
+          try {
+            while (true) {
+              final Socket socket = serverSocket.accept();
+              socket.setTcpNoDelay(true);
+              Thread connection = new Thread(new Runnable() {
+                @Override public void run() {
+                  serve(socket, delayMillis);
+                }
+              });
+              connection.setDaemon(true);
+              connection.start();
+            }
+          } catch (IOException ignored) {
+          }
+        }
+      });
+      acceptor.setDaemon(true);
+      acceptor.start();
+    }
+
+    private static void serve(Socket socket, long delayMillis) {
+      try {
+        BufferedReader in =
+            new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+        byte[] response = ("HTTP/1.1 200 OK\r\n"
+            + "Content-Type: application/json; charset=UTF-8\r\n"
+            + "Content-Length: 4\r\n"
+            + "\r\n"
+            + "\"ok\"").getBytes("UTF-8");
+        OutputStream out = socket.getOutputStream();
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.length() > 0) {
+            continue; // Skip the request line and headers. Requests have no body.
+          }
+          if (delayMillis > 0) {
+            Thread.sleep(delayMillis);
+          }
+          out.write(response);
+          out.flush();
+        }
+      } catch (Exception ignored) {
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException ignored) {
+        }
+      }
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+  }
+}
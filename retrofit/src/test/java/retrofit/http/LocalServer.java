@@ -0,0 +1,79 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An HTTP server on the loopback interface for {@link Benchmark} tests. Each request is answered
+ * on its own thread after {@code delayMillis}, which stands in for the round trip to a remote
+ * server.
+ */
+final class LocalServer {
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final AtomicInteger requestCount = new AtomicInteger();
+
+  private LocalServer(final long delayMillis, final HttpHandler handler) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        requestCount.incrementAndGet();
+        try {
+          Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        handler.handle(exchange);
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  static LocalServer start(long delayMillis, HttpHandler handler) throws IOException {
+    return new LocalServer(delayMillis, handler);
+  }
+
+  /** The server's root URL, ending with a slash. */
+  String url() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  int requestCount() {
+    return requestCount.get();
+  }
+
+  void shutdown() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+
+  static byte[] readBody(HttpExchange exchange) throws IOException {
+    InputStream in = exchange.getRequestBody();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    for (int count; (count = in.read(buffer)) != -1;) {
+      body.write(buffer, 0, count);
+    }
+    return body.toByteArray();
+  }
+
+  static void respond(HttpExchange exchange, int status, String contentType, byte[] body)
+      throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.sendResponseHeaders(status, body.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.close();
+  }
+}
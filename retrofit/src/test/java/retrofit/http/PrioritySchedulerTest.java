@@ -0,0 +1,115 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static retrofit.http.Priority.Level.HIGH;
+import static retrofit.http.Priority.Level.LOW;
+import static retrofit.http.Priority.Level.NORMAL;
+
+public class PrioritySchedulerTest {
+  private final Queue<Runnable> executed = new LinkedList<Runnable>();
+  private final List<String> order = new ArrayList<String>();
+  private Executor executor;
+
+  @Before public void setUp() {
+    executor = new Executor() {
+      @Override public void execute(Runnable runnable) {
+        executed.add(runnable);
+      }
+    };
+  }
+
+  @Test public void startsWaitingCallsInPriorityOrder() {
+    PriorityScheduler scheduler = new PriorityScheduler(executor, 1, TimeUnit.HOURS.toNanos(1));
+    scheduler.execute(record("first"), LOW);
+    scheduler.execute(record("low"), LOW);
+    scheduler.execute(record("normal"), NORMAL);
+    scheduler.execute(record("high"), HIGH);
+    assertThat(executed).hasSize(1);
+
+    drain();
+    assertThat(order).containsExactly("high", "normal", "first", "low");
+    assertThat(scheduler.stats().getCount(LOW)).isEqualTo(2);
+    assertThat(scheduler.stats().getCount(HIGH)).isEqualTo(1);
+  }
+
+  @Test public void agedCallsAreNotStarved() {
+    PriorityScheduler scheduler = new PriorityScheduler(executor, 1, 0);
+    scheduler.execute(record("first"), LOW);
+    scheduler.execute(record("low"), LOW);
+    scheduler.execute(record("high"), HIGH);
+
+    drain();
+    assertThat(order).containsExactly("first", "low", "high");
+  }
+
+  @Test public void removedTasksDoNotRun() {
+    PriorityScheduler scheduler = new PriorityScheduler(executor, 1, 0);
+    scheduler.execute(record("first"), NORMAL);
+    PriorityScheduler.Task removed = scheduler.execute(record("removed"), NORMAL);
+    assertThat(scheduler.remove(removed)).isTrue();
+
+    drain();
+    assertThat(order).containsExactly("first");
+  }
+
+  @Test public void limitsConcurrency() {
+    PriorityScheduler scheduler = new PriorityScheduler(executor, 2, 0);
+    for (int i = 0; i < 5; i++) {
+      scheduler.execute(record("call"), NORMAL);
+    }
+    assertThat(executed).hasSize(2);
+
+    drain();
+    assertThat(order).hasSize(5);
+  }
+
+  @Test public void rejectsOnlyWhenSaturatedAndQueueIsFull() {
+    PriorityScheduler scheduler = new PriorityScheduler(executor, 1, 0, 0);
+    assertThat(scheduler.execute(record("first"), NORMAL)).isNotNull();
+    assertThat(scheduler.execute(record("rejected"), NORMAL)).isNull();
+    assertThat(scheduler.rejectedCount()).isEqualTo(1);
+
+    drain();
+    assertThat(order).containsExactly("first");
+    assertThat(scheduler.execute(record("idle again"), NORMAL)).isNotNull();
+    drain();
+    assertThat(order).containsExactly("first", "idle again");
+  }
+
+  @Test public void queueHoldsAtMostMaxQueued() {
+    PriorityScheduler scheduler = new PriorityScheduler(executor, 2, 0, 1);
+    for (int i = 0; i < 5; i++) {
+      scheduler.execute(record("call"), NORMAL);
+    }
+    assertThat(scheduler.rejectedCount()).isEqualTo(2);
+    assertThat(scheduler.queuedCount()).isEqualTo(1);
+
+    drain();
+    assertThat(order).hasSize(3);
+  }
+
+  private Runnable record(final String name) {
+    return new Runnable() {
+      @Override public void run() {
+        order.add(name);
+      }
+    };
+  }
+
+  private void drain() {
+    Runnable runnable;
+    while ((runnable = executed.poll()) != null) {
+      runnable.run();
+    }
+  }
+}
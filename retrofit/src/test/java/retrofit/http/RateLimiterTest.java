@@ -0,0 +1,132 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class RateLimiterTest {
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test public void burstIsAvailableImmediately() {
+    RateLimiter limiter = new RateLimiter(1, 3);
+    assertThat(limiter.reserve()).isZero();
+    assertThat(limiter.reserve()).isZero();
+    assertThat(limiter.reserve()).isZero();
+    assertThat(limiter.tryAcquire()).isFalse();
+  }
+
+  @Test public void reservationsAreSpacedByRate() {
+    RateLimiter limiter = new RateLimiter(10, 1);
+    assertThat(limiter.reserve()).isZero();
+    long second = limiter.reserve();
+    long third = limiter.reserve();
+    assertThat(second).isGreaterThan(SECOND / 20).isLessThanOrEqualTo(SECOND / 10);
+    assertThat(third).isGreaterThan(SECOND / 10 + SECOND / 20).isLessThanOrEqualTo(SECOND / 5);
+  }
+
+  @Test public void refundReturnsPermit() {
+    RateLimiter limiter = new RateLimiter(0.001, 1);
+    assertThat(limiter.tryAcquire()).isTrue();
+    assertThat(limiter.tryAcquire()).isFalse();
+    limiter.refund();
+    assertThat(limiter.tryAcquire()).isTrue();
+  }
+
+  @Test public void refundPaysBackAReservation() {
+    RateLimiter limiter = new RateLimiter(1, 1);
+    assertThat(limiter.reserve()).isZero();
+    assertThat(limiter.reserve()).isGreaterThan(SECOND / 2);
+    assertThat(limiter.peekWait()).isGreaterThan(SECOND + SECOND / 2);
+    limiter.refund();
+    assertThat(limiter.peekWait()).isGreaterThan(SECOND / 2).isLessThanOrEqualTo(SECOND);
+  }
+
+  @Test public void callRejectedByItsDeadlineTakesNoPermit() throws Exception {
+    RateLimits limits = new RateLimits(1, 1, false);
+    MethodDetails methodDetails = new MethodDetails(Service.class.getMethod("get"));
+    methodDetails.init();
+    limits.acquire("http://host/api/", methodDetails, new RealCall(null, 0));
+    long wait = limits.peekWait("http://host/api/", methodDetails);
+    try {
+      limits.acquire("http://host/api/", methodDetails, new RealCall(null, 10));
+      fail("RetrofitError expected.");
+    } catch (RetrofitError e) {
+      assertThat(e.isDeadlineExceeded()).isTrue();
+    }
+    assertThat(limits.peekWait("http://host/api/", methodDetails)).isLessThanOrEqualTo(wait);
+  }
+
+  @Test public void pauseDelaysEveryPermit() {
+    RateLimiter limiter = new RateLimiter(1000, 10);
+    limiter.pause(SECOND);
+    assertThat(limiter.tryAcquire()).isFalse();
+    assertThat(limiter.reserve()).isGreaterThan(SECOND / 2).isLessThanOrEqualTo(SECOND);
+  }
+
+  @Test public void retryAfterPausesOnlyThrottledResponses() {
+    Header[] headers = { new Header("Retry-After", "2") };
+    assertThat(RateLimiter.pauseNanos(429, headers)).isEqualTo(2 * SECOND);
+    assertThat(RateLimiter.pauseNanos(503, headers)).isEqualTo(2 * SECOND);
+    assertThat(RateLimiter.pauseNanos(200, headers)).isZero();
+  }
+
+  @Test public void exhaustedQuotaPausesUntilReset() {
+    Header[] exhausted = { new Header("X-RateLimit-Remaining", "0"),
+        new Header("X-RateLimit-Reset", "30") };
+    assertThat(RateLimiter.pauseNanos(200, exhausted)).isEqualTo(30 * SECOND);
+
+    long resetEpochSeconds = System.currentTimeMillis() / 1000 + 60;
+    Header[] epoch = { new Header("RateLimit-Remaining", "0"),
+        new Header("RateLimit-Reset", String.valueOf(resetEpochSeconds)) };
+    assertThat(RateLimiter.pauseNanos(200, epoch)).isGreaterThan(58 * SECOND)
+        .isLessThanOrEqualTo(60 * SECOND);
+
+    Header[] remaining = { new Header("X-RateLimit-Remaining", "5"),
+        new Header("X-RateLimit-Reset", "30") };
+    assertThat(RateLimiter.pauseNanos(200, remaining)).isZero();
+  }
+
+  @Test public void synchronousCallsFailFast() {
+    Service service = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(new DummyHttpClient() {
+          @Override public HttpResponse execute(HttpUriRequest request) {
+            BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+            try {
+              response.setEntity(new StringEntity("\"ok\"", "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+              throw new AssertionError(e);
+            }
+            return response;
+          }
+        })
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new GsonConverter(new Gson()))
+        .setRateLimit(100, 10)
+        .setRateLimitFailFast(true)
+        .build()
+        .create(Service.class);
+    assertThat(service.get()).isEqualTo("ok");
+    try {
+      service.get();
+      fail("RetrofitError expected.");
+    } catch (RetrofitError e) {
+      assertThat(e.isRateLimited()).isTrue();
+    }
+  }
+
+  interface Service {
+    @GET("things") @RateLimit(0.001)
+    String get();
+  }
+}
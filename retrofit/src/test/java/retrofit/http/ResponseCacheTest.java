@@ -0,0 +1,264 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static retrofit.http.TestMessages.get;
+import static retrofit.http.TestMessages.headers;
+
+public class ResponseCacheTest {
+  private static final String URL = "http://host/api/things";
+
+  private final MemoryResponseCache cache = new MemoryResponseCache(1024 * 1024);
+
+  @Test public void maxAgeResponseIsServedWhileFresh() {
+    Response response = response("Cache-Control", "max-age=60");
+    cache.put(get(URL), response);
+    assertThat(cache.get(get(URL))).isSameAs(response);
+    assertThat(cache.get(get(URL + "/other"))).isNull();
+
+    // Already older than its lifetime when it was received.
+    cache.put(get(URL), response("Cache-Control", "max-age=60", "Age", "61"));
+    assertThat(cache.get(get(URL))).isNull();
+
+    ResponseCacheStats stats = cache.getStats();
+    assertThat(stats.getHitCount()).isEqualTo(1);
+    assertThat(stats.getMissCount()).isEqualTo(2);
+    assertThat(stats.getHitRatio()).isEqualTo(1 / 3.0);
+  }
+
+  @Test public void expiresIsRelativeToTheServersDate() {
+    long now = System.currentTimeMillis();
+    cache.put(get(URL), response("Date", date(now - 3600000), "Expires", date(now - 3540000)));
+    assertThat(cache.get(get(URL))).isNull(); // Sixty seconds of lifetime, an hour ago.
+
+    cache.put(get(URL), response("Date", date(now), "Expires", date(now + 60000)));
+    assertThat(cache.get(get(URL))).isNotNull();
+
+    cache.put(get(URL), response("Expires", "0"));
+    assertThat(cache.get(get(URL))).isNull();
+  }
+
+  @Test public void responsesWhichForbidCachingAreNotStored() {
+    cache.put(get(URL), response("Cache-Control", "max-age=60, no-store"));
+    assertThat(cache.get(get(URL))).isNull();
+    cache.put(get(URL), response("Cache-Control", "no-cache, max-age=60"));
+    assertThat(cache.get(get(URL))).isNull();
+    cache.put(get(URL), response());
+    assertThat(cache.get(get(URL))).isNull(); // No explicit lifetime.
+    cache.put(get(URL), new Response(500, "Error",
+        Arrays.asList(new Header("Cache-Control", "max-age=60")), new byte[0]));
+    assertThat(cache.get(get(URL))).isNull();
+    assertThat(cache.size()).isZero();
+
+    // A response which may not be cached replaces one which could.
+    cache.put(get(URL), response("Cache-Control", "max-age=60"));
+    cache.put(get(URL), response("Cache-Control", "no-store"));
+    assertThat(cache.get(get(URL))).isNull();
+  }
+
+  @Test public void requestCacheControlBypassesTheCache() {
+    cache.put(get(URL), response("Cache-Control", "max-age=60"));
+    assertThat(cache.get(get(URL, "Cache-Control", "no-cache"))).isNull();
+    assertThat(cache.get(get(URL, "Cache-Control", "max-age=0"))).isNull();
+    assertThat(cache.get(get(URL, "Pragma", "no-cache"))).isNull();
+    assertThat(cache.get(get(URL))).isNotNull();
+
+    cache.put(get(URL + "/2", "Cache-Control", "no-store"),
+        response("Cache-Control", "max-age=60"));
+    assertThat(cache.get(get(URL + "/2"))).isNull();
+  }
+
+  @Test public void varyMatchesTheRequestHeaders() {
+    cache.put(get(URL, "Accept-Language", "fr"),
+        response("Cache-Control", "max-age=60", "Vary", "Accept-Language, Accept-Encoding"));
+    assertThat(cache.get(get(URL, "Accept-Language", "fr"))).isNotNull();
+    assertThat(cache.get(get(URL, "Accept-Language", "de"))).isNull();
+    assertThat(cache.get(get(URL))).isNull();
+    assertThat(cache.get(get(URL, "Accept-Language", "fr", "Accept-Encoding", "gzip"))).isNull();
+
+    cache.put(get(URL), response("Cache-Control", "max-age=60", "Vary", "*"));
+    assertThat(cache.get(get(URL))).isNull();
+  }
+
+  @Test public void unsafeRequestsInvalidateTheirUrl() {
+    cache.put(get(URL), response("Cache-Control", "max-age=60"));
+    Request post = new Request("POST", URL, Collections.<Header>emptyList(), null);
+    cache.put(post, new Response(500, "Error", Collections.<Header>emptyList(), null));
+    assertThat(cache.get(get(URL))).isNotNull(); // A failed request changed nothing.
+    cache.put(post, new Response(200, "OK", Collections.<Header>emptyList(), null));
+    assertThat(cache.get(get(URL))).isNull();
+  }
+
+  @Test public void leastRecentlyUsedAreEvictedByWeight() {
+    MemoryResponseCache small = new MemoryResponseCache(1000, 1);
+    small.put(get(URL + "/a"), response(400, "Cache-Control", "max-age=60"));
+    small.put(get(URL + "/b"), response(400, "Cache-Control", "max-age=60"));
+    assertThat(small.get(get(URL + "/a"))).isNotNull(); // Now more recently used than b.
+    small.put(get(URL + "/c"), response(400, "Cache-Control", "max-age=60"));
+
+    assertThat(small.get(get(URL + "/b"))).isNull();
+    assertThat(small.get(get(URL + "/a"))).isNotNull();
+    assertThat(small.get(get(URL + "/c"))).isNotNull();
+    assertThat(small.getStats().getEvictionCount()).isEqualTo(1);
+    assertThat(small.size()).isLessThanOrEqualTo(1000).isGreaterThan(800);
+
+    // Larger than the whole cache, so never stored.
+    small.put(get(URL + "/d"), response(2000, "Cache-Control", "max-age=60"));
+    assertThat(small.get(get(URL + "/d"))).isNull();
+    assertThat(small.get(get(URL + "/a"))).isNotNull();
+
+    small.evictAll();
+    assertThat(small.size()).isZero();
+  }
+
+  @Test public void concurrentAccessKeepsConsistentStats() throws Exception {
+    final MemoryResponseCache striped = new MemoryResponseCache(20000, 4);
+    final int threads = 8;
+    final int operations = 2000;
+    final CountDownLatch done = new CountDownLatch(threads);
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    for (int t = 0; t < threads; t++) {
+      final int seed = t;
+      new Thread() {
+        @Override public void run() {
+          try {
+            for (int i = 0; i < operations; i++) {
+              Request request = get(URL + "/" + ((i * 31 + seed) % 100));
+              if (striped.get(request) == null) {
+                striped.put(request, response(400, "Cache-Control", "max-age=60"));
+              }
+            }
+          } catch (Throwable e) {
+            errors.add(e);
+          } finally {
+            done.countDown();
+          }
+        }
+      }.start();
+    }
+    done.await();
+    assertThat(errors).isEmpty();
+    ResponseCacheStats stats = striped.getStats();
+    assertThat(stats.getHitCount() + stats.getMissCount()).isEqualTo(threads * operations);
+    assertThat(stats.getEvictionCount()).isGreaterThan(0);
+    assertThat(striped.size()).isLessThanOrEqualTo(20000);
+  }
+
+  @Test public void adapterAnswersFreshResponsesWithoutTheNetwork() {
+    final AtomicInteger requests = new AtomicInteger();
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setTransport(new Transport() {
+          @Override public Exchange newExchange(final Request request) {
+            return new Exchange() {
+              @Override public Request request() {
+                return request;
+              }
+
+              @Override public Response execute() throws IOException {
+                requests.incrementAndGet();
+                return new Response(200, "OK", Arrays.asList(
+                    new Header("Content-Type", "application/json; charset=UTF-8"),
+                    new Header("Cache-Control", "max-age=60")), "\"ok\"".getBytes("UTF-8"));
+              }
+
+              @Override public void cancel() {
+              }
+            };
+          }
+        })
+        .setExecutors(new Utils.SynchronousExecutor(), null)
+        .setConverter(new GsonConverter(new Gson()))
+        .setResponseCache(cache)
+        .build();
+    Service service = restAdapter.create(Service.class);
+    assertThat(service.get()).isEqualTo("ok");
+    assertThat(service.get()).isEqualTo("ok");
+    assertThat(requests.get()).isEqualTo(1);
+
+    service.update("new");
+    assertThat(service.get()).isEqualTo("ok");
+    assertThat(requests.get()).isEqualTo(3); // The POST made the cached response stale.
+    assertThat(cache.getStats().getHitCount()).isEqualTo(1);
+  }
+
+  @Test public void hitsNeedNeitherRateLimitsNorExecutorSlots() {
+    cache.put(get(URL), new Response(200, "OK", headers(
+        "Content-Type", "application/json; charset=UTF-8", "Cache-Control", "max-age=60"),
+        "\"cached\"".getBytes()));
+    final List<Runnable> queued = new ArrayList<Runnable>();
+    RestAdapter restAdapter = new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setTransport(new Transport() {
+          @Override public Exchange newExchange(Request request) {
+            throw new AssertionError("Cache hits must not be sent.");
+          }
+        })
+        .setExecutors(new Executor() {
+          @Override public void execute(Runnable runnable) {
+            queued.add(runnable); // Never run, so no slot frees up.
+          }
+        }, new Utils.SynchronousExecutor())
+        .setMaxConcurrentRequests(1)
+        .setRateLimit(0.001, 1)
+        .setRateLimitFailFast(true)
+        .setConverter(new GsonConverter(new Gson()))
+        .setResponseCache(cache)
+        .build();
+    Service service = restAdapter.create(Service.class);
+    for (int i = 0; i < 3; i++) {
+      assertThat(service.get()).isEqualTo("cached");
+    }
+
+    final List<String> delivered = new ArrayList<String>();
+    for (int i = 0; i < 3; i++) {
+      service.get(new Callback<String>() {
+        @Override public void success(String value) {
+          delivered.add(value);
+        }
+
+        @Override public void failure(RetrofitError error) {
+          throw new AssertionError(error);
+        }
+      });
+    }
+    assertThat(delivered).containsExactly("cached", "cached", "cached");
+    assertThat(queued).isEmpty();
+    assertThat(cache.getStats().getHitCount()).isEqualTo(6);
+  }
+
+  interface Service {
+    @GET("things") String get();
+    @GET("things") void get(Callback<String> callback);
+    @POST("things") String update(@SingleEntity String value);
+  }
+
+  private static Response response(String... headers) {
+    return new Response(200, "OK", headers(headers), new byte[0]);
+  }
+
+  private static Response response(int size, String... headers) {
+    return new Response(200, "OK", headers(headers), new byte[size]);
+  }
+
+  private static String date(long millis) {
+    SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+    format.setTimeZone(TimeZone.getTimeZone("GMT"));
+    return format.format(new Date(millis));
+  }
+}
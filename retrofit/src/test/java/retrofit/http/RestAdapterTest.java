@@ -4,7 +4,6 @@ package retrofit.http;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import java.util.Set;
-import org.apache.http.HttpMessage;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.HttpVersion;
@@ -16,6 +15,8 @@ import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.easymock.Capture;
 import org.easymock.IAnswer;
 import org.junit.Before;
@@ -27,6 +28,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Type;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Executor;
 
@@ -39,7 +41,6 @@ import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.fest.assertions.api.Assertions.assertThat;
 import static org.fest.assertions.api.Assertions.fail;
-import static retrofit.http.RestAdapter.MethodDetails;
 
 public class RestAdapterTest {
   private static final String ID = "123";
@@ -539,6 +540,87 @@ public class RestAdapterTest {
     method.init();
   }
 
+  @Test public void testCanceledCallIsNotExecuted() {
+    Capture<Runnable> queued = expectQueuedExecution(mockHttpExecutor);
+    replayAll();
+
+    CancelService service = restAdapter.create(CancelService.class);
+    Call call = service.get(mockCallback);
+    assertThat(restAdapter.activeCallCount()).isEqualTo(1);
+    call.cancel();
+    assertThat(call.isCanceled()).isTrue();
+    assertThat(restAdapter.activeCallCount()).isZero();
+    queued.getValue().run();
+    verifyAll();
+  }
+
+  @Test public void testCancelByTag() {
+    Capture<Runnable> queued = expectQueuedExecution(mockHttpExecutor);
+    replayAll();
+
+    CancelService service = restAdapter.create(CancelService.class);
+    service.getTagged("screen", mockCallback);
+    restAdapter.cancel("other");
+    assertThat(restAdapter.activeCallCount()).isEqualTo(1);
+    restAdapter.cancel("screen");
+    assertThat(restAdapter.activeCallCount()).isZero();
+    queued.getValue().run();
+    verifyAll();
+  }
+
+  @Test public void testTagIsNotSentWithRequest() throws IOException {
+    expectAsyncLifecycle(HttpGet.class, GET_DELETE_SIMPLE_URL);
+    replayAll();
+
+    CancelService service = restAdapter.create(CancelService.class);
+    service.getTagged("screen", mockCallback);
+    verifyAll();
+  }
+
+  @Test public void testDeadlineExceededWhileQueued() throws InterruptedException {
+    Capture<Runnable> queued = expectQueuedExecution(mockHttpExecutor);
+    expectExecution(mockCallbackExecutor);
+    Capture<RetrofitError> error = new Capture<RetrofitError>();
+    mockCallback.failure(capture(error));
+    expectLastCall().once();
+    replayAll();
+
+    TimeoutService service = restAdapter.create(TimeoutService.class);
+    service.deadline(mockCallback);
+    Thread.sleep(10);
+    queued.getValue().run();
+    verifyAll();
+    assertThat(error.getValue().isDeadlineExceeded()).isTrue();
+  }
+
+  @Test public void testMethodTimeoutsAppliedToRequest() throws IOException {
+    expect(mockHeaders.get()).andReturn(Collections.<Header>emptyList()).once();
+    Capture<HttpUriRequest> request = new Capture<HttpUriRequest>();
+    expect(mockHttpClient.execute(capture(request))).andReturn(mockResponse);
+    expectResponseCalls(GSON.toJson(RESPONSE), HttpStatus.SC_OK);
+    replayAll();
+
+    TimeoutService service = restAdapter.create(TimeoutService.class);
+    assertThat(service.timeouts()).isEqualTo(RESPONSE);
+    verifyAll();
+    HttpParams params = request.getValue().getParams();
+    assertThat(HttpConnectionParams.getConnectionTimeout(params)).isEqualTo(100);
+    assertThat(HttpConnectionParams.getSoTimeout(params)).isEqualTo(200);
+  }
+
+  @Test public void testHeadersAreAddedToRequest() throws IOException {
+    expect(mockHeaders.get()).andReturn(Collections.singletonList(new Header("X-Client", "test")));
+    Capture<HttpUriRequest> request = new Capture<HttpUriRequest>();
+    expect(mockHttpClient.execute(capture(request))).andReturn(mockResponse);
+    expectResponseCalls(GSON.toJson(RESPONSE), HttpStatus.SC_OK);
+    replayAll();
+
+    GetService service = restAdapter.create(GetService.class);
+    assertThat(service.get()).isEqualTo(RESPONSE);
+    verifyAll();
+    assertThat(request.getValue().getFirstHeader("X-Client").getValue()).isEqualTo("test");
+  }
+
   @Test public void testNonEndpointMethodsSucceed() {
     TypeTestService service = restAdapter.create(TypeTestService.class);
     assertThat(service.equals(new Object())).isFalse();
@@ -597,9 +679,9 @@ public class RestAdapterTest {
 
   private <T extends HttpUriRequest> void expectHttpExecution(Class<T> requestClass,
       String requestUrl, Object response, int status) throws IOException {
-    expectSetOnWithRequest(requestClass, requestUrl);
+    expect(mockHeaders.get()).andReturn(Collections.<Header>emptyList());
     expectResponseCalls(GSON.toJson(response), status);
-    expectHttpClientExecute();
+    expectHttpClientExecute(requestClass, requestUrl);
   }
 
   private void expectCallbacks() {
@@ -612,8 +694,17 @@ public class RestAdapterTest {
     expectLastCall().once();
   }
 
-  private void expectHttpClientExecute() throws IOException {
-    expect(mockHttpClient.execute(isA(HttpUriRequest.class))).andReturn(mockResponse);
+  private <T extends HttpUriRequest> void expectHttpClientExecute(
+      final Class<T> expectedRequestClass, final String expectedUri) throws IOException {
+    final Capture<HttpUriRequest> capture = new Capture<HttpUriRequest>();
+    expect(mockHttpClient.execute(capture(capture))).andAnswer(new IAnswer<HttpResponse>() {
+      @Override public HttpResponse answer() throws Throwable {
+        HttpUriRequest request = capture.getValue();
+        assertThat(request.getMethod()).isEqualTo(expectedRequestClass.newInstance().getMethod());
+        assertThat(request.getURI().toString()).isEqualTo(expectedUri);
+        return mockResponse;
+      }
+    });
   }
 
   private void expectResponseCalls(String jsonToReturn, int statusCode)
@@ -624,19 +715,6 @@ public class RestAdapterTest {
     expect(mockResponse.getAllHeaders()).andReturn(null);
   }
 
-  private <T extends HttpUriRequest> void expectSetOnWithRequest(
-      final Class<T> expectedRequestClass, final String expectedUri) {
-    final Capture<HttpMessage> capture = new Capture<HttpMessage>();
-    mockHeaders.setOn(capture(capture));
-    expectLastCall().andAnswer(new IAnswer<Object>() {
-      @Override public Object answer() throws Throwable {
-        T request = expectedRequestClass.cast(capture.getValue());
-        assertThat(request.getURI().toString()).isEqualTo(expectedUri);
-        return null;
-      }
-    });
-  }
-
   private void expectExecution(Executor executor) {
     final Capture<Runnable> capture = new Capture<Runnable>();
     executor.execute(capture(capture));
@@ -648,6 +726,23 @@ public class RestAdapterTest {
     });
   }
 
+  private Capture<Runnable> expectQueuedExecution(Executor executor) {
+    Capture<Runnable> capture = new Capture<Runnable>();
+    executor.execute(capture(capture));
+    expectLastCall().once();
+    return capture;
+  }
+
+  private interface CancelService {
+    @GET(ENTITY) Call get(Callback<Response> callback);
+    @GET(ENTITY) void getTagged(@Tag Object tag, Callback<Response> callback);
+  }
+
+  private interface TimeoutService {
+    @GET(ENTITY) @Timeout(deadline = 1) void deadline(Callback<Response> callback);
+    @GET(ENTITY) @Timeout(connect = 100, read = 200) Response timeouts();
+  }
+
   private interface DeleteService {
 
     @DELETE(ENTITY) void delete(Callback<Response> callback);
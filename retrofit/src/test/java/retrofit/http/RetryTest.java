@@ -0,0 +1,155 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class RetryTest {
+  private static final Executor SYNCHRONOUS = new Executor() {
+    @Override public void execute(Runnable command) {
+      command.run();
+    }
+  };
+
+  private final AtomicInteger requests = new AtomicInteger();
+
+  @Test public void backoffDelaysAreBoundedAndJittered() {
+    ExponentialBackoff backoff = new ExponentialBackoff(5, 100, 300, TimeUnit.MILLISECONDS, 503);
+    RetrofitError network = RetrofitError.networkError("http://host/", new IOException());
+    for (int i = 0; i < 100; i++) {
+      assertThat(backoff.retryDelay(1, network)).isGreaterThanOrEqualTo(0).isLessThanOrEqualTo(100);
+      assertThat(backoff.retryDelay(2, network)).isLessThanOrEqualTo(200);
+      assertThat(backoff.retryDelay(4, network)).isLessThanOrEqualTo(300);
+    }
+    assertThat(backoff.retryDelay(5, network)).isEqualTo(-1);
+  }
+
+  @Test public void backoffRetriesOnlyConfiguredStatusCodes() {
+    ExponentialBackoff backoff = new ExponentialBackoff(3, 0, 0, TimeUnit.MILLISECONDS, 503);
+    assertThat(backoff.retryDelay(1, httpError(503))).isEqualTo(0);
+    assertThat(backoff.retryDelay(1, httpError(500))).isEqualTo(-1);
+  }
+
+  @Test public void synchronousCallRetriesNetworkErrors() {
+    Service service = service(new ExponentialBackoff(3, 1, 1, TimeUnit.MILLISECONDS), 0.1,
+        failingTimes(2));
+    assertThat(service.get()).isEqualTo("ok");
+    assertThat(requests.get()).isEqualTo(3);
+  }
+
+  @Test public void methodPolicyOverridesAdapterPolicy() {
+    Service service = service(new ExponentialBackoff(3, 1, 1, TimeUnit.MILLISECONDS), 0.1,
+        failingTimes(2));
+    try {
+      service.getOnce();
+      fail("RetrofitError expected.");
+    } catch (RetrofitError e) {
+      assertThat(e.isNetworkError()).isTrue();
+    }
+    assertThat(requests.get()).isEqualTo(1);
+  }
+
+  @Test public void nonIdempotentCallsAreNotRetried() {
+    Service service = service(new ExponentialBackoff(3, 1, 1, TimeUnit.MILLISECONDS), 0.1,
+        failingTimes(2));
+    try {
+      service.post();
+      fail("RetrofitError expected.");
+    } catch (RetrofitError e) {
+      assertThat(e.isNetworkError()).isTrue();
+    }
+    assertThat(requests.get()).isEqualTo(1);
+  }
+
+  @Test public void retryBudgetLimitsRetries() {
+    Service service = service(new ExponentialBackoff(100, 0, 0, TimeUnit.MILLISECONDS), 0,
+        failingTimes(Integer.MAX_VALUE));
+    try {
+      service.get();
+      fail("RetrofitError expected.");
+    } catch (RetrofitError e) {
+      assertThat(e.isNetworkError()).isTrue();
+    }
+    // A zero budget leaves only the initial allowance of ten retries.
+    assertThat(requests.get()).isEqualTo(11);
+  }
+
+  @Test public void asynchronousCallRetriesWithoutBlocking() throws Exception {
+    Service service = service(new ExponentialBackoff(3, 1, 1, TimeUnit.MILLISECONDS), 0.1,
+        failingTimes(2));
+    final CountDownLatch latch = new CountDownLatch(1);
+    final AtomicReference<Object> result = new AtomicReference<Object>();
+    service.get(new Callback<String>() {
+      @Override public void success(String s) {
+        result.set(s);
+        latch.countDown();
+      }
+
+      @Override public void failure(RetrofitError error) {
+        result.set(error);
+        latch.countDown();
+      }
+    });
+    assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(result.get()).isEqualTo("ok");
+    assertThat(requests.get()).isEqualTo(3);
+  }
+
+  private DummyHttpClient failingTimes(final int failures) {
+    return new DummyHttpClient() {
+      @Override public HttpResponse execute(HttpUriRequest request) throws IOException {
+        if (requests.incrementAndGet() <= failures) {
+          throw new IOException("Connection reset");
+        }
+        BasicHttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        try {
+          response.setEntity(new StringEntity("\"ok\"", "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+          throw new AssertionError(e);
+        }
+        return response;
+      }
+    };
+  }
+
+  private static Service service(RetryPolicy policy, double budget, DummyHttpClient client) {
+    return new RestAdapter.Builder() //
+        .setServer("http://host/api/")
+        .setClient(client)
+        .setExecutors(SYNCHRONOUS, SYNCHRONOUS)
+        .setConverter(new GsonConverter(new Gson()))
+        .setRetryPolicy(policy)
+        .setRetryBudget(budget)
+        .build()
+        .create(Service.class);
+  }
+
+  private static RetrofitError httpError(int statusCode) {
+    return RetrofitError.httpError("http://host/", null, statusCode, null, null, null);
+  }
+
+  interface Service {
+    @GET("things") String get();
+
+    @GET("things") void get(Callback<String> callback);
+
+    @GET("things") @Retry(attempts = 1) String getOnce();
+
+    @POST("things") String post();
+  }
+}
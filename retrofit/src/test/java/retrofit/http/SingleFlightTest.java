@@ -0,0 +1,221 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+public class SingleFlightTest {
+  private static final String URL = "http://host/api/entity";
+
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final ScheduledExecutorService scheduledExecutor =
+      Executors.newSingleThreadScheduledExecutor();
+  private final SingleFlight singleFlight = new SingleFlight(scheduledExecutor);
+  private final AtomicInteger executions = new AtomicInteger();
+
+  @After public void tearDown() {
+    executor.shutdownNow();
+    scheduledExecutor.shutdownNow();
+  }
+
+  @Test public void concurrentCallsShareResult() throws Exception {
+    final Object result = new Object();
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> leader = executor.submit(flight("key", blockingWork(release, result)));
+    awaitExecutions(1);
+    Future<Object> follower = executor.submit(flight("key", blockingWork(release, result)));
+    awaitWaiting();
+
+    release.countDown();
+    assertThat(leader.get()).isSameAs(result);
+    assertThat(follower.get()).isSameAs(result);
+    assertThat(executions.get()).isEqualTo(1);
+    assertThat(singleFlight.coalescedCount()).isEqualTo(1);
+  }
+
+  @Test public void differentKeysDoNotShare() throws Exception {
+    singleFlight.execute("a", new RealCall(null, 0), URL, countingWork());
+    singleFlight.execute("b", new RealCall(null, 0), URL, countingWork());
+    assertThat(executions.get()).isEqualTo(2);
+    assertThat(singleFlight.coalescedCount()).isZero();
+  }
+
+  @Test public void errorsAreShared() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Callable<Object> failing = new Callable<Object>() {
+      @Override public Object call() throws Exception {
+        executions.incrementAndGet();
+        release.await();
+        throw RetrofitError.networkError(URL, new IOException());
+      }
+    };
+    Future<Object> leader = executor.submit(flight("key", failing));
+    awaitExecutions(1);
+    Future<Object> follower = executor.submit(flight("key", failing));
+    awaitWaiting();
+
+    release.countDown();
+    assertNetworkError(leader);
+    assertNetworkError(follower);
+    assertThat(executions.get()).isEqualTo(1);
+  }
+
+  @Test public void waitersAreCompletedWithoutAThread() throws Exception {
+    final Object result = new Object();
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> leader = executor.submit(flight("key", blockingWork(release, result)));
+    awaitExecutions(1);
+
+    RecordingWaiter waiter = new RecordingWaiter(new RealCall(null, 0));
+    assertThat(singleFlight.execute("key", waiter, countingWork())).isSameAs(SingleFlight.JOINED);
+    assertThat(waiter.done.getCount()).isEqualTo(1);
+
+    release.countDown();
+    assertThat(leader.get()).isSameAs(result);
+    assertThat(waiter.done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(waiter.result).isSameAs(result);
+    assertThat(executions.get()).isEqualTo(1);
+    assertThat(singleFlight.coalescedCount()).isEqualTo(1);
+  }
+
+  @Test public void cancelReleasesAWaiterImmediately() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    Future<Object> leader = executor.submit(flight("key", blockingWork(release, null)));
+    awaitExecutions(1);
+    RealCall call = new RealCall(null, 0);
+    Future<Object> follower = executor.submit(flight("key", call, countingWork()));
+    awaitWaiting();
+
+    call.cancel();
+    try {
+      follower.get(1, TimeUnit.SECONDS);
+      fail("Expected cancel.");
+    } catch (ExecutionException e) {
+      assertThat(((RetrofitError) e.getCause()).isCanceled()).isTrue();
+    }
+    assertThat(leader.isDone()).isFalse();
+
+    release.countDown();
+    leader.get();
+    assertThat(executions.get()).isEqualTo(1);
+    assertThat(singleFlight.coalescedCount()).isZero();
+  }
+
+  @Test public void deadlineReleasesAWaiter() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    executor.submit(flight("key", blockingWork(release, null)));
+    awaitExecutions(1);
+
+    RecordingWaiter waiter = new RecordingWaiter(new RealCall(null, 50));
+    assertThat(singleFlight.execute("key", waiter, countingWork())).isSameAs(SingleFlight.JOINED);
+    assertThat(waiter.done.await(1, TimeUnit.SECONDS)).isTrue();
+    assertThat(waiter.error.isDeadlineExceeded()).isTrue();
+    release.countDown();
+  }
+
+  @Test public void canceledLeaderLetsWaitersRunAlone() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Callable<Object> canceled = new Callable<Object>() {
+      @Override public Object call() throws Exception {
+        executions.incrementAndGet();
+        release.await();
+        throw RetrofitError.canceledError(URL);
+      }
+    };
+    executor.submit(flight("key", canceled));
+    awaitExecutions(1);
+
+    RecordingWaiter waiter = new RecordingWaiter(new RealCall(null, 0));
+    singleFlight.execute("key", waiter, countingWork());
+    release.countDown();
+    assertThat(waiter.done.await(5, TimeUnit.SECONDS)).isTrue();
+    assertThat(waiter.ranAlone).isTrue();
+  }
+
+  private void assertNetworkError(Future<Object> future) throws InterruptedException {
+    try {
+      future.get();
+      fail("Expected network error.");
+    } catch (ExecutionException e) {
+      assertThat(((RetrofitError) e.getCause()).isNetworkError()).isTrue();
+    }
+  }
+
+  private Callable<Object> flight(String key, Callable<Object> work) {
+    return flight(key, new RealCall(null, 0), work);
+  }
+
+  private Callable<Object> flight(final String key, final RealCall call,
+      final Callable<Object> work) {
+    return new Callable<Object>() {
+      @Override public Object call() throws Exception {
+        return singleFlight.execute(key, call, URL, work);
+      }
+    };
+  }
+
+  private Callable<Object> blockingWork(final CountDownLatch release, final Object result) {
+    return new Callable<Object>() {
+      @Override public Object call() throws Exception {
+        executions.incrementAndGet();
+        release.await();
+        return result;
+      }
+    };
+  }
+
+  private Callable<Object> countingWork() {
+    return new Callable<Object>() {
+      @Override public Object call() {
+        return executions.incrementAndGet();
+      }
+    };
+  }
+
+  private void awaitExecutions(int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (executions.get() < count && System.nanoTime() < deadline) {
+      Thread.sleep(5);
+    }
+  }
+
+  /** Gives the follower a moment to join the in-flight execution. */
+  private void awaitWaiting() throws InterruptedException {
+    Thread.sleep(50);
+  }
+
+  static final class RecordingWaiter extends SingleFlight.Waiter {
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile Object result;
+    volatile RetrofitError error;
+    volatile boolean ranAlone;
+
+    RecordingWaiter(RealCall call) {
+      super(call, URL);
+    }
+
+    @Override void complete(Object result, RetrofitError error) {
+      this.result = result;
+      this.error = error;
+      done.countDown();
+    }
+
+    @Override void runAlone() {
+      ranAlone = true;
+      done.countDown();
+    }
+  }
+}
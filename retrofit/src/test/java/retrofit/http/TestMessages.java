@@ -0,0 +1,25 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Builds the requests and headers which cache tests offer to a {@link ResponseCache}. */
+final class TestMessages {
+  private TestMessages() {
+  }
+
+  /** A {@code GET} of {@code url} with the given header names and values. */
+  static Request get(String url, String... headers) {
+    return new Request("GET", url, headers(headers), null);
+  }
+
+  /** Headers from alternating names and values. */
+  static List<Header> headers(String... namesAndValues) {
+    List<Header> headers = new ArrayList<Header>();
+    for (int i = 0; i < namesAndValues.length; i += 2) {
+      headers.add(new Header(namesAndValues[i], namesAndValues[i + 1]));
+    }
+    return headers;
+  }
+}
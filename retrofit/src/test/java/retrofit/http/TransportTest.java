@@ -0,0 +1,233 @@
+// Copyright 2012 Square, Inc.
+package retrofit.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import retrofit.io.MimeType;
+import retrofit.io.TypedByteArray;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+/** Runs the same exchanges through every {@link Transport} so that they behave alike. */
+public class TransportTest {
+  private static final List<Header> NO_HEADERS = Collections.emptyList();
+  private static final int EXCHANGES = 200;
+
+  private HttpServer server;
+  private ConnectionPool pool;
+  private String url;
+
+  @Before public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/echo", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String echo = exchange.getRequestHeaders().getFirst("X-Echo");
+        String body = exchange.getRequestMethod() + " " + echo + " " + contentType + " "
+            + new String(readFully(exchange.getRequestBody()), "UTF-8");
+        respond(exchange, 200, body);
+      }
+    });
+    server.createContext("/missing", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 404, "nope");
+      }
+    });
+    server.createContext("/slow", new HttpHandler() {
+      @Override public void handle(HttpExchange exchange) throws IOException {
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException ignored) {
+        }
+        respond(exchange, 200, "late");
+      }
+    });
+    server.setExecutor(Executors.newCachedThreadPool());
+    server.start();
+    url = "http://127.0.0.1:" + server.getAddress().getPort();
+    pool = new ConnectionPool(8, 8, 30, TimeUnit.SECONDS);
+  }
+
+  @After public void tearDown() {
+    pool.shutdown();
+    server.stop(0);
+  }
+
+  private List<Transport> transports() {
+    return Arrays.asList(new ApacheTransport(pool.clientProvider()), new UrlConnectionTransport());
+  }
+
+  @Test public void getSendsHeaders() throws IOException {
+    List<Header> headers = Arrays.asList(new Header("X-Echo", "hello"));
+    for (Transport transport : transports()) {
+      Response response = transport.newExchange(new Request("GET", url + "/echo", headers, null))
+          .execute();
+      assertThat(response.getStatus()).isEqualTo(200);
+      assertThat(response.getHeader("Content-Type")).isEqualTo("text/plain; charset=UTF-8");
+      assertThat(new String(response.getBody(), "UTF-8")).isEqualTo("GET hello null ");
+    }
+  }
+
+  @Test public void postSendsBodyWithItsContentType() throws IOException {
+    TypedByteArray body =
+        new TypedByteArray("{}".getBytes("UTF-8"), new MimeType("application/json", "json"));
+    for (Transport transport : transports()) {
+      Response response = transport.newExchange(new Request("POST", url + "/echo", NO_HEADERS, body))
+          .execute();
+      assertThat(new String(response.getBody(), "UTF-8"))
+          .isEqualTo("POST null application/json {}");
+    }
+  }
+
+  @Test public void errorResponsesKeepTheirBody() throws IOException {
+    for (Transport transport : transports()) {
+      Response response =
+          transport.newExchange(new Request("GET", url + "/missing", NO_HEADERS, null)).execute();
+      assertThat(response.getStatus()).isEqualTo(404);
+      assertThat(new String(response.getBody(), "UTF-8")).isEqualTo("nope");
+    }
+  }
+
+  @Test public void readTimeoutIsApplied() {
+    Request request = new Request("GET", url + "/slow", NO_HEADERS, null).withTimeouts(1000, 100);
+    for (Transport transport : transports()) {
+      long start = System.nanoTime();
+      try {
+        transport.newExchange(request).execute();
+        fail(transport + " ignored the read timeout.");
+      } catch (IOException expected) {
+      }
+      assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(900);
+    }
+  }
+
+  @Test public void canceledExchangeIsNotSent() {
+    for (Transport transport : transports()) {
+      Transport.Exchange exchange =
+          transport.newExchange(new Request("GET", url + "/echo", NO_HEADERS, null));
+      exchange.cancel();
+      try {
+        exchange.execute();
+        fail(transport + " executed a canceled exchange.");
+      } catch (IOException expected) {
+      }
+    }
+  }
+
+  @Test public void sequentialExchangesReuseConnections() throws IOException {
+    Request request = new Request("GET", url + "/echo", NO_HEADERS, null);
+    for (Transport transport : transports()) {
+      for (int i = 0; i < 200; i++) {
+        assertThat(transport.newExchange(request).execute().getStatus()).isEqualTo(200);
+      }
+    }
+    assertThat(pool.getAvailableCount()).isEqualTo(1);
+  }
+
+  /**
+   * Time and allocation of sequential exchanges on a reused connection, per transport. The server
+   * answers each request with a single write, so that the measurement isn't dominated by delayed
+   * acknowledgements.
+   */
+  @Test public void perExchangeOverhead() throws Exception {
+    final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+    Thread acceptor = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          while (true) {
+            serveKeepAlive(serverSocket.accept());
+          }
+        } catch (IOException closed) {
+        }
+      }
+    });
+    acceptor.setDaemon(true);
+    acceptor.start();
+    final Request request = new Request("GET",
+        "http://127.0.0.1:" + serverSocket.getLocalPort() + "/ok", NO_HEADERS, null);
+    try {
+      for (final Transport transport : transports()) {
+        Benchmark.Task exchanges = new Benchmark.Task() {
+          @Override public void run() throws Exception {
+            for (int i = 0; i < EXCHANGES; i++) {
+              transport.newExchange(request).execute();
+            }
+          }
+        };
+        long nanos = Benchmark.medianNanos(2, 5, exchanges);
+        long bytes = Benchmark.allocatedBytes(exchanges);
+        Benchmark.report("transport", "%s: %.0f us and %d bytes per exchange",
+            transport.getClass().getSimpleName(), nanos / 1e3 / EXCHANGES,
+            bytes < 0 ? -1 : bytes / EXCHANGES);
+        assertThat(bytes / EXCHANGES).isLessThan(1024 * 1024);
+      }
+    } finally {
+      serverSocket.close();
+    }
+  }
+
+  /** Answer every request on {@code socket} with "ok" until the client closes it. */
+  private static void serveKeepAlive(final Socket socket) {
+    Thread connection = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          socket.setTcpNoDelay(true);
+          InputStream in = socket.getInputStream();
+          OutputStream out = socket.getOutputStream();
+          byte[] response = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain; charset=UTF-8\r\n"
+              + "Content-Length: 2\r\n\r\nok").getBytes("UTF-8");
+          int matched = 0;
+          for (int b; (b = in.read()) != -1;) {
+            // Requests have no body, so each one ends at its first empty line.
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : 0;
+            if (matched == 4) {
+              out.write(response);
+              matched = 0;
+            }
+          }
+          socket.close();
+        } catch (IOException ignored) {
+        }
+      }
+    });
+    connection.setDaemon(true);
+    connection.start();
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    out.write(bytes);
+    out.close();
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int count;
+    while ((count = in.read(buffer)) != -1) {
+      out.write(buffer, 0, count);
+    }
+    return out.toByteArray();
+  }
+}